@@ -78,6 +78,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
@@ -466,6 +467,7 @@ public abstract class GpsTestActivity extends AppCompatActivity
 
         checkNmeaOutput(settings);
         checkLocationOutput(settings);
+        checkFileFormat(settings);
 
 //        if (GpsTestUtil.isGnssStatusListenerSupported()) {
 //            checkGnssMeasurementOutput(settings);
@@ -1339,6 +1341,18 @@ public abstract class GpsTestActivity extends AppCompatActivity
                 .getBoolean(getString(R.string.pref_key_file_location_output), false);
     }
 
+    private void checkFileFormat(SharedPreferences settings) {
+        mFileLogger.setCompactRawFormat(settings
+                .getBoolean(getString(R.string.pref_key_file_compact_raw_format), false));
+        mFileLogger.setCompressed(settings
+                .getBoolean(getString(R.string.pref_key_file_gzip_output), false));
+        long rotationSizeMb = Long.parseLong(settings
+                .getString(getString(R.string.pref_key_file_rotation_size_mb), "0"));
+        long rotationMinutes = Long.parseLong(settings
+                .getString(getString(R.string.pref_key_file_rotation_minutes), "0"));
+        mFileLogger.setRotation(rotationSizeMb * 1024 * 1024, TimeUnit.MINUTES.toMillis(rotationMinutes));
+    }
+
     @Override
     protected void onDestroy() {
         if (mLocationManager != null) {
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gpstest.io;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the bytes of a log file to a {@link FileChannel} from a background thread, so that the
+ * threads that log records, such as the GNSS callback thread, never wait on disk I/O.
+ * <p>
+ * Written bytes are copied into pooled chunks, and a chunk is handed to the writer thread when it
+ * is full or on {@link #flush()}. A chunk that has been open for longer than the flush interval is
+ * handed over by the next write, or taken by the writer thread itself if no write comes, so
+ * written bytes reach the channel within about twice the flush interval. The writer thread gathers
+ * the chunks in a large direct buffer and writes it to the channel when it is full, or when the
+ * flush interval has passed since the last write. {@link #close()} waits for everything to be
+ * written and forces the file to disk.
+ * <p>
+ * The writer thread can also compress the file with gzip. The compressed stream is sync flushed
+ * whenever the buffer is written on the flush interval, so everything up to the last flush can be
+ * read with standard tools even if the app stops before the file is closed.
+ * <p>
+ * If the writer thread falls so far behind that a write does not fit in the chunks that are
+ * left, the write is dropped whole and counted rather than blocking the caller, so the file never
+ * holds part of a record. Writes should come from one thread at a time, such as while holding the
+ * {@link FileLogger}'s file lock.
+ */
+public class AsyncLogWriter extends OutputStream {
+
+    private static final String TAG = "AsyncLogWriter";
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+    private static final int CHUNK_SIZE_BYTES = 16 * 1024;
+    // Up to 4 MB can be waiting to be written
+    private static final int MAX_CHUNKS = 256;
+    private static final int BUFFER_SIZE_BYTES = 256 * 1024;
+    private static final int GZIP_BUFFER_SIZE_BYTES = 64 * 1024;
+
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    // Tells the writer thread that no more chunks will follow
+    private static final Chunk END_OF_STREAM = new Chunk(0);
+    // Tells an idle writer thread that a chunk has been started, so it can take it once it is stale
+    private static final Chunk WAKE_UP = new Chunk(0);
+
+    private final FileChannel mChannel;
+    private final long mFlushIntervalNanos;
+    private final boolean mCompressed;
+    private final BlockingQueue<Chunk> mFilledChunks = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Chunk> mFreeChunks = new ConcurrentLinkedQueue<>();
+    // Counted separately, since the size of the free queue takes a walk through it
+    private final AtomicInteger mFreeChunkCount = new AtomicInteger();
+    private final Thread mWriterThread;
+
+    // Guards the current chunk, which the writer thread takes once it has been open for too long
+    private final Object mChunkLock = new Object();
+    private Chunk mCurrentChunk;
+    private long mCurrentChunkStartNanos;
+    // True while the writer thread waits for a chunk with no deadline
+    private boolean mWriterIdle;
+
+    // Only used by the thread that is writing
+    private int mChunkCount;
+    private long mDroppedBytes;
+    private long mDroppedWrites;
+    private boolean mClosed;
+
+    // Set by the writer thread if the channel fails
+    private volatile IOException mError;
+
+    public AsyncLogWriter(FileChannel channel) {
+        this(channel, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * @param channel         The channel to write to, which is closed along with this writer
+     * @param flushIntervalMs The longest time written bytes should wait before they are written
+     *                        to the channel
+     */
+    public AsyncLogWriter(FileChannel channel, long flushIntervalMs) {
+        this(channel, flushIntervalMs, false);
+    }
+
+    /**
+     * @param channel         The channel to write to, which is closed along with this writer
+     * @param flushIntervalMs The longest time written bytes should wait before they are written
+     *                        to the channel
+     * @param compressed      True to write the bytes to the channel as a gzip stream
+     */
+    public AsyncLogWriter(FileChannel channel, long flushIntervalMs, boolean compressed) {
+        mChannel = channel;
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        mCompressed = compressed;
+        mWriterThread = new Thread(this::drain, TAG);
+        mWriterThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * Copies the bytes into the current chunk, handing chunks to the writer thread as they fill.
+     * This never waits on the writer thread for longer than it takes to hand over a chunk. If the
+     * bytes do not fit in the chunks that are left, none of them are written.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        synchronized (mChunkLock) {
+            if (!hasRoom(len)) {
+                mDroppedBytes += len;
+                mDroppedWrites++;
+                return;
+            }
+            while (len > 0) {
+                if (mCurrentChunk == null) {
+                    obtainChunk();
+                }
+                int count = Math.min(len, mCurrentChunk.data.length - mCurrentChunk.length);
+                System.arraycopy(b, off, mCurrentChunk.data, mCurrentChunk.length, count);
+                mCurrentChunk.length += count;
+                off += count;
+                len -= count;
+                if (mCurrentChunk.length == mCurrentChunk.data.length) {
+                    submitChunk();
+                }
+            }
+            if (mCurrentChunk != null && System.nanoTime() - mCurrentChunkStartNanos >= mFlushIntervalNanos) {
+                submitChunk();
+            }
+        }
+    }
+
+    /**
+     * Hands the bytes written so far to the writer thread, without waiting for them to be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        synchronized (mChunkLock) {
+            submitChunk();
+        }
+    }
+
+    /**
+     * Waits for the writer thread to write everything, forces the file to disk and closes the
+     * channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        synchronized (mChunkLock) {
+            submitChunk();
+        }
+        mFilledChunks.add(END_OF_STREAM);
+
+        boolean interrupted = false;
+        while (mWriterThread.isAlive()) {
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (mDroppedWrites > 0) {
+            Log.w(TAG, "Dropped " + mDroppedWrites + " writes (" + mDroppedBytes
+                    + " bytes) that could not be written in time");
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * @return The number of bytes that were dropped because the writer thread fell behind
+     */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * @return The number of writes that were dropped because the writer thread fell behind
+     */
+    public long getDroppedWrites() {
+        return mDroppedWrites;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Writer is closed");
+        }
+        IOException error = mError;
+        if (error != null) {
+            throw new IOException("Writing to the file failed", error);
+        }
+    }
+
+    /**
+     * @return True if the current chunk and the chunks that are left can hold the bytes. The
+     * writer thread only ever frees chunks, so the answer holds while the bytes are copied. Must
+     * be called while holding the chunk lock.
+     */
+    private boolean hasRoom(int len) {
+        int room = (mCurrentChunk != null) ? mCurrentChunk.data.length - mCurrentChunk.length : 0;
+        if (len <= room) {
+            return true;
+        }
+        long chunksLeft = mFreeChunkCount.get() + (MAX_CHUNKS - mChunkCount);
+        return chunksLeft * CHUNK_SIZE_BYTES >= len - room;
+    }
+
+    /**
+     * Starts a new current chunk, which {@link #hasRoom(int)} has made sure is available. Must be
+     * called while holding the chunk lock.
+     */
+    private void obtainChunk() {
+        Chunk chunk = mFreeChunks.poll();
+        if (chunk != null) {
+            mFreeChunkCount.decrementAndGet();
+        } else {
+            chunk = new Chunk(CHUNK_SIZE_BYTES);
+            mChunkCount++;
+        }
+        chunk.length = 0;
+        mCurrentChunk = chunk;
+        mCurrentChunkStartNanos = System.nanoTime();
+        if (mWriterIdle) {
+            mWriterIdle = false;
+            mFilledChunks.add(WAKE_UP);
+        }
+    }
+
+    /**
+     * Hands the current chunk to the writer thread if it holds any bytes. Must be called while
+     * holding the chunk lock.
+     */
+    private void submitChunk() {
+        if (mCurrentChunk == null) {
+            return;
+        }
+        if (mCurrentChunk.length > 0) {
+            mFilledChunks.add(mCurrentChunk);
+            mCurrentChunk = null;
+        }
+    }
+
+    /**
+     * Called on the writer thread to take the current chunk if it holds bytes and has been open
+     * for longer than the flush interval, because no write has come along to hand it over. Chunks
+     * that were handed over first are written first, so it is only taken once they have all been
+     * taken from the queue.
+     *
+     * @return The chunk, or null if there is no chunk to take
+     */
+    private Chunk takeStaleChunk() {
+        synchronized (mChunkLock) {
+            if (mCurrentChunk == null || mCurrentChunk.length == 0 || !mFilledChunks.isEmpty()
+                    || System.nanoTime() - mCurrentChunkStartNanos < mFlushIntervalNanos) {
+                return null;
+            }
+            Chunk chunk = mCurrentChunk;
+            mCurrentChunk = null;
+            return chunk;
+        }
+    }
+
+    /**
+     * Called on the writer thread to find how long it can wait for the next chunk: until the
+     * buffer is due to be written, or until the current chunk goes stale, whichever is first. With
+     * neither, it waits until a chunk arrives, and the next chunk that is started wakes it up.
+     *
+     * @param pending        True if bytes have been written since the buffer was last written
+     * @param lastWriteNanos When the buffer was last written
+     * @return The time to wait, or -1 to wait until a chunk arrives
+     */
+    private long getWaitNanos(boolean pending, long lastWriteNanos) {
+        long now = System.nanoTime();
+        long waitNanos = pending ? Math.max(0, mFlushIntervalNanos - (now - lastWriteNanos)) : -1;
+        synchronized (mChunkLock) {
+            if (mCurrentChunk != null && mCurrentChunk.length > 0) {
+                long staleNanos = Math.max(0, mFlushIntervalNanos - (now - mCurrentChunkStartNanos));
+                waitNanos = (waitNanos < 0) ? staleNanos : Math.min(waitNanos, staleNanos);
+            }
+            mWriterIdle = waitNanos < 0;
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Runs on the writer thread, copying chunks into the direct buffer, compressing them first if
+     * needed, and writing the buffer to the channel until the end of the stream.
+     */
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE_BYTES);
+        BufferOutputStream bufferStream = new BufferOutputStream(buffer);
+        GZIPOutputStream gzipStream = null;
+        try {
+            // The gzip stream is sync flushed on each flush() call
+            gzipStream = mCompressed ? new GZIPOutputStream(bufferStream, GZIP_BUFFER_SIZE_BYTES, true) : null;
+            OutputStream out = mCompressed ? gzipStream : bufferStream;
+            // True if bytes have been written since the last time the buffer was written
+            boolean pending = false;
+            while (true) {
+                long waitNanos = getWaitNanos(pending, bufferStream.mLastWriteNanos);
+                Chunk chunk;
+                try {
+                    chunk = (waitNanos < 0) ? mFilledChunks.take() : mFilledChunks.poll(waitNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    // Only the end of the stream stops the writer, so nothing is lost
+                    continue;
+                }
+                if (chunk == END_OF_STREAM) {
+                    break;
+                }
+                if (chunk == WAKE_UP) {
+                    // Wait again, now until the new chunk goes stale
+                    continue;
+                }
+                if (chunk == null) {
+                    chunk = takeStaleChunk();
+                }
+
+                if (chunk != null) {
+                    if (mError == null) {
+                        out.write(chunk.data, 0, chunk.length);
+                        pending = true;
+                    }
+                    mFreeChunks.add(chunk);
+                    mFreeChunkCount.incrementAndGet();
+                }
+
+                if (pending && System.nanoTime() - bufferStream.mLastWriteNanos >= mFlushIntervalNanos) {
+                    out.flush();
+                    pending = false;
+                }
+            }
+
+            if (gzipStream != null) {
+                gzipStream.finish();
+            }
+            bufferStream.flush();
+            if (mError == null) {
+                mChannel.force(true);
+            }
+        } catch (IOException e) {
+            recordError(e);
+        } finally {
+            if (gzipStream != null) {
+                // Releases the deflater; the buffer stream does not own the channel
+                try {
+                    gzipStream.close();
+                } catch (IOException e) {
+                    // The error, if any, has already been recorded
+                }
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                recordError(e);
+            }
+        }
+    }
+
+    /**
+     * Copies bytes into the direct buffer on the writer thread, writing the buffer to the channel
+     * when it is full, or when flushed.
+     */
+    private class BufferOutputStream extends OutputStream {
+        private final ByteBuffer mBuffer;
+        // When the buffer was last written to the channel
+        long mLastWriteNanos = System.nanoTime();
+
+        BufferOutputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+            mBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int count = Math.min(mBuffer.remaining(), len);
+                mBuffer.put(b, off, count);
+                off += count;
+                len -= count;
+                if (!mBuffer.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            writeBuffer(mBuffer);
+            mLastWriteNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Writes the buffer to the channel and clears it. After the channel has failed, the buffer is
+     * only cleared.
+     */
+    private void writeBuffer(ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while (mError == null && buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            recordError(e);
+        }
+        buffer.clear();
+    }
+
+    private void recordError(IOException e) {
+        Log.e(TAG, "Writing to the log file failed", e);
+        if (mError == null) {
+            mError = e;
+        }
+    }
+}
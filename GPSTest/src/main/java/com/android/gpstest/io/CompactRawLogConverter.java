@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gpstest.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Expands a log written in the compact raw format of the {@link FileLogger} into the layout of
+ * Google's GNSSLogger, so that tools that read GNSSLogger files can read it.
+ * <p>
+ * The compact raw format writes the clock of each measurement event once, in a Clock line, and a
+ * Meas line for each measurement that refers to the clock by its ID:
+ * <pre>
+ *   Clock,ClockId,ElapsedRealtimeMillis,TimeNanos,...,HardwareClockDiscontinuityCount
+ *   Meas,ClockId,Svid,TimeOffsetNanos,...,CarrierFrequencyHz
+ * </pre>
+ * Each Meas line is expanded into the Raw line with the same fields, so the converted file is the
+ * same as if the log had been written in the GNSSLogger layout. The header describes the format
+ * and its version, and is converted as well. Lines of the other record types are copied as they
+ * are.
+ */
+public class CompactRawLogConverter {
+
+    /**
+     * The version of the compact raw format that the {@link FileLogger} writes, and the newest one
+     * that can be converted.
+     */
+    public static final int VERSION = 1;
+
+    static final String CLOCK_TAG = "Clock";
+    static final String MEASUREMENT_TAG = "Meas";
+
+    static final String FORMAT_TITLE = "Compact raw GNSS measurements format, version ";
+    static final String CLOCK_FORMAT = "  Clock,ClockId,ElapsedRealtimeMillis,TimeNanos,LeapSecond,"
+            + "TimeUncertaintyNanos,FullBiasNanos,BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,"
+            + "DriftUncertaintyNanosPerSecond,HardwareClockDiscontinuityCount";
+    static final String MEASUREMENT_FORMAT = "  Meas,ClockId,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+            + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+            + "PseudorangeRateUncertaintyMetersPerSecond,"
+            + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+            + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
+            + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
+            + "ConstellationType,AgcDb,CarrierFrequencyHz";
+
+    private static final String COMMENT_START = "# ";
+    private static final String CLOCK_PREFIX = CLOCK_TAG + ",";
+    private static final String MEASUREMENT_PREFIX = MEASUREMENT_TAG + ",";
+
+    private final StringBuilder mLine = new StringBuilder(512);
+    private String mClockId;
+    private String mClockFields;
+
+    /**
+     * Converts a compact raw log file into a GNSSLogger file.
+     *
+     * @param compactFile The compact raw log
+     * @param outputFile  The file to write the GNSSLogger layout to
+     */
+    public static void convert(File compactFile, File outputFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(compactFile));
+             BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
+            convert(reader, writer);
+        }
+    }
+
+    /**
+     * Converts the lines of a compact raw log into the lines of a GNSSLogger file.
+     */
+    public static void convert(BufferedReader reader, BufferedWriter writer) throws IOException {
+        CompactRawLogConverter converter = new CompactRawLogConverter();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String converted = converter.convertLine(line);
+            if (converted != null) {
+                writer.write(converted);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Converts one line. Lines have to be converted in the order they were written, since a Meas
+     * line takes its clock fields from the Clock line before it.
+     *
+     * @param line A line of a compact raw log, or of a log in the GNSSLogger layout, which is left
+     *             as it is
+     * @return The line in the GNSSLogger layout, or null if the line has no counterpart in it
+     * @throws IOException if the log was written in a newer version of the format, or if a Meas
+     *                     line refers to a clock that is not the one before it
+     */
+    public String convertLine(String line) throws IOException {
+        if (line.startsWith(CLOCK_PREFIX)) {
+            int idEnd = line.indexOf(',', CLOCK_PREFIX.length());
+            if (idEnd < 0) {
+                throw new IOException("Invalid clock record: " + line);
+            }
+            mClockId = line.substring(CLOCK_PREFIX.length(), idEnd);
+            mClockFields = line.substring(idEnd + 1);
+            return null;
+        }
+
+        if (line.startsWith(MEASUREMENT_PREFIX)) {
+            int idEnd = line.indexOf(',', MEASUREMENT_PREFIX.length());
+            if (idEnd < 0 || mClockId == null
+                    || idEnd - MEASUREMENT_PREFIX.length() != mClockId.length()
+                    || !line.startsWith(mClockId, MEASUREMENT_PREFIX.length())) {
+                throw new IOException("Measurement record without its clock record: " + line);
+            }
+            mLine.setLength(0);
+            mLine.append(FileLogger.RAW_TAG).append(',')
+                    .append(mClockFields).append(',')
+                    .append(line, idEnd + 1, line.length());
+            return mLine.toString();
+        }
+
+        if (line.startsWith(COMMENT_START)) {
+            String comment = line.substring(COMMENT_START.length());
+            if (comment.startsWith(FORMAT_TITLE)) {
+                checkVersion(comment);
+                return COMMENT_START + FileLogger.RAW_FORMAT_TITLE;
+            } else if (comment.equals(CLOCK_FORMAT)) {
+                return COMMENT_START + FileLogger.RAW_FORMAT;
+            } else if (comment.equals(MEASUREMENT_FORMAT)) {
+                return null;
+            }
+        }
+        return line;
+    }
+
+    private static void checkVersion(String formatTitle) throws IOException {
+        String version = formatTitle.substring(FORMAT_TITLE.length());
+        if (version.endsWith(":")) {
+            version = version.substring(0, version.length() - 1);
+        }
+        int number;
+        try {
+            number = Integer.parseInt(version.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Unknown compact raw format version: " + version);
+        }
+        if (number > VERSION) {
+            throw new IOException("Compact raw format version " + number
+                    + " is newer than the supported version " + VERSION);
+        }
+    }
+}
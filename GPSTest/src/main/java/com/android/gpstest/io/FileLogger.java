@@ -28,6 +28,8 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
@@ -40,16 +42,15 @@ import com.android.gpstest.R;
 import com.android.gpstest.util.GpsTestUtil;
 import com.android.gpstest.util.IOUtils;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A GNSS logger to store information to a file. Originally from https://github.com/google/gps-measurement-tools/tree/master/GNSSLogger,
@@ -63,16 +64,67 @@ public class FileLogger {
     private static final char RECORD_DELIMITER = ',';
     private static final String VERSION_TAG = "GPSTest version: ";
 
+    static final String RAW_TAG = "Raw";
+    static final String RAW_FORMAT_TITLE = "Raw GNSS measurements format:";
+    static final String RAW_FORMAT =
+            "  Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
+                    + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
+                    + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+                    + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+                    + "PseudorangeRateUncertaintyMetersPerSecond,"
+                    + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+                    + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
+                    + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
+                    + "ConstellationType,AgcDb,CarrierFrequencyHz";
+
+    private static final int FIX_DECIMALS = 6;
+
     private static final int MAX_FILES_STORED = 100;
-    private static final int MINIMUM_USABLE_FILE_SIZE_BYTES = 1000;
+
+    private static final String TEXT_FILE_EXTENSION = ".txt";
+    private static final String GZIP_FILE_EXTENSION = ".txt.gz";
+    // Compressed files are sync flushed less often, which keeps the deflate blocks larger
+    private static final long GZIP_FLUSH_INTERVAL_MS = 5000;
+
+    // Closes finished files, rotates and prunes in the background. It is shared by every logger,
+    // since a new logger is created each time the activity is, and is never shut down.
+    private static final ExecutorService MAINTENANCE_EXECUTOR = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "FileLoggerMaintenance"));
 
     private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Serializes opening new files, so that a rotation and a call to startNewLog() do not pick
+    // the same file name
+    private final Object mStartLock = new Object();
+    // Only used on the maintenance thread
+    private LogFileIndex mFileIndex;
 
     private final Object mFileLock = new Object();
-    private BufferedWriter mFileWriter;
-    private File mFile;
+    // Formats records for the file; only used while holding mFileLock
+    private final LogRecordFormatter mFormatter = new LogRecordFormatter();
+    // Writes to the file from a background thread, so callbacks never wait on disk I/O
+    private OutputStream mFileWriter;
+    private volatile File mFile;
     private boolean mIsStarted = false;
 
+    // True to write new files in the compact raw format
+    private volatile boolean mCompactRawFormat = false;
+    // True to compress new files with gzip
+    private volatile boolean mCompressed = false;
+    // The raw format of the current file, and the ID of the next clock record in it
+    private boolean mFileCompactRaw;
+    private long mNextClockId;
+
+    // Limits that rotate the current file, or 0 for no limit
+    private volatile long mMaxFileBytes = 0;
+    private volatile long mMaxFileDurationMs = 0;
+    // How much has been written to the current file and when it was started, and whether a
+    // rotation has been requested
+    private long mFileBytes;
+    private long mFileStartedMs;
+    private boolean mRotationPending;
+
     public FileLogger(Context context) {
         mContext = context;
     }
@@ -81,162 +133,286 @@ public class FileLogger {
         return mFile;
     }
 
+    /**
+     * Sets whether raw measurements are written in the compact raw format, with one clock record
+     * for each measurement event and a measurement record for each measurement that refers to it,
+     * instead of a Raw record with all of the clock fields for each measurement. The format of a
+     * file is chosen when it is started, so this takes effect with the next file.
+     * {@link CompactRawLogConverter} converts compact raw logs into the GNSSLogger layout.
+     *
+     * @param compactRawFormat true to write the compact raw format, false to write Raw records
+     */
+    public void setCompactRawFormat(boolean compactRawFormat) {
+        mCompactRawFormat = compactRawFormat;
+    }
+
+    /**
+     * Sets whether new files are compressed with gzip, and named .txt.gz instead of .txt. The
+     * compression is done by the background writer, which sync flushes the compressed stream every
+     * few seconds, so a file that is not closed can still be read up to the last flush. This takes
+     * effect with the next file.
+     *
+     * @param compressed true to compress new files, false to write plain text
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
+    }
+
+    /**
+     * Sets when the logger switches to a new file on its own. The switch happens in the background,
+     * and every record is written to either the old file or the new one.
+     *
+     * @param maxFileBytes      The size of a file, before any compression, at which the logger
+     *                          switches to a new one, or 0 for no limit
+     * @param maxFileDurationMs How long the logger writes to a file before it switches to a new
+     *                          one, or 0 for no limit
+     */
+    public void setRotation(long maxFileBytes, long maxFileDurationMs) {
+        mMaxFileBytes = Math.max(0, maxFileBytes);
+        mMaxFileDurationMs = Math.max(0, maxFileDurationMs);
+    }
+
     /**
      * Start a new file logging process.
      */
     public void startNewLog() {
-        synchronized (mFileLock) {
-            File baseDirectory;
-            String state = Environment.getExternalStorageState();
-            if (Environment.MEDIA_MOUNTED.equals(state)) {
-                baseDirectory = new File(Environment.getExternalStorageDirectory(), FILE_PREFIX);
-                baseDirectory.mkdirs();
-            } else if (Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
-                logError("Cannot write to external storage.");
-                return;
-            } else {
-                logError("Cannot read external storage.");
-                return;
-            }
+        File baseDirectory;
+        String state = Environment.getExternalStorageState();
+        if (Environment.MEDIA_MOUNTED.equals(state)) {
+            baseDirectory = new File(Environment.getExternalStorageDirectory(), FILE_PREFIX);
+            baseDirectory.mkdirs();
+        } else if (Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+            logError("Cannot write to external storage.");
+            return;
+        } else {
+            logError("Cannot read external storage.");
+            return;
+        }
 
-            SimpleDateFormat formatter = new SimpleDateFormat("yyy_MM_dd_HH_mm_ss");
-            Date now = new Date();
-            String fileName = String.format("%s_%s.txt", FILE_PREFIX, formatter.format(now));
-            File currentFile = new File(baseDirectory, fileName);
-            String currentFilePath = currentFile.getAbsolutePath();
-            BufferedWriter writer;
+        LogFile logFile = openLogFile(baseDirectory);
+        if (logFile != null) {
+            switchToLogFile(logFile, null);
+            // Rotations happen in the background without a toast, so long sessions aren't
+            // interrupted by one every time a file fills up
+            showToast(Application.get().getString(R.string.logging_to_new_file, logFile.mFile.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Creates a new file in the directory and writes its header.
+     *
+     * @return The new file, or null if it could not be created
+     */
+    private LogFile openLogFile(File baseDirectory) {
+        boolean compactRaw = mCompactRawFormat;
+        boolean compressed = mCompressed;
+        String extension = compressed ? GZIP_FILE_EXTENSION : TEXT_FILE_EXTENSION;
+        SimpleDateFormat formatter = new SimpleDateFormat("yyy_MM_dd_HH_mm_ss");
+        Date now = new Date();
+
+        File currentFile;
+        FileChannel channel;
+        synchronized (mStartLock) {
+            // A file that rotates within a second of the previous one gets a sequence number
+            String baseName = String.format("%s_%s", FILE_PREFIX, formatter.format(now));
+            currentFile = new File(baseDirectory, baseName + extension);
+            for (int sequence = 1; currentFile.exists(); sequence++) {
+                currentFile = new File(baseDirectory, baseName + "_" + sequence + extension);
+            }
             try {
-                writer = new BufferedWriter(new FileWriter(currentFile));
+                channel = new FileOutputStream(currentFile).getChannel();
             } catch (IOException e) {
-                logException("Could not open file: " + currentFilePath, e);
-                return;
+                logException("Could not open file: " + currentFile.getAbsolutePath(), e);
+                return null;
             }
-
-            // initialize the contents of the file
+        }
+        String currentFilePath = currentFile.getAbsolutePath();
+        OutputStream writer = compressed
+                ? new AsyncLogWriter(channel, GZIP_FLUSH_INTERVAL_MS, true)
+                : new AsyncLogWriter(channel);
+
+        // initialize the contents of the file
+        int headerBytes;
+        try {
+            LogRecordFormatter header = new LogRecordFormatter();
+            header.append(COMMENT_START);
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append("Header Description:");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append(VERSION_TAG);
+            String manufacturer = Build.MANUFACTURER;
+            String model = Build.MODEL;
+
+            String versionString = "";
+            int versionCode = 0;
             try {
-                writer.write(COMMENT_START);
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("Header Description:");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write(VERSION_TAG);
-                String manufacturer = Build.MANUFACTURER;
-                String model = Build.MODEL;
-
-                String versionString = "";
-                int versionCode = 0;
-                try {
-                    PackageInfo info = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0);
-                    versionString = info.versionName;
-                    versionCode = info.versionCode;
-                } catch (PackageManager.NameNotFoundException e) {
-                    e.printStackTrace();
-                }
+                PackageInfo info = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0);
+                versionString = info.versionName;
+                versionCode = info.versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                e.printStackTrace();
+            }
 
-                StringBuilder version = new StringBuilder();
-                // Version info
-                version.append("v")
-                        .append(versionString)
-                        .append(" (")
-                        .append(versionCode)
-                        .append("-" + BuildConfig.FLAVOR + "), ");
-
-                version.append("Manufacturer: " + manufacturer + ", ");
-                version.append("Model: " + model + ", ");
-
-                version.append(GpsTestUtil.getGnssHardwareYear() + ", ");
-
-                String versionRelease = Build.VERSION.RELEASE;
-                version.append("Platform: " + versionRelease + ", ");
-                int apiLevel = Build.VERSION.SDK_INT;
-                version.append("API Level: " + apiLevel + " ");
-
-                writer.write(version.toString());
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("Raw GNSS measurements format:");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write(
-                        "  Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
-                                + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
-                                + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
-                                + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
-                                + "PseudorangeRateUncertaintyMetersPerSecond,"
-                                + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
-                                + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
-                                + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
-                                + "ConstellationType,AgcDb,CarrierFrequencyHz");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("Location fix format:");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write(
-                        "  Fix,Provider,Latitude,Longitude,Altitude,Speed,Accuracy,(UTC)TimeInMs");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("Navigation message format:");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("  Nav,Svid,Type,Status,MessageId,Sub-messageId,Data(Bytes)");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("NMEA format (for [NMEA sentence] format see https://www.gpsinformation.org/dale/nmea.htm):");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.write("  NMEA,[NMEA sentence],(UTC)TimeInMs");
-                writer.newLine();
-                writer.write(COMMENT_START);
-                writer.newLine();
-            } catch (IOException e) {
-                logException(Application.get().getString(R.string.could_not_initialize_file, currentFilePath), e);
+            StringBuilder version = new StringBuilder();
+            // Version info
+            version.append("v")
+                    .append(versionString)
+                    .append(" (")
+                    .append(versionCode)
+                    .append("-" + BuildConfig.FLAVOR + "), ");
+
+            version.append("Manufacturer: " + manufacturer + ", ");
+            version.append("Model: " + model + ", ");
+
+            version.append(GpsTestUtil.getGnssHardwareYear() + ", ");
+
+            String versionRelease = Build.VERSION.RELEASE;
+            version.append("Platform: " + versionRelease + ", ");
+            int apiLevel = Build.VERSION.SDK_INT;
+            version.append("API Level: " + apiLevel + " ");
+
+            header.append(version.toString());
+            header.newLine();
+            header.append(COMMENT_START);
+            header.newLine();
+            header.append(COMMENT_START);
+            if (compactRaw) {
+                header.append(CompactRawLogConverter.FORMAT_TITLE);
+                header.append(CompactRawLogConverter.VERSION);
+                header.append(':');
+                header.newLine();
+                header.append(COMMENT_START);
+                header.append(CompactRawLogConverter.CLOCK_FORMAT);
+                header.newLine();
+                header.append(COMMENT_START);
+                header.append(CompactRawLogConverter.MEASUREMENT_FORMAT);
+            } else {
+                header.append(RAW_FORMAT_TITLE);
+                header.newLine();
+                header.append(COMMENT_START);
+                header.append(RAW_FORMAT);
+            }
+            header.newLine();
+            header.append(COMMENT_START);
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append("Location fix format:");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append(
+                    "  Fix,Provider,Latitude,Longitude,Altitude,Speed,Accuracy,(UTC)TimeInMs");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append("Navigation message format:");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append("  Nav,Svid,Type,Status,MessageId,Sub-messageId,Data(Bytes)");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append("NMEA format (for [NMEA sentence] format see https://www.gpsinformation.org/dale/nmea.htm):");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.append("  NMEA,[NMEA sentence],(UTC)TimeInMs");
+            header.newLine();
+            header.append(COMMENT_START);
+            header.newLine();
+            headerBytes = header.length();
+            header.writeTo(writer);
+        } catch (IOException e) {
+            logException(Application.get().getString(R.string.could_not_initialize_file, currentFilePath), e);
+            closeQuietly(writer);
+            return null;
+        }
+        return new LogFile(currentFile, writer, compactRaw, headerBytes);
+    }
+
+    /**
+     * Makes the file the one that records are written to. The previous file is written out and
+     * closed in the background after the new one has taken its place, so that callbacks do not
+     * wait on it, and old files are then pruned.
+     *
+     * @param logFile      The new file
+     * @param expectedFile The file that is being rotated, or null to switch whatever the current
+     *                     file is. If the logger has since been closed or switched to a different
+     *                     file, the new file is discarded.
+     */
+    private void switchToLogFile(LogFile logFile, File expectedFile) {
+        OutputStream previousWriter;
+        File previousFile;
+        synchronized (mFileLock) {
+            if (expectedFile != null && (mFileWriter == null || !expectedFile.equals(mFile))) {
+                discard(logFile);
                 return;
             }
+            previousWriter = mFileWriter;
+            previousFile = mFile;
+            mFile = logFile.mFile;
+            mFileWriter = logFile.mWriter;
+            mFileCompactRaw = logFile.mCompactRaw;
+            mNextClockId = 0;
+            mFileBytes = logFile.mHeaderBytes;
+            mFileStartedMs = SystemClock.elapsedRealtime();
+            mRotationPending = false;
+            mIsStarted = true;
+        }
 
-            if (mFileWriter != null) {
+        File baseDirectory = logFile.mFile.getParentFile();
+        MAINTENANCE_EXECUTOR.execute(() -> {
+            // The index is only used on this thread
+            if (mFileIndex == null) {
+                mFileIndex = new LogFileIndex(baseDirectory, MAX_FILES_STORED);
+            }
+            mFileIndex.onFileStarted(logFile.mFile);
+            if (previousWriter != null) {
                 try {
-                    mFileWriter.close();
+                    previousWriter.close();
                 } catch (IOException e) {
                     logException(Application.get().getString(R.string.unable_to_close_all_file_streams), e);
-                    return;
                 }
+                mFileIndex.onFileClosed(previousFile);
             }
+            mFileIndex.prune();
+        });
+    }
 
-            mFile = currentFile;
-            mFileWriter = writer;
-            Toast.makeText(mContext, Application.get().getString(R.string.logging_to_new_file, currentFilePath), Toast.LENGTH_LONG).show();
-
-            // To make sure that files do not fill up the external storage:
-            // - Remove all empty files
-            FileFilter filter = new FileToDeleteFilter(mFile);
-            for (File existingFile : baseDirectory.listFiles(filter)) {
-                existingFile.delete();
-            }
-            // - Trim the number of files with data
-            File[] existingFiles = baseDirectory.listFiles();
-            int filesToDeleteCount = existingFiles.length - MAX_FILES_STORED;
-            if (filesToDeleteCount > 0) {
-                Arrays.sort(existingFiles);
-                for (int i = 0; i < filesToDeleteCount; ++i) {
-                    existingFiles[i].delete();
-                }
+    /**
+     * Runs on the maintenance thread to switch from the current file to a new one once it has
+     * reached its size or duration limit.
+     */
+    private void rotate() {
+        File currentFile;
+        synchronized (mFileLock) {
+            if (mFileWriter == null) {
+                return;
             }
-            mIsStarted = true;
+            currentFile = mFile;
+        }
+        // If the new file can not be opened, logging continues in the current one
+        LogFile logFile = openLogFile(currentFile.getParentFile());
+        if (logFile != null) {
+            Log.i(TAG, "Rotating " + currentFile + " to " + logFile.mFile);
+            switchToLogFile(logFile, currentFile);
         }
     }
 
+    /**
+     * Closes and deletes a file that was opened for a rotation that is no longer needed.
+     */
+    private void discard(LogFile logFile) {
+        MAINTENANCE_EXECUTOR.execute(() -> {
+            closeQuietly(logFile.mWriter);
+            logFile.mFile.delete();
+        });
+    }
+
     /**
      * Returns true if the logger is already started, or false if it is not
      *
@@ -255,22 +431,37 @@ public class FileLogger {
         if (mFile == null) {
             return;
         }
+        // The log is closed first, so that it is complete when it is read
+        close();
         android.net.Uri uri = IOUtils.getUriFromFile(mContext, mFile);
         IOUtils.sendLogFile(activity, uri);
-        close();
     }
 
+    /**
+     * Closes the current log, waiting for it to be written and forced to disk. Callbacks stop
+     * writing to the file as soon as this is called, and do not wait for it to be closed.
+     */
     public void close() {
-        if (mFileWriter != null) {
+        OutputStream writer;
+        File file;
+        synchronized (mFileLock) {
+            writer = mFileWriter;
+            file = mFile;
+            mFileWriter = null;
+            mRotationPending = false;
+        }
+        if (writer != null) {
             try {
-                mFileWriter.flush();
-                mFileWriter.close();
-                mFileWriter = null;
+                writer.close();
                 mIsStarted = false;
             } catch (IOException e) {
                 logException("Unable to close all file streams.", e);
-                return;
             }
+            MAINTENANCE_EXECUTOR.execute(() -> {
+                if (mFileIndex != null) {
+                    mFileIndex.onFileClosed(file);
+                }
+            });
         }
     }
 
@@ -280,20 +471,19 @@ public class FileLogger {
                 if (mFileWriter == null) {
                     return;
                 }
-                String locationStream =
-                        String.format(
-                                Locale.US,
-                                "Fix,%s,%f,%f,%f,%f,%f,%d",
-                                location.getProvider(),
-                                location.getLatitude(),
-                                location.getLongitude(),
-                                location.getAltitude(),
-                                location.getSpeed(),
-                                location.getAccuracy(),
-                                location.getTime());
+                // The same text as String.format(Locale.US, "Fix,%s,%f,%f,%f,%f,%f,%d", ...)
+                mFormatter.reset()
+                        .append("Fix").append(RECORD_DELIMITER)
+                        .append(location.getProvider()).append(RECORD_DELIMITER)
+                        .appendFixed(location.getLatitude(), FIX_DECIMALS).append(RECORD_DELIMITER)
+                        .appendFixed(location.getLongitude(), FIX_DECIMALS).append(RECORD_DELIMITER)
+                        .appendFixed(location.getAltitude(), FIX_DECIMALS).append(RECORD_DELIMITER)
+                        .appendFixed(location.getSpeed(), FIX_DECIMALS).append(RECORD_DELIMITER)
+                        .appendFixed(location.getAccuracy(), FIX_DECIMALS).append(RECORD_DELIMITER)
+                        .append(location.getTime())
+                        .newLine();
                 try {
-                    mFileWriter.write(locationStream);
-                    mFileWriter.newLine();
+                    writeRecord(mFormatter);
                 } catch (IOException e) {
                     logException(Application.get().getString(R.string.error_writing_file), e);
                 }
@@ -307,14 +497,37 @@ public class FileLogger {
             if (mFileWriter == null) {
                 return;
             }
+            // Every record of the event has the same elapsed realtime, and the records are
+            // written together
+            long elapsedRealtime = SystemClock.elapsedRealtime();
             GnssClock gnssClock = event.getClock();
-            for (GnssMeasurement measurement : event.getMeasurements()) {
-                try {
-                    writeGnssMeasurementToFile(gnssClock, measurement);
-                } catch (IOException e) {
-                    logException(Application.get().getString(R.string.error_writing_file), e);
+            LogRecordFormatter records = mFormatter.reset();
+            if (mFileCompactRaw) {
+                long clockId = mNextClockId++;
+                records.append(CompactRawLogConverter.CLOCK_TAG).append(RECORD_DELIMITER);
+                records.append(clockId).append(RECORD_DELIMITER);
+                appendClock(records, elapsedRealtime, gnssClock);
+                records.newLine();
+                for (GnssMeasurement measurement : event.getMeasurements()) {
+                    records.append(CompactRawLogConverter.MEASUREMENT_TAG).append(RECORD_DELIMITER);
+                    records.append(clockId).append(RECORD_DELIMITER);
+                    appendMeasurement(records, measurement);
+                    records.newLine();
+                }
+            } else {
+                for (GnssMeasurement measurement : event.getMeasurements()) {
+                    records.append(RAW_TAG).append(RECORD_DELIMITER);
+                    appendClock(records, elapsedRealtime, gnssClock);
+                    records.append(RECORD_DELIMITER);
+                    appendMeasurement(records, measurement);
+                    records.newLine();
                 }
             }
+            try {
+                writeRecord(records);
+            } catch (IOException e) {
+                logException(Application.get().getString(R.string.error_writing_file), e);
+            }
         }
     }
 
@@ -324,7 +537,8 @@ public class FileLogger {
             if (mFileWriter == null) {
                 return;
             }
-            StringBuilder builder = new StringBuilder("Nav");
+            LogRecordFormatter builder = mFormatter.reset();
+            builder.append("Nav");
             builder.append(RECORD_DELIMITER);
             builder.append(navigationMessage.getSvid());
             builder.append(RECORD_DELIMITER);
@@ -342,9 +556,9 @@ public class FileLogger {
                 builder.append(RECORD_DELIMITER);
                 builder.append(word);
             }
+            builder.newLine();
             try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
+                writeRecord(builder);
             } catch (IOException e) {
                 logException(Application.get().getString(R.string.error_writing_file), e);
             }
@@ -356,103 +570,148 @@ public class FileLogger {
             if (mFileWriter == null) {
                 return;
             }
-            String nmeaStream = "NMEA," + s.trim() + "," + timestamp;
+            // The sentence is trimmed in place, rather than with String.trim()
+            int start = 0;
+            int end = s.length();
+            while ((start < end) && (s.charAt(start) <= ' ')) {
+                start++;
+            }
+            while ((end > start) && (s.charAt(end - 1) <= ' ')) {
+                end--;
+            }
+            mFormatter.reset()
+                    .append("NMEA").append(RECORD_DELIMITER)
+                    .append(s, start, end).append(RECORD_DELIMITER)
+                    .append(timestamp)
+                    .newLine();
             try {
-                mFileWriter.write(nmeaStream);
-                mFileWriter.newLine();
+                writeRecord(mFormatter);
             } catch (IOException e) {
                 logException(Application.get().getString(R.string.error_writing_file), e);
             }
         }
     }
 
+    /**
+     * Writes a formatted record to the current file, and requests a rotation in the background
+     * once the file has reached its size or duration limit. Called while holding mFileLock.
+     */
+    private void writeRecord(LogRecordFormatter record) throws IOException {
+        mFileBytes += record.length();
+        record.writeTo(mFileWriter);
+        if (!mRotationPending && isRotationDue()) {
+            mRotationPending = true;
+            MAINTENANCE_EXECUTOR.execute(this::rotate);
+        }
+    }
+
+    private boolean isRotationDue() {
+        long maxFileBytes = mMaxFileBytes;
+        long maxFileDurationMs = mMaxFileDurationMs;
+        return (maxFileBytes > 0 && mFileBytes >= maxFileBytes)
+                || (maxFileDurationMs > 0 && SystemClock.elapsedRealtime() - mFileStartedMs >= maxFileDurationMs);
+    }
+
+    /**
+     * Appends the clock fields of a Raw or clock record. The text is the same as each field being
+     * formatted with String.valueOf(), and fields that the clock does not have being left empty.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private static void appendClock(LogRecordFormatter record, long elapsedRealtime, GnssClock clock) {
+        record.append(elapsedRealtime).append(RECORD_DELIMITER);
+        record.append(clock.getTimeNanos()).append(RECORD_DELIMITER);
+        if (clock.hasLeapSecond()) record.append(clock.getLeapSecond());
+        record.append(RECORD_DELIMITER);
+        if (clock.hasTimeUncertaintyNanos()) record.append(clock.getTimeUncertaintyNanos());
+        record.append(RECORD_DELIMITER);
+        record.append(clock.getFullBiasNanos()).append(RECORD_DELIMITER);
+        if (clock.hasBiasNanos()) record.append(clock.getBiasNanos());
+        record.append(RECORD_DELIMITER);
+        if (clock.hasBiasUncertaintyNanos()) record.append(clock.getBiasUncertaintyNanos());
+        record.append(RECORD_DELIMITER);
+        if (clock.hasDriftNanosPerSecond()) record.append(clock.getDriftNanosPerSecond());
+        record.append(RECORD_DELIMITER);
+        if (clock.hasDriftUncertaintyNanosPerSecond()) record.append(clock.getDriftUncertaintyNanosPerSecond());
+        record.append(RECORD_DELIMITER);
+        record.append(clock.getHardwareClockDiscontinuityCount());
+    }
+
+    /**
+     * Appends the measurement fields of a Raw or measurement record, formatted the same way as the
+     * clock fields.
+     */
     @RequiresApi(api = Build.VERSION_CODES.N)
-    private void writeGnssMeasurementToFile(GnssClock clock, GnssMeasurement measurement)
-            throws IOException {
-        String clockStream =
-                String.format(
-                        "Raw,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                        SystemClock.elapsedRealtime(),
-                        clock.getTimeNanos(),
-                        clock.hasLeapSecond() ? clock.getLeapSecond() : "",
-                        clock.hasTimeUncertaintyNanos() ? clock.getTimeUncertaintyNanos() : "",
-                        clock.getFullBiasNanos(),
-                        clock.hasBiasNanos() ? clock.getBiasNanos() : "",
-                        clock.hasBiasUncertaintyNanos() ? clock.getBiasUncertaintyNanos() : "",
-                        clock.hasDriftNanosPerSecond() ? clock.getDriftNanosPerSecond() : "",
-                        clock.hasDriftUncertaintyNanosPerSecond()
-                                ? clock.getDriftUncertaintyNanosPerSecond()
-                                : "",
-                        clock.getHardwareClockDiscontinuityCount() + ",");
-        mFileWriter.write(clockStream);
-
-        String measurementStream =
-                String.format(
-                        "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                        measurement.getSvid(),
-                        measurement.getTimeOffsetNanos(),
-                        measurement.getState(),
-                        measurement.getReceivedSvTimeNanos(),
-                        measurement.getReceivedSvTimeUncertaintyNanos(),
-                        measurement.getCn0DbHz(),
-                        measurement.getPseudorangeRateMetersPerSecond(),
-                        measurement.getPseudorangeRateUncertaintyMetersPerSecond(),
-                        measurement.getAccumulatedDeltaRangeState(),
-                        measurement.getAccumulatedDeltaRangeMeters(),
-                        measurement.getAccumulatedDeltaRangeUncertaintyMeters(),
-                        measurement.hasCarrierFrequencyHz() ? measurement.getCarrierFrequencyHz() : "",
-                        measurement.hasCarrierCycles() ? measurement.getCarrierCycles() : "",
-                        measurement.hasCarrierPhase() ? measurement.getCarrierPhase() : "",
-                        measurement.hasCarrierPhaseUncertainty()
-                                ? measurement.getCarrierPhaseUncertainty()
-                                : "",
-                        measurement.getMultipathIndicator(),
-                        measurement.hasSnrInDb() ? measurement.getSnrInDb() : "",
-                        measurement.getConstellationType(),
-                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
-                                && measurement.hasAutomaticGainControlLevelDb()
-                                ? measurement.getAutomaticGainControlLevelDb()
-                                : "",
-                        measurement.hasCarrierFrequencyHz() ? measurement.getCarrierFrequencyHz() : "");
-        mFileWriter.write(measurementStream);
-        mFileWriter.newLine();
+    private static void appendMeasurement(LogRecordFormatter record, GnssMeasurement measurement) {
+        record.append(measurement.getSvid()).append(RECORD_DELIMITER);
+        record.append(measurement.getTimeOffsetNanos()).append(RECORD_DELIMITER);
+        record.append(measurement.getState()).append(RECORD_DELIMITER);
+        record.append(measurement.getReceivedSvTimeNanos()).append(RECORD_DELIMITER);
+        record.append(measurement.getReceivedSvTimeUncertaintyNanos()).append(RECORD_DELIMITER);
+        record.append(measurement.getCn0DbHz()).append(RECORD_DELIMITER);
+        record.append(measurement.getPseudorangeRateMetersPerSecond()).append(RECORD_DELIMITER);
+        record.append(measurement.getPseudorangeRateUncertaintyMetersPerSecond()).append(RECORD_DELIMITER);
+        record.append(measurement.getAccumulatedDeltaRangeState()).append(RECORD_DELIMITER);
+        record.append(measurement.getAccumulatedDeltaRangeMeters()).append(RECORD_DELIMITER);
+        record.append(measurement.getAccumulatedDeltaRangeUncertaintyMeters()).append(RECORD_DELIMITER);
+        if (measurement.hasCarrierFrequencyHz()) record.append(measurement.getCarrierFrequencyHz());
+        record.append(RECORD_DELIMITER);
+        if (measurement.hasCarrierCycles()) record.append(measurement.getCarrierCycles());
+        record.append(RECORD_DELIMITER);
+        if (measurement.hasCarrierPhase()) record.append(measurement.getCarrierPhase());
+        record.append(RECORD_DELIMITER);
+        if (measurement.hasCarrierPhaseUncertainty()) record.append(measurement.getCarrierPhaseUncertainty());
+        record.append(RECORD_DELIMITER);
+        record.append(measurement.getMultipathIndicator()).append(RECORD_DELIMITER);
+        if (measurement.hasSnrInDb()) record.append(measurement.getSnrInDb());
+        record.append(RECORD_DELIMITER);
+        record.append(measurement.getConstellationType()).append(RECORD_DELIMITER);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && measurement.hasAutomaticGainControlLevelDb()) {
+            record.append(measurement.getAutomaticGainControlLevelDb());
+        }
+        record.append(RECORD_DELIMITER);
+        if (measurement.hasCarrierFrequencyHz()) record.append(measurement.getCarrierFrequencyHz());
+    }
+
+    private static void closeQuietly(OutputStream writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close file", e);
+        }
     }
 
     private void logException(String errorMessage, Exception e) {
         Log.e(TAG, errorMessage, e);
-        Toast.makeText(mContext, errorMessage, Toast.LENGTH_LONG).show();
+        showToast(errorMessage);
     }
 
     private void logError(String errorMessage) {
         Log.e(TAG, errorMessage);
-        Toast.makeText(mContext, errorMessage, Toast.LENGTH_LONG).show();
+        showToast(errorMessage);
     }
 
     /**
-     * Implements a {@link FileFilter} to delete files that are not in the
-     * {@link FileToDeleteFilter#mRetainedFiles}.
+     * Shows a toast on the main thread, since files are also started and closed in the background.
      */
-    private static class FileToDeleteFilter implements FileFilter {
-        private final List<File> mRetainedFiles;
-
-        public FileToDeleteFilter(File... retainedFiles) {
-            this.mRetainedFiles = Arrays.asList(retainedFiles);
-        }
+    private void showToast(String message) {
+        mMainHandler.post(() -> Toast.makeText(mContext, message, Toast.LENGTH_LONG).show());
+    }
 
-        /**
-         * Returns {@code true} to delete the file, and {@code false} to keep the file.
-         *
-         * <p>Files are deleted if they are not in the {@link FileToDeleteFilter#mRetainedFiles} list.
-         */
-        @Override
-        public boolean accept(File pathname) {
-            if (pathname == null || !pathname.exists()) {
-                return false;
-            }
-            if (mRetainedFiles.contains(pathname)) {
-                return false;
-            }
-            return pathname.length() < MINIMUM_USABLE_FILE_SIZE_BYTES;
+    /**
+     * A file that has been created and had its header written, before records are written to it.
+     */
+    private static class LogFile {
+        final File mFile;
+        final OutputStream mWriter;
+        final boolean mCompactRaw;
+        final int mHeaderBytes;
+
+        LogFile(File file, OutputStream writer, boolean compactRaw, int headerBytes) {
+            mFile = file;
+            mWriter = writer;
+            mCompactRaw = compactRaw;
+            mHeaderBytes = headerBytes;
         }
     }
 }
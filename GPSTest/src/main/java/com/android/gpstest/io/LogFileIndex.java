@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gpstest.io;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps an index of the files in the {@link FileLogger}'s directory, so that old logs can be
+ * pruned without listing and sorting the directory each time a file is started. The directory is
+ * listed once, the first time the index is needed, and the index is then kept up to date as the
+ * logger starts and closes files.
+ * <p>
+ * Files are ordered by name, which starts with the time the log was started, so the oldest logs
+ * come first. Files that are too small to hold any data are deleted as they are found, and the
+ * oldest files are deleted when there are more than the maximum number of files. Files that are
+ * still open are never deleted.
+ * <p>
+ * The index is not thread safe. The {@link FileLogger} only uses it from its maintenance thread.
+ */
+public class LogFileIndex {
+
+    private static final String TAG = "LogFileIndex";
+
+    private static final int MINIMUM_USABLE_FILE_SIZE_BYTES = 1000;
+    // The header alone compresses to more than this
+    private static final int MINIMUM_USABLE_GZIP_FILE_SIZE_BYTES = 500;
+    private static final String GZIP_FILE_EXTENSION = ".gz";
+
+    private final File mDirectory;
+    private final int mMaxFiles;
+
+    private final TreeSet<File> mFiles = new TreeSet<>();
+    private final Set<File> mOpenFiles = new HashSet<>();
+    private boolean mIndexed;
+
+    /**
+     * @param directory The directory that holds the logs
+     * @param maxFiles  The most files to keep in the directory
+     */
+    public LogFileIndex(File directory, int maxFiles) {
+        mDirectory = directory;
+        mMaxFiles = maxFiles;
+    }
+
+    /**
+     * Adds a file that the logger has started writing to. It is not deleted until it is closed.
+     */
+    public void onFileStarted(File file) {
+        mOpenFiles.add(file);
+        mFiles.add(file);
+    }
+
+    /**
+     * Updates the index for a file that the logger has finished writing to, deleting it if it does
+     * not hold any data.
+     */
+    public void onFileClosed(File file) {
+        ensureIndexed();
+        mOpenFiles.remove(file);
+        if (!file.exists()) {
+            mFiles.remove(file);
+        } else if (!isUsable(file)) {
+            delete(file);
+        } else {
+            mFiles.add(file);
+        }
+    }
+
+    /**
+     * Deletes the oldest files that are not open until there are no more than the maximum number of
+     * files.
+     *
+     * @return The number of files deleted
+     */
+    public int prune() {
+        ensureIndexed();
+        int deleted = 0;
+        Iterator<File> iterator = mFiles.iterator();
+        while (mFiles.size() > mMaxFiles && iterator.hasNext()) {
+            File file = iterator.next();
+            if (mOpenFiles.contains(file)) {
+                continue;
+            }
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            iterator.remove();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * @return The number of files in the index
+     */
+    public int getFileCount() {
+        ensureIndexed();
+        return mFiles.size();
+    }
+
+    /**
+     * Lists the directory the first time the index is needed, deleting the files that do not hold
+     * any data.
+     */
+    private void ensureIndexed() {
+        if (mIndexed) {
+            return;
+        }
+        mIndexed = true;
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (mOpenFiles.contains(file) || isUsable(file)) {
+                mFiles.add(file);
+            } else {
+                delete(file);
+            }
+        }
+        Log.d(TAG, "Indexed " + mFiles.size() + " files in " + mDirectory);
+    }
+
+    private void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+        mFiles.remove(file);
+    }
+
+    /**
+     * Returns true if the file is large enough to hold more than part of a header.
+     */
+    private static boolean isUsable(File file) {
+        int minimumSize = file.getName().endsWith(GZIP_FILE_EXTENSION)
+                ? MINIMUM_USABLE_GZIP_FILE_SIZE_BYTES : MINIMUM_USABLE_FILE_SIZE_BYTES;
+        return file.length() >= minimumSize;
+    }
+}
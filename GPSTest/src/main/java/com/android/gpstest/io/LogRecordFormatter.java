@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gpstest.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Formats the records written by the {@link FileLogger} into a reusable byte buffer, so that
+ * logging does not create a String, a Formatter or boxed arguments for every record. The text is
+ * the same, byte for byte, as the text that String.valueOf() and String.format() produce for the
+ * same values, encoded as UTF-8.
+ * <p>
+ * Integers are converted directly into the buffer. The digits of doubles and floats come from
+ * {@link StringBuilder#append(double)} into a reused builder, which does not allocate and chooses
+ * exactly the same digits as {@link Double#toString(double)}. That choice is not always the
+ * shortest that would round trip, so a separate shortest-digits routine would change the
+ * logged text for some values.
+ * <p>
+ * A formatter is not thread safe, and should only be used by one thread at a time, such as while
+ * holding the {@link FileLogger}'s file lock.
+ */
+public class LogRecordFormatter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final String MIN_LONG = Long.toString(Long.MIN_VALUE);
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mLength;
+
+    // Holds the digits of floating point values
+    private final StringBuilder mDigits = new StringBuilder(32);
+    private char[] mFixedDigits = new char[32];
+
+    /**
+     * Clears the buffer, so the next record starts at the beginning.
+     */
+    public LogRecordFormatter reset() {
+        mLength = 0;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes in the buffer
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * @return The buffer, which holds {@link #length()} bytes of formatted text. It is replaced
+     * when it grows, so it should not be held on to.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Writes the formatted text to the stream and clears the buffer.
+     *
+     * @param out The stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mLength);
+        mLength = 0;
+    }
+
+    /**
+     * Appends the platform line separator, the same as {@link java.io.BufferedWriter#newLine()}.
+     */
+    public LogRecordFormatter newLine() {
+        return append(LINE_SEPARATOR);
+    }
+
+    public LogRecordFormatter append(char c) {
+        if (c < 0x80) {
+            ensureCapacity(1);
+            mBuffer[mLength++] = (byte) c;
+            return this;
+        }
+        return append(String.valueOf(c));
+    }
+
+    public LogRecordFormatter append(String s) {
+        return (s == null) ? append("null") : append(s, 0, s.length());
+    }
+
+    /**
+     * Appends part of a string, encoded as UTF-8.
+     *
+     * @param s     The string
+     * @param start The index of the first character to append
+     * @param end   The index after the last character to append
+     */
+    public LogRecordFormatter append(CharSequence s, int start, int end) {
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                mBuffer[mLength++] = (byte) c;
+            } else {
+                // Up to three bytes per character, or four for a surrogate pair
+                ensureCapacity(3 + (end - i));
+                if (c < 0x800) {
+                    mBuffer[mLength++] = (byte) (0xC0 | (c >> 6));
+                    mBuffer[mLength++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && (i + 1 < end) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    mBuffer[mLength++] = (byte) (0xF0 | (codePoint >> 18));
+                    mBuffer[mLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    mBuffer[mLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    mBuffer[mLength++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // An unpaired surrogate is replaced, as the UTF-8 encoder does
+                    mBuffer[mLength++] = (byte) '?';
+                } else {
+                    mBuffer[mLength++] = (byte) (0xE0 | (c >> 12));
+                    mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    mBuffer[mLength++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+        return this;
+    }
+
+    public LogRecordFormatter append(int value) {
+        return append((long) value);
+    }
+
+    public LogRecordFormatter append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(MIN_LONG);
+        }
+
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+
+        int digitCount = 1;
+        for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+            digitCount++;
+        }
+
+        int position = mLength + digitCount;
+        mLength = position;
+        do {
+            mBuffer[--position] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        return this;
+    }
+
+    /**
+     * Appends a double as {@link String#valueOf(double)} does.
+     */
+    public LogRecordFormatter append(double value) {
+        mDigits.setLength(0);
+        mDigits.append(value);
+        return appendDigits();
+    }
+
+    /**
+     * Appends a float as {@link String#valueOf(float)} does.
+     */
+    public LogRecordFormatter append(float value) {
+        mDigits.setLength(0);
+        mDigits.append(value);
+        return appendDigits();
+    }
+
+    /**
+     * Appends a double with a fixed number of decimal places, as the %f conversion of
+     * {@link String#format(java.util.Locale, String, Object...)} does for {@link java.util.Locale#US}:
+     * the decimal digits of the value are rounded half up, and padded with zeros. Floats are
+     * widened to doubles by String.format, so they should be appended the same way.
+     *
+     * @param value    The value
+     * @param decimals The number of digits after the decimal point
+     */
+    public LogRecordFormatter appendFixed(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return append(value);
+        }
+
+        if (Double.compare(value, 0.0) < 0) {
+            append('-');
+            value = -value;
+        }
+
+        // Split the digits of the value into its significant digits and the number of them that
+        // are before the decimal point
+        mDigits.setLength(0);
+        mDigits.append(value);
+        int exponentIndex = indexOf(mDigits, 'E');
+        int mantissaEnd = (exponentIndex >= 0) ? exponentIndex : mDigits.length();
+        int decimalExponent = indexOf(mDigits, '.');
+        if (exponentIndex >= 0) {
+            decimalExponent += parseInt(mDigits, exponentIndex + 1, mDigits.length());
+        }
+        if (mFixedDigits.length < mantissaEnd) {
+            mFixedDigits = new char[mantissaEnd];
+        }
+
+        int digitCount = 0;
+        for (int i = 0; i < mantissaEnd; i++) {
+            char c = mDigits.charAt(i);
+            if (c == '.') continue;
+
+            if ((c == '0') && (digitCount == 0)) {
+                // A leading zero
+                decimalExponent--;
+            } else {
+                mFixedDigits[digitCount++] = c;
+            }
+        }
+
+        if (digitCount == 0) {
+            // Zero
+            decimalExponent = 0;
+        } else {
+            decimalExponent = roundHalfUp(decimalExponent, digitCount, decimalExponent + decimals);
+        }
+
+        // The integer part, which is zero if the first digit is below the decimal point
+        ensureCapacity(Math.max(decimalExponent, 1) + 1 + decimals);
+        if (decimalExponent <= 0) {
+            mBuffer[mLength++] = '0';
+        } else {
+            for (int i = 0; i < decimalExponent; i++) {
+                mBuffer[mLength++] = (byte) ((i < digitCount) ? mFixedDigits[i] : '0');
+            }
+        }
+
+        if (decimals > 0) {
+            mBuffer[mLength++] = '.';
+            for (int i = 0; i < decimals; i++) {
+                int digit = decimalExponent + i;
+                mBuffer[mLength++] = (byte) (((digit >= 0) && (digit < digitCount)) ? mFixedDigits[digit] : '0');
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Rounds the significant digits half up, keeping the given number of them, the same as the
+     * digits of a %f conversion are rounded.
+     *
+     * @param decimalExponent The number of digits before the decimal point
+     * @param digitCount      The number of significant digits
+     * @param keep            The number of digits to keep; a negative count leaves them as they are
+     * @return The number of digits before the decimal point after rounding, which is one more than
+     * before if the rounding carried into a new digit.
+     */
+    private int roundHalfUp(int decimalExponent, int digitCount, int keep) {
+        if ((keep >= digitCount) || (keep < 0)) {
+            return decimalExponent;
+        }
+
+        char[] digits = mFixedDigits;
+        if (keep == 0) {
+            boolean roundUp = digits[0] >= '5';
+            digits[0] = roundUp ? '1' : '0';
+            Arrays.fill(digits, 1, digitCount, '0');
+            return roundUp ? decimalExponent + 1 : decimalExponent;
+        }
+
+        if (digits[keep] >= '5') {
+            int i = keep - 1;
+            while ((i >= 0) && (digits[i] == '9')) {
+                i--;
+            }
+            if (i < 0) {
+                // Every kept digit was a nine, so the value carries into a new leading one
+                digits[0] = '1';
+                Arrays.fill(digits, 1, digitCount, '0');
+                return decimalExponent + 1;
+            }
+            digits[i]++;
+            Arrays.fill(digits, i + 1, digitCount, '0');
+        } else {
+            Arrays.fill(digits, keep, digitCount, '0');
+        }
+        return decimalExponent;
+    }
+
+    private LogRecordFormatter appendDigits() {
+        int length = mDigits.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mLength++] = (byte) mDigits.charAt(i);
+        }
+        return this;
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = mLength + additional;
+        if (required > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(required, mBuffer.length * 2));
+        }
+    }
+
+    private static int indexOf(CharSequence s, char c) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private static int parseInt(CharSequence s, int start, int end) {
+        boolean negative = s.charAt(start) == '-';
+        int value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+}
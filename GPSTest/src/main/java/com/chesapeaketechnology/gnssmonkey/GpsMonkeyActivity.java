@@ -179,6 +179,9 @@ public class GpsMonkeyActivity extends GpsTestActivity {
     @Override
     protected void onStop() {
         super.onStop();
+        if (gpsMonkeyService != null) {
+            gpsMonkeyService.removeReplayLocationListener(this);
+        }
         if (serviceBound.getAndSet(false)) {
             try {
                 unbindService(serviceConnection);
@@ -223,6 +226,9 @@ public class GpsMonkeyActivity extends GpsTestActivity {
      * Called when the activity successfully binds to the service.
      */
     protected void onGPSMonkeyServiceConnected() {
+        // Fixes replayed from a recording are shown just like live ones
+        gpsMonkeyService.addReplayLocationListener(this);
+
         // It's possible to miss the initial setting of the GPS switch state if our service isn't
         // bound yet, so check as soon as we bind to see if GPS should be started.
         onGpsSwitchStateChange(mStarted);
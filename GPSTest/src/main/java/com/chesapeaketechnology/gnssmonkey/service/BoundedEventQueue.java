@@ -0,0 +1,239 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer that hands events from a single producer thread (the thread
+ * delivering GNSS callbacks) to a single consumer thread (the {@link GeoPackageRecorder} thread).
+ * <p>
+ * Unlike posting to a Looper, the memory used by pending events is capped. What happens when the
+ * buffer is full is controlled by the {@link OverflowPolicy}. Counters for the number of enqueued
+ * and dropped events and the highest observed fill level are kept so the recorder can report how
+ * close it came to losing data.
+ *
+ * @param <T> The type of event held in the queue
+ */
+public class BoundedEventQueue<T> {
+    /**
+     * Determines what the producer does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the consumer to make room, for at most the configured block time; if there is
+         * still no room after that, the new event is dropped.
+         */
+        BLOCK,
+
+        /**
+         * Drop the oldest event in the queue to make room for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Keep only the most recent event offered through {@link #offerCoalescing(Object)} (the
+         * satellite status) in a dedicated slot so it never takes up room in the ring, and drop
+         * other new events when the ring is full.
+         */
+        COALESCE_STATUS
+    }
+
+    /**
+     * Notified on the producer thread whenever an event is dropped, so the owner can recycle it.
+     *
+     * @param <T> The type of event held in the queue
+     */
+    public interface DropListener<T> {
+        void onDropped(T event);
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final long maxBlockNanos;
+    private final DropListener<T> dropListener;
+
+    // head is only written by the producer; tail is advanced by the consumer, and also by the
+    // producer when it drops the oldest event, so both sides claim slots with compareAndSet.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicReference<T> pendingCoalesced = new AtomicReference<>();
+    private volatile long pendingCoalescedSequence;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong highWaterMark = new AtomicLong();
+
+    /**
+     * @param capacity     The maximum number of events held in the ring; rounded up to a power of two
+     * @param policy       What to do when the ring is full
+     * @param maxBlockMs   The maximum time to wait for room when the policy is {@link OverflowPolicy#BLOCK}
+     * @param dropListener Notified of dropped events, or null
+     */
+    public BoundedEventQueue(int capacity, OverflowPolicy policy, long maxBlockMs, DropListener<T> dropListener) {
+        int size = (capacity <= 2) ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.policy = policy;
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxBlockMs));
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Adds an event to the queue. Must only be called from the producer thread.
+     *
+     * @param event The event
+     * @return True if the event was queued, or false if it was dropped
+     */
+    public boolean offer(T event) {
+        final long currentHead = head.get();
+        long blockDeadline = 0L;
+
+        while (currentHead - tail.get() > mask) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    dropOldest(currentHead);
+                    break;
+                case BLOCK:
+                    if (blockDeadline == 0L) {
+                        blockDeadline = System.nanoTime() + maxBlockNanos;
+                    } else if (System.nanoTime() - blockDeadline >= 0L) {
+                        drop(event);
+                        return false;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+                default:
+                    drop(event);
+                    return false;
+            }
+        }
+
+        slots.set((int) currentHead & mask, event);
+        head.set(currentHead + 1);
+
+        enqueuedCount.incrementAndGet();
+        long depth = currentHead + 1 - tail.get();
+        if (depth > highWaterMark.get()) {
+            highWaterMark.set(depth);
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds an event that only matters until a newer one of the same kind arrives. When the policy
+     * is {@link OverflowPolicy#COALESCE_STATUS}, the event replaces any pending one instead of
+     * taking room in the ring; otherwise this is the same as {@link #offer(Object)}. Must only be
+     * called from the producer thread.
+     *
+     * @param event The event
+     * @return True if the event was queued, or false if it was dropped
+     */
+    public boolean offerCoalescing(T event) {
+        if (policy != OverflowPolicy.COALESCE_STATUS) {
+            return offer(event);
+        }
+
+        pendingCoalescedSequence = head.get();
+        T replaced = pendingCoalesced.getAndSet(event);
+        enqueuedCount.incrementAndGet();
+        if (replaced != null) {
+            drop(replaced);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes the next event from the queue. Must only be called from the consumer thread.
+     *
+     * @return The next event, or null if the queue is empty
+     */
+    public T poll() {
+        while (true) {
+            final long currentTail = tail.get();
+            final boolean ringEmpty = currentTail >= head.get();
+
+            // A coalesced event is delivered once everything that was queued before it is consumed
+            if ((pendingCoalesced.get() != null) && (ringEmpty || (currentTail >= pendingCoalescedSequence))) {
+                T coalesced = pendingCoalesced.getAndSet(null);
+                if (coalesced != null) return coalesced;
+            }
+
+            if (ringEmpty) return null;
+
+            final int index = (int) currentTail & mask;
+            T event = slots.get(index);
+            if (tail.compareAndSet(currentTail, currentTail + 1)) {
+                // Only clear the slot if the producer has not already reused it
+                slots.compareAndSet(index, event, null);
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest event in the ring, unless the consumer takes it first.
+     *
+     * @param currentHead The producer's current head position
+     */
+    private void dropOldest(long currentHead) {
+        final long currentTail = tail.get();
+        if (currentHead - currentTail <= mask) return;
+
+        T oldest = slots.get((int) currentTail & mask);
+        if (tail.compareAndSet(currentTail, currentTail + 1)) {
+            drop(oldest);
+        }
+    }
+
+    private void drop(T event) {
+        droppedCount.incrementAndGet();
+        if ((dropListener != null) && (event != null)) {
+            dropListener.onDropped(event);
+        }
+    }
+
+    /**
+     * @return The number of events currently waiting in the queue.
+     */
+    public int size() {
+        long depth = head.get() - tail.get();
+        return (int) Math.max(0L, depth) + ((pendingCoalesced.get() != null) ? 1 : 0);
+    }
+
+    /**
+     * @return The maximum number of events the ring can hold.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return The total number of events accepted by the queue.
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /**
+     * @return The total number of events dropped or replaced because the queue was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return The largest number of events that have been waiting in the ring at one time.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+}
@@ -0,0 +1,516 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary log of recorder events, written into a memory-mapped, pre-allocated file.
+ * Appending a record copies its fields into the mapping with no SQLite work, so the recorder can
+ * keep up with high measurement rates and convert the log into a GeoPackage later (see
+ * {@link CaptureLogMaterializer}). Because the mapping lives in the page cache, everything appended
+ * survives the app process being killed, so the log also serves as a crash-recovery journal.
+ * <p>
+ * The file starts with a header of magic, format version, generation and start position. The start
+ * position is the number of records of the recording that came before the log's first record, so
+ * that a log which is rewound as its records are committed can still be matched against
+ * {@link GeoPackageDatabase#getReplayPosition()}. Each record follows as
+ * {@code [length][type][generation][payload][crc]}, where the length counts the payload bytes and
+ * the CRC-32 covers the type, generation and payload. A zero length marks the end of the log, and
+ * a record with a bad checksum or a different generation ends it too, so a record that was only
+ * partly written when the app died is ignored. All values are little-endian.
+ * <p>
+ * Writing is not thread safe; a log is written from a single thread.
+ */
+class CaptureLog implements Closeable {
+    private static final String TAG = "GPSMonkey.CaptureLog";
+
+    /**
+     * The suffix added to a GeoPackage's file path to name its capture log.
+     */
+    static final String FILE_SUFFIX = ".caplog";
+
+    /**
+     * The suffix added to a GeoPackage's file path to name its recovery log, which only holds the
+     * records that have not been committed to the GeoPackage yet.
+     */
+    static final String RECOVERY_FILE_SUFFIX = ".recovery";
+
+    static final int TYPE_EPOCH = 1;
+    static final int TYPE_LOCATION = 2;
+    static final int TYPE_STATUS = 3;
+    static final int TYPE_MOTION = 4;
+
+    private static final int MAGIC = 0x474C4347; // "GCLG" in little-endian byte order
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 20;
+    private static final int RECORD_PREFIX_BYTES = 12;
+    private static final int RECORD_SUFFIX_BYTES = 4;
+    private static final int END_MARKER_BYTES = 4;
+
+    /**
+     * The space reserved when a log is created. The mapping doubles whenever a record does not fit.
+     */
+    static final int DEFAULT_INITIAL_BYTES = 16 * 1024 * 1024;
+
+    private static final int LOCATION_HAS_ALTITUDE = 1;
+    private static final int LOCATION_HAS_ACCURACY = 1 << 1;
+    private static final int LOCATION_HAS_SPEED = 1 << 2;
+    private static final int LOCATION_HAS_BEARING = 1 << 3;
+    private static final int LOCATION_HAS_VERTICAL_ACCURACY = 1 << 4;
+    private static final int LOCATION_HAS_SPEED_ACCURACY = 1 << 5;
+    private static final int LOCATION_HAS_BEARING_ACCURACY = 1 << 6;
+    private static final int LOCATION_FIXED_BYTES = 8 * 5 + 4 * 9;
+
+    /**
+     * Receives the records read from a log, in the order they were appended. The record objects are
+     * reused between calls, so they must not be kept.
+     */
+    interface Visitor {
+        void onEpoch(GnssEpochRecord epoch);
+
+        void onLocation(Location location);
+
+        void onStatus(GnssStatusRecord status);
+
+        void onMotion(MotionBatch batch);
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer buffer;
+    private int generation;
+    private long startPosition;
+    private int recordStart;
+
+    private CaptureLog(File file, int initialBytes) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        try {
+            map(Math.max(initialBytes, HEADER_BYTES + END_MARKER_BYTES));
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new, empty log, replacing any file already at the path.
+     *
+     * @param file         The log file
+     * @param initialBytes The space to reserve for the log up front
+     * @return The log, ready to append to
+     * @throws IOException if the file could not be created or mapped
+     */
+    static CaptureLog create(File file, int initialBytes) throws IOException {
+        CaptureLog log = new CaptureLog(file, initialBytes);
+        log.writeHeader();
+        return log;
+    }
+
+    /**
+     * @param gpkgFilePath The file path of a GeoPackage
+     * @return The capture log file that belongs to the GeoPackage.
+     */
+    static File fileFor(String gpkgFilePath) {
+        return new File(gpkgFilePath + FILE_SUFFIX);
+    }
+
+    /**
+     * @param gpkgFilePath The file path of a GeoPackage
+     * @return The recovery log file that belongs to the GeoPackage.
+     */
+    static File recoveryFileFor(String gpkgFilePath) {
+        return new File(gpkgFilePath + RECOVERY_FILE_SUFFIX);
+    }
+
+    /**
+     * @param logFile A capture or recovery log file
+     * @return The file path of the GeoPackage the log belongs to, or null if the file is not a log.
+     */
+    static String getGpkgFilePath(File logFile) {
+        String path = logFile.getPath();
+        if (path.endsWith(FILE_SUFFIX)) return path.substring(0, path.length() - FILE_SUFFIX.length());
+        if (path.endsWith(RECOVERY_FILE_SUFFIX)) {
+            return path.substring(0, path.length() - RECOVERY_FILE_SUFFIX.length());
+        }
+        return null;
+    }
+
+    /**
+     * @return The log file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of bytes of the log that hold the header and records.
+     */
+    long getWrittenBytes() {
+        return buffer.position();
+    }
+
+    /**
+     * Appends a GNSS measurement epoch.
+     *
+     * @throws IOException if the log could not be grown to fit the record
+     */
+    void appendEpoch(GnssEpochRecord epoch) throws IOException {
+        ByteBuffer out = beginRecord(TYPE_EPOCH, epoch.encodedSize());
+        epoch.writeTo(out);
+        endRecord();
+    }
+
+    /**
+     * Appends the satellites of a GNSS status.
+     *
+     * @throws IOException if the log could not be grown to fit the record
+     */
+    void appendStatus(GnssStatusRecord status) throws IOException {
+        ByteBuffer out = beginRecord(TYPE_STATUS, status.encodedSize());
+        status.writeTo(out);
+        endRecord();
+    }
+
+    /**
+     * Appends a batch of motion rows.
+     *
+     * @throws IOException if the log could not be grown to fit the record
+     */
+    void appendMotion(MotionBatch batch) throws IOException {
+        ByteBuffer out = beginRecord(TYPE_MOTION, batch.encodedSize());
+        batch.writeTo(out);
+        endRecord();
+    }
+
+    /**
+     * Appends a location fix, along with the satellite count from its extras.
+     *
+     * @throws IOException if the log could not be grown to fit the record
+     */
+    void appendLocation(Location location) throws IOException {
+        String provider = location.getProvider();
+        int providerLength = (provider != null) ? provider.length() : 0;
+        ByteBuffer out = beginRecord(TYPE_LOCATION, LOCATION_FIXED_BYTES + providerLength);
+
+        int locationFlags = 0;
+        if (location.hasAltitude()) locationFlags |= LOCATION_HAS_ALTITUDE;
+        if (location.hasAccuracy()) locationFlags |= LOCATION_HAS_ACCURACY;
+        if (location.hasSpeed()) locationFlags |= LOCATION_HAS_SPEED;
+        if (location.hasBearing()) locationFlags |= LOCATION_HAS_BEARING;
+        boolean hasAccuracies = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        if (hasAccuracies) {
+            if (location.hasVerticalAccuracy()) locationFlags |= LOCATION_HAS_VERTICAL_ACCURACY;
+            if (location.hasSpeedAccuracy()) locationFlags |= LOCATION_HAS_SPEED_ACCURACY;
+            if (location.hasBearingAccuracy()) locationFlags |= LOCATION_HAS_BEARING_ACCURACY;
+        }
+
+        Bundle extras = location.getExtras();
+        out.putLong(location.getTime());
+        out.putLong(location.getElapsedRealtimeNanos());
+        out.putDouble(location.getLatitude());
+        out.putDouble(location.getLongitude());
+        out.putDouble(location.getAltitude());
+        out.putInt(locationFlags);
+        out.putFloat(location.getAccuracy());
+        out.putFloat(location.getSpeed());
+        out.putFloat(location.getBearing());
+        out.putFloat(hasAccuracies ? location.getVerticalAccuracyMeters() : 0f);
+        out.putFloat(hasAccuracies ? location.getSpeedAccuracyMetersPerSecond() : 0f);
+        out.putFloat(hasAccuracies ? location.getBearingAccuracyDegrees() : 0f);
+        out.putInt((extras != null) ? extras.getInt("satellites") : 0);
+        out.putInt(providerLength);
+        // Provider names are ASCII, so each char is written as a single byte without encoding
+        for (int i = 0; i < providerLength; i++) {
+            out.put((byte) provider.charAt(i));
+        }
+        endRecord();
+    }
+
+    /**
+     * Empties the log so it can be reused. The generation in the header is advanced, so records
+     * from before the rewind are never read back, even where they have not been overwritten yet.
+     *
+     * @param startPosition The number of records of the recording that come before the first
+     *                      record appended after the rewind
+     */
+    void rewind(long startPosition) {
+        generation++;
+        this.startPosition = startPosition;
+        writeHeader();
+    }
+
+    /**
+     * Writes the mapped pages out to the file, so the log also survives a loss of power.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Forces the log to the file and trims the unused reserved space from the end of it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            buffer.force();
+            channel.truncate(buffer.position());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void writeHeader() {
+        buffer.position(0);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(generation);
+        buffer.putLong(startPosition);
+        buffer.putInt(buffer.position(), 0);
+    }
+
+    /**
+     * Writes a record's prefix and returns the buffer positioned for its payload.
+     */
+    private ByteBuffer beginRecord(int type, int payloadBytes) throws IOException {
+        ensureRemaining(RECORD_PREFIX_BYTES + payloadBytes + RECORD_SUFFIX_BYTES + END_MARKER_BYTES);
+        recordStart = buffer.position();
+        buffer.putInt(payloadBytes);
+        buffer.putInt(type);
+        buffer.putInt(generation);
+        return buffer;
+    }
+
+    /**
+     * Writes the checksum of the record started by {@link #beginRecord(int, int)}, followed by the
+     * end marker, which the next record overwrites.
+     */
+    private void endRecord() {
+        int payloadEnd = buffer.position();
+        crc.reset();
+        buffer.limit(payloadEnd);
+        buffer.position(recordStart + 4);
+        crc.update(buffer);
+        buffer.limit(buffer.capacity());
+        buffer.position(payloadEnd);
+        buffer.putInt((int) crc.getValue());
+        buffer.putInt(buffer.position(), 0);
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return;
+
+        long size = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + bytes);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Capture log is full: " + file);
+        }
+        map((int) size);
+    }
+
+    /**
+     * Maps the first bytes of the file, extending the file if it is shorter, and keeps the current
+     * write position.
+     */
+    private void map(int size) throws IOException {
+        int position = (buffer != null) ? buffer.position() : 0;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(position);
+    }
+
+    /**
+     * Reads the records of a log in the order they were appended, stopping at the end marker or at
+     * the first record that is incomplete or fails its checksum.
+     *
+     * @param file    The log file
+     * @param visitor Receives each record
+     * @return The number of records read.
+     * @throws IOException if the file could not be read or is not a capture log
+     */
+    static int read(File file, Visitor visitor) throws IOException {
+        try (Reader reader = new Reader(file)) {
+            int records = 0;
+            while (reader.next(visitor)) {
+                records++;
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Reads the records of a log one at a time, so a caller can stop part way through and skip
+     * records it has already handled.
+     */
+    static class Reader implements Closeable {
+        private final File file;
+        private final RandomAccessFile in;
+        private final MappedByteBuffer buffer;
+        private final int generation;
+        private final long startPosition;
+        private final CRC32 crc = new CRC32();
+        private final GnssEpochRecord epoch = new GnssEpochRecord();
+        private final GnssStatusRecord status = new GnssStatusRecord();
+        private final MotionBatch motion = new MotionBatch(1, null);
+        private boolean ended;
+
+        /**
+         * @param file The log file
+         * @throws IOException if the file could not be read or is not a capture log
+         */
+        Reader(File file) throws IOException {
+            this.file = file;
+            in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel readChannel = in.getChannel();
+                long size = readChannel.size();
+                if (size < HEADER_BYTES) {
+                    throw new IOException("Not a capture log: " + file);
+                }
+
+                buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+                    throw new IOException("Not a capture log: " + file);
+                }
+                generation = buffer.getInt();
+                startPosition = buffer.getLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return The number of records of the recording that come before the log's first record.
+         */
+        long getStartPosition() {
+            return startPosition;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @param visitor Receives the record, or null to skip over it
+         * @return True if a record was read, or false if the end of the log has been reached.
+         */
+        boolean next(Visitor visitor) {
+            if (ended || (buffer.remaining() < RECORD_PREFIX_BYTES)) return false;
+
+            int start = buffer.position();
+            int payloadBytes = buffer.getInt();
+            if (payloadBytes <= 0) return end(null);
+            if (payloadBytes > buffer.remaining() - (RECORD_PREFIX_BYTES - 4) - RECORD_SUFFIX_BYTES) {
+                return end("Ignoring a truncated record at the end of ");
+            }
+
+            int type = buffer.getInt();
+            int recordGeneration = buffer.getInt();
+            int payloadStart = buffer.position();
+            int payloadEnd = payloadStart + payloadBytes;
+
+            crc.reset();
+            buffer.limit(payloadEnd);
+            buffer.position(start + 4);
+            crc.update(buffer);
+            buffer.limit(buffer.capacity());
+            if (recordGeneration != generation) return end(null);
+            if (buffer.getInt(payloadEnd) != (int) crc.getValue()) {
+                return end("Ignoring an incomplete record at the end of ");
+            }
+
+            if (visitor != null) {
+                buffer.position(payloadStart);
+                buffer.limit(payloadEnd);
+                switch (type) {
+                    case TYPE_EPOCH:
+                        epoch.readFrom(buffer);
+                        visitor.onEpoch(epoch);
+                        break;
+                    case TYPE_LOCATION:
+                        visitor.onLocation(readLocation(buffer));
+                        break;
+                    case TYPE_STATUS:
+                        status.readFrom(buffer);
+                        visitor.onStatus(status);
+                        break;
+                    case TYPE_MOTION:
+                        motion.readFrom(buffer);
+                        visitor.onMotion(motion);
+                        break;
+                    default:
+                        // Records from newer versions of the app are skipped
+                        break;
+                }
+                buffer.limit(buffer.capacity());
+            }
+            buffer.position(payloadEnd + RECORD_SUFFIX_BYTES);
+            return true;
+        }
+
+        private boolean end(String warning) {
+            if (warning != null) Log.w(TAG, warning + file);
+            ended = true;
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static Location readLocation(ByteBuffer in) {
+        long time = in.getLong();
+        long elapsedRealtimeNanos = in.getLong();
+        double latitude = in.getDouble();
+        double longitude = in.getDouble();
+        double altitude = in.getDouble();
+        int locationFlags = in.getInt();
+        float accuracy = in.getFloat();
+        float speed = in.getFloat();
+        float bearing = in.getFloat();
+        float verticalAccuracy = in.getFloat();
+        float speedAccuracy = in.getFloat();
+        float bearingAccuracy = in.getFloat();
+        int satellites = in.getInt();
+        char[] provider = new char[in.getInt()];
+        for (int i = 0; i < provider.length; i++) {
+            provider[i] = (char) in.get();
+        }
+
+        Location location = new Location(new String(provider));
+        location.setTime(time);
+        location.setElapsedRealtimeNanos(elapsedRealtimeNanos);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        if ((locationFlags & LOCATION_HAS_ALTITUDE) != 0) location.setAltitude(altitude);
+        if ((locationFlags & LOCATION_HAS_ACCURACY) != 0) location.setAccuracy(accuracy);
+        if ((locationFlags & LOCATION_HAS_SPEED) != 0) location.setSpeed(speed);
+        if ((locationFlags & LOCATION_HAS_BEARING) != 0) location.setBearing(bearing);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if ((locationFlags & LOCATION_HAS_VERTICAL_ACCURACY) != 0) location.setVerticalAccuracyMeters(verticalAccuracy);
+            if ((locationFlags & LOCATION_HAS_SPEED_ACCURACY) != 0) location.setSpeedAccuracyMetersPerSecond(speedAccuracy);
+            if ((locationFlags & LOCATION_HAS_BEARING_ACCURACY) != 0) location.setBearingAccuracyDegrees(bearingAccuracy);
+        }
+
+        Bundle extras = new Bundle();
+        extras.putInt("satellites", satellites);
+        location.setExtras(extras);
+        return location;
+    }
+}
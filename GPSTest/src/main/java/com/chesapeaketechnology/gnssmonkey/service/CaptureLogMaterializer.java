@@ -0,0 +1,112 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts a {@link CaptureLog} into the GeoPackage schema by writing each of its records to a
+ * {@link GeoPackageDatabase}, in the order they were captured, exactly as the recorder would have
+ * written them directly. The database batches the rows into transactions as usual.
+ * <p>
+ * The number of records applied is committed along with the rows (see
+ * {@link GeoPackageDatabase#setReplayPosition(long)}), so a conversion that is interrupted, by the
+ * app being killed or by running out of time, continues where it left off instead of writing any
+ * record twice. A recovery log only holds the records after its start position, so the records it
+ * holds that are at or below the committed position are skipped.
+ * <p>
+ * This does the SQLite work that capture mode moves off the recorder thread, so it is run on the
+ * recorder's background file executor once the log is no longer being written.
+ */
+class CaptureLogMaterializer implements CaptureLog.Visitor {
+    private static final String TAG = "GPSMonkey.CaptureMat";
+
+    private final GeoPackageDatabase database;
+    private long position;
+
+    private CaptureLogMaterializer(GeoPackageDatabase database, long position) {
+        this.database = database;
+        this.position = position;
+    }
+
+    /**
+     * Writes the records of a capture log to a database and commits them.
+     *
+     * @param logFile  The capture log file, which must no longer be written to
+     * @param database The open database to write to
+     * @return True if the whole log was applied, in which case it can be deleted.
+     */
+    static boolean materialize(File logFile, GeoPackageDatabase database) {
+        return materialize(logFile, database, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the records of a capture log that have not been applied yet to a database, until the
+     * end of the log or the deadline is reached, and commits them.
+     *
+     * @param logFile    The capture log file, which must no longer be written to
+     * @param database   The open database to write to
+     * @param deadlineMs The {@link SystemClock#elapsedRealtime()} at which to stop
+     * @return True if the whole log was applied, in which case it can be deleted.
+     */
+    static boolean materialize(File logFile, GeoPackageDatabase database, long deadlineMs) {
+        long start = SystemClock.elapsedRealtime();
+        long applied = database.getReplayPosition();
+        CaptureLogMaterializer materializer = new CaptureLogMaterializer(database, applied);
+
+        boolean complete = false;
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(logFile)) {
+            long startPosition = reader.getStartPosition();
+            if (startPosition > applied) {
+                materializer.position = startPosition;
+            }
+            for (long skipped = startPosition; (skipped < applied) && reader.next(null); skipped++) {
+                // Already applied before the previous conversion was interrupted, or committed
+                // before the recovery log was rewound
+            }
+
+            while (SystemClock.elapsedRealtime() < deadlineMs) {
+                if (!reader.next(materializer)) {
+                    complete = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error materializing capture log " + logFile, e);
+        }
+
+        database.flush();
+        Log.d(TAG, "Materialized records " + applied + " to " + materializer.position + " of " + logFile
+                + (complete ? "" : " (incomplete)") + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return complete;
+    }
+
+    @Override
+    public void onEpoch(GnssEpochRecord epoch) {
+        // The position is advanced first, so that a commit part way through the record's rows
+        // includes it
+        database.setReplayPosition(++position);
+        database.writeGnssMeasurements(epoch);
+    }
+
+    @Override
+    public void onLocation(Location location) {
+        database.setReplayPosition(++position);
+        database.writeLocation(location);
+    }
+
+    @Override
+    public void onStatus(GnssStatusRecord status) {
+        database.setReplayPosition(++position);
+        database.writeSatelliteStatus(status);
+    }
+
+    @Override
+    public void onMotion(MotionBatch batch) {
+        database.setReplayPosition(++position);
+        database.writeMotion(batch);
+    }
+}
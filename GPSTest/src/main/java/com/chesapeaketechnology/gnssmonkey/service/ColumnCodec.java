@@ -0,0 +1,283 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+/**
+ * Encodes and decodes the per-satellite BLOB columns of the columnar sat_epoch table (see
+ * {@link GeoPackageDatabase.MeasurementLayout#COLUMNAR}). Each BLOB holds one value per
+ * measurement of an epoch, in measurement order, and starts with a byte identifying how the values
+ * were encoded, so a reader does not need to know the encoding of each column up front:
+ * <ul>
+ * <li>Integers are stored as zig-zag varints, either as they are or as the difference from the
+ * previous value. Small values and slowly changing values (such as sorted SVIDs) take one byte.</li>
+ * <li>Floating point values are stored losslessly as the XOR of their bits with the previous
+ * value's bits. Nearby values share their sign, exponent and leading mantissa bits, and values
+ * that were floats before being widened to doubles have trailing zero bits, so the XOR is written
+ * as a count of trailing zeros followed by the remaining bits as a varint.</li>
+ * </ul>
+ * An instance holds a reusable buffer, so it must be confined to a single thread. The static
+ * decode methods can be used from any thread.
+ */
+public class ColumnCodec {
+    private static final byte FORMAT_VARINT = 1;
+    private static final byte FORMAT_DELTA_VARINT = 2;
+    private static final byte FORMAT_XOR_DOUBLE = 3;
+    private static final byte FORMAT_XOR_FLOAT = 4;
+
+    private byte[] outputBuffer = new byte[256];
+    private int length;
+
+    /**
+     * Encodes integer values.
+     *
+     * @param values The values
+     * @param count  The number of values to encode
+     * @param delta  True to store the difference from the previous value, for values that change
+     *               slowly from one to the next
+     * @return The BLOB
+     */
+    public byte[] encodeInts(int[] values, int count, boolean delta) {
+        begin(delta ? FORMAT_DELTA_VARINT : FORMAT_VARINT, count * 5);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            writeSignedVarint(delta ? values[i] - previous : values[i]);
+            previous = values[i];
+        }
+        return finish();
+    }
+
+    /**
+     * Encodes long values.
+     *
+     * @param values The values
+     * @param count  The number of values to encode
+     * @param delta  True to store the difference from the previous value, for values that change
+     *               slowly from one to the next
+     * @return The BLOB
+     */
+    public byte[] encodeLongs(long[] values, int count, boolean delta) {
+        begin(delta ? FORMAT_DELTA_VARINT : FORMAT_VARINT, count * 10);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            writeSignedVarint(delta ? values[i] - previous : values[i]);
+            previous = values[i];
+        }
+        return finish();
+    }
+
+    /**
+     * Encodes double values losslessly.
+     *
+     * @param values The values
+     * @param count  The number of values to encode
+     * @return The BLOB
+     */
+    public byte[] encodeDoubles(double[] values, int count) {
+        begin(FORMAT_XOR_DOUBLE, count * 11);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            writeXor(bits ^ previous);
+            previous = bits;
+        }
+        return finish();
+    }
+
+    /**
+     * Encodes float values losslessly.
+     *
+     * @param values The values
+     * @param count  The number of values to encode
+     * @return The BLOB
+     */
+    public byte[] encodeFloats(float[] values, int count) {
+        begin(FORMAT_XOR_FLOAT, count * 6);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int bits = Float.floatToRawIntBits(values[i]);
+            writeXor((bits ^ previous) & 0xFFFFFFFFL);
+            previous = bits;
+        }
+        return finish();
+    }
+
+    private void begin(byte format, int maxBytes) {
+        if (outputBuffer.length < maxBytes + 1) {
+            outputBuffer = new byte[Math.max(maxBytes + 1, outputBuffer.length * 2)];
+        }
+        length = 0;
+        outputBuffer[length++] = format;
+    }
+
+    private byte[] finish() {
+        byte[] encoded = new byte[length];
+        System.arraycopy(outputBuffer, 0, encoded, 0, length);
+        return encoded;
+    }
+
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes the XOR of a value with the previous one: a zero byte if the values are the same, or
+     * the number of trailing zero bits plus one followed by the remaining bits.
+     */
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            outputBuffer[length++] = 0;
+            return;
+        }
+
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        outputBuffer[length++] = (byte) (trailingZeros + 1);
+        writeVarint(xor >>> trailingZeros);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            outputBuffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputBuffer[length++] = (byte) value;
+    }
+
+    /**
+     * Decodes a BLOB written by {@link #encodeInts(int[], int, boolean)}.
+     *
+     * @param encoded The BLOB
+     * @param values  Receives the values; must be large enough for all of them
+     * @return The number of values decoded
+     * @throws IllegalArgumentException if the BLOB is not an encoded integer column
+     */
+    public static int decodeInts(byte[] encoded, int[] values) {
+        Decoder decoder = new Decoder(encoded);
+        boolean delta = decoder.integerFormat();
+        long previous = 0;
+        int count = 0;
+        while (decoder.hasMore()) {
+            long value = decoder.readSignedVarint();
+            previous = delta ? previous + value : value;
+            values[count++] = (int) previous;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a BLOB written by {@link #encodeLongs(long[], int, boolean)}.
+     *
+     * @param encoded The BLOB
+     * @param values  Receives the values; must be large enough for all of them
+     * @return The number of values decoded
+     * @throws IllegalArgumentException if the BLOB is not an encoded integer column
+     */
+    public static int decodeLongs(byte[] encoded, long[] values) {
+        Decoder decoder = new Decoder(encoded);
+        boolean delta = decoder.integerFormat();
+        long previous = 0;
+        int count = 0;
+        while (decoder.hasMore()) {
+            long value = decoder.readSignedVarint();
+            previous = delta ? previous + value : value;
+            values[count++] = previous;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a BLOB written by {@link #encodeDoubles(double[], int)}.
+     *
+     * @param encoded The BLOB
+     * @param values  Receives the values; must be large enough for all of them
+     * @return The number of values decoded
+     * @throws IllegalArgumentException if the BLOB is not an encoded double column
+     */
+    public static int decodeDoubles(byte[] encoded, double[] values) {
+        Decoder decoder = new Decoder(encoded);
+        decoder.requireFormat(FORMAT_XOR_DOUBLE);
+        long previous = 0;
+        int count = 0;
+        while (decoder.hasMore()) {
+            previous ^= decoder.readXor();
+            values[count++] = Double.longBitsToDouble(previous);
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a BLOB written by {@link #encodeFloats(float[], int)}.
+     *
+     * @param encoded The BLOB
+     * @param values  Receives the values; must be large enough for all of them
+     * @return The number of values decoded
+     * @throws IllegalArgumentException if the BLOB is not an encoded float column
+     */
+    public static int decodeFloats(byte[] encoded, float[] values) {
+        Decoder decoder = new Decoder(encoded);
+        decoder.requireFormat(FORMAT_XOR_FLOAT);
+        int previous = 0;
+        int count = 0;
+        while (decoder.hasMore()) {
+            previous ^= (int) decoder.readXor();
+            values[count++] = Float.intBitsToFloat(previous);
+        }
+        return count;
+    }
+
+    private static class Decoder {
+        private final byte[] encoded;
+        private int offset;
+
+        Decoder(byte[] encoded) {
+            if ((encoded == null) || (encoded.length == 0)) {
+                throw new IllegalArgumentException("Empty column value");
+            }
+            this.encoded = encoded;
+        }
+
+        /**
+         * @return True if the values are stored as deltas.
+         */
+        boolean integerFormat() {
+            byte format = encoded[offset++];
+            if ((format != FORMAT_VARINT) && (format != FORMAT_DELTA_VARINT)) {
+                throw new IllegalArgumentException("Not an integer column format: " + format);
+            }
+            return format == FORMAT_DELTA_VARINT;
+        }
+
+        void requireFormat(byte expected) {
+            byte format = encoded[offset++];
+            if (format != expected) {
+                throw new IllegalArgumentException("Unexpected column format: " + format);
+            }
+        }
+
+        boolean hasMore() {
+            return offset < encoded.length;
+        }
+
+        long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readXor() {
+            int trailingZeros = encoded[offset++] - 1;
+            return (trailingZeros < 0) ? 0 : readVarint() << trailingZeros;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if ((offset >= encoded.length) || (shift > 63)) {
+                    throw new IllegalArgumentException("Truncated column value");
+                }
+                b = encoded[offset++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
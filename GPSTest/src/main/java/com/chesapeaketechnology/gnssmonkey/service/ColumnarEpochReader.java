@@ -0,0 +1,218 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.Closeable;
+
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.ID_COLUMN;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_AGC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_AZIMUTH_DEG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CARRIER_FREQ_HZ;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CN0;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CONSTELLATION;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ELEVATION_DEG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_MEASURED_TIME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_MULTIPATH;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_PSEUDORANGE_RATE_1_SIGMA;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_PSEUDORANGE_RATE_MPS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_RCVR_TIME_OFFSET_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SAT_TIME_1_SIGMA_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SAT_TIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SVID;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SYNC_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_CLOCK_ID;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_ELAPSED_REALTIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_MEASUREMENT_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_POINT_ID;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_SAT_COUNT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_SAT_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_TABLE_NAME;
+
+/**
+ * Reads the columnar sat_epoch table written by {@link GeoPackageDatabase} in the
+ * {@link GeoPackageDatabase.MeasurementLayout#COLUMNAR} layout, and expands each epoch back into
+ * one row per measurement with the same fields as the sat_data table. The BLOB columns of an epoch
+ * are decoded with {@link ColumnCodec} into reusable arrays, so reading does not allocate per
+ * measurement once the arrays have grown to the largest epoch.
+ * <p>
+ * Call {@link #nextEpoch()} to step through the epochs and read the arrays directly, or
+ * {@link #nextRow()} to step through the measurements one at a time, using {@link #row} as the
+ * index into the arrays.
+ */
+class ColumnarEpochReader implements Closeable {
+    static final int SAT_STATE_IN_FIX = 1;
+    static final int SAT_STATE_HAS_EPHEMERIS = 1 << 1;
+    static final int SAT_STATE_HAS_ALMANAC = 1 << 2;
+    static final int SAT_STATE_HAS_CARRIER_FREQUENCY = 1 << 3;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Cursor cursor;
+    private final int idIndex;
+    private final int localTimeIndex;
+    private final int elapsedRealtimeIndex;
+    private final int clockIdIndex;
+    private final int pointIdIndex;
+    private final int countIndex;
+
+    // The epoch at the cursor
+    long id;
+    long localTime;
+    long elapsedRealtimeNanos;
+    long clockId;
+    long pointId;
+    int count;
+    int row = -1;
+
+    // One element per measurement of the epoch
+    int[] svid;
+    int[] constellationType;
+    int[] measurementFlags;
+    int[] satStateFlags;
+    int[] syncStateFlags;
+    int[] multipath;
+    int[] accumDeltaRangeState;
+    long[] satTimeNanos;
+    long[] satTime1SigmaNanos;
+    double[] cn0;
+    double[] agc;
+    double[] rcvrTimeOffsetNanos;
+    double[] accumDeltaRange;
+    double[] accumDeltaRange1Sigma;
+    double[] pseudorangeRateMps;
+    double[] pseudorangeRate1Sigma;
+    float[] carrierFrequencyHz;
+    float[] azimuthDegrees;
+    float[] elevationDegrees;
+
+    /**
+     * @param db            The recording's database
+     * @param selection     A WHERE clause on the sat_epoch columns, or null for all epochs
+     * @param selectionArgs The arguments of the WHERE clause
+     */
+    ColumnarEpochReader(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        cursor = db.query(SAT_EPOCH_TABLE_NAME, null, selection, selectionArgs, null, null, ID_COLUMN);
+        idIndex = cursor.getColumnIndexOrThrow(ID_COLUMN);
+        localTimeIndex = cursor.getColumnIndexOrThrow(SAT_DATA_MEASURED_TIME);
+        elapsedRealtimeIndex = cursor.getColumnIndexOrThrow(SAT_EPOCH_ELAPSED_REALTIME_NANOS);
+        clockIdIndex = cursor.getColumnIndexOrThrow(SAT_EPOCH_CLOCK_ID);
+        pointIdIndex = cursor.getColumnIndexOrThrow(SAT_EPOCH_POINT_ID);
+        countIndex = cursor.getColumnIndexOrThrow(SAT_EPOCH_SAT_COUNT);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        svid = new int[capacity];
+        constellationType = new int[capacity];
+        measurementFlags = new int[capacity];
+        satStateFlags = new int[capacity];
+        syncStateFlags = new int[capacity];
+        multipath = new int[capacity];
+        accumDeltaRangeState = new int[capacity];
+        satTimeNanos = new long[capacity];
+        satTime1SigmaNanos = new long[capacity];
+        cn0 = new double[capacity];
+        agc = new double[capacity];
+        rcvrTimeOffsetNanos = new double[capacity];
+        accumDeltaRange = new double[capacity];
+        accumDeltaRange1Sigma = new double[capacity];
+        pseudorangeRateMps = new double[capacity];
+        pseudorangeRate1Sigma = new double[capacity];
+        carrierFrequencyHz = new float[capacity];
+        azimuthDegrees = new float[capacity];
+        elevationDegrees = new float[capacity];
+    }
+
+    /**
+     * Moves to the next epoch and decodes its measurements.
+     *
+     * @return False if there are no more epochs.
+     * @throws IllegalArgumentException if a column of the epoch is corrupt
+     */
+    boolean nextEpoch() {
+        if (!cursor.moveToNext()) return false;
+
+        id = cursor.getLong(idIndex);
+        localTime = cursor.getLong(localTimeIndex);
+        elapsedRealtimeNanos = cursor.getLong(elapsedRealtimeIndex);
+        clockId = cursor.isNull(clockIdIndex) ? -1L : cursor.getLong(clockIdIndex);
+        pointId = cursor.isNull(pointIdIndex) ? -1L : cursor.getLong(pointIdIndex);
+        count = cursor.getInt(countIndex);
+        row = -1;
+        if (count > svid.length) {
+            allocate(Math.max(count, svid.length * 2));
+        }
+
+        check(ColumnCodec.decodeInts(blob(SAT_DATA_SVID), svid), SAT_DATA_SVID);
+        check(ColumnCodec.decodeInts(blob(SAT_DATA_CONSTELLATION), constellationType), SAT_DATA_CONSTELLATION);
+        check(ColumnCodec.decodeInts(blob(SAT_EPOCH_MEASUREMENT_FLAGS), measurementFlags), SAT_EPOCH_MEASUREMENT_FLAGS);
+        check(ColumnCodec.decodeInts(blob(SAT_EPOCH_SAT_STATE_FLAGS), satStateFlags), SAT_EPOCH_SAT_STATE_FLAGS);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_CN0), cn0), SAT_DATA_CN0);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_AGC), agc), SAT_DATA_AGC);
+        check(ColumnCodec.decodeInts(blob(SAT_DATA_SYNC_STATE_FLAGS), syncStateFlags), SAT_DATA_SYNC_STATE_FLAGS);
+        check(ColumnCodec.decodeLongs(blob(SAT_DATA_SAT_TIME_NANOS), satTimeNanos), SAT_DATA_SAT_TIME_NANOS);
+        check(ColumnCodec.decodeLongs(blob(SAT_DATA_SAT_TIME_1_SIGMA_NANOS), satTime1SigmaNanos), SAT_DATA_SAT_TIME_1_SIGMA_NANOS);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_RCVR_TIME_OFFSET_NANOS), rcvrTimeOffsetNanos), SAT_DATA_RCVR_TIME_OFFSET_NANOS);
+        check(ColumnCodec.decodeInts(blob(SAT_DATA_MULTIPATH), multipath), SAT_DATA_MULTIPATH);
+        check(ColumnCodec.decodeFloats(blob(SAT_DATA_CARRIER_FREQ_HZ), carrierFrequencyHz), SAT_DATA_CARRIER_FREQ_HZ);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_ACCUM_DELTA_RANGE), accumDeltaRange), SAT_DATA_ACCUM_DELTA_RANGE);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA), accumDeltaRange1Sigma), SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA);
+        check(ColumnCodec.decodeInts(blob(SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS), accumDeltaRangeState), SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_PSEUDORANGE_RATE_MPS), pseudorangeRateMps), SAT_DATA_PSEUDORANGE_RATE_MPS);
+        check(ColumnCodec.decodeDoubles(blob(SAT_DATA_PSEUDORANGE_RATE_1_SIGMA), pseudorangeRate1Sigma), SAT_DATA_PSEUDORANGE_RATE_1_SIGMA);
+        check(ColumnCodec.decodeFloats(blob(SAT_DATA_AZIMUTH_DEG), azimuthDegrees), SAT_DATA_AZIMUTH_DEG);
+        check(ColumnCodec.decodeFloats(blob(SAT_DATA_ELEVATION_DEG), elevationDegrees), SAT_DATA_ELEVATION_DEG);
+        return true;
+    }
+
+    /**
+     * Moves to the next measurement, moving on to the next epoch once all of the measurements of
+     * the current one have been read.
+     *
+     * @return False if there are no more measurements.
+     */
+    boolean nextRow() {
+        while (++row >= count) {
+            if (!nextEpoch()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param i    The index of the measurement
+     * @param flag One of the {@code SAT_STATE_} flags
+     * @return True if the satellite status had the flag set when the measurement was recorded.
+     */
+    boolean hasSatState(int i, int flag) {
+        return (satStateFlags[i] & flag) != 0;
+    }
+
+    /**
+     * @param i    The index of the measurement
+     * @param flag One of the {@code GnssEpochRecord.FLAG_} flags
+     * @return True if the measurement had the flag set.
+     */
+    boolean hasMeasurementFlag(int i, int flag) {
+        return (measurementFlags[i] & flag) != 0;
+    }
+
+    private byte[] blob(String column) {
+        return cursor.getBlob(cursor.getColumnIndexOrThrow(column));
+    }
+
+    private void check(int decoded, String column) {
+        if (decoded != count) {
+            throw new IllegalArgumentException("sat_epoch " + id + " has " + decoded + " values in " + column
+                    + " but " + count + " measurements");
+        }
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the values stored in the {@code data_dump} columns of a recording. Which
+ * encoding a recording uses is a per-session setting that is stored in the recording itself (see
+ * {@link GeoPackageDatabase}).
+ * <p>
+ * An instance holds a reusable deflater and buffers, so it must be confined to a single thread.
+ * The static {@link #decode(Object)} method can be used from any thread to turn a column value
+ * back into text, whichever encoding was used to store it.
+ */
+public class DataDumpCodec {
+    /**
+     * The ways the data dump can be stored.
+     */
+    public enum Encoding {
+        /**
+         * The full text description, stored as TEXT.
+         */
+        TEXT,
+
+        /**
+         * Nothing is stored; the column holds an empty string (or null where the column allows it).
+         */
+        NONE,
+
+        /**
+         * The text description, compressed with deflate and stored as a BLOB.
+         */
+        DEFLATE
+    }
+
+    /**
+     * Identifies the layout of an encoded BLOB, so the layout can change without breaking older
+     * recordings.
+     */
+    private static final byte FORMAT_DEFLATE = 1;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] outputBuffer = new byte[1024];
+
+    /**
+     * Compresses the provided text.
+     *
+     * @param text The text
+     * @return The compressed BLOB
+     */
+    public byte[] encode(String text) {
+        byte[] input = text.getBytes(StandardCharsets.UTF_8);
+
+        // Header: format marker followed by the uncompressed length as a varint
+        int length = 0;
+        outputBuffer[length++] = FORMAT_DEFLATE;
+        length = writeVarint(input.length, length);
+
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (length == outputBuffer.length) {
+                byte[] larger = new byte[outputBuffer.length * 2];
+                System.arraycopy(outputBuffer, 0, larger, 0, length);
+                outputBuffer = larger;
+            }
+            length += deflater.deflate(outputBuffer, length, outputBuffer.length - length);
+        }
+
+        byte[] encoded = new byte[length];
+        System.arraycopy(outputBuffer, 0, encoded, 0, length);
+        return encoded;
+    }
+
+    private int writeVarint(int value, int offset) {
+        while ((value & ~0x7F) != 0) {
+            outputBuffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputBuffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Turns a {@code data_dump} column value back into text.
+     *
+     * @param columnValue The value read from the column: a String for {@link Encoding#TEXT}, a
+     *                    byte array for {@link Encoding#DEFLATE}, or null
+     * @return The text, or an empty string if nothing was stored
+     * @throws IllegalArgumentException if the value is not in a recognized format
+     */
+    public static String decode(Object columnValue) {
+        if (columnValue == null) return "";
+        if (columnValue instanceof String) return (String) columnValue;
+        if (!(columnValue instanceof byte[])) {
+            throw new IllegalArgumentException("Unsupported data dump value: " + columnValue.getClass().getName());
+        }
+
+        byte[] encoded = (byte[]) columnValue;
+        if (encoded.length == 0) return "";
+        if (encoded[0] != FORMAT_DEFLATE) {
+            throw new IllegalArgumentException("Unknown data dump format: " + encoded[0]);
+        }
+
+        int offset = 1;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (offset >= encoded.length) {
+                throw new IllegalArgumentException("Truncated data dump header");
+            }
+            b = encoded[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            // The extra byte works around the raw inflater needing a dummy byte past the end
+            // of the input to detect the end of the stream
+            byte[] input = new byte[encoded.length - offset + 1];
+            System.arraycopy(encoded, offset, input, 0, encoded.length - offset);
+            inflater.setInput(input);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+            byte[] chunk = new byte[Math.max(64, Math.min(length, 8192))];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if ((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated data dump");
+                }
+                output.write(chunk, 0, inflated);
+            }
+
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt data dump", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Releases the native resources held by the deflater.
+     */
+    public void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,148 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+/**
+ * Associates GNSS measurement epochs with the location fix nearest to them in time. Epochs and fixes
+ * arrive on independent callbacks, so an epoch is held until a fix at or after its time has been
+ * seen (no later fix can be any closer), and is then matched to the nearest fix within the
+ * tolerance. Times are elapsed realtime nanoseconds, which both sources share.
+ * <p>
+ * Recent epochs and fixes are kept in fixed-size rings of primitives, so adding them does not
+ * allocate. The class is not thread safe.
+ */
+class EpochFixAligner {
+    /**
+     * Notified when an epoch has been matched to a fix.
+     */
+    interface MatchListener {
+        /**
+         * @param pointId       The row ID of the fix in the points table
+         * @param firstSatRowId The first sat_data row ID of the epoch
+         * @param lastSatRowId  The last sat_data row ID of the epoch
+         */
+        void onMatch(long pointId, long firstSatRowId, long lastSatRowId);
+    }
+
+    private final long toleranceNanos;
+    private final MatchListener listener;
+
+    // Epochs waiting for a fix, oldest first
+    private final long[] epochTimes;
+    private final long[] epochFirstRowIds;
+    private final long[] epochLastRowIds;
+    private int epochHead;
+    private int epochCount;
+
+    // The most recent fixes, oldest first
+    private final long[] fixTimes;
+    private final long[] fixPointIds;
+    private int fixHead;
+    private int fixCount;
+    private long latestFixTime = Long.MIN_VALUE;
+
+    /**
+     * @param capacity       The number of epochs and fixes to keep
+     * @param toleranceNanos The largest time difference between an epoch and a fix that still
+     *                       counts as a match
+     * @param listener       Notified of each match
+     */
+    EpochFixAligner(int capacity, long toleranceNanos, MatchListener listener) {
+        capacity = Math.max(2, capacity);
+        this.toleranceNanos = Math.max(0L, toleranceNanos);
+        this.listener = listener;
+        epochTimes = new long[capacity];
+        epochFirstRowIds = new long[capacity];
+        epochLastRowIds = new long[capacity];
+        fixTimes = new long[capacity];
+        fixPointIds = new long[capacity];
+    }
+
+    /**
+     * Adds an epoch whose sat_data rows have been written.
+     *
+     * @param timeNanos     The elapsed realtime of the epoch
+     * @param firstSatRowId The first sat_data row ID of the epoch
+     * @param lastSatRowId  The last sat_data row ID of the epoch
+     */
+    void addEpoch(long timeNanos, long firstSatRowId, long lastSatRowId) {
+        if (timeNanos <= latestFixTime) {
+            // A fix at or after the epoch has already been seen
+            match(timeNanos, firstSatRowId, lastSatRowId);
+            return;
+        }
+
+        if (epochCount == epochTimes.length) {
+            // Make room by matching the oldest epoch against the fixes seen so far
+            resolveOldest();
+        }
+
+        int index = (epochHead + epochCount) % epochTimes.length;
+        epochTimes[index] = timeNanos;
+        epochFirstRowIds[index] = firstSatRowId;
+        epochLastRowIds[index] = lastSatRowId;
+        epochCount++;
+    }
+
+    /**
+     * Adds a fix that has been written, and matches the waiting epochs that it completes.
+     *
+     * @param timeNanos The elapsed realtime of the fix
+     * @param pointId   The row ID of the fix in the points table
+     */
+    void addFix(long timeNanos, long pointId) {
+        int index;
+        if (fixCount == fixTimes.length) {
+            index = fixHead;
+            fixHead = (fixHead + 1) % fixTimes.length;
+        } else {
+            index = (fixHead + fixCount) % fixTimes.length;
+            fixCount++;
+        }
+        fixTimes[index] = timeNanos;
+        fixPointIds[index] = pointId;
+        latestFixTime = Math.max(latestFixTime, timeNanos);
+
+        while ((epochCount > 0) && (epochTimes[epochHead] <= latestFixTime)) {
+            resolveOldest();
+        }
+    }
+
+    /**
+     * Matches every waiting epoch against the fixes seen so far, for when no more fixes will arrive.
+     */
+    void flush() {
+        while (epochCount > 0) {
+            resolveOldest();
+        }
+    }
+
+    /**
+     * @return The number of epochs waiting for a fix.
+     */
+    int getPendingEpochCount() {
+        return epochCount;
+    }
+
+    private void resolveOldest() {
+        int index = epochHead;
+        epochHead = (epochHead + 1) % epochTimes.length;
+        epochCount--;
+        match(epochTimes[index], epochFirstRowIds[index], epochLastRowIds[index]);
+    }
+
+    private void match(long timeNanos, long firstSatRowId, long lastSatRowId) {
+        long bestDifference = Long.MAX_VALUE;
+        long bestPointId = 0L;
+        for (int i = 0; i < fixCount; i++) {
+            int index = (fixHead + i) % fixTimes.length;
+            long difference = Math.abs(fixTimes[index] - timeNanos);
+            if (difference < bestDifference) {
+                bestDifference = difference;
+                bestPointId = fixPointIds[index];
+            }
+        }
+
+        if (bestDifference <= toleranceNanos) {
+            listener.onMatch(bestPointId, firstSatRowId, lastSatRowId);
+        }
+    }
+}
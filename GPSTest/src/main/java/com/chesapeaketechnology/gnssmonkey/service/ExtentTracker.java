@@ -0,0 +1,79 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+/**
+ * Keeps the bounding box of the observation points in memory, so that each fix can be folded into
+ * it without reading the extent back from the database. The extent only needs to be written to
+ * {@code gpkg_contents} when it has changed since it was last persisted.
+ */
+class ExtentTracker {
+    private double minLongitude = Double.POSITIVE_INFINITY;
+    private double maxLongitude = Double.NEGATIVE_INFINITY;
+    private double minLatitude = Double.POSITIVE_INFINITY;
+    private double maxLatitude = Double.NEGATIVE_INFINITY;
+    private boolean dirty;
+
+    /**
+     * Expands the extent to include the provided point.
+     *
+     * @param longitude The longitude of the point, in degrees
+     * @param latitude  The latitude of the point, in degrees
+     */
+    void include(double longitude, double latitude) {
+        if (longitude < minLongitude) {
+            minLongitude = longitude;
+            dirty = true;
+        }
+
+        if (longitude > maxLongitude) {
+            maxLongitude = longitude;
+            dirty = true;
+        }
+
+        if (latitude < minLatitude) {
+            minLatitude = latitude;
+            dirty = true;
+        }
+
+        if (latitude > maxLatitude) {
+            maxLatitude = latitude;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return True if the extent has changed since {@link #markPersisted()} was last called.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * @return True if no points have been included yet.
+     */
+    boolean isEmpty() {
+        return minLongitude > maxLongitude;
+    }
+
+    /**
+     * Records that the current extent has been written to the database.
+     */
+    void markPersisted() {
+        dirty = false;
+    }
+
+    double getMinLongitude() {
+        return minLongitude;
+    }
+
+    double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    double getMinLatitude() {
+        return minLatitude;
+    }
+
+    double getMaxLatitude() {
+        return maxLatitude;
+    }
+}
@@ -1,33 +1,33 @@
 package com.chesapeaketechnology.gnssmonkey.service;
 
-import com.android.gpstest.model.SatelliteStatus;
 import com.android.gpstest.util.GpsTestUtil;
 
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.location.GnssClock;
-import android.location.GnssMeasurement;
-import android.location.GnssMeasurementsEvent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.location.GnssStatus;
 import android.location.Location;
 import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 
-import mil.nga.geopackage.BoundingBox;
 import mil.nga.geopackage.GeoPackage;
 import mil.nga.geopackage.GeoPackageException;
 import mil.nga.geopackage.GeoPackageManager;
+import mil.nga.geopackage.db.GeoPackageDataType;
+import mil.nga.geopackage.extension.RTreeIndexExtension;
 import mil.nga.geopackage.core.contents.Contents;
 import mil.nga.geopackage.core.contents.ContentsDao;
 import mil.nga.geopackage.core.contents.ContentsDataType;
@@ -50,13 +50,12 @@ import mil.nga.geopackage.features.user.FeatureRow;
 import mil.nga.geopackage.features.user.FeatureTable;
 import mil.nga.geopackage.geom.GeoPackageGeometryData;
 import mil.nga.geopackage.user.custom.UserCustomColumn;
-import mil.nga.geopackage.user.custom.UserCustomDao;
-import mil.nga.geopackage.user.custom.UserCustomRow;
 import mil.nga.sf.GeometryType;
 import mil.nga.sf.Point;
 import mil.nga.sf.proj.ProjectionConstants;
 
 import static java.time.Instant.now;
+import static mil.nga.geopackage.db.GeoPackageDataType.BLOB;
 import static mil.nga.geopackage.db.GeoPackageDataType.DATETIME;
 import static mil.nga.geopackage.db.GeoPackageDataType.INTEGER;
 import static mil.nga.geopackage.db.GeoPackageDataType.REAL;
@@ -69,141 +68,580 @@ import static mil.nga.geopackage.db.GeoPackageDataType.TEXT;
 public class GeoPackageDatabase {
     private static final String TAG = "GPSMonkey.GpkgWrtr";
 
-    private static final String CLOCK_TABLE_NAME = "rcvr_clock";
+    static final String CLOCK_TABLE_NAME = "rcvr_clock";
     private static final String MOTION_TABLE_NAME = "motion";
-    private static final String POINTS_TABLE_NAME = "gps_observation_points";
-    private static final String SAT_TABLE_NAME = "sat_data";
+    static final String POINTS_TABLE_NAME = "gps_observation_points";
+    static final String SAT_TABLE_NAME = "sat_data";
 
-    private static final String CLOCK_MAP_TABLE_NAME = SAT_TABLE_NAME + "_" + CLOCK_TABLE_NAME;
-    //    private static final String MOTION_MAP_TABLE_NAME = POINTS_TABLE_NAME + "_" + MOTION_TABLE_NAME;
+    static final String CLOCK_MAP_TABLE_NAME = SAT_TABLE_NAME + "_" + CLOCK_TABLE_NAME;
     private static final String SAT_MAP_TABLE_NAME = POINTS_TABLE_NAME + "_" + SAT_TABLE_NAME;
-
-    private static final String CLK_TIME_NANOS = "time_nanos";
-    private static final String CLK_TIME_UNCERTAINTY_NANOS = "time_uncertainty_nanos";
-    private static final String CLK_HAS_TIME_UNCERTAINTY_NANOS = "has_time_uncertainty_nanos";
-    private static final String CLK_BIAS_NANOS = "bias_nanos";
-    private static final String CLK_HAS_BIAS_NANOS = "has_bias_nanos";
-    private static final String CLK_FULL_BIAS_NANOS = "full_bias_nanos";
-    private static final String CLK_HAS_FULL_BIAS_NANOS = "has_full_bias_nanos";
-    private static final String CLK_BIAS_UNCERTAINTY_NANOS = "bias_uncertainty_nanos";
-    private static final String CLK_HAS_BIAS_UNCERTAINTY_NANOS = "has_bias_uncertainty_nanos";
-    private static final String CLK_DRIFT_NANOS_PER_SEC = "drift_nanos_per_sec";
-    private static final String CLK_HAS_DRIFT_NANOS_PER_SEC = "has_drift_nanos_per_sec";
-    private static final String CLK_DRIFT_UNCERTAINTY_NPS = "drift_uncertainty_nps";
-    private static final String CLK_HAS_DRIFT_UNCERTAINTY_NPS = "has_drift_uncertainty_nps";
-    private static final String CLK_LEAP_SECOND = "leap_second";
-    private static final String CLK_HAS_LEAP_SECOND = "has_leap_second";
-    private static final String CLK_HW_CLOCK_DISCONTINUITY_COUNT = "hw_clock_discontinuity_count";
-
-    private static final String DATA_DUMP = "data_dump";
-
-    private static final String GPS_OBS_PT_LAT = "Lat";
-    private static final String GPS_OBS_PT_LNG = "Lon";
-    private static final String GPS_OBS_PT_ALT = "Alt";
-    private static final String GPS_OBS_PT_GPS_TIME = "GPSTime";
+    static final String SAT_EPOCH_TABLE_NAME = "sat_epoch";
+
+    static final String CLK_TIME_NANOS = "time_nanos";
+    static final String CLK_TIME_UNCERTAINTY_NANOS = "time_uncertainty_nanos";
+    static final String CLK_HAS_TIME_UNCERTAINTY_NANOS = "has_time_uncertainty_nanos";
+    static final String CLK_BIAS_NANOS = "bias_nanos";
+    static final String CLK_HAS_BIAS_NANOS = "has_bias_nanos";
+    static final String CLK_FULL_BIAS_NANOS = "full_bias_nanos";
+    static final String CLK_HAS_FULL_BIAS_NANOS = "has_full_bias_nanos";
+    static final String CLK_BIAS_UNCERTAINTY_NANOS = "bias_uncertainty_nanos";
+    static final String CLK_HAS_BIAS_UNCERTAINTY_NANOS = "has_bias_uncertainty_nanos";
+    static final String CLK_DRIFT_NANOS_PER_SEC = "drift_nanos_per_sec";
+    static final String CLK_HAS_DRIFT_NANOS_PER_SEC = "has_drift_nanos_per_sec";
+    static final String CLK_DRIFT_UNCERTAINTY_NPS = "drift_uncertainty_nps";
+    static final String CLK_HAS_DRIFT_UNCERTAINTY_NPS = "has_drift_uncertainty_nps";
+    static final String CLK_LEAP_SECOND = "leap_second";
+    static final String CLK_HAS_LEAP_SECOND = "has_leap_second";
+    static final String CLK_HW_CLOCK_DISCONTINUITY_COUNT = "hw_clock_discontinuity_count";
+
+    static final String DATA_DUMP = "data_dump";
+
+    private static final String SESSION_TABLE_NAME = "gpsmonkey_session";
+    private static final String SESSION_KEY = "key";
+    private static final String SESSION_VALUE = "value";
+    public static final String SESSION_DATA_DUMP_ENCODING = "data_dump_encoding";
+    private static final String SESSION_REPLAY_POSITION = "replay_position";
+    public static final String SESSION_MEASUREMENT_LAYOUT = "measurement_layout";
+
+    static final String GPS_OBS_PT_LAT = "Lat";
+    static final String GPS_OBS_PT_LNG = "Lon";
+    static final String GPS_OBS_PT_ALT = "Alt";
+    static final String GPS_OBS_PT_GPS_TIME = "GPSTime";
     private static final String GPS_OBS_PT_PROB_RFI = "ProbabilityRFI";
     private static final String GPS_OBS_PT_PROB_CN0AGC = "ProbSpoofCN0AGC";
     private static final String GPS_OBS_PT_PROB_CONSTELLATION = "ProbSpoofConstellation";
-    private static final String GPS_OBS_PT_PROVIDER = "Provider";
-    private static final String GPS_OBS_PT_FIX_SAT_COUNT = "FixSatCount";
-    private static final String GPS_OBS_PT_HAS_RADIAL_ACCURACY = "HasRadialAccuracy";
-    private static final String GPS_OBS_PT_HAS_VERTICAL_ACCURACY = "HasVerticalAccuracy";
-    private static final String GPS_OBS_PT_RADIAL_ACCURACY = "RadialAccuracy";
-    private static final String GPS_OBS_PT_VERTICAL_ACCURACY = "VerticalAccuracy";
-    private static final String GPS_OBS_PT_HAS_SPEED = "HasSpeed";
+    static final String GPS_OBS_PT_PROVIDER = "Provider";
+    static final String GPS_OBS_PT_FIX_SAT_COUNT = "FixSatCount";
+    static final String GPS_OBS_PT_HAS_RADIAL_ACCURACY = "HasRadialAccuracy";
+    static final String GPS_OBS_PT_HAS_VERTICAL_ACCURACY = "HasVerticalAccuracy";
+    static final String GPS_OBS_PT_RADIAL_ACCURACY = "RadialAccuracy";
+    static final String GPS_OBS_PT_VERTICAL_ACCURACY = "VerticalAccuracy";
+    static final String GPS_OBS_PT_HAS_SPEED = "HasSpeed";
     private static final String GPS_OBS_PT_HAS_SPEED_ACCURACY = "HasSpeedAccuracy";
-    private static final String GPS_OBS_PT_SPEED = "Speed";
+    static final String GPS_OBS_PT_SPEED = "Speed";
     private static final String GPS_OBS_PT_SPEED_ACCURACY = "SpeedAccuracy";
-    private static final String GPS_OBS_PT_HAS_BEARING = "HasBearing";
+    static final String GPS_OBS_PT_HAS_BEARING = "HasBearing";
     private static final String GPS_OBS_PT_HAS_BEARING_ACCURACY = "HasBearingAccuracy";
-    private static final String GPS_OBS_PT_BEARING = "Bearing";
+    static final String GPS_OBS_PT_BEARING = "Bearing";
     private static final String GPS_OBS_PT_BEARING_ACCURACY = "BearingAccuracy";
-    private static final String GPS_OBS_PT_ELAPSED_REALTIME_NANOS = "ElapsedRealtimeNanos";
+    static final String GPS_OBS_PT_ELAPSED_REALTIME_NANOS = "ElapsedRealtimeNanos";
     private static final String GPS_OBS_PT_SYS_TIME = "SysTime";
 
-    private static final String SAT_DATA_MEASURED_TIME = "local_time";
-    private static final String SAT_DATA_SVID = "svid";
-    private static final String SAT_DATA_CONSTELLATION = "constellation";
-    private static final String SAT_DATA_CN0 = "cn0";
-    private static final String SAT_DATA_AGC = "agc";
-    private static final String SAT_DATA_HAS_AGC = "has_agc";
-    private static final String SAT_DATA_IN_FIX = "in_fix";
-    private static final String SAT_DATA_SYNC_STATE_FLAGS = "sync_state_flags";
-    private static final String SAT_DATA_SYNC_STATE_TXT = "sync_state_txt";
-    private static final String SAT_DATA_SAT_TIME_NANOS = "sat_time_nanos";
-    private static final String SAT_DATA_SAT_TIME_1_SIGMA_NANOS = "sat_time_1sigma_nanos";
-    private static final String SAT_DATA_RCVR_TIME_OFFSET_NANOS = "rcvr_time_offset_nanos";
-    private static final String SAT_DATA_MULTIPATH = "multipath";
-    private static final String SAT_DATA_HAS_CARRIER_FREQ = "has_carrier_freq";
-    private static final String SAT_DATA_CARRIER_FREQ_HZ = "carrier_freq_hz";
-    private static final String SAT_DATA_ACCUM_DELTA_RANGE = "accum_delta_range";
-    private static final String SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA = "accum_delta_range_1sigma";
-    private static final String SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS = "accum_delta_range_state_flags";
-    private static final String SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT = "accum_delta_range_state_txt";
-    private static final String SAT_DATA_PSEUDORANGE_RATE_MPS = "pseudorange_rate_mps";
-    private static final String SAT_DATA_PSEUDORANGE_RATE_1_SIGMA = "pseudorange_rate_1sigma";
-    private static final String SAT_DATA_HAS_EPHEMERIS = "has_ephemeris";
-    private static final String SAT_DATA_HAS_ALMANAC = "has_almanac";
-    private static final String SAT_DATA_AZIMUTH_DEG = "azimuth_deg";
-    private static final String SAT_DATA_ELEVATION_DEG = "elevation_deg";
+    static final String SAT_DATA_MEASURED_TIME = "local_time";
+    static final String SAT_DATA_SVID = "svid";
+    static final String SAT_DATA_CONSTELLATION = "constellation";
+    static final String SAT_DATA_CN0 = "cn0";
+    static final String SAT_DATA_AGC = "agc";
+    static final String SAT_DATA_HAS_AGC = "has_agc";
+    static final String SAT_DATA_IN_FIX = "in_fix";
+    static final String SAT_DATA_SYNC_STATE_FLAGS = "sync_state_flags";
+    static final String SAT_DATA_SYNC_STATE_TXT = "sync_state_txt";
+    static final String SAT_DATA_SAT_TIME_NANOS = "sat_time_nanos";
+    static final String SAT_DATA_SAT_TIME_1_SIGMA_NANOS = "sat_time_1sigma_nanos";
+    static final String SAT_DATA_RCVR_TIME_OFFSET_NANOS = "rcvr_time_offset_nanos";
+    static final String SAT_DATA_MULTIPATH = "multipath";
+    static final String SAT_DATA_HAS_CARRIER_FREQ = "has_carrier_freq";
+    static final String SAT_DATA_CARRIER_FREQ_HZ = "carrier_freq_hz";
+    static final String SAT_DATA_ACCUM_DELTA_RANGE = "accum_delta_range";
+    static final String SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA = "accum_delta_range_1sigma";
+    static final String SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS = "accum_delta_range_state_flags";
+    static final String SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT = "accum_delta_range_state_txt";
+    static final String SAT_DATA_PSEUDORANGE_RATE_MPS = "pseudorange_rate_mps";
+    static final String SAT_DATA_PSEUDORANGE_RATE_1_SIGMA = "pseudorange_rate_1sigma";
+    static final String SAT_DATA_HAS_EPHEMERIS = "has_ephemeris";
+    static final String SAT_DATA_HAS_ALMANAC = "has_almanac";
+    static final String SAT_DATA_AZIMUTH_DEG = "azimuth_deg";
+    static final String SAT_DATA_ELEVATION_DEG = "elevation_deg";
+
+    static final String SAT_EPOCH_ELAPSED_REALTIME_NANOS = "elapsed_realtime_nanos";
+    static final String SAT_EPOCH_CLOCK_ID = "clock_id";
+    static final String SAT_EPOCH_POINT_ID = "point_id";
+    static final String SAT_EPOCH_SAT_COUNT = "sat_count";
+    static final String SAT_EPOCH_MEASUREMENT_FLAGS = "measurement_flags";
+    static final String SAT_EPOCH_SAT_STATE_FLAGS = "sat_state_flags";
 
     private static final String SENSOR_TIME = "time";
     private static final String SENSOR_ACCEL_X = "accel_x";
     private static final String SENSOR_ACCEL_Y = "accel_y";
     private static final String SENSOR_ACCEL_Z = "accel_z";
-    private static final String SENSOR_LINEAR_ACCEL_X = "linear_accel_x";
-    private static final String SENSOR_LINEAR_ACCEL_Y = "linear_accel_y";
-    private static final String SENSOR_LINEAR_ACCEL_Z = "linear_accel_z";
-    private static final String SENSOR_MAG_X = "mag_x";
-    private static final String SENSOR_MAG_Y = "mag_y";
-    private static final String SENSOR_MAG_Z = "mag_z";
     private static final String SENSOR_GYRO_X = "gyro_x";
     private static final String SENSOR_GYRO_Y = "gyro_y";
     private static final String SENSOR_GYRO_Z = "gyro_z";
-    private static final String SENSOR_GRAVITY_X = "gravity_x";
-    private static final String SENSOR_GRAVITY_Y = "gravity_y";
-    private static final String SENSOR_GRAVITY_Z = "gravity_z";
-    private static final String SENSOR_ROT_VEC_X = "rot_vec_x";
-    private static final String SENSOR_ROT_VEC_Y = "rot_vec_y";
-    private static final String SENSOR_ROT_VEC_Z = "rot_vec_z";
-    private static final String SENSOR_ROT_VEC_COS = "rot_vec_cos";
-    private static final String SENSOR_ROT_VEC_HDG_ACC = "rot_vec_hdg_acc";
+    private static final String SENSOR_MAG_X = "mag_x";
+    private static final String SENSOR_MAG_Y = "mag_y";
+    private static final String SENSOR_MAG_Z = "mag_z";
     private static final String SENSOR_BARO = "baro";
-    private static final String SENSOR_HUMIDITY = "humidity";
-    private static final String SENSOR_TEMP = "temp";
-    private static final String SENSOR_LUX = "lux";
-    private static final String SENSOR_PROX = "prox";
-    private static final String SENSOR_STATIONARY = "stationary";
-    private static final String SENSOR_MOTION = "motion";
-
-    private static final String ID_COLUMN = "id";
+
+    /**
+     * The sat_data columns bound by {@link #satInsertStatement}, in parameter order.
+     */
+    static final String[] SAT_INSERT_COLUMNS = {
+            SAT_DATA_MEASURED_TIME, SAT_DATA_SVID, SAT_DATA_CONSTELLATION, SAT_DATA_CN0, SAT_DATA_AGC,
+            SAT_DATA_HAS_AGC, SAT_DATA_IN_FIX, SAT_DATA_SYNC_STATE_FLAGS, SAT_DATA_SYNC_STATE_TXT,
+            SAT_DATA_SAT_TIME_NANOS, SAT_DATA_SAT_TIME_1_SIGMA_NANOS, SAT_DATA_RCVR_TIME_OFFSET_NANOS,
+            SAT_DATA_MULTIPATH, SAT_DATA_HAS_CARRIER_FREQ, SAT_DATA_CARRIER_FREQ_HZ, SAT_DATA_ACCUM_DELTA_RANGE,
+            SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA, SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS,
+            SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT, SAT_DATA_PSEUDORANGE_RATE_MPS, SAT_DATA_PSEUDORANGE_RATE_1_SIGMA,
+            SAT_DATA_HAS_EPHEMERIS, SAT_DATA_HAS_ALMANAC, SAT_DATA_AZIMUTH_DEG, SAT_DATA_ELEVATION_DEG, DATA_DUMP};
+
+    /**
+     * The rcvr_clock columns bound by {@link #clkInsertStatement}, in parameter order.
+     */
+    private static final String[] CLK_INSERT_COLUMNS = {
+            CLK_TIME_NANOS, CLK_TIME_UNCERTAINTY_NANOS, CLK_HAS_TIME_UNCERTAINTY_NANOS, CLK_BIAS_NANOS,
+            CLK_HAS_BIAS_NANOS, CLK_FULL_BIAS_NANOS, CLK_HAS_FULL_BIAS_NANOS, CLK_BIAS_UNCERTAINTY_NANOS,
+            CLK_HAS_BIAS_UNCERTAINTY_NANOS, CLK_DRIFT_NANOS_PER_SEC, CLK_HAS_DRIFT_NANOS_PER_SEC,
+            CLK_DRIFT_UNCERTAINTY_NPS, CLK_HAS_DRIFT_UNCERTAINTY_NPS, CLK_LEAP_SECOND, CLK_HAS_LEAP_SECOND,
+            CLK_HW_CLOCK_DISCONTINUITY_COUNT, DATA_DUMP};
+
+    /**
+     * The sat_epoch columns bound by {@link #satEpochInsertStatement}, in parameter order. The
+     * first four hold a single value for the epoch and the rest are {@link ColumnCodec} BLOBs with
+     * one value per measurement.
+     */
+    private static final String[] SAT_EPOCH_INSERT_COLUMNS = {
+            SAT_DATA_MEASURED_TIME, SAT_EPOCH_ELAPSED_REALTIME_NANOS, SAT_EPOCH_CLOCK_ID, SAT_EPOCH_SAT_COUNT,
+            SAT_DATA_SVID, SAT_DATA_CONSTELLATION, SAT_EPOCH_MEASUREMENT_FLAGS, SAT_EPOCH_SAT_STATE_FLAGS,
+            SAT_DATA_CN0, SAT_DATA_AGC, SAT_DATA_SYNC_STATE_FLAGS, SAT_DATA_SAT_TIME_NANOS,
+            SAT_DATA_SAT_TIME_1_SIGMA_NANOS, SAT_DATA_RCVR_TIME_OFFSET_NANOS, SAT_DATA_MULTIPATH,
+            SAT_DATA_CARRIER_FREQ_HZ, SAT_DATA_ACCUM_DELTA_RANGE, SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA,
+            SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS, SAT_DATA_PSEUDORANGE_RATE_MPS, SAT_DATA_PSEUDORANGE_RATE_1_SIGMA,
+            SAT_DATA_AZIMUTH_DEG, SAT_DATA_ELEVATION_DEG};
+
+    private static final int SAT_EPOCH_SCALAR_COLUMNS = 4;
+
+    /**
+     * The motion columns bound by {@link #motionInsertStatement}, in parameter order.
+     */
+    private static final String[] MOTION_INSERT_COLUMNS = {
+            SENSOR_TIME, SENSOR_ACCEL_X, SENSOR_ACCEL_Y, SENSOR_ACCEL_Z, SENSOR_GYRO_X, SENSOR_GYRO_Y,
+            SENSOR_GYRO_Z, SENSOR_MAG_X, SENSOR_MAG_Y, SENSOR_MAG_Z, SENSOR_BARO};
+
+    static final String ID_COLUMN = "id";
     private static final String GEOMETRY_COLUMN = "geom";
     private static final long WGS84_SRS = 4326;
 
+    /**
+     * Default number of epochs to gather into a single transaction.
+     */
+    public static final int DEFAULT_BATCH_EPOCHS = 5;
+
+    /**
+     * Default maximum time, in milliseconds, to keep a transaction open.
+     */
+    public static final long DEFAULT_BATCH_WINDOW_MS = 5000L;
+
+    /**
+     * The version of the tables created by this class. Must be incremented whenever the schema
+     * changes, so that templates built for an earlier schema are not reused (see
+     * {@link GeoPackageTemplate}).
+     */
+    static final int SCHEMA_VERSION = 3;
+
+    /**
+     * Default largest time difference, in milliseconds, between a measurement epoch and the fix it
+     * is associated with.
+     */
+    public static final long DEFAULT_FIX_MATCH_TOLERANCE_MS = 1000L;
+
+    /**
+     * Values for SQLite's {@code synchronous} setting, which controls how often commits are synced
+     * to storage. In WAL mode, {@link #NORMAL} only syncs at checkpoints; a commit can be lost on
+     * power failure, but the database is never corrupted.
+     */
+    public enum SynchronousMode {
+        OFF,
+        NORMAL,
+        FULL
+    }
+
+    public static final SynchronousMode DEFAULT_SYNCHRONOUS_MODE = SynchronousMode.NORMAL;
+
+    /**
+     * How the measurements of each epoch are stored.
+     */
+    public enum MeasurementLayout {
+        /**
+         * One sat_data row per measurement, each mapped to its rcvr_clock row and fix through the
+         * related tables extension.
+         */
+        ROWS,
+
+        /**
+         * One sat_epoch row per epoch, holding each measurement field as a delta/varint encoded
+         * BLOB (see {@link ColumnCodec}) along with the IDs of its rcvr_clock row and fix. Much
+         * smaller, and a single insert per epoch; read back with {@link ColumnarEpochReader}.
+         * Data dumps are not stored for the measurements.
+         */
+        COLUMNAR
+    }
+
+    public static final MeasurementLayout DEFAULT_MEASUREMENT_LAYOUT = MeasurementLayout.ROWS;
+
+    /**
+     * Number of WAL pages after which SQLite checkpoints on its own during a commit. This is only a
+     * safety net; the recorder runs checkpoints itself while it is idle (see {@link #checkpoint()}).
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 10_000;
+
+    /**
+     * Default attribute indexes built when a recording is closed, as a comma separated list of
+     * {@code table.column} entries.
+     */
+    public static final String DEFAULT_ATTRIBUTE_INDEXES = SAT_TABLE_NAME + "." + SAT_DATA_MEASURED_TIME + ","
+            + SAT_TABLE_NAME + "." + SAT_DATA_SVID + "," + SAT_TABLE_NAME + "." + SAT_DATA_CONSTELLATION + ","
+            + MOTION_TABLE_NAME + "." + SENSOR_TIME + "," + SAT_EPOCH_TABLE_NAME + "." + SAT_DATA_MEASURED_TIME + ","
+            + POINTS_TABLE_NAME + "." + GPS_OBS_PT_GPS_TIME + "," + CLOCK_MAP_TABLE_NAME + "." + UserMappingTable.COLUMN_BASE_ID;
+
+    /**
+     * Number of recent epochs and fixes kept for matching epochs to fixes.
+     */
+    private static final int ALIGNER_CAPACITY = 32;
+
+    private final Context context;
     private final GeoPackageManager gpkgManager;
+    private final TransactionBatcher batcher;
+    private DataDumpCodec.Encoding dataDumpEncoding = DataDumpCodec.Encoding.TEXT;
+    private DataDumpCodec dataDumpCodec;
+    private final ExtentTracker pointsExtent = new ExtentTracker();
+    private long fixMatchToleranceMs = DEFAULT_FIX_MATCH_TOLERANCE_MS;
+    private SynchronousMode synchronousMode = DEFAULT_SYNCHRONOUS_MODE;
+    private MeasurementLayout measurementLayout = DEFAULT_MEASUREMENT_LAYOUT;
+    private String attributeIndexes = DEFAULT_ATTRIBUTE_INDEXES;
+    private EpochFixAligner aligner;
+    private SQLiteStatement satMapStatement;
+    private long replayPosition;
+    private boolean replayPositionDirty;
+
+    // Compiled inserts for the measurement tables; null if the tables do not match the known schema
+    private SQLiteStatement satInsertStatement;
+    private SQLiteStatement clkInsertStatement;
+    private SQLiteStatement clkMapStatement;
+
+    // Only compiled for the columnar measurement layout
+    private SQLiteStatement satEpochInsertStatement;
+    private SQLiteStatement satEpochPointStatement;
+    private final ColumnCodec columnCodec = new ColumnCodec();
+    private int[] epochSatStateFlags = new int[0];
+    private float[] epochAzimuthDegrees = new float[0];
+    private float[] epochElevationDegrees = new float[0];
+
+    // Null for recordings made before the motion table was added
+    private SQLiteStatement motionInsertStatement;
+    private FeatureDao featDao;
     private GeoPackage gpsGpkg;
 
-    private HashMap<String, SatelliteStatus> satStatus = new HashMap<>();
-    private HashMap<String, Long> satRowsToMap = new HashMap<>();
+    /**
+     * Reused to build the data dump text so each row does not need its own builder.
+     */
+    private final StringBuilder dumpBuilder = new StringBuilder(512);
+
+    private final SatelliteStateTable satellites = new SatelliteStateTable();
     private SimpleAttributesDao clkDao;
     private UserMappingDao clkMapDao;
     private SimpleAttributesDao satDao;
-    private UserMappingDao satMapDao;
-    private UserCustomDao sensorDao;
 
     public GeoPackageDatabase(Context context) {
+        this(context, DEFAULT_BATCH_EPOCHS, DEFAULT_BATCH_WINDOW_MS);
+    }
+
+    /**
+     * @param context       The context used to access the GeoPackage manager
+     * @param batchEpochs   The number of epochs to gather into a single transaction
+     * @param batchWindowMs The maximum time, in milliseconds, to keep a transaction open
+     */
+    public GeoPackageDatabase(Context context, int batchEpochs, long batchWindowMs) {
+        this.context = context;
         gpkgManager = GeoPackageFactory.getManager(context);
+        batcher = new TransactionBatcher(batchEpochs, batchWindowMs);
+        batcher.setCheckpointListener(this::writeCheckpoint);
+    }
+
+    /**
+     * Sets how the data dump columns are stored for this session. Must be called before
+     * {@link #start(String)}, since it determines the type of the data dump columns.
+     *
+     * @param encoding The data dump encoding
+     */
+    public void setDataDumpEncoding(DataDumpCodec.Encoding encoding) {
+        dataDumpEncoding = encoding;
     }
 
     /**
-     * Creates, opens, and adds tables to a GeoPackage database with the provided name. Note: this
-     * method and any other method that accesses the GeoPackage is synchronized to ensure the
-     * database doesn't get closed while it is being updated.
+     * Sets the largest time difference between a measurement epoch and the fix it is associated
+     * with. Epochs without a fix that close are not mapped to any fix. Must be called before
+     * {@link #start(String)}.
+     *
+     * @param toleranceMs The tolerance, in milliseconds
+     */
+    public void setFixMatchToleranceMs(long toleranceMs) {
+        fixMatchToleranceMs = toleranceMs;
+    }
+
+    /**
+     * Sets the SQLite {@code synchronous} setting used while recording. Must be called before
+     * {@link #start(String)}.
+     *
+     * @param mode The synchronous mode
+     */
+    public void setSynchronousMode(SynchronousMode mode) {
+        synchronousMode = mode;
+    }
+
+    /**
+     * Sets how the measurements of each epoch are stored for this session. Must be called before
+     * {@link #start(String)}.
+     *
+     * @param layout The measurement layout
+     */
+    public void setMeasurementLayout(MeasurementLayout layout) {
+        measurementLayout = layout;
+    }
+
+    /**
+     * Sets the attribute indexes built when the recording is closed. Indexes are not maintained
+     * while recording, so ingest is not slowed down by them.
+     *
+     * @param indexes A comma separated list of {@code table.column} entries, or an empty string for
+     *                no attribute indexes
+     */
+    public void setAttributeIndexes(String indexes) {
+        attributeIndexes = (indexes != null) ? indexes : "";
+    }
+
+    /**
+     * @return The attribute indexes to build once the recording is closed.
+     */
+    public String getAttributeIndexes() {
+        return attributeIndexes;
+    }
+
+    /**
+     * Creates, opens, and adds tables to a GeoPackage database with the provided name. New files
+     * are copied from a prebuilt template when one is available, so only the DAOs need to be looked
+     * up. Note: this method and any other method that accesses the GeoPackage is synchronized to
+     * ensure the database doesn't get closed while it is being updated.
      *
      * @param databaseName the name of the database
      * @throws SQLException If an error occurs creating the database SRS or tables
      */
     public synchronized void start(String databaseName) throws SQLException {
+        File file = new File(databaseName);
+        File template = file.exists() ? null : GeoPackageTemplate.obtain(context, dataDumpEncoding);
+
+        if ((template != null) && GeoPackageTemplate.copy(template, file)) {
+            gpsGpkg = gpkgManager.openExternal(databaseName, true);
+            if (gpsGpkg == null) {
+                throw new GeoPackageException("Can't open GeoPackage database copied from template " + databaseName);
+            }
+            loadTables();
+        } else {
+            createTables(databaseName);
+        }
+
+        configureJournal();
+        writeSessionInfo(SESSION_DATA_DUMP_ENCODING, dataDumpEncoding.name());
+        writeSessionInfo(SESSION_MEASUREMENT_LAYOUT, measurementLayout.name());
+        prepareWrites();
+    }
+
+    /**
+     * Opens an existing recording to add more data to it, such as data recovered after the app was
+     * killed while recording. The data dump encoding is taken from the recording's session table,
+     * and the extent of the observation points continues from the extent already stored.
+     *
+     * @param databaseName the file path of the recording
+     * @throws SQLException If the recording could not be opened
+     */
+    synchronized void resume(String databaseName) throws SQLException {
+        gpsGpkg = gpkgManager.openExternal(databaseName, true);
+        if (gpsGpkg == null) {
+            throw new GeoPackageException("Can't open GeoPackage database " + databaseName);
+        }
+        loadTables();
+        configureJournal();
+
+        String encoding = readSessionInfo(getSqliteDatabase(), SESSION_DATA_DUMP_ENCODING);
+        if (encoding != null) {
+            try {
+                dataDumpEncoding = DataDumpCodec.Encoding.valueOf(encoding);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown data dump encoding in " + databaseName + ": " + encoding);
+            }
+        }
+
+        String layout = readSessionInfo(getSqliteDatabase(), SESSION_MEASUREMENT_LAYOUT);
+        measurementLayout = MeasurementLayout.ROWS;
+        if (layout != null) {
+            try {
+                measurementLayout = MeasurementLayout.valueOf(layout);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown measurement layout in " + databaseName + ": " + layout);
+            }
+        }
+
+        try (Cursor cursor = getSqliteDatabase().rawQuery("SELECT min_x, max_x, min_y, max_y FROM gpkg_contents"
+                + " WHERE table_name = ?", new String[]{POINTS_TABLE_NAME})) {
+            if (cursor.moveToFirst() && !cursor.isNull(0) && (cursor.getDouble(0) <= cursor.getDouble(1))) {
+                pointsExtent.include(cursor.getDouble(0), cursor.getDouble(2));
+                pointsExtent.include(cursor.getDouble(1), cursor.getDouble(3));
+                pointsExtent.markPersisted();
+            }
+        }
+
+        prepareWrites();
+    }
+
+    /**
+     * Sets up the codec, compiled statements and transaction batching used to write to the open
+     * recording.
+     */
+    private void prepareWrites() {
+        if (dataDumpEncoding == DataDumpCodec.Encoding.DEFLATE) {
+            dataDumpCodec = new DataDumpCodec();
+        }
+
+        satMapStatement = getSqliteDatabase().compileStatement("INSERT INTO " + SAT_MAP_TABLE_NAME
+                + " (" + UserMappingTable.COLUMN_BASE_ID + ", " + UserMappingTable.COLUMN_RELATED_ID + ")"
+                + " SELECT ?, " + ID_COLUMN + " FROM " + SAT_TABLE_NAME + " WHERE " + ID_COLUMN + " BETWEEN ? AND ?");
+        aligner = new EpochFixAligner(ALIGNER_CAPACITY, fixMatchToleranceMs * 1_000_000L, this::writeSatelliteMappings);
+        compileMeasurementStatements();
+        if (measurementLayout == MeasurementLayout.COLUMNAR) {
+            compileColumnarStatements();
+        }
+        if (hasColumns(getSqliteDatabase(), MOTION_TABLE_NAME, MOTION_INSERT_COLUMNS)) {
+            motionInsertStatement = getSqliteDatabase().compileStatement(buildInsertSql(MOTION_TABLE_NAME, MOTION_INSERT_COLUMNS));
+        } else {
+            Log.w(TAG, "Recording has no motion table; motion data will not be written to it");
+        }
+
+        batcher.attach(getSqliteDatabase());
+    }
+
+    /**
+     * Switches the open database to write-ahead logging, so a commit appends to the WAL file
+     * instead of writing and syncing a rollback journal and the database pages.
+     */
+    private void configureJournal() {
+        SQLiteDatabase db = getSqliteDatabase();
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(TAG, "Unable to enable write-ahead logging; using the rollback journal");
+        }
+
+        db.execSQL("PRAGMA synchronous = " + synchronousMode.name());
+        runPragma("wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+    }
+
+    /**
+     * Runs a pragma that returns a result row, which {@link SQLiteDatabase#execSQL(String)} does
+     * not allow.
+     *
+     * @param pragma The pragma, without the PRAGMA keyword
+     */
+    private void runPragma(String pragma) {
+        try (Cursor cursor = getSqliteDatabase().rawQuery("PRAGMA " + pragma, null)) {
+            cursor.moveToFirst();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Error running PRAGMA " + pragma, e);
+        }
+    }
+
+    /**
+     * Commits the current transaction window and copies as much of the WAL into the database as
+     * can be done without waiting on readers. The recorder calls this while it is idle, so the WAL
+     * does not grow without bound and SQLite's own checkpoint does not run during a commit. Must be
+     * called from the thread that performs the writes.
+     */
+    public synchronized void checkpoint() {
+        if (gpsGpkg == null) return;
+
+        batcher.commit();
+        runPragma("wal_checkpoint(PASSIVE)");
+    }
+
+    /**
+     * Builds the RTree index on the observation points and the attribute indexes in a single
+     * transaction. This runs on a closed recording as part of finalizing it, so the recorder and
+     * the caller closing the recording do not wait on it.
+     *
+     * @param context          The context
+     * @param filePath         The file path of the recording, which must not be open for writing
+     * @param attributeIndexes A comma separated list of {@code table.column} entries
+     */
+    static void buildIndexes(Context context, String filePath, String attributeIndexes) {
+        GeoPackage gpkg = GeoPackageFactory.getManager(context).openExternal(filePath, true);
+        if (gpkg == null) {
+            throw new GeoPackageException("Can't open GeoPackage database " + filePath);
+        }
+
+        try {
+            SQLiteDatabase db = gpkg.getConnection().getDb().getDb();
+            db.beginTransaction();
+            try {
+                try {
+                    FeatureDao pointsDao = gpkg.getFeatureDao(POINTS_TABLE_NAME);
+                    RTreeIndexExtension rTree = new RTreeIndexExtension(gpkg);
+                    if (!rTree.has(pointsDao.getTable())) {
+                        rTree.create(pointsDao.getTable());
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Error building the RTree index on " + POINTS_TABLE_NAME, e);
+                }
+
+                for (String index : attributeIndexes.split(",")) {
+                    String[] parts = index.trim().split("\\.");
+                    if ((parts.length != 2) || !isIdentifier(parts[0]) || !isIdentifier(parts[1])) {
+                        if (!index.trim().isEmpty()) {
+                            Log.w(TAG, "Ignoring invalid attribute index: " + index);
+                        }
+                        continue;
+                    }
+
+                    try {
+                        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + parts[0] + "_" + parts[1]
+                                + " ON " + parts[0] + " (" + parts[1] + ")");
+                    } catch (SQLiteException e) {
+                        Log.e(TAG, "Error building attribute index " + index, e);
+                    }
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            gpkg.close();
+        }
+    }
+
+    /**
+     * @return True if the name can be used as a table or column name without quoting.
+     */
+    private static boolean isIdentifier(String name) {
+        return name.matches("[A-Za-z_][A-Za-z0-9_]*");
+    }
+
+    /**
+     * Creates an empty GeoPackage with all of the tables used for recording, and closes it.
+     *
+     * @param databaseName the name of the template database
+     * @throws SQLException If an error occurs creating the database SRS or tables
+     */
+    synchronized void buildTemplate(String databaseName) throws SQLException {
+        createTables(databaseName);
+        writeSessionInfo(SESSION_DATA_DUMP_ENCODING, dataDumpEncoding.name());
+        gpsGpkg.close();
+        gpsGpkg = null;
+    }
+
+    /**
+     * Creates and opens the GeoPackage database with the provided name and creates all of the
+     * tables used for recording.
+     *
+     * @param databaseName the name of the database
+     * @throws SQLException If an error occurs creating the database SRS or tables
+     */
+    private void createTables(String databaseName) throws SQLException {
         if (!gpkgManager.exists(databaseName)) {
             gpkgManager.create(databaseName);
         }
@@ -220,13 +658,233 @@ public class GeoPackageDatabase {
         createObservationTable(srs);
         String bbSql = "UPDATE gpkg_contents SET min_x = 180.0, max_x = -180.0, min_y = 90.0, max_y = -90.0 WHERE table_name = '" + POINTS_TABLE_NAME + "';";
         gpsGpkg.execSQL(bbSql);
+        featDao = gpsGpkg.getFeatureDao(POINTS_TABLE_NAME);
 
         Contents contents = new Contents();
         RelatedTablesExtension rte = new RelatedTablesExtension(gpsGpkg);
 
         createSatelliteTable(contents, rte, srs);
         createClockTable(contents, rte, srs);
-//        createMotionTable(contents, rte, srs);
+        createSatEpochTable();
+        createMotionTable();
+
+        createSessionTable();
+    }
+
+    /**
+     * Initializes the DAOs for a GeoPackage database whose tables already exist, such as one
+     * copied from a template.
+     */
+    private void loadTables() {
+        featDao = gpsGpkg.getFeatureDao(POINTS_TABLE_NAME);
+
+        RelatedTablesExtension rte = new RelatedTablesExtension(gpsGpkg);
+        satDao = rte.getSimpleAttributesDao(SAT_TABLE_NAME);
+        clkDao = rte.getSimpleAttributesDao(CLOCK_TABLE_NAME);
+        clkMapDao = rte.getMappingDao(CLOCK_MAP_TABLE_NAME);
+    }
+
+    /**
+     * Creates the session table, a simple key/value table that records how this session was
+     * recorded (for example, the data dump encoding) so readers can interpret the file.
+     */
+    private void createSessionTable() {
+        gpsGpkg.execSQL("CREATE TABLE IF NOT EXISTS " + SESSION_TABLE_NAME + " ("
+                + SESSION_KEY + " TEXT PRIMARY KEY NOT NULL, "
+                + SESSION_VALUE + " TEXT)");
+    }
+
+    /**
+     * Stores a value in the session table, replacing any previous value for the key.
+     *
+     * @param key   The key
+     * @param value The value
+     */
+    private void writeSessionInfo(String key, String value) {
+        getSqliteDatabase().execSQL("INSERT OR REPLACE INTO " + SESSION_TABLE_NAME
+                + " (" + SESSION_KEY + ", " + SESSION_VALUE + ") VALUES (?, ?)", new Object[]{key, value});
+    }
+
+    /**
+     * Reads a value from the session table of a recording.
+     *
+     * @param db  The recording's database
+     * @param key The key
+     * @return The value, or null if the recording has no value for the key
+     */
+    public static String readSessionInfo(SQLiteDatabase db, String key) {
+        try (Cursor cursor = db.rawQuery("SELECT " + SESSION_VALUE + " FROM " + SESSION_TABLE_NAME
+                + " WHERE " + SESSION_KEY + " = ?", new String[]{key})) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } catch (SQLiteException e) {
+            // Recordings made before the session table was added do not have one
+            return null;
+        }
+    }
+
+    /**
+     * @return The column type for the data dump columns, based on the data dump encoding.
+     */
+    private GeoPackageDataType getDataDumpType() {
+        return (dataDumpEncoding == DataDumpCodec.Encoding.DEFLATE) ? BLOB : TEXT;
+    }
+
+    /**
+     * @return True if a data dump should be built and stored for each row.
+     */
+    private boolean isDataDumpEnabled() {
+        return dataDumpEncoding != DataDumpCodec.Encoding.NONE;
+    }
+
+    /**
+     * Converts the data dump text to the value stored in the data dump column.
+     *
+     * @param text The data dump text
+     * @return The text or the compressed text, depending on the data dump encoding
+     */
+    private Object encodeDataDump(String text) {
+        return (dataDumpCodec != null) ? dataDumpCodec.encode(text) : text;
+    }
+
+    /**
+     * Compiles the inserts used to write measurement epochs, if the sat_data and rcvr_clock tables
+     * have all of the columns the statements bind. Otherwise the statements are left null and
+     * epochs are written through the DAOs.
+     */
+    private void compileMeasurementStatements() {
+        SQLiteDatabase db = getSqliteDatabase();
+        if (!hasColumns(db, SAT_TABLE_NAME, SAT_INSERT_COLUMNS) || !hasColumns(db, CLOCK_TABLE_NAME, CLK_INSERT_COLUMNS)) {
+            Log.w(TAG, "Measurement tables do not match the expected schema; writing through the DAOs");
+            return;
+        }
+
+        satInsertStatement = db.compileStatement(buildInsertSql(SAT_TABLE_NAME, SAT_INSERT_COLUMNS));
+        clkInsertStatement = db.compileStatement(buildInsertSql(CLOCK_TABLE_NAME, CLK_INSERT_COLUMNS));
+        clkMapStatement = db.compileStatement("INSERT INTO " + CLOCK_MAP_TABLE_NAME
+                + " (" + UserMappingTable.COLUMN_BASE_ID + ", " + UserMappingTable.COLUMN_RELATED_ID + ")"
+                + " SELECT " + ID_COLUMN + ", ? FROM " + SAT_TABLE_NAME + " WHERE " + ID_COLUMN + " BETWEEN ? AND ?");
+    }
+
+    /**
+     * Compiles the statements used to write epochs to the sat_epoch table. The clock rows are still
+     * written to rcvr_clock, so the columnar layout is only used when the measurement statements
+     * could be compiled too; otherwise the recording falls back to the row layout.
+     */
+    private void compileColumnarStatements() {
+        SQLiteDatabase db = getSqliteDatabase();
+        if ((clkInsertStatement == null) || !hasColumns(db, SAT_EPOCH_TABLE_NAME, SAT_EPOCH_INSERT_COLUMNS)) {
+            Log.w(TAG, "Recording has no usable " + SAT_EPOCH_TABLE_NAME + " table; using the row measurement layout");
+            measurementLayout = MeasurementLayout.ROWS;
+            writeSessionInfo(SESSION_MEASUREMENT_LAYOUT, measurementLayout.name());
+            return;
+        }
+
+        satEpochInsertStatement = db.compileStatement(buildInsertSql(SAT_EPOCH_TABLE_NAME, SAT_EPOCH_INSERT_COLUMNS));
+        satEpochPointStatement = db.compileStatement("UPDATE " + SAT_EPOCH_TABLE_NAME + " SET " + SAT_EPOCH_POINT_ID
+                + " = ? WHERE " + ID_COLUMN + " BETWEEN ? AND ?");
+    }
+
+    /**
+     * @param db      The database
+     * @param table   The table name
+     * @param columns The column names
+     * @return True if the table has all of the columns.
+     */
+    private static boolean hasColumns(SQLiteDatabase db, String table, String[] columns) {
+        HashSet<String> existing = new HashSet<>();
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getString(nameIndex));
+            }
+        }
+
+        return existing.containsAll(Arrays.asList(columns));
+    }
+
+    /**
+     * @return An insert statement for the columns, with one parameter per column in the same order.
+     */
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append((i == 0) ? "" : ", ").append(columns[i]);
+        }
+
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append((i == 0) ? "?" : ", ?");
+        }
+
+        return sql.append(')').toString();
+    }
+
+    /**
+     * Binds a data dump column value, which is either text or a compressed BLOB.
+     */
+    private static void bindDataDump(SQLiteStatement statement, int index, Object value) {
+        if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, (String) value);
+        }
+    }
+
+    /**
+     * Maps all of the sat_data rows of an epoch to a fix with a single statement. The rows of an
+     * epoch are inserted one after another on the same thread, so their IDs form a contiguous range.
+     * In the columnar layout the epoch is a single sat_epoch row, which has its fix set instead.
+     *
+     * @param pointId       The row ID of the fix in the points table
+     * @param firstSatRowId The first sat_data row ID of the epoch
+     * @param lastSatRowId  The last sat_data row ID of the epoch
+     */
+    private void writeSatelliteMappings(long pointId, long firstSatRowId, long lastSatRowId) {
+        if (satEpochPointStatement != null) {
+            satEpochPointStatement.bindLong(1, pointId);
+            satEpochPointStatement.bindLong(2, firstSatRowId);
+            satEpochPointStatement.bindLong(3, lastSatRowId);
+            satEpochPointStatement.executeUpdateDelete();
+            return;
+        }
+
+        satMapStatement.bindLong(1, pointId);
+        satMapStatement.bindLong(2, firstSatRowId);
+        satMapStatement.bindLong(3, lastSatRowId);
+        satMapStatement.executeInsert();
+    }
+
+    /**
+     * Writes the state kept in memory during a transaction window as part of the window's
+     * transaction. Called at each transaction checkpoint.
+     */
+    private void writeCheckpoint() {
+        persistExtent();
+
+        if (replayPositionDirty) {
+            writeSessionInfo(SESSION_REPLAY_POSITION, Long.toString(replayPosition));
+            replayPositionDirty = false;
+        }
+    }
+
+    /**
+     * Writes the in-memory extent of the observation points to {@code gpkg_contents} if it has
+     * changed since it was last written.
+     */
+    private void persistExtent() {
+        if ((gpsGpkg == null) || !pointsExtent.isDirty()) return;
+
+        getSqliteDatabase().execSQL("UPDATE gpkg_contents SET min_x = ?, max_x = ?, min_y = ?, max_y = ? WHERE table_name = ?",
+                new Object[]{pointsExtent.getMinLongitude(), pointsExtent.getMaxLongitude(),
+                        pointsExtent.getMinLatitude(), pointsExtent.getMaxLatitude(), POINTS_TABLE_NAME});
+        pointsExtent.markPersisted();
+    }
+
+    /**
+     * @return The underlying SQLite database of the open GeoPackage.
+     */
+    private SQLiteDatabase getSqliteDatabase() {
+        return gpsGpkg.getConnection().getDb().getDb();
     }
 
     /**
@@ -297,7 +955,7 @@ public class GeoPackageDatabase {
         tblcols.add(FeatureColumn.createColumn(colNum++, GPS_OBS_PT_BEARING, REAL, false, null));
         tblcols.add(FeatureColumn.createColumn(colNum++, GPS_OBS_PT_BEARING_ACCURACY, REAL, false, null));
 
-        tblcols.add(FeatureColumn.createColumn(colNum, DATA_DUMP, TEXT, false, null));
+        tblcols.add(FeatureColumn.createColumn(colNum, DATA_DUMP, getDataDumpType(), false, null));
 
         FeatureTable table = new FeatureTable(POINTS_TABLE_NAME, tblcols);
         gpsGpkg.createFeatureTable(table);
@@ -317,8 +975,8 @@ public class GeoPackageDatabase {
     }
 
     /**
-     * Creates the satellite data table and initializes the {@link #satDao} and {@link #satMapDao}
-     * fields, which can be used to add data to the table.
+     * Creates the satellite data table and initializes the {@link #satDao} field, which can be used
+     * to add data to the table. Rows are mapped to the points table by {@link #writeSatelliteMappings}.
      *
      * @param contents The database contents
      * @param rte      The related tables extension
@@ -364,15 +1022,14 @@ public class GeoPackageDatabase {
         tblcols.add(UserCustomColumn.createColumn(colNum++, SAT_DATA_AZIMUTH_DEG, REAL, true, null));
         tblcols.add(UserCustomColumn.createColumn(colNum++, SAT_DATA_ELEVATION_DEG, REAL, true, null));
 
-        tblcols.add(UserCustomColumn.createColumn(colNum, DATA_DUMP, TEXT, true, null));
+        tblcols.add(UserCustomColumn.createColumn(colNum, DATA_DUMP, getDataDumpType(), true, null));
 
         SimpleAttributesTable table = SimpleAttributesTable.create(SAT_TABLE_NAME, tblcols);
 
         UserMappingTable mappingTable = UserMappingTable.create(SAT_MAP_TABLE_NAME);
 
-        ExtendedRelation satExtRel = rte.addSimpleAttributesRelationship(POINTS_TABLE_NAME, table, mappingTable);
+        rte.addSimpleAttributesRelationship(POINTS_TABLE_NAME, table, mappingTable);
         satDao = rte.getSimpleAttributesDao(SAT_TABLE_NAME);
-        satMapDao = rte.getMappingDao(satExtRel);
     }
 
     /**
@@ -412,7 +1069,7 @@ public class GeoPackageDatabase {
         tblcols.add(UserCustomColumn.createColumn(colNum++, CLK_LEAP_SECOND, INTEGER, true, null));
         tblcols.add(UserCustomColumn.createColumn(colNum++, CLK_HAS_LEAP_SECOND, INTEGER, true, null));
 
-        tblcols.add(UserCustomColumn.createColumn(colNum, DATA_DUMP, TEXT, true, null));
+        tblcols.add(UserCustomColumn.createColumn(colNum, DATA_DUMP, getDataDumpType(), true, null));
 
         SimpleAttributesTable table = SimpleAttributesTable.create(CLOCK_TABLE_NAME, tblcols);
 
@@ -424,138 +1081,319 @@ public class GeoPackageDatabase {
     }
 
     /**
-     * Creates the motion table and initializes the {@link #sensorDao} field, which can be used to
-     * add data to the table.
+     * Creates the motion table, which holds the decimated motion sensor rows. It is registered as
+     * a plain attributes table rather than a simple attributes table, so the sensors a device does
+     * not have can be left NULL. The time column is on the elapsed realtime clock, like the
+     * ElapsedRealtimeNanos column of the observation points, so the two can be joined by time.
+     */
+    private void createMotionTable() {
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append(MOTION_TABLE_NAME).append(" (")
+                .append(ID_COLUMN).append(" INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, ")
+                .append(SENSOR_TIME).append(" INTEGER NOT NULL");
+        for (int i = 1; i < MOTION_INSERT_COLUMNS.length; i++) {
+            sql.append(", ").append(MOTION_INSERT_COLUMNS[i]).append(" REAL");
+        }
+        gpsGpkg.execSQL(sql.append(')').toString());
+        registerAttributesTable(MOTION_TABLE_NAME);
+    }
+
+    /**
+     * Creates the sat_epoch table used by the {@link MeasurementLayout#COLUMNAR} layout. It is
+     * created in every recording, so the same template serves both layouts.
+     */
+    private void createSatEpochTable() {
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append(SAT_EPOCH_TABLE_NAME).append(" (")
+                .append(ID_COLUMN).append(" INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, ")
+                .append(SAT_EPOCH_POINT_ID).append(" INTEGER");
+        for (int i = 0; i < SAT_EPOCH_INSERT_COLUMNS.length; i++) {
+            String column = SAT_EPOCH_INSERT_COLUMNS[i];
+            if (column.equals(SAT_EPOCH_CLOCK_ID)) {
+                sql.append(", ").append(column).append(" INTEGER");
+            } else {
+                sql.append(", ").append(column).append((i < SAT_EPOCH_SCALAR_COLUMNS) ? " INTEGER NOT NULL" : " BLOB NOT NULL");
+            }
+        }
+        gpsGpkg.execSQL(sql.append(')').toString());
+        registerAttributesTable(SAT_EPOCH_TABLE_NAME);
+    }
+
+    /**
+     * Registers a table created with plain SQL in gpkg_contents as an attributes table, so
+     * GeoPackage clients list it.
      *
-     * @param contents The database contents
-     * @param rte      The related tables extension
-     * @param srs      The spatial reference system
+     * @param table The table name
      */
-    private void createMotionTable(Contents contents, RelatedTablesExtension rte, SpatialReferenceSystem srs) {
-        // TODO KMB: This is a stub; if this table is still needed, this method will need to be
-        //  fleshed out similar to the clock or sat data table.
-        sensorDao = rte.getUserDao(MOTION_TABLE_NAME);
+    private void registerAttributesTable(String table) {
+        gpsGpkg.execSQL("INSERT INTO gpkg_contents (table_name, data_type, identifier, description) VALUES ('"
+                + table + "', '" + ContentsDataType.ATTRIBUTES.getName() + "', '" + table + "', '" + table + "')");
     }
 
     /**
-     * Writes the provide GNSS measurement event data to the database. Note: this method and any
-     * other method that accesses the GeoPackage is synchronized to ensure the database doesn't get
-     * closed while it is being updated.
+     * Writes the provided GNSS measurement epoch to the database. Note: this method and any other
+     * method that accesses the GeoPackage is synchronized to ensure the database doesn't get closed
+     * while it is being updated.
      *
-     * @param event The event providing the GNSS measurement data
+     * @param epoch The snapshot of the GNSS measurement event
      */
-    public synchronized void writeGnssMeasurements(final GnssMeasurementsEvent event) {
+    public synchronized void writeGnssMeasurements(final GnssEpochRecord epoch) {
         try {
-            Collection<GnssMeasurement> gnssMeasurements = event.getMeasurements();
+            batcher.begin();
+
+            if (satEpochInsertStatement != null) {
+                writeGnssMeasurementsColumnar(epoch);
+            } else if (satInsertStatement != null) {
+                writeGnssMeasurementsCompiled(epoch);
+            } else {
+                writeGnssMeasurementsWithDao(epoch);
+            }
 
-            GnssClock clk = event.getClock();
+            batcher.onEpochWritten();
+        } catch (Exception e) {
+            Log.e(TAG, "Error adding GNSS measurements to GeoPackage", e);
+        }
+    }
 
-            SimpleAttributesRow clkRow = clkDao.newRow();
+    /**
+     * Writes the clock of an epoch to rcvr_clock with the compiled insert.
+     *
+     * @param epoch The snapshot of the GNSS measurement event
+     * @return The row ID of the clock row
+     */
+    private long insertClock(final GnssEpochRecord epoch) {
+        SQLiteStatement clk = clkInsertStatement;
+        clk.bindDouble(1, (double) epoch.timeNanos);
+        clk.bindDouble(2, epoch.timeUncertaintyNanos);
+        clk.bindLong(3, epoch.hasTimeUncertaintyNanos ? 1 : 0);
+        clk.bindDouble(4, epoch.biasNanos);
+        clk.bindLong(5, epoch.hasBiasNanos ? 1 : 0);
+        clk.bindLong(6, epoch.fullBiasNanos);
+        clk.bindLong(7, epoch.hasFullBiasNanos ? 1 : 0);
+        clk.bindDouble(8, epoch.biasUncertaintyNanos);
+        clk.bindLong(9, epoch.hasBiasUncertaintyNanos ? 1 : 0);
+        clk.bindDouble(10, epoch.driftNanosPerSecond);
+        clk.bindLong(11, epoch.hasDriftNanosPerSecond ? 1 : 0);
+        clk.bindDouble(12, epoch.driftUncertaintyNanosPerSecond);
+        clk.bindLong(13, epoch.hasDriftUncertaintyNanosPerSecond ? 1 : 0);
+        clk.bindLong(14, epoch.leapSecond);
+        clk.bindLong(15, epoch.hasLeapSecond ? 1 : 0);
+        clk.bindLong(16, epoch.hardwareClockDiscontinuityCount);
+        bindDataDump(clk, 17, isDataDumpEnabled() ? encodeDataDump(epoch.describeClock(dumpBuilder)) : "");
+        return clk.executeInsert();
+    }
 
-            clkRow.setValue(CLK_TIME_NANOS, (double) clk.getTimeNanos());
+    /**
+     * Writes an epoch as a single sat_epoch row, with each measurement field encoded into a BLOB.
+     * The satellite status fields are taken from the latest status, as in the row layout.
+     *
+     * @param epoch The snapshot of the GNSS measurement event
+     */
+    private void writeGnssMeasurementsColumnar(final GnssEpochRecord epoch) {
+        long clockId = insertClock(epoch);
+
+        int count = epoch.count;
+        if (epochSatStateFlags.length < count) {
+            epochSatStateFlags = new int[epoch.capacity()];
+            epochAzimuthDegrees = new float[epoch.capacity()];
+            epochElevationDegrees = new float[epoch.capacity()];
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = satellites.indexOf(SatelliteStateTable.key(epoch.constellationType[i], epoch.svid[i]));
+            int stateFlags = 0;
+            if (satellites.isUsedInFix(slot)) stateFlags |= ColumnarEpochReader.SAT_STATE_IN_FIX;
+            if (satellites.hasEphemeris(slot)) stateFlags |= ColumnarEpochReader.SAT_STATE_HAS_EPHEMERIS;
+            if (satellites.hasAlmanac(slot)) stateFlags |= ColumnarEpochReader.SAT_STATE_HAS_ALMANAC;
+            if (satellites.hasCarrierFrequency(slot)) stateFlags |= ColumnarEpochReader.SAT_STATE_HAS_CARRIER_FREQUENCY;
+            epochSatStateFlags[i] = stateFlags;
+            epochAzimuthDegrees[i] = satellites.getAzimuthDegrees(slot);
+            epochElevationDegrees[i] = satellites.getElevationDegrees(slot);
+        }
 
-            boolean hasTimeUncertaintyNanos = clk.hasTimeUncertaintyNanos();
-            clkRow.setValue(CLK_TIME_UNCERTAINTY_NANOS, hasTimeUncertaintyNanos ? clk.getTimeUncertaintyNanos() : 0d);
-            clkRow.setValue(CLK_HAS_TIME_UNCERTAINTY_NANOS, hasTimeUncertaintyNanos ? 1 : 0);
+        SQLiteStatement row = satEpochInsertStatement;
+        ColumnCodec codec = columnCodec;
+        row.bindLong(1, epoch.captureTimeMillis);
+        row.bindLong(2, epoch.elapsedRealtimeNanos);
+        row.bindLong(3, clockId);
+        row.bindLong(4, count);
+        row.bindBlob(5, codec.encodeInts(epoch.svid, count, true));
+        row.bindBlob(6, codec.encodeInts(epoch.constellationType, count, false));
+        row.bindBlob(7, codec.encodeInts(epoch.flags, count, false));
+        row.bindBlob(8, codec.encodeInts(epochSatStateFlags, count, false));
+        row.bindBlob(9, codec.encodeDoubles(epoch.cn0DbHz, count));
+        row.bindBlob(10, codec.encodeDoubles(epoch.automaticGainControlLevelDb, count));
+        row.bindBlob(11, codec.encodeInts(epoch.state, count, false));
+        row.bindBlob(12, codec.encodeLongs(epoch.receivedSvTimeNanos, count, true));
+        row.bindBlob(13, codec.encodeLongs(epoch.receivedSvTimeUncertaintyNanos, count, false));
+        row.bindBlob(14, codec.encodeDoubles(epoch.timeOffsetNanos, count));
+        row.bindBlob(15, codec.encodeInts(epoch.multipathIndicator, count, false));
+        row.bindBlob(16, codec.encodeFloats(epoch.carrierFrequencyHz, count));
+        row.bindBlob(17, codec.encodeDoubles(epoch.accumulatedDeltaRangeMeters, count));
+        row.bindBlob(18, codec.encodeDoubles(epoch.accumulatedDeltaRangeUncertaintyMeters, count));
+        row.bindBlob(19, codec.encodeInts(epoch.accumulatedDeltaRangeState, count, false));
+        row.bindBlob(20, codec.encodeDoubles(epoch.pseudorangeRateMetersPerSecond, count));
+        row.bindBlob(21, codec.encodeDoubles(epoch.pseudorangeRateUncertaintyMetersPerSecond, count));
+        row.bindBlob(22, codec.encodeFloats(epochAzimuthDegrees, count));
+        row.bindBlob(23, codec.encodeFloats(epochElevationDegrees, count));
+        long epochRowId = row.executeInsert();
+
+        aligner.addEpoch(epoch.elapsedRealtimeNanos, epochRowId, epochRowId);
+    }
 
-            boolean hasBiasNanos = clk.hasBiasNanos();
-            clkRow.setValue(CLK_BIAS_NANOS, hasBiasNanos ? clk.getBiasNanos() : 0d);
-            clkRow.setValue(CLK_HAS_BIAS_NANOS, hasBiasNanos ? 1 : 0);
+    /**
+     * Writes an epoch with the compiled inserts, binding each column by index so no row objects
+     * are created per measurement.
+     *
+     * @param epoch The snapshot of the GNSS measurement event
+     */
+    private void writeGnssMeasurementsCompiled(final GnssEpochRecord epoch) {
+        long clockId = insertClock(epoch);
+
+        long firstSatRowId = -1L;
+        long lastSatRowId = -1L;
+        SQLiteStatement sat = satInsertStatement;
+        for (int i = 0; i < epoch.count; i++) {
+            int slot = satellites.indexOf(SatelliteStateTable.key(epoch.constellationType[i], epoch.svid[i]));
+
+            sat.bindLong(1, epoch.captureTimeMillis);
+            sat.bindLong(2, epoch.svid[i]);
+            sat.bindString(3, GpsTestUtil.getGnssConstellationType(epoch.constellationType[i]).name());
+            sat.bindDouble(4, epoch.cn0DbHz[i]);
+            sat.bindDouble(5, epoch.automaticGainControlLevelDb[i]);
+            sat.bindLong(6, epoch.hasAgc(i) ? 1 : 0);
+            sat.bindLong(7, satellites.isUsedInFix(slot) ? 1 : 0);
+            sat.bindLong(8, epoch.state[i]);
+            sat.bindString(9, " ");
+            sat.bindDouble(10, (double) epoch.receivedSvTimeNanos[i]);
+            sat.bindDouble(11, (double) epoch.receivedSvTimeUncertaintyNanos[i]);
+            sat.bindDouble(12, epoch.timeOffsetNanos[i]);
+            sat.bindLong(13, epoch.multipathIndicator[i]);
+            // As in the DAO path, the carrier frequency flag comes from the satellite status
+            sat.bindLong(14, satellites.hasCarrierFrequency(slot) ? 1 : 0);
+            sat.bindDouble(15, epoch.hasCarrierFrequency(i) ? (double) epoch.carrierFrequencyHz[i] : 0d);
+            sat.bindDouble(16, epoch.accumulatedDeltaRangeMeters[i]);
+            sat.bindDouble(17, epoch.accumulatedDeltaRangeUncertaintyMeters[i]);
+            sat.bindLong(18, epoch.accumulatedDeltaRangeState[i]);
+            sat.bindString(19, " ");
+            sat.bindDouble(20, epoch.pseudorangeRateMetersPerSecond[i]);
+            sat.bindDouble(21, epoch.pseudorangeRateUncertaintyMetersPerSecond[i]);
+            sat.bindLong(22, satellites.hasEphemeris(slot) ? 1 : 0);
+            sat.bindLong(23, satellites.hasAlmanac(slot) ? 1 : 0);
+            sat.bindDouble(24, satellites.getAzimuthDegrees(slot));
+            sat.bindDouble(25, satellites.getElevationDegrees(slot));
+            bindDataDump(sat, 26, isDataDumpEnabled() ? encodeDataDump(epoch.describeMeasurement(i, dumpBuilder)) : "");
+
+            long satRowId = sat.executeInsert();
+            if (firstSatRowId < 0L) {
+                firstSatRowId = satRowId;
+            }
+            lastSatRowId = satRowId;
+        }
 
-            boolean hasFullBiasNanos = clk.hasFullBiasNanos();
-            clkRow.setValue(CLK_FULL_BIAS_NANOS, hasFullBiasNanos ? clk.getFullBiasNanos() : 0L);
-            clkRow.setValue(CLK_HAS_FULL_BIAS_NANOS, hasFullBiasNanos ? 1 : 0);
+        if (firstSatRowId >= 0L) {
+            clkMapStatement.bindLong(1, clockId);
+            clkMapStatement.bindLong(2, firstSatRowId);
+            clkMapStatement.bindLong(3, lastSatRowId);
+            clkMapStatement.executeInsert();
 
-            boolean hasBiasUncertaintyNanos = clk.hasBiasUncertaintyNanos();
-            clkRow.setValue(CLK_BIAS_UNCERTAINTY_NANOS, hasBiasUncertaintyNanos ? clk.getBiasUncertaintyNanos() : 0d);
-            clkRow.setValue(CLK_HAS_BIAS_UNCERTAINTY_NANOS, hasBiasUncertaintyNanos ? 1 : 0);
+            aligner.addEpoch(epoch.elapsedRealtimeNanos, firstSatRowId, lastSatRowId);
+        }
+    }
 
-            boolean hasDriftNanosPerSecond = clk.hasDriftNanosPerSecond();
-            clkRow.setValue(CLK_DRIFT_NANOS_PER_SEC, hasDriftNanosPerSecond ? clk.getDriftNanosPerSecond() : 0d);
-            clkRow.setValue(CLK_HAS_DRIFT_NANOS_PER_SEC, hasDriftNanosPerSecond ? 1 : 0);
+    /**
+     * Writes an epoch through the DAOs, for tables that do not match the compiled inserts.
+     *
+     * @param epoch The snapshot of the GNSS measurement event
+     */
+    private void writeGnssMeasurementsWithDao(final GnssEpochRecord epoch) throws SQLException {
+        SimpleAttributesRow clkRow = clkDao.newRow();
 
-            boolean hasDriftUncertaintyNanosPerSecond = clk.hasDriftUncertaintyNanosPerSecond();
-            clkRow.setValue(CLK_DRIFT_UNCERTAINTY_NPS, hasDriftUncertaintyNanosPerSecond ? clk.getDriftUncertaintyNanosPerSecond() : 0d);
-            clkRow.setValue(CLK_HAS_DRIFT_UNCERTAINTY_NPS, hasDriftUncertaintyNanosPerSecond ? 1 : 0);
+        clkRow.setValue(CLK_TIME_NANOS, (double) epoch.timeNanos);
 
-            boolean hasLeapSecond = clk.hasLeapSecond();
-            clkRow.setValue(CLK_LEAP_SECOND, hasLeapSecond ? clk.getLeapSecond() : 0);
-            clkRow.setValue(CLK_HAS_LEAP_SECOND, hasLeapSecond ? 1 : 0);
+        clkRow.setValue(CLK_TIME_UNCERTAINTY_NANOS, epoch.timeUncertaintyNanos);
+        clkRow.setValue(CLK_HAS_TIME_UNCERTAINTY_NANOS, epoch.hasTimeUncertaintyNanos ? 1 : 0);
 
-            clkRow.setValue(CLK_HW_CLOCK_DISCONTINUITY_COUNT, clk.getHardwareClockDiscontinuityCount());
+        clkRow.setValue(CLK_BIAS_NANOS, epoch.biasNanos);
+        clkRow.setValue(CLK_HAS_BIAS_NANOS, epoch.hasBiasNanos ? 1 : 0);
 
-            clkRow.setValue(DATA_DUMP, clk.toString());
+        clkRow.setValue(CLK_FULL_BIAS_NANOS, epoch.fullBiasNanos);
+        clkRow.setValue(CLK_HAS_FULL_BIAS_NANOS, epoch.hasFullBiasNanos ? 1 : 0);
 
-            clkDao.insert(clkRow);
+        clkRow.setValue(CLK_BIAS_UNCERTAINTY_NANOS, epoch.biasUncertaintyNanos);
+        clkRow.setValue(CLK_HAS_BIAS_UNCERTAINTY_NANOS, epoch.hasBiasUncertaintyNanos ? 1 : 0);
 
-            synchronized (this) {
-                // TODO KMB: I'm not sure I understand why we are clearing the map here...
-                satRowsToMap.clear();
-            }
+        clkRow.setValue(CLK_DRIFT_NANOS_PER_SEC, epoch.driftNanosPerSecond);
+        clkRow.setValue(CLK_HAS_DRIFT_NANOS_PER_SEC, epoch.hasDriftNanosPerSecond ? 1 : 0);
 
-            final long time = System.currentTimeMillis();
-            for (final GnssMeasurement gnssMeasurement : gnssMeasurements) {
-                String constellation = GpsTestUtil.getGnssConstellationType(gnssMeasurement.getConstellationType()).name();
-                String satelliteId = constellation + gnssMeasurement.getSvid();
+        clkRow.setValue(CLK_DRIFT_UNCERTAINTY_NPS, epoch.driftUncertaintyNanosPerSecond);
+        clkRow.setValue(CLK_HAS_DRIFT_UNCERTAINTY_NPS, epoch.hasDriftUncertaintyNanosPerSecond ? 1 : 0);
 
-                SimpleAttributesRow satRow = satDao.newRow();
+        clkRow.setValue(CLK_LEAP_SECOND, epoch.leapSecond);
+        clkRow.setValue(CLK_HAS_LEAP_SECOND, epoch.hasLeapSecond ? 1 : 0);
 
-                satRow.setValue(SAT_DATA_MEASURED_TIME, time);
-                satRow.setValue(SAT_DATA_SVID, gnssMeasurement.getSvid());
-                satRow.setValue(SAT_DATA_CONSTELLATION, constellation);
-                satRow.setValue(SAT_DATA_CN0, gnssMeasurement.getCn0DbHz());
+        clkRow.setValue(CLK_HW_CLOCK_DISCONTINUITY_COUNT, epoch.hardwareClockDiscontinuityCount);
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    boolean hasAutomaticGainControlLevelDb = gnssMeasurement.hasAutomaticGainControlLevelDb();
-                    satRow.setValue(SAT_DATA_AGC, hasAutomaticGainControlLevelDb ? gnssMeasurement.getAutomaticGainControlLevelDb() : 0d);
-                    satRow.setValue(SAT_DATA_HAS_AGC, hasAutomaticGainControlLevelDb ? 1 : 0);
-                } else {
-                    satRow.setValue(SAT_DATA_AGC, 0d);
-                    satRow.setValue(SAT_DATA_HAS_AGC, 0);
-                }
+        clkRow.setValue(DATA_DUMP, isDataDumpEnabled() ? encodeDataDump(epoch.describeClock(dumpBuilder)) : "");
 
-                satRow.setValue(SAT_DATA_SYNC_STATE_FLAGS, gnssMeasurement.getState());
-                satRow.setValue(SAT_DATA_SYNC_STATE_TXT, " ");
-                satRow.setValue(SAT_DATA_SAT_TIME_NANOS, (double) gnssMeasurement.getReceivedSvTimeNanos());
-                satRow.setValue(SAT_DATA_SAT_TIME_1_SIGMA_NANOS, (double) gnssMeasurement.getReceivedSvTimeUncertaintyNanos());
-                satRow.setValue(SAT_DATA_RCVR_TIME_OFFSET_NANOS, gnssMeasurement.getTimeOffsetNanos());
-                satRow.setValue(SAT_DATA_MULTIPATH, gnssMeasurement.getMultipathIndicator());
-
-                boolean hasCarrierFrequencyHz = gnssMeasurement.hasCarrierFrequencyHz();
-                satRow.setValue(SAT_DATA_CARRIER_FREQ_HZ, hasCarrierFrequencyHz ? (double) gnssMeasurement.getCarrierFrequencyHz() : 0d);
-                satRow.setValue(SAT_DATA_HAS_CARRIER_FREQ, hasCarrierFrequencyHz ? 1 : 0);
-
-                satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE, gnssMeasurement.getAccumulatedDeltaRangeMeters());
-                satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA, gnssMeasurement.getAccumulatedDeltaRangeUncertaintyMeters());
-                satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS, gnssMeasurement.getAccumulatedDeltaRangeState());
-                satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT, " ");
-                satRow.setValue(SAT_DATA_PSEUDORANGE_RATE_MPS, gnssMeasurement.getPseudorangeRateMetersPerSecond());
-                satRow.setValue(SAT_DATA_PSEUDORANGE_RATE_1_SIGMA, gnssMeasurement.getPseudorangeRateUncertaintyMetersPerSecond());
-
-                SatelliteStatus satelliteStatus = satStatus.get(satelliteId);
-                boolean satStatusNotNull = satelliteStatus != null;
-                satRow.setValue(SAT_DATA_IN_FIX, satStatusNotNull && satelliteStatus.getUsedInFix() ? 1 : 0);
-                satRow.setValue(SAT_DATA_HAS_ALMANAC, satStatusNotNull && satelliteStatus.getHasAlmanac() ? 1 : 0);
-                satRow.setValue(SAT_DATA_HAS_EPHEMERIS, satStatusNotNull && satelliteStatus.getHasEphemeris() ? 1 : 0);
-                satRow.setValue(SAT_DATA_HAS_CARRIER_FREQ, satStatusNotNull && satelliteStatus.getHasCarrierFrequency() ? 1 : 0);
-
-                satRow.setValue(SAT_DATA_ELEVATION_DEG, satStatusNotNull ? (double) satelliteStatus.getElevationDegrees() : 0.0d);
-                satRow.setValue(SAT_DATA_AZIMUTH_DEG, satStatusNotNull ? (double) satelliteStatus.getAzimuthDegrees() : 0.0d);
-
-                satRow.setValue(DATA_DUMP, gnssMeasurement.toString());
-                satDao.insert(satRow);
-
-                UserMappingRow clkMapRow = clkMapDao.newRow();
-                clkMapRow.setBaseId(satRow.getId());
-                clkMapRow.setRelatedId(clkRow.getId());
-                clkMapDao.create(clkMapRow);
-
-                synchronized (this) {
-                    satRowsToMap.put(satelliteId, satRow.getId());
-                }
+        clkDao.insert(clkRow);
+
+        long firstSatRowId = -1L;
+        long lastSatRowId = -1L;
+        for (int i = 0; i < epoch.count; i++) {
+            String constellation = GpsTestUtil.getGnssConstellationType(epoch.constellationType[i]).name();
+            int satelliteKey = SatelliteStateTable.key(epoch.constellationType[i], epoch.svid[i]);
+
+            SimpleAttributesRow satRow = satDao.newRow();
+
+            satRow.setValue(SAT_DATA_MEASURED_TIME, epoch.captureTimeMillis);
+            satRow.setValue(SAT_DATA_SVID, epoch.svid[i]);
+            satRow.setValue(SAT_DATA_CONSTELLATION, constellation);
+            satRow.setValue(SAT_DATA_CN0, epoch.cn0DbHz[i]);
+
+            satRow.setValue(SAT_DATA_AGC, epoch.automaticGainControlLevelDb[i]);
+            satRow.setValue(SAT_DATA_HAS_AGC, epoch.hasAgc(i) ? 1 : 0);
+
+            satRow.setValue(SAT_DATA_SYNC_STATE_FLAGS, epoch.state[i]);
+            satRow.setValue(SAT_DATA_SYNC_STATE_TXT, " ");
+            satRow.setValue(SAT_DATA_SAT_TIME_NANOS, (double) epoch.receivedSvTimeNanos[i]);
+            satRow.setValue(SAT_DATA_SAT_TIME_1_SIGMA_NANOS, (double) epoch.receivedSvTimeUncertaintyNanos[i]);
+            satRow.setValue(SAT_DATA_RCVR_TIME_OFFSET_NANOS, epoch.timeOffsetNanos[i]);
+            satRow.setValue(SAT_DATA_MULTIPATH, epoch.multipathIndicator[i]);
+
+            boolean hasCarrierFrequencyHz = epoch.hasCarrierFrequency(i);
+            satRow.setValue(SAT_DATA_CARRIER_FREQ_HZ, hasCarrierFrequencyHz ? (double) epoch.carrierFrequencyHz[i] : 0d);
+            satRow.setValue(SAT_DATA_HAS_CARRIER_FREQ, hasCarrierFrequencyHz ? 1 : 0);
+
+            satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE, epoch.accumulatedDeltaRangeMeters[i]);
+            satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA, epoch.accumulatedDeltaRangeUncertaintyMeters[i]);
+            satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS, epoch.accumulatedDeltaRangeState[i]);
+            satRow.setValue(SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT, " ");
+            satRow.setValue(SAT_DATA_PSEUDORANGE_RATE_MPS, epoch.pseudorangeRateMetersPerSecond[i]);
+            satRow.setValue(SAT_DATA_PSEUDORANGE_RATE_1_SIGMA, epoch.pseudorangeRateUncertaintyMetersPerSecond[i]);
+
+            int slot = satellites.indexOf(satelliteKey);
+            satRow.setValue(SAT_DATA_IN_FIX, satellites.isUsedInFix(slot) ? 1 : 0);
+            satRow.setValue(SAT_DATA_HAS_ALMANAC, satellites.hasAlmanac(slot) ? 1 : 0);
+            satRow.setValue(SAT_DATA_HAS_EPHEMERIS, satellites.hasEphemeris(slot) ? 1 : 0);
+            satRow.setValue(SAT_DATA_HAS_CARRIER_FREQ, satellites.hasCarrierFrequency(slot) ? 1 : 0);
+
+            satRow.setValue(SAT_DATA_ELEVATION_DEG, (double) satellites.getElevationDegrees(slot));
+            satRow.setValue(SAT_DATA_AZIMUTH_DEG, (double) satellites.getAzimuthDegrees(slot));
+
+            satRow.setValue(DATA_DUMP, isDataDumpEnabled() ? encodeDataDump(epoch.describeMeasurement(i, dumpBuilder)) : "");
+            satDao.insert(satRow);
+
+            UserMappingRow clkMapRow = clkMapDao.newRow();
+            clkMapRow.setBaseId(satRow.getId());
+            clkMapRow.setRelatedId(clkRow.getId());
+            clkMapDao.create(clkMapRow);
+
+            if (firstSatRowId < 0L) {
+                firstSatRowId = satRow.getId();
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error adding GNSS measurements to GeoPackage", e);
+            lastSatRowId = satRow.getId();
+        }
+
+        if (firstSatRowId >= 0L) {
+            aligner.addEpoch(epoch.elapsedRealtimeNanos, firstSatRowId, lastSatRowId);
         }
     }
 
@@ -568,21 +1406,9 @@ public class GeoPackageDatabase {
      */
     public synchronized void writeLocation(final Location location) {
         try {
-            // TODO KMB: I think we might have this backwards... we should probably create
-            //  this mapping when the GNSS data is received using the current location at
-            //  that point. By doing it this way, it seems like we are actually associating
-            //  the GNSS data with a future location instead of the actual location when the
-            //  GNSS data was observed.
-            HashMap<String, Long> mapRows;
-            synchronized (this) {
-                // Save a copy of the sat data rows map so we can populate the mapping table
-                // with mappings to the appropriate row in the points table
-                mapRows = satRowsToMap;
-                satRowsToMap = new HashMap<>();
-            }
-
             if (gpsGpkg != null) {
-                FeatureDao featDao = gpsGpkg.getFeatureDao(POINTS_TABLE_NAME);
+                batcher.begin();
+
                 FeatureRow featureRow = featDao.newRow();
 
                 Point fix = new Point(location.getLongitude(), location.getLatitude(), location.getAltitude());
@@ -598,6 +1424,7 @@ public class GeoPackageDatabase {
                 featureRow.setValue(GPS_OBS_PT_PROVIDER, location.getProvider());
                 featureRow.setValue(GPS_OBS_PT_GPS_TIME, location.getTime());
                 featureRow.setValue(GPS_OBS_PT_FIX_SAT_COUNT, location.getExtras().getInt("satellites"));
+                featureRow.setValue(GPS_OBS_PT_ELAPSED_REALTIME_NANOS, (double) location.getElapsedRealtimeNanos());
 
                 boolean hasAccuracy = location.hasAccuracy();
                 featureRow.setValue(GPS_OBS_PT_RADIAL_ACCURACY, hasAccuracy ? (double) location.getAccuracy() : 0d);
@@ -633,7 +1460,9 @@ public class GeoPackageDatabase {
                     featureRow.setValue(GPS_OBS_PT_VERTICAL_ACCURACY, 0d);
                 }
 
-                featureRow.setValue(DATA_DUMP, location.toString() + " " + location.describeContents());
+                if (isDataDumpEnabled()) {
+                    featureRow.setValue(DATA_DUMP, encodeDataDump(location.toString() + " " + location.describeContents()));
+                }
 
                 //EW risk values
                 featureRow.setValue(GPS_OBS_PT_PROB_RFI, -1d);
@@ -642,43 +1471,11 @@ public class GeoPackageDatabase {
 
                 featDao.insert(featureRow);
 
-                for (long id : mapRows.values()) {
-                    UserMappingRow satMapRow = satMapDao.newRow();
-                    satMapRow.setBaseId(featureRow.getId());
-                    satMapRow.setRelatedId(id);
-                    satMapDao.create(satMapRow);
-                }
-
-                // update feature table bounding box if necessary
-                boolean dirty = false;
-                BoundingBox bb = featDao.getBoundingBox();
-                if (location.getLatitude() < bb.getMinLatitude()) {
-                    bb.setMinLatitude(location.getLatitude());
-                    dirty = true;
-                }
+                // Map the measurement epochs nearest in time to this fix
+                aligner.addFix(location.getElapsedRealtimeNanos(), featureRow.getId());
 
-                if (location.getLatitude() > bb.getMaxLatitude()) {
-                    bb.setMaxLatitude(location.getLatitude());
-                    dirty = true;
-                }
-
-                if (location.getLongitude() < bb.getMinLongitude()) {
-                    bb.setMinLongitude(location.getLongitude());
-                }
-
-                if (location.getLongitude() > bb.getMaxLongitude()) {
-                    bb.setMaxLongitude(location.getLongitude());
-                }
-
-                if (dirty) {
-                    String bbSql = "UPDATE gpkg_contents SET " +
-                            " min_x = " + bb.getMinLongitude() +
-                            ", max_x = " + bb.getMaxLongitude() +
-                            ", min_y = " + bb.getMinLatitude() +
-                            ", max_y = " + bb.getMaxLatitude() +
-                            " WHERE table_name = '" + POINTS_TABLE_NAME + "';";
-                    gpsGpkg.execSQL(bbSql);
-                }
+                // The extent is written to gpkg_contents when the transaction window is committed
+                pointsExtent.include(location.getLongitude(), location.getLatitude());
             }
         } catch (Exception e) {
             Log.e(TAG, "Error adding location change to GeoPackage", e);
@@ -696,25 +1493,18 @@ public class GeoPackageDatabase {
         try {
             int numSats = status.getSatelliteCount();
 
-            for (int i = 0; i < numSats; ++i) {
+            boolean carrierFrequenciesSupported = GpsTestUtil.isGnssCarrierFrequenciesSupported();
 
-                SatelliteStatus satelliteStatus = new SatelliteStatus(status.getSvid(i),
-                        GpsTestUtil.getGnssConstellationType(status.getConstellationType(i)),
-                        status.getCn0DbHz(i),
+            for (int i = 0; i < numSats; ++i) {
+                boolean hasCarrierFrequency = carrierFrequenciesSupported && status.hasCarrierFrequencyHz(i);
+                satellites.putStatus(SatelliteStateTable.key(status.getConstellationType(i), status.getSvid(i)),
+                        status.usedInFix(i),
                         status.hasAlmanacData(i),
                         status.hasEphemerisData(i),
-                        status.usedInFix(i),
+                        hasCarrierFrequency,
+                        hasCarrierFrequency ? status.getCarrierFrequencyHz(i) : 0f,
                         status.getElevationDegrees(i),
                         status.getAzimuthDegrees(i));
-                if (GpsTestUtil.isGnssCarrierFrequenciesSupported()) {
-                    if (status.hasCarrierFrequencyHz(i)) {
-                        satelliteStatus.setHasCarrierFrequency(true);
-                        satelliteStatus.setCarrierFrequencyHz(status.getCarrierFrequencyHz(i));
-                    }
-                }
-
-                String satelliteId = satelliteStatus.getGnssType().name() + status.getSvid(i);
-                satStatus.put(satelliteId, satelliteStatus);
             }
         } catch (Exception e) {
             Log.e(TAG, "Error adding satellite status change to GeoPackage", e);
@@ -722,115 +1512,175 @@ public class GeoPackageDatabase {
     }
 
     /**
-     * Writes the provided sensor status to the database. Note: this method and any other method
-     * that accesses the GeoPackage is synchronized to ensure the database doesn't get closed while
-     * it is being updated.
+     * Writes a GNSS status read back from a {@link CaptureLog} to the database.
      *
-     * @param event The event providing the sensor status
+     * @param status The GNSS status
      */
-    public synchronized void writeSensorStatus(final SensorEvent event) {
-        try {
-            float[] values = event.values;
-            if ((values != null) && (values.length > 0)) {
-                UserCustomRow sensorRow = sensorDao.newRow();
-
-                for (int i = 1; i < sensorRow.columnCount(); i++) {
-                    sensorRow.setValue(i, 0d);
-                }
+    synchronized void writeSatelliteStatus(final GnssStatusRecord status) {
+        for (int i = 0; i < status.count; ++i) {
+            satellites.putStatus(SatelliteStateTable.key(status.constellationType[i], status.svid[i]),
+                    status.hasFlag(i, GnssStatusRecord.FLAG_USED_IN_FIX),
+                    status.hasFlag(i, GnssStatusRecord.FLAG_HAS_ALMANAC),
+                    status.hasFlag(i, GnssStatusRecord.FLAG_HAS_EPHEMERIS),
+                    status.hasFlag(i, GnssStatusRecord.FLAG_HAS_CARRIER_FREQUENCY),
+                    status.carrierFrequencyHz[i],
+                    status.elevationDegrees[i],
+                    status.azimuthDegrees[i]);
+        }
+    }
 
-                sensorRow.setValue(SENSOR_STATIONARY, 0);
-                sensorRow.setValue(SENSOR_MOTION, 0);
-                sensorRow.setValue("data_dump", "");
-                sensorRow.setValue(SENSOR_TIME, event.timestamp);
-                switch (event.sensor.getType()) {
-                    case Sensor.TYPE_MAGNETIC_FIELD:
-                    case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
-                        if (values.length >= 3) {
-                            sensorRow.setValue(SENSOR_MAG_X, (double) values[0]);
-                            sensorRow.setValue(SENSOR_MAG_Y, (double) values[1]);
-                            sensorRow.setValue(SENSOR_MAG_Z, (double) values[2]);
-                        }
-                        break;
-                    case Sensor.TYPE_ACCELEROMETER:
-                    case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED:
-                        if (values.length >= 3) {
-                            sensorRow.setValue(SENSOR_ACCEL_X, (double) values[0]);
-                            sensorRow.setValue(SENSOR_ACCEL_Y, (double) values[1]);
-                            sensorRow.setValue(SENSOR_ACCEL_Z, (double) values[2]);
-                        }
-                        break;
-                    case Sensor.TYPE_LINEAR_ACCELERATION:
-                        if (values.length >= 3) {
-                            sensorRow.setValue(SENSOR_LINEAR_ACCEL_X, (double) values[0]);
-                            sensorRow.setValue(SENSOR_LINEAR_ACCEL_Y, (double) values[1]);
-                            sensorRow.setValue(SENSOR_LINEAR_ACCEL_Z, (double) values[2]);
-                        }
-                        break;
-                    case Sensor.TYPE_GYROSCOPE:
-                    case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
-                        if (values.length >= 3) {
-                            sensorRow.setValue(SENSOR_GYRO_X, (double) values[0]);
-                            sensorRow.setValue(SENSOR_GYRO_Y, (double) values[1]);
-                            sensorRow.setValue(SENSOR_GYRO_Z, (double) values[2]);
-                        }
-                        break;
-                    case Sensor.TYPE_GRAVITY:
-                        if (values.length >= 3) {
-                            sensorRow.setValue(SENSOR_GRAVITY_X, (double) values[0]);
-                            sensorRow.setValue(SENSOR_GRAVITY_Y, (double) values[1]);
-                            sensorRow.setValue(SENSOR_GRAVITY_Z, (double) values[2]);
-                        }
-                        break;
-                    case Sensor.TYPE_ROTATION_VECTOR:
-                        if (values.length >= 5) {
-                            sensorRow.setValue(SENSOR_ROT_VEC_X, (double) values[0]);
-                            sensorRow.setValue(SENSOR_ROT_VEC_Y, (double) values[1]);
-                            sensorRow.setValue(SENSOR_ROT_VEC_Z, (double) values[2]);
-                            sensorRow.setValue(SENSOR_ROT_VEC_COS, (double) values[3]);
-                            sensorRow.setValue(SENSOR_ROT_VEC_HDG_ACC, (double) values[4]);
-                        }
-                        break;
-                    case Sensor.TYPE_AMBIENT_TEMPERATURE:
-                        sensorRow.setValue(SENSOR_TEMP, (double) values[0]);
-                        break;
-                    case Sensor.TYPE_RELATIVE_HUMIDITY:
-                        sensorRow.setValue(SENSOR_HUMIDITY, (double) values[0]);
-                        break;
-                    case Sensor.TYPE_PROXIMITY:
-                        sensorRow.setValue(SENSOR_PROX, (double) values[0]);
-                        break;
-                    case Sensor.TYPE_PRESSURE:
-                        sensorRow.setValue(SENSOR_BARO, (double) values[0]);
-                        break;
-                    case Sensor.TYPE_LIGHT:
-                        sensorRow.setValue(SENSOR_LUX, (double) values[0]);
-                        break;
-                    case Sensor.TYPE_STATIONARY_DETECT:
-                        sensorRow.setValue(SENSOR_STATIONARY, 1);
-                        break;
-                    case Sensor.TYPE_MOTION_DETECT:
-                        sensorRow.setValue(SENSOR_MOTION, 1);
-                        break;
-                    default:
-                        sensorRow = null;
-                }
+    /**
+     * Writes a batch of decimated motion rows with the compiled insert, as part of the current
+     * transaction window. Does nothing for recordings without a motion table. Note: this method and
+     * any other method that accesses the GeoPackage is synchronized to ensure the database doesn't
+     * get closed while it is being updated.
+     *
+     * @param batch The motion rows
+     */
+    synchronized void writeMotion(final MotionBatch batch) {
+        if ((gpsGpkg == null) || (motionInsertStatement == null)) return;
 
-                if (sensorRow != null) {
-                    sensorDao.insert(sensorRow);
-                }
+        try {
+            batcher.begin();
+
+            for (int row = 0; row < batch.count; row++) {
+                motionInsertStatement.bindLong(1, batch.timeNanos[row]);
+                bindAxes(2, batch.accel, row * 3, 3, batch.hasFlag(row, MotionBatch.FLAG_HAS_ACCEL));
+                bindAxes(5, batch.gyro, row * 3, 3, batch.hasFlag(row, MotionBatch.FLAG_HAS_GYRO));
+                bindAxes(8, batch.mag, row * 3, 3, batch.hasFlag(row, MotionBatch.FLAG_HAS_MAG));
+                bindAxes(11, batch.pressureHpa, row, 1, batch.hasFlag(row, MotionBatch.FLAG_HAS_PRESSURE));
+                motionInsertStatement.executeInsert();
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error adding sensor status change to GeoPackage", e);
+            Log.e(TAG, "Error adding motion rows to GeoPackage", e);
+        }
+    }
+
+    /**
+     * Binds the axes of one sensor in a motion row, or NULLs if the sensor had no value for the row.
+     * Bindings persist between executions, so the NULLs have to be bound explicitly.
+     */
+    private void bindAxes(int index, float[] values, int offset, int axes, boolean hasValue) {
+        for (int axis = 0; axis < axes; axis++) {
+            if (hasValue) {
+                motionInsertStatement.bindDouble(index + axis, values[offset + axis]);
+            } else {
+                motionInsertStatement.bindNull(index + axis);
+            }
+        }
+    }
+
+    /**
+     * Records how many records of a {@link CaptureLog} have been written to this recording. The
+     * position is committed in the same transaction as the rows it covers, so after an
+     * interruption {@link #getReplayPosition()} tells exactly which records still need writing.
+     *
+     * @param records The number of log records written, including the one about to be written
+     */
+    synchronized void setReplayPosition(long records) {
+        replayPosition = records;
+        replayPositionDirty = true;
+    }
+
+    /**
+     * @return The number of {@link CaptureLog} records that have been committed to this recording.
+     */
+    synchronized long getReplayPosition() {
+        if (replayPositionDirty || (gpsGpkg == null)) return replayPosition;
+
+        String value = readSessionInfo(getSqliteDatabase(), SESSION_REPLAY_POSITION);
+        try {
+            replayPosition = (value != null) ? Long.parseLong(value) : 0L;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid replay position: " + value);
+            replayPosition = 0L;
         }
+        return replayPosition;
     }
 
     /**
-     * Shuts down the GeoPackage database. Note: this method and any other method that accesses the
+     * @param listener Notified on the writing thread right after each transaction window is
+     *                 committed, or null
+     */
+    synchronized void setCommitListener(TransactionBatcher.CommitListener listener) {
+        batcher.setCommitListener(listener);
+    }
+
+    /**
+     * Commits the current transaction window if it has been open for longer than the configured
+     * window time. Must be called from the thread that performs the writes.
+     */
+    public synchronized void flushIfWindowElapsed() {
+        if (batcher.isWindowExpired()) {
+            batcher.commit();
+        }
+    }
+
+    /**
+     * Commits the current transaction window, if one is open. Must be called from the thread that
+     * performs the writes.
+     */
+    public synchronized void flush() {
+        batcher.commit();
+    }
+
+    /**
+     * @return The maximum time, in milliseconds, that a transaction window is kept open.
+     */
+    public long getBatchWindowMs() {
+        return batcher.getMaxWindowMs();
+    }
+
+    /**
+     * Shuts down the GeoPackage database, committing any rows that are still pending in the current
+     * transaction window and checkpointing the WAL. The indexes are built later, when the closed
+     * file is finalized (see {@link #buildIndexes(Context, String, String)}). Must be called from the
+     * thread that performs the writes. Note: this method and any other method that accesses the
      * GeoPackage is synchronized to ensure the database doesn't get closed while it is being
      * updated.
      */
     public synchronized void shutdown() {
+        if (dataDumpCodec != null) {
+            dataDumpCodec.close();
+            dataDumpCodec = null;
+        }
+
         if (gpsGpkg != null) {
+            // Epochs still waiting for a later fix are matched against the fixes already seen
+            batcher.begin();
+            try {
+                aligner.flush();
+            } catch (Exception e) {
+                Log.e(TAG, "Error mapping the remaining GNSS measurements", e);
+            }
+            batcher.commit();
+            batcher.attach(null);
+
+            // Fold the WAL into the database and return to the rollback journal, so the closed
+            // file is self-contained and can be opened read-only wherever it is shared.
+            runPragma("wal_checkpoint(TRUNCATE)");
+            try {
+                getSqliteDatabase().disableWriteAheadLogging();
+            } catch (Exception e) {
+                Log.w(TAG, "Error leaving write-ahead logging mode", e);
+            }
+
+            satMapStatement.close();
+            if (satInsertStatement != null) {
+                satInsertStatement.close();
+                clkInsertStatement.close();
+                clkMapStatement.close();
+            }
+            if (satEpochInsertStatement != null) {
+                satEpochInsertStatement.close();
+                satEpochPointStatement.close();
+                satEpochInsertStatement = null;
+                satEpochPointStatement = null;
+            }
+            if (motionInsertStatement != null) {
+                motionInsertStatement.close();
+                motionInsertStatement = null;
+            }
             gpsGpkg.close();
             gpsGpkg = null;
         }
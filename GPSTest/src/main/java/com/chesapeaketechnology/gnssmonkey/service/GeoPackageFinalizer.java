@@ -0,0 +1,149 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Prepares a closed recording for sharing: verifies the file with {@code PRAGMA quick_check},
+ * builds its indexes, refreshes the query planner statistics with {@code ANALYZE}, and compacts
+ * away free pages when they take up a noticeable part of the file. A file that fails the check is
+ * left as it is, so nothing is written into a file that may be corrupt.
+ * <p>
+ * Compaction writes a new file next to the recording and renames it over the recording, so the
+ * recording is valid at every point, even if the app is killed part way through. This can take a
+ * while on a large file, so it is run on the recorder's background file executor.
+ */
+class GeoPackageFinalizer {
+    private static final String TAG = "GPSMonkey.GpkgFinal";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    /**
+     * Files are only compacted when at least this fraction of their pages are free.
+     */
+    private static final double COMPACT_FREE_PAGE_FRACTION = 0.1;
+
+    private GeoPackageFinalizer() {
+    }
+
+    /**
+     * Finalizes a closed recording.
+     *
+     * @param context          The context
+     * @param filePath         The file path of the recording, which must not be open for writing
+     * @param attributeIndexes The attribute indexes to build, as a comma separated list of
+     *                         {@code table.column} entries
+     * @param compact          True to compact the file if it has enough free pages
+     * @return True if the file passed the integrity check.
+     */
+    static boolean finalizeFile(Context context, String filePath, String attributeIndexes, boolean compact) {
+        long start = System.currentTimeMillis();
+        File compacted = new File(filePath + COMPACT_SUFFIX);
+        boolean compactNeeded;
+        boolean vacuumedInto = false;
+
+        try {
+            try (SQLiteDatabase db = SQLiteDatabase.openDatabase(filePath, null, SQLiteDatabase.OPEN_READONLY)) {
+                if (!quickCheck(db)) {
+                    Log.e(TAG, "Integrity check failed for " + filePath + "; leaving it as is");
+                    return false;
+                }
+            }
+
+            // Built before ANALYZE, so the statistics cover the new indexes
+            GeoPackageDatabase.buildIndexes(context, filePath, attributeIndexes);
+
+            try (SQLiteDatabase db = SQLiteDatabase.openDatabase(filePath, null, SQLiteDatabase.OPEN_READWRITE)) {
+                db.execSQL("ANALYZE");
+
+                long pageCount = queryLong(db, "PRAGMA page_count");
+                long freePages = queryLong(db, "PRAGMA freelist_count");
+                compactNeeded = compact && (pageCount > 0) && (freePages >= pageCount * COMPACT_FREE_PAGE_FRACTION);
+
+                if (compactNeeded && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)) {
+                    // VACUUM INTO needs SQLite 3.27, which Android ships from API level 30
+                    deleteQuietly(compacted);
+                    db.execSQL("VACUUM INTO ?", new Object[]{compacted.getAbsolutePath()});
+                    vacuumedInto = true;
+                }
+            }
+
+            if (vacuumedInto) {
+                replace(compacted, new File(filePath));
+            } else if (compactNeeded) {
+                compactByCopy(filePath);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error finalizing " + filePath, e);
+            deleteQuietly(compacted);
+            return false;
+        }
+
+        Log.d(TAG, "Finalized " + filePath + " in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Compacts a recording on devices without {@code VACUUM INTO}, by vacuuming a copy of it and
+     * renaming the copy over the recording.
+     */
+    private static void compactByCopy(String filePath) {
+        File compacted = new File(filePath + COMPACT_SUFFIX);
+        try {
+            copy(new File(filePath), compacted);
+            try (SQLiteDatabase db = SQLiteDatabase.openDatabase(compacted.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE)) {
+                db.execSQL("VACUUM");
+            }
+            deleteQuietly(new File(compacted.getPath() + "-journal"));
+            replace(compacted, new File(filePath));
+        } catch (Exception e) {
+            Log.e(TAG, "Error compacting " + filePath, e);
+            deleteQuietly(compacted);
+            deleteQuietly(new File(compacted.getPath() + "-journal"));
+        }
+    }
+
+    private static boolean quickCheck(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("PRAGMA quick_check", null)) {
+            return cursor.moveToFirst() && "ok".equalsIgnoreCase(cursor.getString(0));
+        }
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+        }
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(destination).getChannel()) {
+            long size = in.size();
+            long position = 0L;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+    }
+
+    private static void replace(File source, File destination) throws IOException {
+        if (!source.renameTo(destination)) {
+            deleteQuietly(source);
+            throw new IOException("Unable to rename " + source + " to " + destination);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,458 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import com.android.gpstest.util.GpsTestUtil;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mil.nga.geopackage.extension.related.UserMappingTable;
+
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLOCK_MAP_TABLE_NAME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLOCK_TABLE_NAME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.DATA_DUMP;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_GPS_TIME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.ID_COLUMN;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.POINTS_TABLE_NAME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_AGC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_AZIMUTH_DEG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CARRIER_FREQ_HZ;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CN0;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CONSTELLATION;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ELEVATION_DEG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_AGC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_ALMANAC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_CARRIER_FREQ;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_EPHEMERIS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_IN_FIX;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_MEASURED_TIME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_MULTIPATH;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_PSEUDORANGE_RATE_1_SIGMA;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_PSEUDORANGE_RATE_MPS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_RCVR_TIME_OFFSET_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SAT_TIME_1_SIGMA_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SAT_TIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SVID;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SYNC_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SYNC_STATE_TXT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_CLOCK_ID;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_ELAPSED_REALTIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_TABLE_NAME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_INSERT_COLUMNS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_TABLE_NAME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SESSION_MEASUREMENT_LAYOUT;
+
+/**
+ * Reads back a closed recording. The database is opened read-only, and each query streams its
+ * rows through a {@link Rows} backed by a cursor, so only the rows of the current cursor window are
+ * held in memory no matter how large the recording or the time window is.
+ * <p>
+ * Time windows are in milliseconds since the epoch and include the start but not the end. The
+ * clocks and measurements are selected by the local_time of their epoch and the fixes by their GPS
+ * time, using the attribute indexes built when the recording was closed (see
+ * {@link GeoPackageDatabase#DEFAULT_ATTRIBUTE_INDEXES}). Recordings made without the indexes can
+ * still be read, only more slowly.
+ * <p>
+ * Measurements are returned as sat_data rows for both measurement layouts; epochs recorded in
+ * the {@link GeoPackageDatabase.MeasurementLayout#COLUMNAR} layout are expanded on the fly.
+ */
+public class GeoPackageReader implements Closeable {
+    private static final String TAG = "GPSMonkey.GpkgReader";
+
+    /**
+     * Matches any constellation or SVID in {@link #queryMeasurements(long, long, int, int)}.
+     */
+    public static final int ANY = -1;
+
+    private final SQLiteDatabase db;
+    private final GeoPackageDatabase.MeasurementLayout measurementLayout;
+
+    private GeoPackageReader(SQLiteDatabase db) {
+        this.db = db;
+
+        GeoPackageDatabase.MeasurementLayout layout = GeoPackageDatabase.MeasurementLayout.ROWS;
+        String value = GeoPackageDatabase.readSessionInfo(db, SESSION_MEASUREMENT_LAYOUT);
+        if (value != null) {
+            try {
+                layout = GeoPackageDatabase.MeasurementLayout.valueOf(value);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown measurement layout: " + value);
+            }
+        }
+        measurementLayout = layout;
+    }
+
+    /**
+     * Opens a recording read-only. The recording must not be open for writing.
+     *
+     * @param file The GeoPackage file
+     * @return The reader, which must be closed
+     * @throws android.database.sqlite.SQLiteException if the file can not be opened
+     */
+    public static GeoPackageReader open(File file) {
+        return new GeoPackageReader(SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS));
+    }
+
+    /**
+     * @return How the measurements of the recording are stored.
+     */
+    public GeoPackageDatabase.MeasurementLayout getMeasurementLayout() {
+        return measurementLayout;
+    }
+
+    /**
+     * Streams the rcvr_clock rows of the epochs in a time window, in recording order. Along with
+     * the rcvr_clock columns, each row has the local_time of its epoch, and in the columnar layout
+     * its elapsed_realtime_nanos as well.
+     *
+     * @param startMillis The start of the window
+     * @param endMillis   The end of the window
+     * @return The rows, which must be closed
+     */
+    public Rows queryClocks(long startMillis, long endMillis) {
+        String[] args = {Long.toString(startMillis), Long.toString(endMillis)};
+        if (measurementLayout == GeoPackageDatabase.MeasurementLayout.COLUMNAR) {
+            return new CursorRows(db.rawQuery("SELECT c.*, e." + SAT_DATA_MEASURED_TIME + ", e." + SAT_EPOCH_ELAPSED_REALTIME_NANOS
+                    + " FROM " + SAT_EPOCH_TABLE_NAME + " e JOIN " + CLOCK_TABLE_NAME + " c ON c." + ID_COLUMN
+                    + " = e." + SAT_EPOCH_CLOCK_ID
+                    + " WHERE e." + SAT_DATA_MEASURED_TIME + " >= ? AND e." + SAT_DATA_MEASURED_TIME + " < ?"
+                    + " ORDER BY e." + SAT_DATA_MEASURED_TIME + ", e." + ID_COLUMN, args));
+        }
+
+        // Every measurement of an epoch maps to the same clock row. The measurements are scanned in
+        // local_time index order, where the rows of an epoch are next to each other, and the
+        // repeats are skipped as they stream past rather than grouped in a temporary b-tree. CROSS
+        // JOIN keeps sat_data as the outer loop, so the clock map and clocks are looked up by key.
+        return new ClockRows(db.rawQuery("SELECT c.*, s." + SAT_DATA_MEASURED_TIME
+                + " FROM " + SAT_TABLE_NAME + " s"
+                + " CROSS JOIN " + CLOCK_MAP_TABLE_NAME + " m ON m." + UserMappingTable.COLUMN_BASE_ID + " = s." + ID_COLUMN
+                + " CROSS JOIN " + CLOCK_TABLE_NAME + " c ON c." + ID_COLUMN + " = m." + UserMappingTable.COLUMN_RELATED_ID
+                + " WHERE s." + SAT_DATA_MEASURED_TIME + " >= ? AND s." + SAT_DATA_MEASURED_TIME + " < ?"
+                + " ORDER BY s." + SAT_DATA_MEASURED_TIME + ", s." + ID_COLUMN, args));
+    }
+
+    /**
+     * Streams the measurements in a time window, in recording order, as sat_data rows.
+     *
+     * @param startMillis       The start of the window
+     * @param endMillis         The end of the window
+     * @param constellationType Only return measurements of this constellation (one of the
+     *                          {@code GnssStatus.CONSTELLATION_} values), or {@link #ANY}
+     * @param svid              Only return measurements of this SVID, or {@link #ANY}
+     * @return The rows, which must be closed
+     */
+    public Rows queryMeasurements(long startMillis, long endMillis, int constellationType, int svid) {
+        if (measurementLayout == GeoPackageDatabase.MeasurementLayout.COLUMNAR) {
+            ColumnarEpochReader reader = new ColumnarEpochReader(db,
+                    SAT_DATA_MEASURED_TIME + " >= ? AND " + SAT_DATA_MEASURED_TIME + " < ?",
+                    new String[]{Long.toString(startMillis), Long.toString(endMillis)});
+            return new ColumnarRows(reader, constellationType, svid);
+        }
+
+        StringBuilder selection = new StringBuilder(SAT_DATA_MEASURED_TIME).append(" >= ? AND ")
+                .append(SAT_DATA_MEASURED_TIME).append(" < ?");
+        List<String> args = new ArrayList<>(Arrays.asList(Long.toString(startMillis), Long.toString(endMillis)));
+        if (constellationType != ANY) {
+            selection.append(" AND ").append(SAT_DATA_CONSTELLATION).append(" = ?");
+            args.add(GpsTestUtil.getGnssConstellationType(constellationType).name());
+        }
+        if (svid != ANY) {
+            selection.append(" AND ").append(SAT_DATA_SVID).append(" = ?");
+            args.add(Integer.toString(svid));
+        }
+
+        // The local_time index holds the rows of each time in ID order, so it satisfies the order
+        return new CursorRows(db.query(SAT_TABLE_NAME, null, selection.toString(), args.toArray(new String[0]),
+                null, null, SAT_DATA_MEASURED_TIME + ", " + ID_COLUMN));
+    }
+
+    /**
+     * Streams the gps_observation_points rows with a GPS time in a time window, in time order.
+     * The geometry column is returned as its GeoPackage BLOB; the Lat, Lon and Alt columns hold
+     * the same position.
+     *
+     * @param startMillis The start of the window
+     * @param endMillis   The end of the window
+     * @return The rows, which must be closed
+     */
+    public Rows queryFixes(long startMillis, long endMillis) {
+        return new CursorRows(db.query(POINTS_TABLE_NAME, null,
+                GPS_OBS_PT_GPS_TIME + " >= ? AND " + GPS_OBS_PT_GPS_TIME + " < ?",
+                new String[]{Long.toString(startMillis), Long.toString(endMillis)},
+                null, null, GPS_OBS_PT_GPS_TIME + ", " + ID_COLUMN));
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+
+    /**
+     * A forward-only view of the rows of a query, with the same accessors as a {@link Cursor}.
+     * Look up the index of each column once, before the first call to {@link #next()}.
+     */
+    public abstract static class Rows implements Closeable {
+        /**
+         * Moves to the next row.
+         *
+         * @return False if there are no more rows.
+         */
+        public abstract boolean next();
+
+        /**
+         * @param column The column name
+         * @return The index of the column, or -1 if the rows do not have the column
+         */
+        public abstract int getColumnIndex(String column);
+
+        /**
+         * @param column The column name
+         * @return The index of the column
+         * @throws IllegalArgumentException if the rows do not have the column
+         */
+        public int getColumnIndexOrThrow(String column) {
+            int index = getColumnIndex(column);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + column + "' does not exist");
+            }
+            return index;
+        }
+
+        public abstract boolean isNull(int column);
+
+        public abstract long getLong(int column);
+
+        public abstract double getDouble(int column);
+
+        public abstract String getString(int column);
+
+        @Override
+        public abstract void close();
+    }
+
+    private static class CursorRows extends Rows {
+        private final Cursor cursor;
+
+        CursorRows(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean next() {
+            return cursor.moveToNext();
+        }
+
+        @Override
+        public int getColumnIndex(String column) {
+            return cursor.getColumnIndex(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return cursor.isNull(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return cursor.getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return cursor.getDouble(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return cursor.getString(column);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Passes on the first of each run of rows with the same clock ID, for a query that returns the
+     * clock row once for every measurement of its epoch.
+     */
+    private static class ClockRows extends CursorRows {
+        private final int idIndex;
+        private long lastId;
+        private boolean hasLast;
+
+        ClockRows(Cursor cursor) {
+            super(cursor);
+            idIndex = cursor.getColumnIndexOrThrow(ID_COLUMN);
+        }
+
+        @Override
+        public boolean next() {
+            while (super.next()) {
+                long id = getLong(idIndex);
+                if (!hasLast || (id != lastId)) {
+                    lastId = id;
+                    hasLast = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Expands columnar epochs into rows with the sat_data columns. The text and data dump columns
+     * are not stored in the columnar layout, so they read as they do for rows recorded without
+     * them. The constellation reads as its name from {@link #getString(int)}, as in sat_data, and
+     * as its {@code GnssStatus.CONSTELLATION_} value from {@link #getLong(int)}.
+     */
+    private static class ColumnarRows extends Rows {
+        private final ColumnarEpochReader reader;
+        private final int constellationType;
+        private final int svid;
+
+        ColumnarRows(ColumnarEpochReader reader, int constellationType, int svid) {
+            this.reader = reader;
+            this.constellationType = constellationType;
+            this.svid = svid;
+        }
+
+        @Override
+        public boolean next() {
+            while (reader.nextRow()) {
+                int i = reader.row;
+                if (((constellationType == ANY) || (reader.constellationType[i] == constellationType))
+                        && ((svid == ANY) || (reader.svid[i] == svid))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int getColumnIndex(String column) {
+            for (int i = 0; i < SAT_INSERT_COLUMNS.length; i++) {
+                if (SAT_INSERT_COLUMNS[i].equals(column)) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return SAT_INSERT_COLUMNS[column].equals(DATA_DUMP);
+        }
+
+        @Override
+        public long getLong(int column) {
+            int i = reader.row;
+            switch (SAT_INSERT_COLUMNS[column]) {
+                case SAT_DATA_MEASURED_TIME:
+                    return reader.localTime;
+                case SAT_DATA_SVID:
+                    return reader.svid[i];
+                case SAT_DATA_CONSTELLATION:
+                    return reader.constellationType[i];
+                case SAT_DATA_HAS_AGC:
+                    return reader.hasMeasurementFlag(i, GnssEpochRecord.FLAG_HAS_AGC) ? 1 : 0;
+                case SAT_DATA_IN_FIX:
+                    return reader.hasSatState(i, ColumnarEpochReader.SAT_STATE_IN_FIX) ? 1 : 0;
+                case SAT_DATA_SYNC_STATE_FLAGS:
+                    return reader.syncStateFlags[i];
+                case SAT_DATA_SAT_TIME_NANOS:
+                    return reader.satTimeNanos[i];
+                case SAT_DATA_SAT_TIME_1_SIGMA_NANOS:
+                    return reader.satTime1SigmaNanos[i];
+                case SAT_DATA_MULTIPATH:
+                    return reader.multipath[i];
+                case SAT_DATA_HAS_CARRIER_FREQ:
+                    return reader.hasSatState(i, ColumnarEpochReader.SAT_STATE_HAS_CARRIER_FREQUENCY) ? 1 : 0;
+                case SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS:
+                    return reader.accumDeltaRangeState[i];
+                case SAT_DATA_HAS_EPHEMERIS:
+                    return reader.hasSatState(i, ColumnarEpochReader.SAT_STATE_HAS_EPHEMERIS) ? 1 : 0;
+                case SAT_DATA_HAS_ALMANAC:
+                    return reader.hasSatState(i, ColumnarEpochReader.SAT_STATE_HAS_ALMANAC) ? 1 : 0;
+                default:
+                    return (long) getDouble(column);
+            }
+        }
+
+        @Override
+        public double getDouble(int column) {
+            int i = reader.row;
+            switch (SAT_INSERT_COLUMNS[column]) {
+                case SAT_DATA_CN0:
+                    return reader.cn0[i];
+                case SAT_DATA_AGC:
+                    return reader.agc[i];
+                case SAT_DATA_RCVR_TIME_OFFSET_NANOS:
+                    return reader.rcvrTimeOffsetNanos[i];
+                case SAT_DATA_CARRIER_FREQ_HZ:
+                    // As written to sat_data, zero when the measurement has no carrier frequency
+                    return reader.hasMeasurementFlag(i, GnssEpochRecord.FLAG_HAS_CARRIER_FREQUENCY)
+                            ? reader.carrierFrequencyHz[i] : 0d;
+                case SAT_DATA_ACCUM_DELTA_RANGE:
+                    return reader.accumDeltaRange[i];
+                case SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA:
+                    return reader.accumDeltaRange1Sigma[i];
+                case SAT_DATA_PSEUDORANGE_RATE_MPS:
+                    return reader.pseudorangeRateMps[i];
+                case SAT_DATA_PSEUDORANGE_RATE_1_SIGMA:
+                    return reader.pseudorangeRate1Sigma[i];
+                case SAT_DATA_AZIMUTH_DEG:
+                    return reader.azimuthDegrees[i];
+                case SAT_DATA_ELEVATION_DEG:
+                    return reader.elevationDegrees[i];
+                case SAT_DATA_SYNC_STATE_TXT:
+                case SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT:
+                case DATA_DUMP:
+                    return 0d;
+                default:
+                    return getLong(column);
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            switch (SAT_INSERT_COLUMNS[column]) {
+                case SAT_DATA_CONSTELLATION:
+                    return GpsTestUtil.getGnssConstellationType(reader.constellationType[reader.row]).name();
+                case SAT_DATA_SYNC_STATE_TXT:
+                case SAT_DATA_ACCUM_DELTA_RANGE_STATE_TXT:
+                    return " ";
+                case SAT_DATA_CN0:
+                case SAT_DATA_AGC:
+                case SAT_DATA_RCVR_TIME_OFFSET_NANOS:
+                case SAT_DATA_CARRIER_FREQ_HZ:
+                case SAT_DATA_ACCUM_DELTA_RANGE:
+                case SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA:
+                case SAT_DATA_PSEUDORANGE_RATE_MPS:
+                case SAT_DATA_PSEUDORANGE_RATE_1_SIGMA:
+                case SAT_DATA_AZIMUTH_DEG:
+                case SAT_DATA_ELEVATION_DEG:
+                    return Double.toString(getDouble(column));
+                case DATA_DUMP:
+                    return null;
+                default:
+                    return Long.toString(getLong(column));
+            }
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+}
@@ -2,24 +2,37 @@ package com.chesapeaketechnology.gnssmonkey.service;
 
 import com.android.gpstest.R;
 import com.android.gpstest.util.Config;
+import com.android.gpstest.util.PreferenceUtils;
 
 import android.content.Context;
-import android.hardware.SensorEvent;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssStatus;
 import android.location.Location;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Consumer;
 
 /**
  * Saves GNSS data into a GeoPackage. This class is responsible for creating new GeoPackage
@@ -27,6 +40,31 @@ import java.util.function.Consumer;
  * longer needed.
  */
 public class GeoPackageRecorder extends HandlerThread {
+    /**
+     * How the recorder stores the data it is provided.
+     */
+    public enum CaptureMode {
+        /**
+         * Data is written to the GeoPackage as it arrives.
+         */
+        DIRECT,
+        /**
+         * Data is appended to a {@link CaptureLog} as it arrives, and written to the GeoPackage in
+         * the background once the file is closed or rolled over.
+         */
+        CAPTURE_LOG
+    }
+
+    /**
+     * Notified once a file the recorder has closed has been finalized and can be shared.
+     */
+    public interface FileReadyListener {
+        /**
+         * @param filePath The file path of the closed file, or null if a file was not closed
+         */
+        void onFileReady(String filePath);
+    }
+
     private static final String TAG = "GPSMonkey.GpkgRec";
     private static final String FILENAME_PREFIX = "GNSS-MONKEY";
 
@@ -34,13 +72,143 @@ public class GeoPackageRecorder extends HandlerThread {
     private static final SimpleDateFormat FILENAME_FRIENDLY_TIME_FORMAT = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
     private static final String JOURNAL_FILE_SUFFIX = "-journal";
 
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int EPOCH_POOL_SIZE = 32;
+    private static final long DEFAULT_QUEUE_MAX_BLOCK_MS = 50L;
+    private static final BoundedEventQueue.OverflowPolicy DEFAULT_QUEUE_OVERFLOW_POLICY =
+            BoundedEventQueue.OverflowPolicy.COALESCE_STATUS;
+
+    private static final long DEFAULT_ROLLOVER_MAX_BYTES = 256L * 1024L * 1024L;
+    private static final long DEFAULT_ROLLOVER_MAX_DURATION_MS = 0L;
+    private static final RolloverPolicy.Boundary DEFAULT_ROLLOVER_BOUNDARY = RolloverPolicy.Boundary.NONE;
+    private static final long ROLLOVER_CHECK_INTERVAL_MS = 1000L;
+    private static final long FILE_EXECUTOR_SHUTDOWN_TIMEOUT_MS = 10_000L;
+    private static final long CHECKPOINT_INTERVAL_MS = 10_000L;
+    private static final String WAL_FILE_SUFFIX = "-wal";
+    private static final String SHM_FILE_SUFFIX = "-shm";
+    private static final CaptureMode DEFAULT_CAPTURE_MODE = CaptureMode.DIRECT;
+    private static final int RECOVERY_LOG_INITIAL_BYTES = 1024 * 1024;
+    private static final long RECOVERY_TIME_BUDGET_MS = 30_000L;
+    private static final long DEFAULT_RETENTION_MAX_BYTES = 0L;
+    private static final long DEFAULT_RETENTION_MAX_AGE_MS = 0L;
+    private static final long DEFAULT_RETENTION_MIN_FREE_BYTES = 256L * 1024L * 1024L;
+    private static final long RETENTION_CHECK_INTERVAL_MS = 60_000L;
+
     private final Context context;
     private Handler handler;
     private final AtomicBoolean isDataRecorded = new AtomicBoolean(false);
     private final AtomicBoolean ready = new AtomicBoolean(false);
-    private GeoPackageDatabase gpkgDatabase;
-    private String gpkgFilePath;
+    private volatile GeoPackageDatabase gpkgDatabase;
+    private volatile String gpkgFilePath;
+    private volatile long gpkgOpenedAtMs;
     private String gpkgFolderPath;
+    private final int batchEpochs;
+    private final long batchWindowMs;
+    private final BoundedEventQueue<Object> eventQueue;
+    private final GnssEpochPool epochPool;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final RolloverPolicy rolloverPolicy;
+    private final boolean compactOnClose;
+    private final CaptureMode captureMode;
+    private volatile CaptureLog captureLog;
+    private final boolean recoveryLogEnabled;
+    private volatile CaptureLog recoveryLog;
+    // The number of records appended to the recovery log of the current database, including the
+    // ones it has been rewound past. Only used on the recorder thread.
+    private long recoveryPosition;
+    private final GnssStatusRecord statusRecord = new GnssStatusRecord();
+    private final StorageRetention storageRetention;
+
+    /**
+     * The file paths of the databases the recorder has open, including ones being opened or closed
+     * in the background, so crash recovery leaves their logs alone.
+     */
+    private final Set<String> activeFilePaths = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Opens upcoming databases and closes finished ones at background priority, so that neither
+     * blocks the recorder thread.
+     */
+    private final ExecutorService fileExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        runnable.run();
+    }, "GeoPkgFiles"));
+
+    // Only accessed on the recorder thread
+    private Future<GeoPackageDatabase> nextDatabase;
+    private String nextFilePath;
+
+    /**
+     * Drains the event queue on the recorder thread. A single instance is reused so that providing
+     * data to the recorder does not allocate a new message for every callback.
+     */
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag before draining so that anything queued while draining schedules
+            // another pass instead of being stranded in the queue.
+            drainScheduled.set(false);
+            drainEventQueue();
+        }
+    };
+
+    /**
+     * Commits the open transaction window of the current database once it has been open for longer
+     * than the batch window, so rows do not sit uncommitted while no new data is arriving.
+     */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            GeoPackageDatabase database = gpkgDatabase;
+            if (database != null) {
+                database.flushIfWindowElapsed();
+            }
+            handler.postDelayed(this, batchWindowMs);
+        }
+    };
+
+    /**
+     * Checkpoints the WAL of the current database when the recorder has nothing waiting to be
+     * written, so checkpoints happen between bursts of data rather than during a commit.
+     */
+    private final Runnable checkpointTask = new Runnable() {
+        @Override
+        public void run() {
+            GeoPackageDatabase database = gpkgDatabase;
+            if ((database != null) && (eventQueue.size() == 0)) {
+                database.checkpoint();
+            }
+            handler.postDelayed(this, CHECKPOINT_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Prunes the save directory in the background, so it is kept within its limits while a long
+     * recording is filling up the device and not only when files are closed.
+     */
+    private final Runnable retentionTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                fileExecutor.execute(storageRetention::prune);
+            } catch (RejectedExecutionException ignore) {
+                // Shutting down
+            }
+            handler.postDelayed(this, RETENTION_CHECK_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Checks the current database against the rollover policy, preparing the next database when a
+     * rollover is close and switching to it once the rollover is due.
+     */
+    private final Runnable rolloverTask = new Runnable() {
+        @Override
+        public void run() {
+            checkRollover();
+            handler.postDelayed(this, ROLLOVER_CHECK_INTERVAL_MS);
+        }
+    };
 
     protected GeoPackageRecorder(Context context) {
         super("GeoPkgRcdr");
@@ -52,45 +220,692 @@ public class GeoPackageRecorder extends HandlerThread {
             Log.e(TAG, "Unable to find GPSMonkey storage location; using Download directory");
             gpkgFolderPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
         }
+
+        batchEpochs = (int) PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_batch_epochs),
+                GeoPackageDatabase.DEFAULT_BATCH_EPOCHS);
+        batchWindowMs = PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_batch_window_ms),
+                GeoPackageDatabase.DEFAULT_BATCH_WINDOW_MS);
+
+        int queueCapacity = (int) PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_queue_capacity),
+                DEFAULT_QUEUE_CAPACITY);
+        long queueMaxBlockMs = PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_queue_max_block_ms),
+                DEFAULT_QUEUE_MAX_BLOCK_MS);
+        BoundedEventQueue.OverflowPolicy overflowPolicy = getEnumPreference(context, R.string.pref_key_gpkg_queue_overflow_policy,
+                BoundedEventQueue.OverflowPolicy.class, DEFAULT_QUEUE_OVERFLOW_POLICY);
+        eventQueue = new BoundedEventQueue<>(queueCapacity, overflowPolicy, queueMaxBlockMs, this::recycle);
+        epochPool = new GnssEpochPool(EPOCH_POOL_SIZE);
+
+        rolloverPolicy = new RolloverPolicy(
+                PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_rollover_max_bytes),
+                        DEFAULT_ROLLOVER_MAX_BYTES),
+                PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_rollover_max_duration_ms),
+                        DEFAULT_ROLLOVER_MAX_DURATION_MS),
+                getEnumPreference(context, R.string.pref_key_gpkg_rollover_boundary,
+                        RolloverPolicy.Boundary.class, DEFAULT_ROLLOVER_BOUNDARY));
+
+        compactOnClose = PreferenceUtils.getBoolean(context.getString(R.string.pref_key_gpkg_compact_on_close), true);
+        captureMode = getEnumPreference(context, R.string.pref_key_gpkg_capture_mode,
+                CaptureMode.class, DEFAULT_CAPTURE_MODE);
+        recoveryLogEnabled = PreferenceUtils.getBoolean(context.getString(R.string.pref_key_gpkg_recovery_log), true);
+
+        storageRetention = new StorageRetention(new File(gpkgFolderPath),
+                PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_retention_max_bytes),
+                        DEFAULT_RETENTION_MAX_BYTES),
+                PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_retention_max_age_ms),
+                        DEFAULT_RETENTION_MAX_AGE_MS),
+                PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_retention_min_free_bytes),
+                        DEFAULT_RETENTION_MIN_FREE_BYTES),
+                activeFilePaths);
+
+        // Build the schema template ahead of time so the first file opens as quickly as later ones
+        final DataDumpCodec.Encoding encoding = getDataDumpEncoding();
+        fileExecutor.execute(() -> GeoPackageTemplate.obtain(context, encoding));
+        fileExecutor.execute(this::indexSaveDirectory);
+    }
+
+    /**
+     * Reads an enum value that is stored in preferences by name.
+     *
+     * @param context      The context used to look up the preference key
+     * @param keyId        The resource ID of the preference key
+     * @param enumType     The enum class
+     * @param defaultValue The value to use if the preference is not set or not recognized
+     * @param <E>          The enum type
+     * @return The enum value from preferences, or the default value
+     */
+    private static <E extends Enum<E>> E getEnumPreference(Context context, int keyId, Class<E> enumType, E defaultValue) {
+        String name = PreferenceUtils.getString(context.getString(keyId));
+        if (name != null) {
+            try {
+                return Enum.valueOf(enumType, name);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown " + enumType.getSimpleName() + " preference value: " + name);
+            }
+        }
+
+        return defaultValue;
     }
 
     @Override
     protected void onLooperPrepared() {
         handler = new Handler();
+        handler.postDelayed(flushTask, batchWindowMs);
+        handler.postDelayed(checkpointTask, CHECKPOINT_INTERVAL_MS);
+        if (rolloverPolicy.isEnabled()) {
+            handler.postDelayed(rolloverTask, ROLLOVER_CHECK_INTERVAL_MS);
+        }
+        if (storageRetention.isEnabled()) {
+            handler.postDelayed(retentionTask, RETENTION_CHECK_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Runs the provided task on the recorder thread and waits for it to complete. The task is
+     * queued behind any data that has already been provided to the recorder. SQLite transactions
+     * are bound to the thread that opened them, so anything that commits or closes the database
+     * has to go through here.
+     *
+     * @param task The task to run
+     */
+    private void runOnRecorderThread(Runnable task) {
+        if ((handler == null) || (Looper.myLooper() == getLooper())) {
+            task.run();
+            return;
+        }
+
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        if (!handler.post(future)) {
+            // The looper has already quit, so there is no longer a recorder thread to run on
+            task.run();
+            return;
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error running task on the recorder thread", e.getCause());
+        }
+    }
+
+    /**
+     * Runs a task on the recorder thread without waiting for it, queued behind any data that has
+     * already been provided to the recorder.
+     *
+     * @param task The task to run
+     */
+    private void postToRecorderThread(Runnable task) {
+        if ((handler == null) || !handler.post(task)) {
+            // The recorder thread has not started or has already quit
+            task.run();
+        }
     }
 
+    /**
+     * Copies the measurement event into a pooled {@link GnssEpochRecord} on the calling thread and
+     * provides the copy to the database, so the framework event is not held across threads.
+     *
+     * @param event The GNSS measurement event
+     */
     public void onGnssMeasurementsReceived(final GnssMeasurementsEvent event) {
-        provideDataToDatabase((e) -> gpkgDatabase.writeGnssMeasurements(e), event);
+        if (!ready.get() || (event == null)) return;
+
+        GnssEpochRecord epoch = epochPool.acquire();
+        epoch.fill(event);
+        provideDataToDatabase(epoch, false);
     }
 
     /**
-     * Performs all the common logic for providing data to the database.
+     * Performs all the common logic for providing data to the database. The data is placed in the
+     * bounded event queue, and the recorder thread is woken up to drain it if it is not already
+     * scheduled to do so. All of the GNSS callbacks are delivered on the main thread, which is the
+     * queue's single producer; while a recording is replayed the {@link ReplaySource} thread takes
+     * its place.
      *
-     * @param consumer The method to call with the data
-     * @param data     The data
-     * @param <T>      The type of the data
+     * @param data       The data
+     * @param coalescing True if the data only matters until newer data of the same kind arrives
      */
-    private <T> void provideDataToDatabase(Consumer<T> consumer, T data) {
+    private void provideDataToDatabase(Object data, boolean coalescing) {
         if (ready.get() && (data != null)) {
-            handler.post(() -> {
-                consumer.accept(data);
-                isDataRecorded.getAndSet(true);
-            });
+            boolean queued = coalescing ? eventQueue.offerCoalescing(data) : eventQueue.offer(data);
+            if (queued && drainScheduled.compareAndSet(false, true)) {
+                handler.post(drainTask);
+            }
+        } else {
+            recycle(data);
+        }
+    }
+
+    /**
+     * Writes all of the events currently in the queue to the database. Must be called on the
+     * recorder thread.
+     */
+    private void drainEventQueue() {
+        Object event;
+        while ((event = eventQueue.poll()) != null) {
+            GeoPackageDatabase database = gpkgDatabase;
+            if (database == null) {
+                recycle(event);
+                continue;
+            }
+
+            CaptureLog log = captureLog;
+            if (log != null) {
+                appendToCaptureLog(log, event);
+                recycle(event);
+                isDataRecorded.set(true);
+                continue;
+            }
+
+            // Log the event before writing it, so it can be recovered if the app is killed before
+            // the transaction window is committed. The position is committed along with the rows,
+            // so recovery skips the events that made it into the database.
+            CaptureLog recovery = recoveryLog;
+            if ((recovery != null) && appendToCaptureLog(recovery, event)) {
+                database.setReplayPosition(++recoveryPosition);
+            }
+
+            if (event instanceof GnssEpochRecord) {
+                database.writeGnssMeasurements((GnssEpochRecord) event);
+                epochPool.release((GnssEpochRecord) event);
+            } else if (event instanceof Location) {
+                database.writeLocation((Location) event);
+            } else if (event instanceof GnssStatus) {
+                database.writeSatelliteStatus((GnssStatus) event);
+            } else if (event instanceof GnssStatusRecord) {
+                database.writeSatelliteStatus((GnssStatusRecord) event);
+            } else if (event instanceof MotionBatch) {
+                database.writeMotion((MotionBatch) event);
+                ((MotionBatch) event).release();
+            }
+
+            isDataRecorded.set(true);
+        }
+    }
+
+    /**
+     * Appends an event to the capture log. Must be called on the recorder thread.
+     *
+     * @param log   The capture log
+     * @param event The event
+     * @return True if the event was appended.
+     */
+    private boolean appendToCaptureLog(CaptureLog log, Object event) {
+        try {
+            if (event instanceof GnssEpochRecord) {
+                log.appendEpoch((GnssEpochRecord) event);
+            } else if (event instanceof Location) {
+                log.appendLocation((Location) event);
+            } else if (event instanceof GnssStatus) {
+                statusRecord.fill((GnssStatus) event);
+                log.appendStatus(statusRecord);
+            } else if (event instanceof GnssStatusRecord) {
+                // Replayed status is kept as the latest status too, so it is carried over by the
+                // recovery log
+                statusRecord.copyFrom((GnssStatusRecord) event);
+                log.appendStatus(statusRecord);
+            } else if (event instanceof MotionBatch) {
+                log.appendMotion((MotionBatch) event);
+            } else {
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to capture log " + log.getFile(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates the capture log for a database if the recorder is in capture log mode.
+     *
+     * @param filePath The file path of the database
+     * @return The capture log, or null if the data should be written to the database directly.
+     */
+    private CaptureLog openCaptureLog(String filePath) {
+        if (captureMode != CaptureMode.CAPTURE_LOG) return null;
+
+        try {
+            return CaptureLog.create(CaptureLog.fileFor(filePath), CaptureLog.DEFAULT_INITIAL_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create a capture log for " + filePath + "; writing to it directly", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the recovery log for a database if the recorder writes to the database directly and
+     * recovery logs are enabled. The log is emptied each time the database commits, so it only
+     * holds the events that would be lost if the app were killed. The database commits the number
+     * of events it has written in the same transaction as their rows, and the log records where it
+     * was last emptied, so if the app is killed after a commit but before the log is emptied,
+     * recovery skips the events that were already committed.
+     *
+     * @param filePath The file path of the database
+     * @param database The database
+     * @return The recovery log, or null if the database is not covered by one.
+     */
+    private CaptureLog openRecoveryLog(String filePath, GeoPackageDatabase database) {
+        if ((captureMode != CaptureMode.DIRECT) || !recoveryLogEnabled) return null;
+
+        final CaptureLog log;
+        try {
+            log = CaptureLog.create(CaptureLog.recoveryFileFor(filePath), RECOVERY_LOG_INITIAL_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create a recovery log for " + filePath, e);
+            return null;
+        }
+
+        recoveryPosition = 0L;
+        database.setCommitListener(() -> {
+            log.rewind(recoveryPosition);
+            // Satellite status is only kept in memory, so the latest status is carried over for
+            // the epochs that follow it
+            if (statusRecord.count > 0) {
+                try {
+                    log.appendStatus(statusRecord);
+                    database.setReplayPosition(++recoveryPosition);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error appending to recovery log " + log.getFile(), e);
+                }
+            }
+        });
+        return log;
+    }
+
+    /**
+     * Closes and deletes a capture or recovery log that is no longer needed.
+     *
+     * @param log The log, or null
+     */
+    private static void deleteLog(CaptureLog log) {
+        if (log == null) return;
+
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing log " + log.getFile(), e);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        log.getFile().delete();
+    }
+
+    /**
+     * Closes a capture log and writes its records to the database it belongs to. The log is
+     * deleted once its records have been committed to the database, which is then closed. Runs on
+     * the file executor.
+     *
+     * @param log      The capture log, which is no longer appended to
+     * @param database The database the log belongs to
+     * @param filePath The file path of the database
+     */
+    private void materializeAndClose(CaptureLog log, GeoPackageDatabase database, String filePath) {
+        File logFile = log.getFile();
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing capture log " + logFile, e);
+        }
+
+        if (CaptureLogMaterializer.materialize(logFile, database)) {
+            //noinspection ResultOfMethodCallIgnored
+            logFile.delete();
+        }
+        closeDatabase(database, filePath);
+    }
+
+    /**
+     * Lists the save directory, which is the only time the recorder does so, to build the storage
+     * retention index and recover interrupted recordings, and then prunes the directory. Runs on
+     * the file executor.
+     */
+    private void indexSaveDirectory() {
+        File[] files = new File(gpkgFolderPath).listFiles();
+        storageRetention.buildIndex(files);
+        if (files != null) {
+            recoverInterruptedFiles(files);
+        }
+        storageRetention.prune();
+    }
+
+    /**
+     * Updates the storage retention index for a file that the recorder has finished with, and
+     * prunes the save directory now that it holds another completed session. Runs on the file
+     * executor.
+     *
+     * @param filePath The file path of the GeoPackage
+     */
+    private void onFileFinished(String filePath) {
+        storageRetention.onSessionClosed(filePath);
+        storageRetention.prune();
+    }
+
+    /**
+     * Replays the capture and recovery logs left behind by recordings that were interrupted, for
+     * example by the app being killed, into their GeoPackages. Each log is replayed in a single
+     * transaction that also records how far the replay got. Runs on the file executor, so it does
+     * not hold up the UI or the recorder thread, and stops once its time budget is used up; the
+     * rest is picked up the next time the recorder starts.
+     *
+     * @param files The files in the save directory
+     */
+    private void recoverInterruptedFiles(File[] files) {
+        long deadlineMs = SystemClock.elapsedRealtime() + RECOVERY_TIME_BUDGET_MS;
+        for (File logFile : files) {
+            String filePath = CaptureLog.getGpkgFilePath(logFile);
+            if ((filePath == null) || activeFilePaths.contains(filePath)) continue;
+
+            if (SystemClock.elapsedRealtime() >= deadlineMs) {
+                Log.w(TAG, "Ran out of time recovering interrupted recordings; continuing next time");
+                return;
+            }
+
+            if (!new File(filePath).isFile()) {
+                Log.w(TAG, "Deleting a log without a GeoPackage: " + logFile);
+                //noinspection ResultOfMethodCallIgnored
+                logFile.delete();
+                continue;
+            }
+
+            GeoPackageDatabase database = new GeoPackageDatabase(context, Integer.MAX_VALUE, Long.MAX_VALUE);
+            activeFilePaths.add(filePath);
+            try {
+                database.resume(filePath);
+            } catch (SQLException | RuntimeException e) {
+                Log.e(TAG, "Unable to open interrupted recording " + filePath, e);
+                activeFilePaths.remove(filePath);
+                continue;
+            }
+
+            boolean complete = CaptureLogMaterializer.materialize(logFile, database, deadlineMs);
+            if (complete) {
+                //noinspection ResultOfMethodCallIgnored
+                logFile.delete();
+            }
+            closeDatabase(database, filePath);
+
+            if (complete) {
+                GeoPackageFinalizer.finalizeFile(context, filePath, database.getAttributeIndexes(), compactOnClose);
+                Log.i(TAG, "Recovered interrupted recording " + filePath);
+            }
+            storageRetention.onSessionClosed(filePath);
         }
     }
 
+    /**
+     * Returns pooled events to their pool once they will no longer be used.
+     *
+     * @param event The event
+     */
+    private void recycle(Object event) {
+        if (event instanceof GnssEpochRecord) {
+            epochPool.release((GnssEpochRecord) event);
+        } else if (event instanceof MotionBatch) {
+            ((MotionBatch) event).release();
+        }
+    }
+
+    /**
+     * Compares the current database against the rollover policy. Must be called on the recorder
+     * thread.
+     */
+    private void checkRollover() {
+        String filePath = gpkgFilePath;
+        if (!ready.get() || (gpkgDatabase == null) || (filePath == null)) return;
+
+        // In capture log mode the database stays empty until it is closed, so the log is measured
+        // instead. Otherwise the most recent pages are in the WAL until the next checkpoint.
+        CaptureLog log = captureLog;
+        long fileBytes = (log != null) ? log.getWrittenBytes()
+                : new File(filePath).length() + new File(filePath + WAL_FILE_SUFFIX).length();
+        long now = System.currentTimeMillis();
+        if (rolloverPolicy.isRolloverDue(fileBytes, gpkgOpenedAtMs, now)) {
+            if (nextDatabase == null) {
+                prepareNextDatabase();
+            } else if (nextDatabase.isDone()) {
+                // The next file is ready, so the switch does not have to wait on anything
+                switchToNextDatabase(false, null);
+            }
+        } else if ((nextDatabase == null) && rolloverPolicy.isPrepareDue(fileBytes, gpkgOpenedAtMs, now)) {
+            prepareNextDatabase();
+        }
+    }
+
+    /**
+     * Starts opening the database that the recorder will switch to at the next rollover. Must be
+     * called on the recorder thread.
+     */
+    private void prepareNextDatabase() {
+        final String filePath = createGpkgFilePath();
+        nextFilePath = filePath;
+        nextDatabase = fileExecutor.submit(() -> createDatabase(filePath));
+        Log.d(TAG, "Preparing next file: " + filePath);
+    }
+
+    /**
+     * @return The prepared next database, waiting for it to finish opening if necessary, or null if
+     * there is not one or it could not be opened.
+     */
+    private GeoPackageDatabase takeNextDatabase() {
+        Future<GeoPackageDatabase> future = nextDatabase;
+        nextDatabase = null;
+        if (future == null) return null;
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error opening the next GeoPackage: " + nextFilePath, e.getCause());
+        }
+
+        return null;
+    }
+
+    /**
+     * Switches the recorder to the next database and closes the current database in the
+     * background. The switch happens between two events on the recorder thread, so no data is
+     * dropped or split across files. Must be called on the recorder thread.
+     *
+     * @param openIfMissing True to open the next database on the calling thread if one was not
+     *                      prepared ahead of time
+     * @param listener      Notified once the old database has been closed and finalized, or null
+     * @return True if the recorder switched databases.
+     */
+    private boolean switchToNextDatabase(boolean openIfMissing, FileReadyListener listener) {
+        final GeoPackageDatabase oldDatabase = gpkgDatabase;
+        final String oldFilePath = gpkgFilePath;
+        if (oldDatabase == null) return false;
+
+        String newFilePath = nextFilePath;
+        GeoPackageDatabase newDatabase = takeNextDatabase();
+        if (newDatabase == null) {
+            if (!openIfMissing) return false;
+
+            newFilePath = createGpkgFilePath();
+            try {
+                newDatabase = createDatabase(newFilePath);
+            } catch (SQLException e) {
+                Log.e(TAG, "Error setting up GeoPackage", e);
+                return false;
+            }
+        }
+
+        // The open transaction window belongs to this thread, so it has to be committed here
+        // before the old database can be closed on another thread.
+        oldDatabase.flush();
+        oldDatabase.setCommitListener(null);
+
+        final CaptureLog oldLog = captureLog;
+        final CaptureLog oldRecoveryLog = recoveryLog;
+        gpkgDatabase = newDatabase;
+        gpkgFilePath = newFilePath;
+        captureLog = openCaptureLog(newFilePath);
+        recoveryLog = openRecoveryLog(newFilePath, newDatabase);
+        gpkgOpenedAtMs = System.currentTimeMillis();
+        Log.i(TAG, "Rolled over from " + oldFilePath + " to " + newFilePath);
+
+        fileExecutor.execute(() -> {
+            if (oldLog != null) {
+                materializeAndClose(oldLog, oldDatabase, oldFilePath);
+            } else {
+                // Everything in the recovery log was committed by the flush above
+                deleteLog(oldRecoveryLog);
+                closeDatabase(oldDatabase, oldFilePath);
+            }
+            GeoPackageFinalizer.finalizeFile(context, oldFilePath, oldDatabase.getAttributeIndexes(), compactOnClose);
+            onFileFinished(oldFilePath);
+            if (listener != null) {
+                listener.onFileReady(oldFilePath);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Closes a database that the recorder is no longer using to write, and deletes its journal file
+     * and any WAL files left empty by the final checkpoint.
+     *
+     * @param database The database
+     * @param filePath The file path of the database
+     */
+    private void closeDatabase(GeoPackageDatabase database, String filePath) {
+        try {
+            database.shutdown();
+        } finally {
+            activeFilePaths.remove(filePath);
+        }
+
+        try {
+            if (filePath != null) {
+                File journalFile = new File(filePath + JOURNAL_FILE_SUFFIX);
+
+                if (journalFile.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    journalFile.delete();
+                }
+
+                // A WAL that still has content holds committed data, so it is never deleted
+                File walFile = new File(filePath + WAL_FILE_SUFFIX);
+                if (walFile.exists() && (walFile.length() == 0L)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    walFile.delete();
+                }
+
+                File shmFile = new File(filePath + SHM_FILE_SUFFIX);
+                if (!walFile.exists() && shmFile.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    shmFile.delete();
+                }
+            }
+        } catch (Exception ignore) {
+        }
+    }
+
+    /**
+     * Closes and deletes a database that was prepared but never switched to. Must be called on the
+     * recorder thread.
+     */
+    private void discardNextDatabase() {
+        if (nextDatabase == null) return;
+
+        final Future<GeoPackageDatabase> future = nextDatabase;
+        final String filePath = nextFilePath;
+        nextDatabase = null;
+        fileExecutor.execute(() -> {
+            try {
+                closeDatabase(future.get(), filePath);
+            } catch (Exception ignore) {
+                activeFilePaths.remove(filePath);
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            new File(filePath).delete();
+        });
+    }
+
     public void onLocationChanged(final Location location) {
-        provideDataToDatabase((l) -> gpkgDatabase.writeLocation(l), location);
+        provideDataToDatabase(location, false);
     }
 
     public void onSatelliteStatusChanged(final GnssStatus status) {
-        provideDataToDatabase((s) -> gpkgDatabase.writeSatelliteStatus(s), status);
+        provideDataToDatabase(status, true);
+    }
+
+    /**
+     * @return An idle epoch record from the recorder's pool, for a {@link ReplaySource} to fill and
+     * provide through {@link #onReplayedEpoch(GnssEpochRecord)}.
+     */
+    GnssEpochRecord acquireEpoch() {
+        return epochPool.acquire();
     }
 
-    // TODO KMB: Need to check with Steve to see if this is still needed. Currently, there is no
-    //  logic to setup the motion table, and nothing is calling this method.
-    public void onSensorUpdated(final SensorEvent event) {
-        provideDataToDatabase((e) -> gpkgDatabase.writeSensorStatus(e), event);
+    /**
+     * Returns an epoch record from {@link #acquireEpoch()} to the pool without writing it.
+     *
+     * @param epoch The epoch record
+     */
+    void releaseEpoch(GnssEpochRecord epoch) {
+        epochPool.release(epoch);
+    }
+
+    /**
+     * Provides an epoch read back from a recording. It is written like a live epoch, keeping the
+     * capture times it was recorded with.
+     *
+     * @param epoch The epoch; returned to the pool once it has been written
+     */
+    void onReplayedEpoch(final GnssEpochRecord epoch) {
+        provideDataToDatabase(epoch, false);
+    }
+
+    /**
+     * Provides a satellite status read back from a recording.
+     *
+     * @param status The status, which must not be modified afterwards
+     */
+    void onReplayedStatus(final GnssStatusRecord status) {
+        provideDataToDatabase(status, true);
+    }
+
+    /**
+     * @return True if the event queue is less than half full, so a replay running as fast as
+     * possible can provide more events without them being dropped.
+     */
+    boolean hasEventQueueRoom() {
+        return eventQueue.size() < eventQueue.capacity() / 2;
+    }
+
+    /**
+     * Provides a batch of decimated motion rows from the {@link SensorSampler}, which delivers them
+     * on the same thread as the GNSS callbacks.
+     *
+     * @param batch The motion rows; released once they have been written
+     */
+    void onMotionBatch(final MotionBatch batch) {
+        provideDataToDatabase(batch, false);
+    }
+
+    /**
+     * @return The number of events accepted by the recorder's event queue.
+     */
+    public long getEnqueuedEventCount() {
+        return eventQueue.getEnqueuedCount();
+    }
+
+    /**
+     * @return The number of events dropped because the recorder's event queue was full.
+     */
+    public long getDroppedEventCount() {
+        return eventQueue.getDroppedCount();
+    }
+
+    /**
+     * @return The largest number of events that have been waiting in the recorder's event queue.
+     */
+    public long getEventQueueHighWaterMark() {
+        return eventQueue.getHighWaterMark();
     }
 
     /**
@@ -112,35 +927,17 @@ public class GeoPackageRecorder extends HandlerThread {
 
         getLooper().quit();
 
-        removeTempFiles();
-
-        return gpkgFilePath;
-    }
-
-    /**
-     * Deletes any temporary journal files in the save directory.
-     */
-    private void removeTempFiles() {
+        // Let files that are still closing in the background finish
+        fileExecutor.shutdown();
         try {
-            if (gpkgFolderPath != null) {
-                File dir = new File(gpkgFolderPath);
-                if (dir.exists()) {
-                    // If the file is not a directory, null will be returned
-                    File[] files = dir.listFiles();
-
-                    if ((files != null) && (files.length > 0)) {
-                        for (File file : files) {
-                            String fileName = file.getName();
-                            if ((fileName != null) && fileName.endsWith(JOURNAL_FILE_SUFFIX)) {
-                                //noinspection ResultOfMethodCallIgnored
-                                file.delete();
-                            }
-                        }
-                    }
-                }
+            if (!fileExecutor.awaitTermination(FILE_EXECUTOR_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for GeoPackage files to close");
             }
-        } catch (Exception ignore) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+
+        return gpkgFilePath;
     }
 
     /**
@@ -169,10 +966,11 @@ public class GeoPackageRecorder extends HandlerThread {
         }
 
         try {
-            gpkgFilePath = gpkgFolderPath + "/" + createGpkgFilename();
-
-            gpkgDatabase = new GeoPackageDatabase(context);
-            gpkgDatabase.start(gpkgFilePath);
+            gpkgFilePath = createGpkgFilePath();
+            gpkgDatabase = createDatabase(gpkgFilePath);
+            captureLog = openCaptureLog(gpkgFilePath);
+            recoveryLog = openRecoveryLog(gpkgFilePath, gpkgDatabase);
+            gpkgOpenedAtMs = System.currentTimeMillis();
             Log.d(TAG, "Opened file: " + gpkgFilePath);
             ready.set(true);
         } catch (SQLException e) {
@@ -181,17 +979,110 @@ public class GeoPackageRecorder extends HandlerThread {
     }
 
     /**
-     * Creates a new GeoPackage filename using the filename prefix and the current time.
+     * Closes the current GeoPackage database and opens a new one to continue recording. Data that
+     * has already been provided to the recorder is written to the old database, and new data is
+     * written to the new one without any being dropped in between. This returns without waiting;
+     * the switch happens on the recorder thread and the old database is closed and finalized on the
+     * file executor.
      *
-     * @return The filename
+     * @param listener Notified on the file executor once the old database is ready to be shared,
+     *                 with null if there was not an open database
      */
-    private String createGpkgFilename() {
-        String timestamp = FILENAME_FRIENDLY_TIME_FORMAT.format(System.currentTimeMillis());
-        return FILENAME_PREFIX + "-" + timestamp + ".gpkg";
+    public void rolloverGeoPackageDatabase(FileReadyListener listener) {
+        if (!ready.get()) {
+            openGeoPackageDatabase();
+            listener.onFileReady(null);
+            return;
+        }
+
+        postToRecorderThread(() -> {
+            drainEventQueue();
+            if (!switchToNextDatabase(true, listener)) {
+                // The new database could not be opened; fall back to closing and reopening
+                String filePath = closeGeoPackageDatabase();
+                openGeoPackageDatabase();
+                runAfterFileOperations(() -> listener.onFileReady(filePath));
+            }
+        });
+    }
+
+    /**
+     * Runs a task once the files that have been closed so far have finished closing and finalizing
+     * in the background, so they can be shared. This returns without waiting.
+     *
+     * @param task The task, which is run on the file executor
+     */
+    public void runAfterFileOperations(Runnable task) {
+        try {
+            // The file executor runs tasks in order, so this runs after every earlier task
+            fileExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, which already waited for the remaining tasks
+            task.run();
+        }
+    }
+
+    /**
+     * Creates and opens a new database with the recorder's current settings.
+     *
+     * @param filePath The file path for the database
+     * @return The opened database
+     * @throws SQLException if the database could not be set up
+     */
+    private GeoPackageDatabase createDatabase(String filePath) throws SQLException {
+        activeFilePaths.add(filePath);
+        try {
+            GeoPackageDatabase database = new GeoPackageDatabase(context, batchEpochs, batchWindowMs);
+            // The data dump encoding is read for each file, so a change takes effect with the next file
+            database.setDataDumpEncoding(getDataDumpEncoding());
+            database.setMeasurementLayout(getEnumPreference(context, R.string.pref_key_gpkg_measurement_layout,
+                    GeoPackageDatabase.MeasurementLayout.class, GeoPackageDatabase.DEFAULT_MEASUREMENT_LAYOUT));
+            String attributeIndexes = PreferenceUtils.getString(context.getString(R.string.pref_key_gpkg_attribute_indexes));
+            database.setAttributeIndexes((attributeIndexes != null) ? attributeIndexes : GeoPackageDatabase.DEFAULT_ATTRIBUTE_INDEXES);
+            database.setSynchronousMode(getEnumPreference(context, R.string.pref_key_gpkg_synchronous,
+                    GeoPackageDatabase.SynchronousMode.class, GeoPackageDatabase.DEFAULT_SYNCHRONOUS_MODE));
+            database.setFixMatchToleranceMs(PreferenceUtils.getLong(context.getString(R.string.pref_key_gpkg_fix_match_tolerance_ms),
+                    GeoPackageDatabase.DEFAULT_FIX_MATCH_TOLERANCE_MS));
+            database.start(filePath);
+            return database;
+        } catch (SQLException | RuntimeException e) {
+            activeFilePaths.remove(filePath);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The data dump encoding to use for new files, from preferences.
+     */
+    private DataDumpCodec.Encoding getDataDumpEncoding() {
+        return getEnumPreference(context, R.string.pref_key_gpkg_data_dump_encoding,
+                DataDumpCodec.Encoding.class, DataDumpCodec.Encoding.TEXT);
+    }
+
+    /**
+     * Creates a new GeoPackage file path in the save directory using the filename prefix and the
+     * current time. A counter is appended if a file with that name already exists, since the next
+     * file can be prepared within the same second that the current one was opened.
+     *
+     * @return The file path
+     */
+    private String createGpkgFilePath() {
+        String timestamp;
+        synchronized (FILENAME_FRIENDLY_TIME_FORMAT) {
+            timestamp = FILENAME_FRIENDLY_TIME_FORMAT.format(System.currentTimeMillis());
+        }
+
+        String filePath = gpkgFolderPath + "/" + FILENAME_PREFIX + "-" + timestamp + ".gpkg";
+        for (int i = 1; new File(filePath).exists(); i++) {
+            filePath = gpkgFolderPath + "/" + FILENAME_PREFIX + "-" + timestamp + "-" + i + ".gpkg";
+        }
+
+        return filePath;
     }
 
     /**
-     * Closes the current GeoPackage database.
+     * Closes the current GeoPackage database. Any data already provided to the recorder is written
+     * and the final transaction window is committed before the database is closed.
      *
      * @return The file path of the database that was closed, or null if there was not an open database.
      */
@@ -202,21 +1093,39 @@ public class GeoPackageRecorder extends HandlerThread {
             return null;
         }
 
-        gpkgDatabase.shutdown();
-        Log.d(TAG, "Closed file: " + gpkgFilePath);
+        runOnRecorderThread(() -> {
+            drainEventQueue();
+            discardNextDatabase();
 
-        // Delete the journal file for the database that was just shutdown.
-        try {
-            if (gpkgFilePath != null) {
-                File journalFile = new File(gpkgFilePath + JOURNAL_FILE_SUFFIX);
+            // Read the database again here, since an automatic rollover may have replaced it
+            GeoPackageDatabase current = gpkgDatabase;
+            CaptureLog log = captureLog;
+            CaptureLog recovery = recoveryLog;
+            gpkgDatabase = null;
+            captureLog = null;
+            recoveryLog = null;
+            if (current == null) return;
 
-                if (journalFile.exists()) {
-                    //noinspection ResultOfMethodCallIgnored
-                    journalFile.delete();
-                }
+            final String filePath = gpkgFilePath;
+            if (log != null) {
+                // Materializing can take a while, so it is done with the close in the background
+                fileExecutor.execute(() -> materializeAndClose(log, current, filePath));
+            } else {
+                closeDatabase(current, filePath);
+                deleteLog(recovery);
             }
-        } catch (Exception ignore) {
-        }
+
+            // Check, index, analyze and compact the closed file off the recorder thread
+            final String attributeIndexes = current.getAttributeIndexes();
+            fileExecutor.execute(() -> {
+                GeoPackageFinalizer.finalizeFile(context, filePath, attributeIndexes, compactOnClose);
+                onFileFinished(filePath);
+            });
+        });
+
+        Log.d(TAG, "Closed file: " + gpkgFilePath + " (events enqueued: " + eventQueue.getEnqueuedCount()
+                + ", dropped: " + eventQueue.getDroppedCount()
+                + ", queue high-water mark: " + eventQueue.getHighWaterMark() + ")");
 
         Toast.makeText(context, context.getString(R.string.data_saved_location) + gpkgFolderPath, Toast.LENGTH_LONG).show();
 
@@ -0,0 +1,338 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import com.android.gpstest.util.GpsTestUtil;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_BIAS_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_BIAS_UNCERTAINTY_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_DRIFT_NANOS_PER_SEC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_DRIFT_UNCERTAINTY_NPS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_FULL_BIAS_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_BIAS_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_BIAS_UNCERTAINTY_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_DRIFT_NANOS_PER_SEC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_DRIFT_UNCERTAINTY_NPS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_FULL_BIAS_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_LEAP_SECOND;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HAS_TIME_UNCERTAINTY_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_HW_CLOCK_DISCONTINUITY_COUNT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_LEAP_SECOND;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_TIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.CLK_TIME_UNCERTAINTY_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_ALT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_BEARING;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_ELAPSED_REALTIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_FIX_SAT_COUNT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_GPS_TIME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_HAS_BEARING;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_HAS_RADIAL_ACCURACY;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_HAS_SPEED;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_HAS_VERTICAL_ACCURACY;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_LAT;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_LNG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_PROVIDER;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_RADIAL_ACCURACY;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_SPEED;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.GPS_OBS_PT_VERTICAL_ACCURACY;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_AGC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_AZIMUTH_DEG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CARRIER_FREQ_HZ;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CN0;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_CONSTELLATION;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_ELEVATION_DEG;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_AGC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_ALMANAC;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_CARRIER_FREQ;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_HAS_EPHEMERIS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_IN_FIX;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_MEASURED_TIME;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_MULTIPATH;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_PSEUDORANGE_RATE_1_SIGMA;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_PSEUDORANGE_RATE_MPS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_RCVR_TIME_OFFSET_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SAT_TIME_1_SIGMA_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SAT_TIME_NANOS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SVID;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_DATA_SYNC_STATE_FLAGS;
+import static com.chesapeaketechnology.gnssmonkey.service.GeoPackageDatabase.SAT_EPOCH_ELAPSED_REALTIME_NANOS;
+
+/**
+ * Reads a GeoPackage recording for a {@link ReplaySource}, merging its epochs and fixes back into
+ * the order they were recorded in. Each epoch is rebuilt from its rcvr_clock row and sat_data rows
+ * (or sat_epoch row, see {@link GeoPackageReader}), and is preceded by a satellite status rebuilt
+ * from the status fields stored with its measurements, so the replayed rows are written with the
+ * same status fields as the recorded ones.
+ * <p>
+ * Fixes are timed by their recorded elapsed realtime, as are epochs in the columnar layout. The row
+ * layout only stores the wall clock time of each epoch, so it is moved onto the elapsed realtime
+ * timeline using the difference between the two clocks at the first fix. The spacing of the epochs
+ * is exact, but they may be offset from the fixes by the difference between the GPS time of that
+ * fix and the wall clock, which is normally well under a second.
+ */
+class GeoPackageReplayReader implements ReplaySource.Reader {
+    private static final Map<String, Integer> CONSTELLATION_TYPES = new HashMap<>();
+
+    static {
+        // GnssStatus.CONSTELLATION_UNKNOWN through CONSTELLATION_IRNSS, by the names stored in sat_data
+        for (int type = 7; type >= 0; type--) {
+            CONSTELLATION_TYPES.put(GpsTestUtil.getGnssConstellationType(type).name(), type);
+        }
+    }
+
+    private final GeoPackageReader gpkg;
+    private final GeoPackageReader.Rows clocks;
+    private final GeoPackageReader.Rows measurements;
+    private final GeoPackageReader.Rows fixes;
+    private final int epochElapsedIndex;
+    private final long wallClockToElapsedNanos;
+
+    // Whether each cursor is on a row that has not been read yet
+    private boolean hasClock;
+    private boolean hasMeasurement;
+    private boolean hasFix;
+
+    // Status fields of the epoch being read, one element per measurement
+    private int[] statusFlags = new int[64];
+    private float[] azimuthDegrees = new float[64];
+    private float[] elevationDegrees = new float[64];
+
+    // The event read by next()
+    private GnssEpochRecord epoch;
+    private GnssStatusRecord status;
+    private Location location;
+    private long elapsedRealtimeNanos;
+
+    /**
+     * @param gpkg The recording, which is closed along with this reader
+     */
+    GeoPackageReplayReader(GeoPackageReader gpkg) {
+        this.gpkg = gpkg;
+
+        long offsetNanos = 0L;
+        try (GeoPackageReader.Rows first = gpkg.queryFixes(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            if (first.next()) {
+                offsetNanos = (long) first.getDouble(first.getColumnIndexOrThrow(GPS_OBS_PT_ELAPSED_REALTIME_NANOS))
+                        - first.getLong(first.getColumnIndexOrThrow(GPS_OBS_PT_GPS_TIME)) * 1_000_000L;
+            }
+        }
+        wallClockToElapsedNanos = offsetNanos;
+
+        clocks = gpkg.queryClocks(Long.MIN_VALUE, Long.MAX_VALUE);
+        measurements = gpkg.queryMeasurements(Long.MIN_VALUE, Long.MAX_VALUE, GeoPackageReader.ANY, GeoPackageReader.ANY);
+        fixes = gpkg.queryFixes(Long.MIN_VALUE, Long.MAX_VALUE);
+        epochElapsedIndex = clocks.getColumnIndex(SAT_EPOCH_ELAPSED_REALTIME_NANOS);
+
+        hasClock = clocks.next();
+        hasMeasurement = measurements.next();
+        hasFix = fixes.next();
+    }
+
+    @Override
+    public boolean next(ReplaySource.Listener listener) {
+        epoch = null;
+        status = null;
+        location = null;
+        if (!hasClock && !hasFix) return false;
+
+        long epochNanos = hasClock ? epochElapsedNanos() : Long.MAX_VALUE;
+        long fixNanos = hasFix ? (long) fixes.getDouble(fixes.getColumnIndexOrThrow(GPS_OBS_PT_ELAPSED_REALTIME_NANOS))
+                : Long.MAX_VALUE;
+        if (hasClock && (epochNanos <= fixNanos)) {
+            readEpoch(listener, epochNanos);
+        } else {
+            readFix(fixNanos);
+        }
+        return true;
+    }
+
+    @Override
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    @Override
+    public void deliver(ReplaySource.Listener listener) {
+        if (epoch != null) {
+            listener.onReplayedStatus(status);
+            listener.onReplayedEpoch(epoch);
+        } else if (location != null) {
+            listener.onReplayedLocation(location);
+        }
+        epoch = null;
+        status = null;
+        location = null;
+    }
+
+    @Override
+    public void discard(ReplaySource.Listener listener) {
+        if (epoch != null) {
+            listener.releaseEpoch(epoch);
+        }
+        epoch = null;
+        status = null;
+        location = null;
+    }
+
+    @Override
+    public void close() {
+        clocks.close();
+        measurements.close();
+        fixes.close();
+        gpkg.close();
+    }
+
+    private long epochElapsedNanos() {
+        if (epochElapsedIndex >= 0) {
+            return clocks.getLong(epochElapsedIndex);
+        }
+        return clocks.getLong(clocks.getColumnIndexOrThrow(SAT_DATA_MEASURED_TIME)) * 1_000_000L + wallClockToElapsedNanos;
+    }
+
+    /**
+     * Reads the epoch at the clock cursor, along with its measurements, which are the measurement
+     * rows with the same local_time.
+     */
+    private void readEpoch(ReplaySource.Listener listener, long epochNanos) {
+        GeoPackageReader.Rows c = clocks;
+        GnssEpochRecord record = listener.acquireEpoch();
+        // Held from the start, so it is discarded if reading the rows fails
+        epoch = record;
+        record.count = 0;
+        record.elapsedRealtimeNanos = epochNanos;
+        record.captureTimeMillis = c.getLong(c.getColumnIndexOrThrow(SAT_DATA_MEASURED_TIME));
+        record.timeNanos = c.getLong(c.getColumnIndexOrThrow(CLK_TIME_NANOS));
+        record.hasTimeUncertaintyNanos = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_TIME_UNCERTAINTY_NANOS)) != 0;
+        record.timeUncertaintyNanos = c.getDouble(c.getColumnIndexOrThrow(CLK_TIME_UNCERTAINTY_NANOS));
+        record.hasBiasNanos = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_BIAS_NANOS)) != 0;
+        record.biasNanos = c.getDouble(c.getColumnIndexOrThrow(CLK_BIAS_NANOS));
+        record.hasFullBiasNanos = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_FULL_BIAS_NANOS)) != 0;
+        record.fullBiasNanos = c.getLong(c.getColumnIndexOrThrow(CLK_FULL_BIAS_NANOS));
+        record.hasBiasUncertaintyNanos = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_BIAS_UNCERTAINTY_NANOS)) != 0;
+        record.biasUncertaintyNanos = c.getDouble(c.getColumnIndexOrThrow(CLK_BIAS_UNCERTAINTY_NANOS));
+        record.hasDriftNanosPerSecond = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_DRIFT_NANOS_PER_SEC)) != 0;
+        record.driftNanosPerSecond = c.getDouble(c.getColumnIndexOrThrow(CLK_DRIFT_NANOS_PER_SEC));
+        record.hasDriftUncertaintyNanosPerSecond = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_DRIFT_UNCERTAINTY_NPS)) != 0;
+        record.driftUncertaintyNanosPerSecond = c.getDouble(c.getColumnIndexOrThrow(CLK_DRIFT_UNCERTAINTY_NPS));
+        record.hasLeapSecond = c.getLong(c.getColumnIndexOrThrow(CLK_HAS_LEAP_SECOND)) != 0;
+        record.leapSecond = (int) c.getLong(c.getColumnIndexOrThrow(CLK_LEAP_SECOND));
+        record.hardwareClockDiscontinuityCount = (int) c.getLong(c.getColumnIndexOrThrow(CLK_HW_CLOCK_DISCONTINUITY_COUNT));
+
+        GeoPackageReader.Rows m = measurements;
+        int localTimeIndex = m.getColumnIndexOrThrow(SAT_DATA_MEASURED_TIME);
+        while (hasMeasurement && (m.getLong(localTimeIndex) <= record.captureTimeMillis)) {
+            if (m.getLong(localTimeIndex) == record.captureTimeMillis) {
+                readMeasurement(record, record.addMeasurement());
+            }
+            hasMeasurement = m.next();
+        }
+
+        status = buildStatus(record);
+        elapsedRealtimeNanos = epochNanos;
+        hasClock = c.next();
+    }
+
+    private void readMeasurement(GnssEpochRecord record, int i) {
+        GeoPackageReader.Rows m = measurements;
+        record.svid[i] = (int) m.getLong(m.getColumnIndexOrThrow(SAT_DATA_SVID));
+        Integer type = CONSTELLATION_TYPES.get(m.getString(m.getColumnIndexOrThrow(SAT_DATA_CONSTELLATION)));
+        record.constellationType[i] = (type != null) ? type : 0;
+        record.state[i] = (int) m.getLong(m.getColumnIndexOrThrow(SAT_DATA_SYNC_STATE_FLAGS));
+        record.multipathIndicator[i] = (int) m.getLong(m.getColumnIndexOrThrow(SAT_DATA_MULTIPATH));
+        record.accumulatedDeltaRangeState[i] = (int) m.getLong(m.getColumnIndexOrThrow(SAT_DATA_ACCUM_DELTA_RANGE_STATE_FLAGS));
+        record.receivedSvTimeNanos[i] = m.getLong(m.getColumnIndexOrThrow(SAT_DATA_SAT_TIME_NANOS));
+        record.receivedSvTimeUncertaintyNanos[i] = m.getLong(m.getColumnIndexOrThrow(SAT_DATA_SAT_TIME_1_SIGMA_NANOS));
+        record.timeOffsetNanos[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_RCVR_TIME_OFFSET_NANOS));
+        record.cn0DbHz[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_CN0));
+        record.pseudorangeRateMetersPerSecond[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_PSEUDORANGE_RATE_MPS));
+        record.pseudorangeRateUncertaintyMetersPerSecond[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_PSEUDORANGE_RATE_1_SIGMA));
+        record.accumulatedDeltaRangeMeters[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_ACCUM_DELTA_RANGE));
+        record.accumulatedDeltaRangeUncertaintyMeters[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_ACCUM_DELTA_RANGE_1_SIGMA));
+        record.automaticGainControlLevelDb[i] = m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_AGC));
+        record.carrierFrequencyHz[i] = (float) m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_CARRIER_FREQ_HZ));
+        // The SNR is not recorded
+        record.snrInDb[i] = 0d;
+
+        int measurementFlags = 0;
+        if (m.getLong(m.getColumnIndexOrThrow(SAT_DATA_HAS_AGC)) != 0) {
+            measurementFlags |= GnssEpochRecord.FLAG_HAS_AGC;
+        }
+        if (record.carrierFrequencyHz[i] != 0f) {
+            measurementFlags |= GnssEpochRecord.FLAG_HAS_CARRIER_FREQUENCY;
+        }
+        record.flags[i] = measurementFlags;
+
+        if (i >= statusFlags.length) {
+            int capacity = statusFlags.length * 2;
+            statusFlags = Arrays.copyOf(statusFlags, capacity);
+            azimuthDegrees = Arrays.copyOf(azimuthDegrees, capacity);
+            elevationDegrees = Arrays.copyOf(elevationDegrees, capacity);
+        }
+
+        int satelliteFlags = 0;
+        if (m.getLong(m.getColumnIndexOrThrow(SAT_DATA_IN_FIX)) != 0) satelliteFlags |= GnssStatusRecord.FLAG_USED_IN_FIX;
+        if (m.getLong(m.getColumnIndexOrThrow(SAT_DATA_HAS_ALMANAC)) != 0) satelliteFlags |= GnssStatusRecord.FLAG_HAS_ALMANAC;
+        if (m.getLong(m.getColumnIndexOrThrow(SAT_DATA_HAS_EPHEMERIS)) != 0) satelliteFlags |= GnssStatusRecord.FLAG_HAS_EPHEMERIS;
+        if (m.getLong(m.getColumnIndexOrThrow(SAT_DATA_HAS_CARRIER_FREQ)) != 0) satelliteFlags |= GnssStatusRecord.FLAG_HAS_CARRIER_FREQUENCY;
+        statusFlags[i] = satelliteFlags;
+        azimuthDegrees[i] = (float) m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_AZIMUTH_DEG));
+        elevationDegrees[i] = (float) m.getDouble(m.getColumnIndexOrThrow(SAT_DATA_ELEVATION_DEG));
+    }
+
+    /**
+     * @return A new status holding the satellites of the epoch, with the status fields read along
+     * with its measurements.
+     */
+    private GnssStatusRecord buildStatus(GnssEpochRecord record) {
+        GnssStatusRecord satellites = new GnssStatusRecord();
+        satellites.ensureCapacity(record.count);
+        for (int i = 0; i < record.count; i++) {
+            satellites.svid[i] = record.svid[i];
+            satellites.constellationType[i] = record.constellationType[i];
+            satellites.flags[i] = statusFlags[i];
+            satellites.carrierFrequencyHz[i] = record.carrierFrequencyHz[i];
+            satellites.azimuthDegrees[i] = azimuthDegrees[i];
+            satellites.elevationDegrees[i] = elevationDegrees[i];
+        }
+        satellites.count = record.count;
+        return satellites;
+    }
+
+    private void readFix(long fixNanos) {
+        GeoPackageReader.Rows f = fixes;
+        Location fix = new Location(f.getString(f.getColumnIndexOrThrow(GPS_OBS_PT_PROVIDER)));
+        fix.setLatitude(f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_LAT)));
+        fix.setLongitude(f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_LNG)));
+        fix.setAltitude(f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_ALT)));
+        fix.setTime(f.getLong(f.getColumnIndexOrThrow(GPS_OBS_PT_GPS_TIME)));
+        fix.setElapsedRealtimeNanos(fixNanos);
+        if (f.getLong(f.getColumnIndexOrThrow(GPS_OBS_PT_HAS_RADIAL_ACCURACY)) != 0) {
+            fix.setAccuracy((float) f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_RADIAL_ACCURACY)));
+        }
+        if (f.getLong(f.getColumnIndexOrThrow(GPS_OBS_PT_HAS_SPEED)) != 0) {
+            fix.setSpeed((float) f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_SPEED)));
+        }
+        if (f.getLong(f.getColumnIndexOrThrow(GPS_OBS_PT_HAS_BEARING)) != 0) {
+            fix.setBearing((float) f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_BEARING)));
+        }
+        if (f.getLong(f.getColumnIndexOrThrow(GPS_OBS_PT_HAS_VERTICAL_ACCURACY)) != 0) {
+            fix.setVerticalAccuracyMeters((float) f.getDouble(f.getColumnIndexOrThrow(GPS_OBS_PT_VERTICAL_ACCURACY)));
+        }
+
+        Bundle extras = new Bundle();
+        extras.putInt("satellites", (int) f.getLong(f.getColumnIndexOrThrow(GPS_OBS_PT_FIX_SAT_COUNT)));
+        fix.setExtras(extras);
+
+        location = fix;
+        elapsedRealtimeNanos = fixNanos;
+        hasFix = f.next();
+    }
+}
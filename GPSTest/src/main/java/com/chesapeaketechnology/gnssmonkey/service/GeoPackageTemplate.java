@@ -0,0 +1,132 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import com.android.gpstest.BuildConfig;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+
+/**
+ * Keeps an empty, fully set up GeoPackage in app storage so that new recordings can be created by
+ * copying it instead of building the schema (SRS, contents, feature table, related tables extension
+ * and mapping tables) from scratch each time.
+ * <p>
+ * A template is built once per app version, {@link GeoPackageDatabase#SCHEMA_VERSION} and data dump
+ * encoding, since each of those can change the schema. Templates from other versions are deleted
+ * when a new one is built.
+ */
+class GeoPackageTemplate {
+    private static final String TAG = "GPSMonkey.GpkgTmpl";
+    private static final String TEMPLATE_DIRECTORY = "gpkg_templates";
+    private static final String TEMPLATE_PREFIX = "template";
+    private static final String TEMPLATE_SUFFIX = ".gpkg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Object LOCK = new Object();
+
+    private GeoPackageTemplate() {
+    }
+
+    /**
+     * Returns the template for the provided encoding, building it first if it does not exist yet.
+     *
+     * @param context  The context used to find app storage and to build the template
+     * @param encoding The data dump encoding the template is built for
+     * @return The template file, or null if the template could not be built
+     */
+    static File obtain(Context context, DataDumpCodec.Encoding encoding) {
+        File directory = new File(context.getFilesDir(), TEMPLATE_DIRECTORY);
+        File template = new File(directory, TEMPLATE_PREFIX + "_v" + BuildConfig.VERSION_CODE
+                + "_s" + GeoPackageDatabase.SCHEMA_VERSION + "_" + encoding.name().toLowerCase() + TEMPLATE_SUFFIX);
+
+        synchronized (LOCK) {
+            if (template.isFile()) return template;
+
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Unable to create the GeoPackage template directory: " + directory);
+                return null;
+            }
+
+            deleteStaleTemplates(directory, encoding);
+
+            // Build under a temporary name so an interrupted build is never mistaken for a template
+            File temp = new File(directory, template.getName() + TEMP_SUFFIX);
+            deleteDatabaseFiles(temp);
+            try {
+                GeoPackageDatabase database = new GeoPackageDatabase(context);
+                database.setDataDumpEncoding(encoding);
+                database.buildTemplate(temp.getAbsolutePath());
+            } catch (SQLException | RuntimeException e) {
+                Log.e(TAG, "Error building GeoPackage template", e);
+                deleteDatabaseFiles(temp);
+                return null;
+            }
+
+            if (!temp.renameTo(template)) {
+                Log.e(TAG, "Unable to move the GeoPackage template into place: " + template);
+                deleteDatabaseFiles(temp);
+                return null;
+            }
+
+            Log.d(TAG, "Built GeoPackage template: " + template);
+            return template;
+        }
+    }
+
+    /**
+     * Copies the template to a new recording file.
+     *
+     * @param template    The template file
+     * @param destination The new recording file, which must not exist yet
+     * @return True if the copy succeeded.
+     */
+    static boolean copy(File template, File destination) {
+        try (FileChannel source = new FileInputStream(template).getChannel();
+             FileChannel target = new FileOutputStream(destination).getChannel()) {
+            long size = source.size();
+            long position = 0L;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error copying GeoPackage template to " + destination, e);
+            //noinspection ResultOfMethodCallIgnored
+            destination.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the templates for the provided encoding that were built by other app or schema versions.
+     */
+    private static void deleteStaleTemplates(File directory, DataDumpCodec.Encoding encoding) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        String encodingSuffix = "_" + encoding.name().toLowerCase() + TEMPLATE_SUFFIX;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.startsWith(TEMPLATE_PREFIX) && fileName.contains(encodingSuffix)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes a database file along with its journal.
+     */
+    private static void deleteDatabaseFiles(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(file.getPath() + "-journal").delete();
+    }
+}
@@ -0,0 +1,38 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of {@link GnssEpochRecord}s shared by the GNSS callback thread, which acquires and fills
+ * records, and the {@link GeoPackageRecorder} thread, which releases them after they are written.
+ * The free list is array backed, so acquiring and releasing records does not allocate.
+ */
+class GnssEpochPool {
+    private final ArrayBlockingQueue<GnssEpochRecord> free;
+
+    /**
+     * @param maxPooled The maximum number of idle records to keep; records released while the pool
+     *                  is full are left for the garbage collector
+     */
+    GnssEpochPool(int maxPooled) {
+        free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    /**
+     * @return An idle record from the pool, or a new record if the pool is empty.
+     */
+    GnssEpochRecord acquire() {
+        GnssEpochRecord record = free.poll();
+        return (record != null) ? record : new GnssEpochRecord();
+    }
+
+    /**
+     * Returns a record to the pool so it can be reused.
+     *
+     * @param record The record, which must no longer be used by the caller
+     */
+    void release(GnssEpochRecord record) {
+        record.clear();
+        free.offer(record);
+    }
+}
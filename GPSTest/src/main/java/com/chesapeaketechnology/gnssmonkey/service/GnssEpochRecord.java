@@ -0,0 +1,428 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.GnssClock;
+import android.location.GnssMeasurement;
+import android.location.GnssMeasurementsEvent;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable snapshot of a {@link GnssMeasurementsEvent}, stored as primitive arrays (one array
+ * per measurement field) plus the clock fields. The GNSS callback thread copies each event into a
+ * record taken from a {@link GnssEpochPool}, so the framework event does not have to be kept alive
+ * and read from the {@link GeoPackageRecorder} thread; the recorder returns the record to the pool
+ * once it has been written.
+ * <p>
+ * The arrays grow when an epoch holds more measurements than they can fit, so a steady stream of
+ * epochs does not allocate once the arrays have reached their working size.
+ */
+public class GnssEpochRecord {
+    private static final int INITIAL_CAPACITY = 64;
+
+    static final int FLAG_HAS_AGC = 1;
+    static final int FLAG_HAS_CARRIER_FREQUENCY = 1 << 1;
+    static final int FLAG_HAS_SNR = 1 << 2;
+
+    // Clock presence bits in the encoded form
+    private static final int CLOCK_HAS_TIME_UNCERTAINTY = 1;
+    private static final int CLOCK_HAS_BIAS = 1 << 1;
+    private static final int CLOCK_HAS_FULL_BIAS = 1 << 2;
+    private static final int CLOCK_HAS_BIAS_UNCERTAINTY = 1 << 3;
+    private static final int CLOCK_HAS_DRIFT = 1 << 4;
+    private static final int CLOCK_HAS_DRIFT_UNCERTAINTY = 1 << 5;
+    private static final int CLOCK_HAS_LEAP_SECOND = 1 << 6;
+
+    /**
+     * The encoded size of the capture times and clock fields, see {@link #writeTo(ByteBuffer)}.
+     */
+    static final int ENCODED_HEADER_BYTES = 8 * 3 + 4 + 8 * 6 + 4 * 3;
+
+    /**
+     * The encoded size of each measurement, see {@link #writeTo(ByteBuffer)}.
+     */
+    static final int ENCODED_MEASUREMENT_BYTES = 4 * 6 + 8 * 10 + 4;
+
+    // Capture times
+    long captureTimeMillis;
+    long elapsedRealtimeNanos;
+
+    // GnssClock fields
+    long timeNanos;
+    boolean hasTimeUncertaintyNanos;
+    double timeUncertaintyNanos;
+    boolean hasBiasNanos;
+    double biasNanos;
+    boolean hasFullBiasNanos;
+    long fullBiasNanos;
+    boolean hasBiasUncertaintyNanos;
+    double biasUncertaintyNanos;
+    boolean hasDriftNanosPerSecond;
+    double driftNanosPerSecond;
+    boolean hasDriftUncertaintyNanosPerSecond;
+    double driftUncertaintyNanosPerSecond;
+    boolean hasLeapSecond;
+    int leapSecond;
+    int hardwareClockDiscontinuityCount;
+
+    // GnssMeasurement fields, one element per measurement
+    int count;
+    int[] svid;
+    int[] constellationType;
+    int[] flags;
+    int[] state;
+    int[] multipathIndicator;
+    int[] accumulatedDeltaRangeState;
+    long[] receivedSvTimeNanos;
+    long[] receivedSvTimeUncertaintyNanos;
+    double[] timeOffsetNanos;
+    double[] cn0DbHz;
+    double[] pseudorangeRateMetersPerSecond;
+    double[] pseudorangeRateUncertaintyMetersPerSecond;
+    double[] accumulatedDeltaRangeMeters;
+    double[] accumulatedDeltaRangeUncertaintyMeters;
+    double[] automaticGainControlLevelDb;
+    double[] snrInDb;
+    float[] carrierFrequencyHz;
+
+    public GnssEpochRecord() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        svid = new int[capacity];
+        constellationType = new int[capacity];
+        flags = new int[capacity];
+        state = new int[capacity];
+        multipathIndicator = new int[capacity];
+        accumulatedDeltaRangeState = new int[capacity];
+        receivedSvTimeNanos = new long[capacity];
+        receivedSvTimeUncertaintyNanos = new long[capacity];
+        timeOffsetNanos = new double[capacity];
+        cn0DbHz = new double[capacity];
+        pseudorangeRateMetersPerSecond = new double[capacity];
+        pseudorangeRateUncertaintyMetersPerSecond = new double[capacity];
+        accumulatedDeltaRangeMeters = new double[capacity];
+        accumulatedDeltaRangeUncertaintyMeters = new double[capacity];
+        automaticGainControlLevelDb = new double[capacity];
+        snrInDb = new double[capacity];
+        carrierFrequencyHz = new float[capacity];
+    }
+
+    /**
+     * Makes sure the measurement arrays can hold at least the provided number of measurements.
+     * Existing contents are not preserved.
+     *
+     * @param capacity The number of measurements
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > svid.length) {
+            allocate(Math.max(capacity, svid.length * 2));
+        }
+    }
+
+    /**
+     * Adds a measurement to the end of the record, growing the arrays while keeping the existing
+     * measurements if they are full. Used to build an epoch when the number of measurements is not
+     * known up front.
+     *
+     * @return The index of the new measurement, for the caller to fill in.
+     */
+    int addMeasurement() {
+        if (count == svid.length) {
+            int capacity = svid.length * 2;
+            svid = Arrays.copyOf(svid, capacity);
+            constellationType = Arrays.copyOf(constellationType, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            state = Arrays.copyOf(state, capacity);
+            multipathIndicator = Arrays.copyOf(multipathIndicator, capacity);
+            accumulatedDeltaRangeState = Arrays.copyOf(accumulatedDeltaRangeState, capacity);
+            receivedSvTimeNanos = Arrays.copyOf(receivedSvTimeNanos, capacity);
+            receivedSvTimeUncertaintyNanos = Arrays.copyOf(receivedSvTimeUncertaintyNanos, capacity);
+            timeOffsetNanos = Arrays.copyOf(timeOffsetNanos, capacity);
+            cn0DbHz = Arrays.copyOf(cn0DbHz, capacity);
+            pseudorangeRateMetersPerSecond = Arrays.copyOf(pseudorangeRateMetersPerSecond, capacity);
+            pseudorangeRateUncertaintyMetersPerSecond = Arrays.copyOf(pseudorangeRateUncertaintyMetersPerSecond, capacity);
+            accumulatedDeltaRangeMeters = Arrays.copyOf(accumulatedDeltaRangeMeters, capacity);
+            accumulatedDeltaRangeUncertaintyMeters = Arrays.copyOf(accumulatedDeltaRangeUncertaintyMeters, capacity);
+            automaticGainControlLevelDb = Arrays.copyOf(automaticGainControlLevelDb, capacity);
+            snrInDb = Arrays.copyOf(snrInDb, capacity);
+            carrierFrequencyHz = Arrays.copyOf(carrierFrequencyHz, capacity);
+        }
+        return count++;
+    }
+
+    /**
+     * @return The number of measurements the record can hold without growing.
+     */
+    int capacity() {
+        return svid.length;
+    }
+
+    /**
+     * Copies the clock and measurements from the provided event into this record, replacing its
+     * previous contents.
+     *
+     * @param event The event to copy
+     */
+    public void fill(GnssMeasurementsEvent event) {
+        captureTimeMillis = System.currentTimeMillis();
+        elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+
+        GnssClock clock = event.getClock();
+        timeNanos = clock.getTimeNanos();
+        hasTimeUncertaintyNanos = clock.hasTimeUncertaintyNanos();
+        timeUncertaintyNanos = hasTimeUncertaintyNanos ? clock.getTimeUncertaintyNanos() : 0d;
+        hasBiasNanos = clock.hasBiasNanos();
+        biasNanos = hasBiasNanos ? clock.getBiasNanos() : 0d;
+        hasFullBiasNanos = clock.hasFullBiasNanos();
+        fullBiasNanos = hasFullBiasNanos ? clock.getFullBiasNanos() : 0L;
+        hasBiasUncertaintyNanos = clock.hasBiasUncertaintyNanos();
+        biasUncertaintyNanos = hasBiasUncertaintyNanos ? clock.getBiasUncertaintyNanos() : 0d;
+        hasDriftNanosPerSecond = clock.hasDriftNanosPerSecond();
+        driftNanosPerSecond = hasDriftNanosPerSecond ? clock.getDriftNanosPerSecond() : 0d;
+        hasDriftUncertaintyNanosPerSecond = clock.hasDriftUncertaintyNanosPerSecond();
+        driftUncertaintyNanosPerSecond = hasDriftUncertaintyNanosPerSecond ? clock.getDriftUncertaintyNanosPerSecond() : 0d;
+        hasLeapSecond = clock.hasLeapSecond();
+        leapSecond = hasLeapSecond ? clock.getLeapSecond() : 0;
+        hardwareClockDiscontinuityCount = clock.getHardwareClockDiscontinuityCount();
+
+        ensureCapacity(event.getMeasurements().size());
+
+        int i = 0;
+        for (GnssMeasurement measurement : event.getMeasurements()) {
+            svid[i] = measurement.getSvid();
+            constellationType[i] = measurement.getConstellationType();
+            state[i] = measurement.getState();
+            multipathIndicator[i] = measurement.getMultipathIndicator();
+            accumulatedDeltaRangeState[i] = measurement.getAccumulatedDeltaRangeState();
+            receivedSvTimeNanos[i] = measurement.getReceivedSvTimeNanos();
+            receivedSvTimeUncertaintyNanos[i] = measurement.getReceivedSvTimeUncertaintyNanos();
+            timeOffsetNanos[i] = measurement.getTimeOffsetNanos();
+            cn0DbHz[i] = measurement.getCn0DbHz();
+            pseudorangeRateMetersPerSecond[i] = measurement.getPseudorangeRateMetersPerSecond();
+            pseudorangeRateUncertaintyMetersPerSecond[i] = measurement.getPseudorangeRateUncertaintyMetersPerSecond();
+            accumulatedDeltaRangeMeters[i] = measurement.getAccumulatedDeltaRangeMeters();
+            accumulatedDeltaRangeUncertaintyMeters[i] = measurement.getAccumulatedDeltaRangeUncertaintyMeters();
+
+            int measurementFlags = 0;
+            if (measurement.hasCarrierFrequencyHz()) {
+                measurementFlags |= FLAG_HAS_CARRIER_FREQUENCY;
+                carrierFrequencyHz[i] = measurement.getCarrierFrequencyHz();
+            } else {
+                carrierFrequencyHz[i] = 0f;
+            }
+
+            if (measurement.hasSnrInDb()) {
+                measurementFlags |= FLAG_HAS_SNR;
+                snrInDb[i] = measurement.getSnrInDb();
+            } else {
+                snrInDb[i] = 0d;
+            }
+
+            if ((Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) && measurement.hasAutomaticGainControlLevelDb()) {
+                measurementFlags |= FLAG_HAS_AGC;
+                automaticGainControlLevelDb[i] = measurement.getAutomaticGainControlLevelDb();
+            } else {
+                automaticGainControlLevelDb[i] = 0d;
+            }
+
+            flags[i] = measurementFlags;
+            i++;
+        }
+        count = i;
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} writes for this record.
+     */
+    int encodedSize() {
+        return ENCODED_HEADER_BYTES + count * ENCODED_MEASUREMENT_BYTES;
+    }
+
+    /**
+     * Writes the record into the buffer in a fixed layout: the capture times and clock fields,
+     * followed by the measurement count and then each measurement's fields in turn. Absent optional
+     * values are written as zero, with their presence held in flag bits.
+     *
+     * @param buffer The buffer to write into, which must have {@link #encodedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
+        int clockFlags = 0;
+        if (hasTimeUncertaintyNanos) clockFlags |= CLOCK_HAS_TIME_UNCERTAINTY;
+        if (hasBiasNanos) clockFlags |= CLOCK_HAS_BIAS;
+        if (hasFullBiasNanos) clockFlags |= CLOCK_HAS_FULL_BIAS;
+        if (hasBiasUncertaintyNanos) clockFlags |= CLOCK_HAS_BIAS_UNCERTAINTY;
+        if (hasDriftNanosPerSecond) clockFlags |= CLOCK_HAS_DRIFT;
+        if (hasDriftUncertaintyNanosPerSecond) clockFlags |= CLOCK_HAS_DRIFT_UNCERTAINTY;
+        if (hasLeapSecond) clockFlags |= CLOCK_HAS_LEAP_SECOND;
+
+        buffer.putLong(captureTimeMillis);
+        buffer.putLong(elapsedRealtimeNanos);
+        buffer.putLong(timeNanos);
+        buffer.putInt(clockFlags);
+        buffer.putDouble(timeUncertaintyNanos);
+        buffer.putDouble(biasNanos);
+        buffer.putLong(fullBiasNanos);
+        buffer.putDouble(biasUncertaintyNanos);
+        buffer.putDouble(driftNanosPerSecond);
+        buffer.putDouble(driftUncertaintyNanosPerSecond);
+        buffer.putInt(leapSecond);
+        buffer.putInt(hardwareClockDiscontinuityCount);
+        buffer.putInt(count);
+
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(svid[i]);
+            buffer.putInt(constellationType[i]);
+            buffer.putInt(flags[i]);
+            buffer.putInt(state[i]);
+            buffer.putInt(multipathIndicator[i]);
+            buffer.putInt(accumulatedDeltaRangeState[i]);
+            buffer.putLong(receivedSvTimeNanos[i]);
+            buffer.putLong(receivedSvTimeUncertaintyNanos[i]);
+            buffer.putDouble(timeOffsetNanos[i]);
+            buffer.putDouble(cn0DbHz[i]);
+            buffer.putDouble(pseudorangeRateMetersPerSecond[i]);
+            buffer.putDouble(pseudorangeRateUncertaintyMetersPerSecond[i]);
+            buffer.putDouble(accumulatedDeltaRangeMeters[i]);
+            buffer.putDouble(accumulatedDeltaRangeUncertaintyMeters[i]);
+            buffer.putDouble(automaticGainControlLevelDb[i]);
+            buffer.putDouble(snrInDb[i]);
+            buffer.putFloat(carrierFrequencyHz[i]);
+        }
+    }
+
+    /**
+     * Reads a record written by {@link #writeTo(ByteBuffer)}, replacing this record's contents.
+     *
+     * @param buffer The buffer to read from
+     */
+    void readFrom(ByteBuffer buffer) {
+        captureTimeMillis = buffer.getLong();
+        elapsedRealtimeNanos = buffer.getLong();
+        timeNanos = buffer.getLong();
+        int clockFlags = buffer.getInt();
+        hasTimeUncertaintyNanos = (clockFlags & CLOCK_HAS_TIME_UNCERTAINTY) != 0;
+        hasBiasNanos = (clockFlags & CLOCK_HAS_BIAS) != 0;
+        hasFullBiasNanos = (clockFlags & CLOCK_HAS_FULL_BIAS) != 0;
+        hasBiasUncertaintyNanos = (clockFlags & CLOCK_HAS_BIAS_UNCERTAINTY) != 0;
+        hasDriftNanosPerSecond = (clockFlags & CLOCK_HAS_DRIFT) != 0;
+        hasDriftUncertaintyNanosPerSecond = (clockFlags & CLOCK_HAS_DRIFT_UNCERTAINTY) != 0;
+        hasLeapSecond = (clockFlags & CLOCK_HAS_LEAP_SECOND) != 0;
+        timeUncertaintyNanos = buffer.getDouble();
+        biasNanos = buffer.getDouble();
+        fullBiasNanos = buffer.getLong();
+        biasUncertaintyNanos = buffer.getDouble();
+        driftNanosPerSecond = buffer.getDouble();
+        driftUncertaintyNanosPerSecond = buffer.getDouble();
+        leapSecond = buffer.getInt();
+        hardwareClockDiscontinuityCount = buffer.getInt();
+
+        int measurementCount = buffer.getInt();
+        ensureCapacity(measurementCount);
+        for (int i = 0; i < measurementCount; i++) {
+            svid[i] = buffer.getInt();
+            constellationType[i] = buffer.getInt();
+            flags[i] = buffer.getInt();
+            state[i] = buffer.getInt();
+            multipathIndicator[i] = buffer.getInt();
+            accumulatedDeltaRangeState[i] = buffer.getInt();
+            receivedSvTimeNanos[i] = buffer.getLong();
+            receivedSvTimeUncertaintyNanos[i] = buffer.getLong();
+            timeOffsetNanos[i] = buffer.getDouble();
+            cn0DbHz[i] = buffer.getDouble();
+            pseudorangeRateMetersPerSecond[i] = buffer.getDouble();
+            pseudorangeRateUncertaintyMetersPerSecond[i] = buffer.getDouble();
+            accumulatedDeltaRangeMeters[i] = buffer.getDouble();
+            accumulatedDeltaRangeUncertaintyMeters[i] = buffer.getDouble();
+            automaticGainControlLevelDb[i] = buffer.getDouble();
+            snrInDb[i] = buffer.getDouble();
+            carrierFrequencyHz[i] = buffer.getFloat();
+        }
+        count = measurementCount;
+    }
+
+    /**
+     * Clears the measurements from the record so it can be returned to the pool.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * @return The number of measurements in the epoch.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    boolean hasAgc(int i) {
+        return (flags[i] & FLAG_HAS_AGC) != 0;
+    }
+
+    boolean hasCarrierFrequency(int i) {
+        return (flags[i] & FLAG_HAS_CARRIER_FREQUENCY) != 0;
+    }
+
+    boolean hasSnr(int i) {
+        return (flags[i] & FLAG_HAS_SNR) != 0;
+    }
+
+    /**
+     * Writes a text description of the clock fields into the provided builder, replacing its
+     * contents. This takes the place of {@link GnssClock#toString()}, which is no longer available
+     * once the event has been copied.
+     *
+     * @param builder The builder to write into
+     * @return The description
+     */
+    String describeClock(StringBuilder builder) {
+        builder.setLength(0);
+        builder.append("GnssClock:");
+        if (hasLeapSecond) builder.append(" LeapSecond=").append(leapSecond);
+        builder.append(" TimeNanos=").append(timeNanos);
+        if (hasTimeUncertaintyNanos) builder.append(" TimeUncertaintyNanos=").append(timeUncertaintyNanos);
+        if (hasFullBiasNanos) builder.append(" FullBiasNanos=").append(fullBiasNanos);
+        if (hasBiasNanos) builder.append(" BiasNanos=").append(biasNanos);
+        if (hasBiasUncertaintyNanos) builder.append(" BiasUncertaintyNanos=").append(biasUncertaintyNanos);
+        if (hasDriftNanosPerSecond) builder.append(" DriftNanosPerSecond=").append(driftNanosPerSecond);
+        if (hasDriftUncertaintyNanosPerSecond) {
+            builder.append(" DriftUncertaintyNanosPerSecond=").append(driftUncertaintyNanosPerSecond);
+        }
+        builder.append(" HardwareClockDiscontinuityCount=").append(hardwareClockDiscontinuityCount);
+        return builder.toString();
+    }
+
+    /**
+     * Writes a text description of a measurement into the provided builder, replacing its
+     * contents. This takes the place of {@link GnssMeasurement#toString()}, which is no longer
+     * available once the event has been copied.
+     *
+     * @param i       The index of the measurement
+     * @param builder The builder to write into
+     * @return The description
+     */
+    String describeMeasurement(int i, StringBuilder builder) {
+        builder.setLength(0);
+        builder.append("GnssMeasurement:");
+        builder.append(" Svid=").append(svid[i]);
+        builder.append(" ConstellationType=").append(constellationType[i]);
+        builder.append(" TimeOffsetNanos=").append(timeOffsetNanos[i]);
+        builder.append(" State=").append(state[i]);
+        builder.append(" ReceivedSvTimeNanos=").append(receivedSvTimeNanos[i]);
+        builder.append(" ReceivedSvTimeUncertaintyNanos=").append(receivedSvTimeUncertaintyNanos[i]);
+        builder.append(" Cn0DbHz=").append(cn0DbHz[i]);
+        builder.append(" PseudorangeRateMetersPerSecond=").append(pseudorangeRateMetersPerSecond[i]);
+        builder.append(" PseudorangeRateUncertaintyMetersPerSecond=").append(pseudorangeRateUncertaintyMetersPerSecond[i]);
+        builder.append(" AccumulatedDeltaRangeState=").append(accumulatedDeltaRangeState[i]);
+        builder.append(" AccumulatedDeltaRangeMeters=").append(accumulatedDeltaRangeMeters[i]);
+        builder.append(" AccumulatedDeltaRangeUncertaintyMeters=").append(accumulatedDeltaRangeUncertaintyMeters[i]);
+        if (hasCarrierFrequency(i)) builder.append(" CarrierFrequencyHz=").append(carrierFrequencyHz[i]);
+        builder.append(" MultipathIndicator=").append(multipathIndicator[i]);
+        if (hasSnr(i)) builder.append(" SnrInDb=").append(snrInDb[i]);
+        if (hasAgc(i)) builder.append(" AgcLevelDb=").append(automaticGainControlLevelDb[i]);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,397 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.android.gpstest.io.CompactRawLogConverter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the Raw and Fix lines of a GNSS Logger text file (as written by
+ * {@link com.android.gpstest.io.FileLogger}) for a {@link ReplaySource}. The consecutive Raw lines
+ * with the same TimeNanos are the measurements of one epoch. Fix lines have no elapsed realtime of
+ * their own, so they are replayed at the time of the epoch before them, or right away if there is
+ * no epoch before them. The file does not hold the satellite status, so none is replayed, and the
+ * other line types are skipped. Logs in the compact raw format are expanded into Raw lines as they
+ * are read.
+ */
+class GnssLogReplayReader implements ReplaySource.Reader {
+    private static final String TAG = "GPSMonkey.GnssLogRply";
+
+    private static final String RAW_PREFIX = "Raw,";
+    private static final String FIX_PREFIX = "Fix,";
+    private static final String COMMENT_PREFIX = "#";
+
+    // Field positions in a Raw line
+    private static final int RAW_ELAPSED_REALTIME_MILLIS = 1;
+    private static final int RAW_TIME_NANOS = 2;
+    private static final int RAW_LEAP_SECOND = 3;
+    private static final int RAW_TIME_UNCERTAINTY_NANOS = 4;
+    private static final int RAW_FULL_BIAS_NANOS = 5;
+    private static final int RAW_BIAS_NANOS = 6;
+    private static final int RAW_BIAS_UNCERTAINTY_NANOS = 7;
+    private static final int RAW_DRIFT_NANOS_PER_SECOND = 8;
+    private static final int RAW_DRIFT_UNCERTAINTY_NANOS_PER_SECOND = 9;
+    private static final int RAW_HARDWARE_CLOCK_DISCONTINUITY_COUNT = 10;
+    private static final int RAW_SVID = 11;
+    private static final int RAW_TIME_OFFSET_NANOS = 12;
+    private static final int RAW_STATE = 13;
+    private static final int RAW_RECEIVED_SV_TIME_NANOS = 14;
+    private static final int RAW_RECEIVED_SV_TIME_UNCERTAINTY_NANOS = 15;
+    private static final int RAW_CN0_DB_HZ = 16;
+    private static final int RAW_PSEUDORANGE_RATE = 17;
+    private static final int RAW_PSEUDORANGE_RATE_UNCERTAINTY = 18;
+    private static final int RAW_ACCUMULATED_DELTA_RANGE_STATE = 19;
+    private static final int RAW_ACCUMULATED_DELTA_RANGE = 20;
+    private static final int RAW_ACCUMULATED_DELTA_RANGE_UNCERTAINTY = 21;
+    private static final int RAW_CARRIER_FREQUENCY_HZ = 22;
+    private static final int RAW_MULTIPATH_INDICATOR = 26;
+    private static final int RAW_SNR_IN_DB = 27;
+    private static final int RAW_CONSTELLATION_TYPE = 28;
+    private static final int RAW_AGC_DB = 29;
+    private static final int RAW_MIN_FIELDS = RAW_CONSTELLATION_TYPE + 1;
+
+    // Field positions in a Fix line
+    private static final int FIX_PROVIDER = 1;
+    private static final int FIX_LATITUDE = 2;
+    private static final int FIX_LONGITUDE = 3;
+    private static final int FIX_ALTITUDE = 4;
+    private static final int FIX_SPEED = 5;
+    private static final int FIX_ACCURACY = 6;
+    private static final int FIX_TIME_MILLIS = 7;
+    private static final int FIX_MIN_FIELDS = FIX_TIME_MILLIS + 1;
+
+    /**
+     * Milliseconds between the Unix epoch and the GPS epoch (1980-01-06).
+     */
+    private static final long GPS_EPOCH_UNIX_MILLIS = 315_964_800_000L;
+
+    /**
+     * GPS-UTC leap seconds, used when the clock does not report them.
+     */
+    private static final int DEFAULT_LEAP_SECONDS = 18;
+
+    private final BufferedReader reader;
+    private final CompactRawLogConverter converter = new CompactRawLogConverter();
+    private final ArrayList<String[]> epochLines = new ArrayList<>();
+    private String pendingLine;
+    private long skippedLines;
+
+    // The event read by next()
+    private GnssEpochRecord epoch;
+    private Fix fix;
+    private long elapsedRealtimeNanos = -1L;
+    private long lastFixTimeMillis;
+
+    /**
+     * @param file The GNSS Logger file, which is decompressed if it ends with .gz
+     * @throws IOException if the file can not be opened
+     */
+    GnssLogReplayReader(File file) throws IOException {
+        this(new BufferedReader(new InputStreamReader(openFile(file))));
+    }
+
+    /**
+     * @param reader Reads the lines of a GNSS Logger file
+     */
+    GnssLogReplayReader(BufferedReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean next(ReplaySource.Listener listener) throws IOException {
+        epoch = null;
+        fix = null;
+
+        String line;
+        while ((line = readLine()) != null) {
+            try {
+                if (line.startsWith(RAW_PREFIX)) {
+                    if (readEpoch(line, listener)) return true;
+                } else if (line.startsWith(FIX_PREFIX)) {
+                    if (readFix(line)) return true;
+                }
+            } catch (NumberFormatException e) {
+                skippedLines++;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    @Override
+    public void deliver(ReplaySource.Listener listener) {
+        if (epoch != null) {
+            listener.onReplayedEpoch(epoch);
+        } else if (fix != null) {
+            listener.onReplayedLocation(fix.toLocation());
+        }
+        epoch = null;
+        fix = null;
+    }
+
+    @Override
+    public void discard(ReplaySource.Listener listener) {
+        if (epoch != null) {
+            listener.releaseEpoch(epoch);
+        }
+        epoch = null;
+        fix = null;
+    }
+
+    /**
+     * @return The fix read by the last call to {@link #next(ReplaySource.Listener)}, or null if it
+     * read an epoch.
+     */
+    Fix getFix() {
+        return fix;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (skippedLines > 0) {
+            Log.w(TAG, "Skipped " + skippedLines + " lines that could not be parsed");
+        }
+        reader.close();
+    }
+
+    private static InputStream openFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (!file.getName().endsWith(".gz")) return in;
+
+        try {
+            return new GZIPInputStream(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private String readLine() throws IOException {
+        String line = pendingLine;
+        pendingLine = null;
+        return (line != null) ? line : readFileLine();
+    }
+
+    /**
+     * @return The next line of the file in the GNSS Logger layout, or null at the end of the file.
+     */
+    private String readFileLine() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String converted;
+            try {
+                converted = converter.convertLine(line);
+            } catch (IOException e) {
+                // A log in a newer format can't be read at all, but a damaged record only loses its line
+                if (line.startsWith(COMMENT_PREFIX)) throw e;
+                skippedLines++;
+                continue;
+            }
+            if (converted != null) return converted;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the Raw lines of an epoch, starting with the provided one, into an epoch record. The
+     * line after the epoch is kept for the next call to {@link #next(ReplaySource.Listener)}.
+     *
+     * @return False if the epoch has no valid measurements.
+     */
+    private boolean readEpoch(String firstLine, ReplaySource.Listener listener) throws IOException {
+        epochLines.clear();
+        String[] first = firstLine.split(",", -1);
+        if (first.length < RAW_MIN_FIELDS) {
+            skippedLines++;
+            return false;
+        }
+        epochLines.add(first);
+
+        String line;
+        while ((line = readFileLine()) != null) {
+            if (line.startsWith(RAW_PREFIX)) {
+                String[] fields = line.split(",", -1);
+                if ((fields.length >= RAW_MIN_FIELDS) && fields[RAW_TIME_NANOS].equals(first[RAW_TIME_NANOS])) {
+                    epochLines.add(fields);
+                    continue;
+                }
+            }
+            pendingLine = line;
+            break;
+        }
+
+        GnssEpochRecord record = listener.acquireEpoch();
+        try {
+            fillClock(record, first);
+        } catch (NumberFormatException e) {
+            // The clock fields are shared by the whole epoch, so none of its lines can be used
+            listener.releaseEpoch(record);
+            skippedLines += epochLines.size();
+            return false;
+        }
+        record.ensureCapacity(epochLines.size());
+        int count = 0;
+        for (String[] fields : epochLines) {
+            try {
+                fillMeasurement(record, count, fields);
+                count++;
+            } catch (NumberFormatException e) {
+                skippedLines++;
+            }
+        }
+        record.count = count;
+
+        epoch = record;
+        elapsedRealtimeNanos = record.elapsedRealtimeNanos;
+        return true;
+    }
+
+    private void fillClock(GnssEpochRecord record, String[] fields) {
+        record.elapsedRealtimeNanos = Long.parseLong(fields[RAW_ELAPSED_REALTIME_MILLIS]) * 1_000_000L;
+        record.timeNanos = Long.parseLong(fields[RAW_TIME_NANOS]);
+        record.hasLeapSecond = !fields[RAW_LEAP_SECOND].isEmpty();
+        record.leapSecond = record.hasLeapSecond ? Integer.parseInt(fields[RAW_LEAP_SECOND]) : 0;
+        record.hasTimeUncertaintyNanos = !fields[RAW_TIME_UNCERTAINTY_NANOS].isEmpty();
+        record.timeUncertaintyNanos = parseDouble(fields[RAW_TIME_UNCERTAINTY_NANOS]);
+        // The full bias is always logged, and is zero when the clock does not have one
+        record.fullBiasNanos = Long.parseLong(fields[RAW_FULL_BIAS_NANOS]);
+        record.hasFullBiasNanos = record.fullBiasNanos != 0L;
+        record.hasBiasNanos = !fields[RAW_BIAS_NANOS].isEmpty();
+        record.biasNanos = parseDouble(fields[RAW_BIAS_NANOS]);
+        record.hasBiasUncertaintyNanos = !fields[RAW_BIAS_UNCERTAINTY_NANOS].isEmpty();
+        record.biasUncertaintyNanos = parseDouble(fields[RAW_BIAS_UNCERTAINTY_NANOS]);
+        record.hasDriftNanosPerSecond = !fields[RAW_DRIFT_NANOS_PER_SECOND].isEmpty();
+        record.driftNanosPerSecond = parseDouble(fields[RAW_DRIFT_NANOS_PER_SECOND]);
+        record.hasDriftUncertaintyNanosPerSecond = !fields[RAW_DRIFT_UNCERTAINTY_NANOS_PER_SECOND].isEmpty();
+        record.driftUncertaintyNanosPerSecond = parseDouble(fields[RAW_DRIFT_UNCERTAINTY_NANOS_PER_SECOND]);
+        record.hardwareClockDiscontinuityCount = Integer.parseInt(fields[RAW_HARDWARE_CLOCK_DISCONTINUITY_COUNT]);
+
+        // The file has no wall clock time for the epoch, so it is derived from the GPS time
+        if (record.hasFullBiasNanos) {
+            long gpsNanos = record.timeNanos - record.fullBiasNanos - (long) record.biasNanos;
+            int leapSeconds = record.hasLeapSecond ? record.leapSecond : DEFAULT_LEAP_SECONDS;
+            record.captureTimeMillis = gpsNanos / 1_000_000L + GPS_EPOCH_UNIX_MILLIS - leapSeconds * 1000L;
+        } else {
+            record.captureTimeMillis = lastFixTimeMillis;
+        }
+    }
+
+    private static void fillMeasurement(GnssEpochRecord record, int i, String[] fields) {
+        record.svid[i] = Integer.parseInt(fields[RAW_SVID]);
+        record.constellationType[i] = Integer.parseInt(fields[RAW_CONSTELLATION_TYPE]);
+        record.state[i] = Integer.parseInt(fields[RAW_STATE]);
+        record.multipathIndicator[i] = Integer.parseInt(fields[RAW_MULTIPATH_INDICATOR]);
+        record.accumulatedDeltaRangeState[i] = Integer.parseInt(fields[RAW_ACCUMULATED_DELTA_RANGE_STATE]);
+        record.receivedSvTimeNanos[i] = Long.parseLong(fields[RAW_RECEIVED_SV_TIME_NANOS]);
+        record.receivedSvTimeUncertaintyNanos[i] = Long.parseLong(fields[RAW_RECEIVED_SV_TIME_UNCERTAINTY_NANOS]);
+        record.timeOffsetNanos[i] = Double.parseDouble(fields[RAW_TIME_OFFSET_NANOS]);
+        record.cn0DbHz[i] = Double.parseDouble(fields[RAW_CN0_DB_HZ]);
+        record.pseudorangeRateMetersPerSecond[i] = Double.parseDouble(fields[RAW_PSEUDORANGE_RATE]);
+        record.pseudorangeRateUncertaintyMetersPerSecond[i] = Double.parseDouble(fields[RAW_PSEUDORANGE_RATE_UNCERTAINTY]);
+        record.accumulatedDeltaRangeMeters[i] = Double.parseDouble(fields[RAW_ACCUMULATED_DELTA_RANGE]);
+        record.accumulatedDeltaRangeUncertaintyMeters[i] = Double.parseDouble(fields[RAW_ACCUMULATED_DELTA_RANGE_UNCERTAINTY]);
+
+        int measurementFlags = 0;
+        String carrierFrequency = fields[RAW_CARRIER_FREQUENCY_HZ];
+        if (!carrierFrequency.isEmpty()) {
+            measurementFlags |= GnssEpochRecord.FLAG_HAS_CARRIER_FREQUENCY;
+        }
+        record.carrierFrequencyHz[i] = (float) parseDouble(carrierFrequency);
+
+        String snr = fields[RAW_SNR_IN_DB];
+        if (!snr.isEmpty()) {
+            measurementFlags |= GnssEpochRecord.FLAG_HAS_SNR;
+        }
+        record.snrInDb[i] = parseDouble(snr);
+
+        // Older files end before the AGC
+        String agc = (fields.length > RAW_AGC_DB) ? fields[RAW_AGC_DB] : "";
+        if (!agc.isEmpty()) {
+            measurementFlags |= GnssEpochRecord.FLAG_HAS_AGC;
+        }
+        record.automaticGainControlLevelDb[i] = parseDouble(agc);
+
+        record.flags[i] = measurementFlags;
+    }
+
+    /**
+     * Reads a Fix line.
+     *
+     * @return False if the line is not a GPS fix.
+     */
+    private boolean readFix(String line) {
+        String[] fields = line.split(",", -1);
+        if ((fields.length < FIX_MIN_FIELDS) || !LocationManager.GPS_PROVIDER.equals(fields[FIX_PROVIDER])) {
+            skippedLines++;
+            return false;
+        }
+
+        Fix parsed = new Fix();
+        parsed.provider = fields[FIX_PROVIDER];
+        parsed.latitude = Double.parseDouble(fields[FIX_LATITUDE]);
+        parsed.longitude = Double.parseDouble(fields[FIX_LONGITUDE]);
+        parsed.altitude = Double.parseDouble(fields[FIX_ALTITUDE]);
+        parsed.speed = Float.parseFloat(fields[FIX_SPEED]);
+        parsed.accuracy = Float.parseFloat(fields[FIX_ACCURACY]);
+        parsed.timeMillis = Long.parseLong(fields[FIX_TIME_MILLIS]);
+        parsed.elapsedRealtimeNanos = Math.max(0L, elapsedRealtimeNanos);
+
+        fix = parsed;
+        lastFixTimeMillis = parsed.timeMillis;
+        return true;
+    }
+
+    private static double parseDouble(String value) {
+        return value.isEmpty() ? 0d : Double.parseDouble(value);
+    }
+
+    /**
+     * The fields of a Fix line, kept as plain values until the fix is delivered as a
+     * {@link Location}.
+     */
+    static class Fix {
+        String provider;
+        double latitude;
+        double longitude;
+        double altitude;
+        float speed;
+        float accuracy;
+        long timeMillis;
+        long elapsedRealtimeNanos;
+
+        /**
+         * @return A new location with the fields of the fix.
+         */
+        Location toLocation() {
+            Location location = new Location(provider);
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            location.setAltitude(altitude);
+            location.setSpeed(speed);
+            location.setAccuracy(accuracy);
+            location.setTime(timeMillis);
+            location.setElapsedRealtimeNanos(elapsedRealtimeNanos);
+
+            // The recorder reads the satellite count from the extras, which the file does not have
+            Bundle extras = new Bundle();
+            extras.putInt("satellites", 0);
+            location.setExtras(extras);
+            return location;
+        }
+    }
+}
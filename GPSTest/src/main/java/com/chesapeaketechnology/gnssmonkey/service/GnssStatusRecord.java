@@ -0,0 +1,151 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import com.android.gpstest.util.GpsTestUtil;
+
+import android.location.GnssStatus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable snapshot of the per-satellite fields of a {@link GnssStatus} that
+ * {@link GeoPackageDatabase} keeps, stored as primitive arrays so it can be written to and read back
+ * from a {@link CaptureLog}. The arrays grow when a status holds more satellites than they can fit,
+ * so refilling a record does not allocate once it has reached its working size.
+ */
+class GnssStatusRecord {
+    private static final int INITIAL_CAPACITY = 64;
+
+    static final int FLAG_USED_IN_FIX = 1;
+    static final int FLAG_HAS_ALMANAC = 1 << 1;
+    static final int FLAG_HAS_EPHEMERIS = 1 << 2;
+    static final int FLAG_HAS_CARRIER_FREQUENCY = 1 << 3;
+
+    /**
+     * The encoded size of each satellite, see {@link #writeTo(ByteBuffer)}.
+     */
+    static final int ENCODED_SATELLITE_BYTES = 4 * 3 + 4 * 3;
+
+    int count;
+    int[] svid;
+    int[] constellationType;
+    int[] flags;
+    float[] carrierFrequencyHz;
+    float[] elevationDegrees;
+    float[] azimuthDegrees;
+
+    GnssStatusRecord() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        svid = new int[capacity];
+        constellationType = new int[capacity];
+        flags = new int[capacity];
+        carrierFrequencyHz = new float[capacity];
+        elevationDegrees = new float[capacity];
+        azimuthDegrees = new float[capacity];
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > svid.length) {
+            allocate(Math.max(capacity, svid.length * 2));
+        }
+    }
+
+    /**
+     * Copies the satellites from the provided status into this record, replacing its previous
+     * contents.
+     *
+     * @param status The status to copy
+     */
+    void fill(GnssStatus status) {
+        int satelliteCount = status.getSatelliteCount();
+        boolean carrierFrequenciesSupported = GpsTestUtil.isGnssCarrierFrequenciesSupported();
+        ensureCapacity(satelliteCount);
+
+        for (int i = 0; i < satelliteCount; i++) {
+            svid[i] = status.getSvid(i);
+            constellationType[i] = status.getConstellationType(i);
+
+            int satelliteFlags = 0;
+            if (status.usedInFix(i)) satelliteFlags |= FLAG_USED_IN_FIX;
+            if (status.hasAlmanacData(i)) satelliteFlags |= FLAG_HAS_ALMANAC;
+            if (status.hasEphemerisData(i)) satelliteFlags |= FLAG_HAS_EPHEMERIS;
+            if (carrierFrequenciesSupported && status.hasCarrierFrequencyHz(i)) {
+                satelliteFlags |= FLAG_HAS_CARRIER_FREQUENCY;
+                carrierFrequencyHz[i] = status.getCarrierFrequencyHz(i);
+            } else {
+                carrierFrequencyHz[i] = 0f;
+            }
+            flags[i] = satelliteFlags;
+
+            elevationDegrees[i] = status.getElevationDegrees(i);
+            azimuthDegrees[i] = status.getAzimuthDegrees(i);
+        }
+        count = satelliteCount;
+    }
+
+    /**
+     * Copies the satellites from another record into this record, replacing its previous contents.
+     *
+     * @param other The record to copy
+     */
+    void copyFrom(GnssStatusRecord other) {
+        ensureCapacity(other.count);
+        System.arraycopy(other.svid, 0, svid, 0, other.count);
+        System.arraycopy(other.constellationType, 0, constellationType, 0, other.count);
+        System.arraycopy(other.flags, 0, flags, 0, other.count);
+        System.arraycopy(other.carrierFrequencyHz, 0, carrierFrequencyHz, 0, other.count);
+        System.arraycopy(other.elevationDegrees, 0, elevationDegrees, 0, other.count);
+        System.arraycopy(other.azimuthDegrees, 0, azimuthDegrees, 0, other.count);
+        count = other.count;
+    }
+
+    boolean hasFlag(int i, int flag) {
+        return (flags[i] & flag) != 0;
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} writes for this record.
+     */
+    int encodedSize() {
+        return 4 + count * ENCODED_SATELLITE_BYTES;
+    }
+
+    /**
+     * Writes the record into the buffer in a fixed layout: the satellite count followed by each
+     * satellite's fields in turn.
+     *
+     * @param buffer The buffer to write into, which must have {@link #encodedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(svid[i]);
+            buffer.putInt(constellationType[i]);
+            buffer.putInt(flags[i]);
+            buffer.putFloat(carrierFrequencyHz[i]);
+            buffer.putFloat(elevationDegrees[i]);
+            buffer.putFloat(azimuthDegrees[i]);
+        }
+    }
+
+    /**
+     * Reads a record written by {@link #writeTo(ByteBuffer)}, replacing this record's contents.
+     *
+     * @param buffer The buffer to read from
+     */
+    void readFrom(ByteBuffer buffer) {
+        int satelliteCount = buffer.getInt();
+        ensureCapacity(satelliteCount);
+        for (int i = 0; i < satelliteCount; i++) {
+            svid[i] = buffer.getInt();
+            constellationType[i] = buffer.getInt();
+            flags[i] = buffer.getInt();
+            carrierFrequencyHz[i] = buffer.getFloat();
+            elevationDegrees[i] = buffer.getFloat();
+            azimuthDegrees[i] = buffer.getFloat();
+        }
+        count = satelliteCount;
+    }
+}
@@ -15,6 +15,7 @@ import android.content.ActivityNotFoundException;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.hardware.SensorManager;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssStatus;
 import android.location.Location;
@@ -23,12 +24,16 @@ import android.location.LocationManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.io.File;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.core.content.ContextCompat;
@@ -123,12 +128,74 @@ public class GpsMonkeyService extends Service {
         }
     };
 
+    /**
+     * Callback for events replayed from a recording, for the {@link InputSourceType#LOCAL_FILE}
+     * input source. They are recorded just like live data, from the replay thread. Replayed fixes
+     * are also passed on to the replay location listeners on the main thread, so the UI shows
+     * them. Epochs and satellite status are only recorded, since the UI listeners take framework
+     * {@link GnssMeasurementsEvent} and {@link GnssStatus} objects, which can't be created from a
+     * recording.
+     */
+    private final ReplaySource.Listener replayListener = new ReplaySource.Listener() {
+        public GnssEpochRecord acquireEpoch() {
+            GeoPackageRecorder recorder = geoPackageRecorder;
+            return (recorder != null) ? recorder.acquireEpoch() : new GnssEpochRecord();
+        }
+
+        public void releaseEpoch(GnssEpochRecord epoch) {
+            GeoPackageRecorder recorder = geoPackageRecorder;
+            if (recorder != null) recorder.releaseEpoch(epoch);
+        }
+
+        public void onReplayedEpoch(GnssEpochRecord epoch) {
+            GeoPackageRecorder recorder = geoPackageRecorder;
+            if (recorder != null) recorder.onReplayedEpoch(epoch);
+        }
+
+        public void onReplayedStatus(GnssStatusRecord status) {
+            GeoPackageRecorder recorder = geoPackageRecorder;
+            if (recorder != null) recorder.onReplayedStatus(status);
+        }
+
+        public void onReplayedLocation(Location location) {
+            updateLocation(location);
+            if (!replayLocationListeners.isEmpty()) {
+                mainHandler.post(() -> {
+                    for (LocationListener listener : replayLocationListeners) {
+                        listener.onLocationChanged(location);
+                    }
+                });
+            }
+        }
+
+        public boolean isReadyForMore() {
+            GeoPackageRecorder recorder = geoPackageRecorder;
+            return (recorder == null) || recorder.hasEventQueueRoom();
+        }
+
+        public void onReplayFinished(boolean complete) {
+            if (complete) Log.i(TAG, "Finished replaying the recording");
+
+            // Stop as if the user had, so the recording is closed and finalized. If the user has
+            // already stopped or started another replay, this one is no longer the current source.
+            final ReplaySource finished = replaySource;
+            if (finished == null) return;
+            mainHandler.post(() -> {
+                if (replaySource == finished) stopGps();
+            });
+        }
+    };
+
     private GeoPackageRecorder geoPackageRecorder = null;
     private InputSourceType inputSourceType = LOCAL;
     private SharedPreferences.OnSharedPreferenceChangeListener prefChangeListener;
     private long firstGpsAcqTime = Long.MIN_VALUE;
     private boolean gnssRawSupportKnown = false;
     private LocationManager locationManager = null;
+    private SensorSampler sensorSampler = null;
+    private ReplaySource replaySource = null;
+    private final Set<LocationListener> replayLocationListeners = new CopyOnWriteArraySet<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Performs one-time setup immediately before either {@link #onStartCommand(Intent, int, int)}
@@ -195,16 +262,10 @@ public class GpsMonkeyService extends Service {
             prefs.edit().putInt(PREFS_CURRENT_INPUT_MODE, inputSourceType.ordinal()).apply();
         }
 
-        if (inputSourceType == LOCAL_FILE) {
-            if (geoPackageRecorder != null) {
-                geoPackageRecorder.shutdown();
-                geoPackageRecorder = null;
-            }
-        } else {
-            if (geoPackageRecorder == null) {
-                geoPackageRecorder = new GeoPackageRecorder(this);
-                geoPackageRecorder.start();
-            }
+        // A replayed recording is recorded again, just like live data
+        if (geoPackageRecorder == null) {
+            geoPackageRecorder = new GeoPackageRecorder(this);
+            geoPackageRecorder.start();
         }
 
         setForeground();
@@ -273,20 +334,29 @@ public class GpsMonkeyService extends Service {
     /**
      * Prompts the user to select a method for sharing the most recent GeoPackage file. If GPS is
      * active, the current file will be closed before it is shared, and a new one will be opened to
-     * continue receiving data.
+     * continue receiving data. This returns right away; the prompt is shown from the main thread
+     * once the file has been closed and finalized in the background.
      */
     public void shareFile() {
-        String geoPackageFile;
+        if (geoPackageRecorder == null) return;
+
+        GeoPackageRecorder.FileReadyListener shareWhenReady = filePath -> mainHandler.post(() -> {
+            if (filePath != null) {
+                shareFile(filePath);
+            } else {
+                Log.w(TAG, "There is no GeoPackage file to share");
+            }
+        });
 
         // First check if GPS is active and we are actively updating a file; if so, we need to close
         // it before sharing.
         if (geoPackageRecorder.isActive()) {
-            geoPackageFile = rolloverGeoPackageFile();
+            rolloverGeoPackageFile(shareWhenReady);
         } else {
-            geoPackageFile = geoPackageRecorder.getFilePath();
+            // The last file may still be finalizing in the background
+            final String geoPackageFile = geoPackageRecorder.getFilePath();
+            geoPackageRecorder.runAfterFileOperations(() -> shareWhenReady.onFileReady(geoPackageFile));
         }
-
-        shareFile(geoPackageFile);
     }
 
     /**
@@ -323,7 +393,8 @@ public class GpsMonkeyService extends Service {
     }
 
     /**
-     * Opens a new GeoPackage database for recording GPS data and registers for GPS updates.
+     * Opens a new GeoPackage database for recording GPS data and registers for GPS updates, or for
+     * the {@link InputSourceType#LOCAL_FILE} input source, starts replaying the selected recording.
      */
     public void startGps() {
         if (gpsStarted.getAndSet(true)) return;
@@ -332,6 +403,11 @@ public class GpsMonkeyService extends Service {
 
         if (geoPackageRecorder != null) geoPackageRecorder.openGeoPackageDatabase();
 
+        if (inputSourceType == LOCAL_FILE) {
+            startReplay();
+            return;
+        }
+
         boolean hasPermissions = ContextCompat.checkSelfPermission(this,
                 Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
         hasPermissions = hasPermissions && ContextCompat.checkSelfPermission(this,
@@ -347,9 +423,48 @@ public class GpsMonkeyService extends Service {
 
                 locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 0, locationListener);
             }
+
+            startSensorSampler();
+        }
+    }
+
+    /**
+     * Starts sampling the motion sensors into the recording, unless the motion output rate
+     * preference is set to zero.
+     */
+    private void startSensorSampler() {
+        if ((sensorSampler != null) || (geoPackageRecorder == null)) return;
+
+        long outputRateHz = PreferenceUtils.getLong(getString(R.string.pref_key_gpkg_motion_rate_hz),
+                SensorSampler.DEFAULT_OUTPUT_RATE_HZ);
+        if (outputRateHz <= 0) return;
+
+        sensorSampler = new SensorSampler(getSystemService(SensorManager.class), (int) outputRateHz,
+                geoPackageRecorder::onMotionBatch);
+        if (!sensorSampler.start()) {
+            Log.i(TAG, "No motion sensors available; motion data will not be recorded");
+            sensorSampler = null;
         }
     }
 
+    /**
+     * Starts replaying the recording selected by the replay file preference, at the speed selected
+     * by the replay speed preference, where zero replays it as fast as possible.
+     */
+    private void startReplay() {
+        if (replaySource != null) return;
+
+        String replayFile = PreferenceUtils.getString(getString(R.string.pref_key_replay_file));
+        if ((replayFile == null) || replayFile.isEmpty() || !new File(replayFile).isFile()) {
+            Log.w(TAG, "No recording to replay: " + replayFile);
+            return;
+        }
+
+        long speed = PreferenceUtils.getLong(getString(R.string.pref_key_replay_speed), 1L);
+        replaySource = new ReplaySource(new File(replayFile), (int) speed, replayListener);
+        replaySource.start();
+    }
+
     /**
      * Unregisters from GPS updates and closes the GeoPackage database recording the GPS data.
      */
@@ -368,6 +483,17 @@ public class GpsMonkeyService extends Service {
             locationManager = null;
         }
 
+        // Stopped before the database is closed, so the last partial batch of rows is still written
+        if (sensorSampler != null) {
+            sensorSampler.stop();
+            sensorSampler = null;
+        }
+
+        if (replaySource != null) {
+            replaySource.stop();
+            replaySource = null;
+        }
+
         if (geoPackageRecorder != null) geoPackageRecorder.closeGeoPackageDatabase();
     }
 
@@ -378,19 +504,36 @@ public class GpsMonkeyService extends Service {
     }
 
     /**
-     * Closes the currently open GeoPackage file and opens a new one.
+     * Adds a listener that is given the fixes replayed from a recording, on the main thread, while
+     * the {@link InputSourceType#LOCAL_FILE} input source is in use.
      *
-     * @return The file path for the closed file, or null if one was not open.
+     * @param listener The listener to add
      */
-    public String rolloverGeoPackageFile() {
-        String geoPackageFilePath = null;
+    public void addReplayLocationListener(LocationListener listener) {
+        replayLocationListeners.add(listener);
+    }
 
-        if (geoPackageRecorder != null) {
-            geoPackageFilePath = geoPackageRecorder.closeGeoPackageDatabase();
-            geoPackageRecorder.openGeoPackageDatabase();
+    /**
+     * @param listener The listener to remove
+     */
+    public void removeReplayLocationListener(LocationListener listener) {
+        replayLocationListeners.remove(listener);
+    }
+
+    /**
+     * Closes the currently open GeoPackage file and opens a new one. Recording continues in the new
+     * file without a gap. This returns without waiting for the closed file to be finalized.
+     *
+     * @param listener Notified on a background thread once the closed file is ready to be shared,
+     *                 with null if one was not open
+     */
+    public void rolloverGeoPackageFile(GeoPackageRecorder.FileReadyListener listener) {
+        if (geoPackageRecorder == null) {
+            listener.onFileReady(null);
+            return;
         }
 
-        return geoPackageFilePath;
+        geoPackageRecorder.rolloverGeoPackageDatabase(listener);
     }
 
     public boolean isDataRecorded() {
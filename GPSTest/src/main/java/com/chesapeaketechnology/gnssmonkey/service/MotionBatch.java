@@ -0,0 +1,142 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+
+/**
+ * A reusable block of decimated motion rows, as produced by {@link MotionDecimator}, stored as
+ * primitive arrays so it can be handed to the recorder, written to a {@link CaptureLog} and
+ * inserted into the motion table without creating an object per row. Each row holds the
+ * accelerometer, gyroscope and magnetometer axes and the barometric pressure, along with flags
+ * saying which of the sensors had a value for the row.
+ * <p>
+ * Batches taken from a pool go back to it through {@link #release()} once they have been written.
+ */
+class MotionBatch {
+    static final int FLAG_HAS_ACCEL = 1;
+    static final int FLAG_HAS_GYRO = 1 << 1;
+    static final int FLAG_HAS_MAG = 1 << 2;
+    static final int FLAG_HAS_PRESSURE = 1 << 3;
+
+    /**
+     * The encoded size of each row, see {@link #writeTo(ByteBuffer)}.
+     */
+    static final int ENCODED_ROW_BYTES = 8 + 4 + 4 * 10;
+
+    int count;
+    long[] timeNanos;
+    int[] flags;
+    float[] accel;
+    float[] gyro;
+    float[] mag;
+    float[] pressureHpa;
+
+    private final Queue<MotionBatch> pool;
+
+    /**
+     * @param capacity The number of rows the batch holds before it is full
+     * @param pool     The pool the batch is returned to by {@link #release()}, or null
+     */
+    MotionBatch(int capacity, Queue<MotionBatch> pool) {
+        this.pool = pool;
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        timeNanos = new long[capacity];
+        flags = new int[capacity];
+        accel = new float[capacity * 3];
+        gyro = new float[capacity * 3];
+        mag = new float[capacity * 3];
+        pressureHpa = new float[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > timeNanos.length) {
+            allocate(capacity);
+        }
+    }
+
+    /**
+     * @return The number of rows the batch can hold.
+     */
+    int capacity() {
+        return timeNanos.length;
+    }
+
+    /**
+     * @return True if no more rows can be added.
+     */
+    boolean isFull() {
+        return count >= timeNanos.length;
+    }
+
+    boolean hasFlag(int row, int flag) {
+        return (flags[row] & flag) != 0;
+    }
+
+    /**
+     * Empties the batch so it can be reused.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Empties the batch and returns it to its pool, if it has one and the pool has room.
+     */
+    void release() {
+        clear();
+        if (pool != null) {
+            pool.offer(this);
+        }
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} writes for this batch.
+     */
+    int encodedSize() {
+        return 4 + count * ENCODED_ROW_BYTES;
+    }
+
+    /**
+     * Writes the batch into the buffer in a fixed layout: the row count followed by each row's
+     * fields in turn.
+     *
+     * @param buffer The buffer to write into, which must have {@link #encodedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(count);
+        for (int row = 0; row < count; row++) {
+            buffer.putLong(timeNanos[row]);
+            buffer.putInt(flags[row]);
+            for (int axis = row * 3; axis < row * 3 + 3; axis++) {
+                buffer.putFloat(accel[axis]);
+                buffer.putFloat(gyro[axis]);
+                buffer.putFloat(mag[axis]);
+            }
+            buffer.putFloat(pressureHpa[row]);
+        }
+    }
+
+    /**
+     * Reads a batch written by {@link #writeTo(ByteBuffer)}, replacing this batch's contents.
+     *
+     * @param buffer The buffer to read from
+     */
+    void readFrom(ByteBuffer buffer) {
+        int rows = buffer.getInt();
+        ensureCapacity(rows);
+        for (int row = 0; row < rows; row++) {
+            timeNanos[row] = buffer.getLong();
+            flags[row] = buffer.getInt();
+            for (int axis = row * 3; axis < row * 3 + 3; axis++) {
+                accel[axis] = buffer.getFloat();
+                gyro[axis] = buffer.getFloat();
+                mag[axis] = buffer.getFloat();
+            }
+            pressureHpa[row] = buffer.getFloat();
+        }
+        count = rows;
+    }
+}
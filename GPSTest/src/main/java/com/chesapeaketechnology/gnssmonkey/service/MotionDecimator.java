@@ -0,0 +1,156 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+/**
+ * Reduces motion sensor samples arriving at each sensor's native rate to rows at a fixed output
+ * rate. Samples are copied into a ring buffer per sensor, and each output row takes the mean of
+ * the samples each sensor delivered since the previous row, which also filters out noise above the
+ * output rate. A sensor that delivered nothing since the previous row (such as a barometer running
+ * slower than the output rate) repeats its latest sample, until that sample is older than the
+ * hold limit.
+ * <p>
+ * If a sensor delivers more samples between two rows than its ring holds, only the most recent
+ * ones are averaged.
+ * <p>
+ * This class is not thread safe; samples and rows must come from a single thread.
+ */
+class MotionDecimator {
+    static final int SENSOR_ACCEL = 0;
+    static final int SENSOR_GYRO = 1;
+    static final int SENSOR_MAG = 2;
+    static final int SENSOR_PRESSURE = 3;
+
+    private static final int[] SENSOR_AXES = {3, 3, 3, 1};
+
+    private final Ring[] rings = new Ring[SENSOR_AXES.length];
+    private final long maxHoldNanos;
+
+    /**
+     * @param ringCapacity The number of samples kept for each sensor between two rows
+     * @param maxHoldNanos The longest time a sensor's latest sample is repeated for when the
+     *                     sensor stops delivering samples
+     */
+    MotionDecimator(int ringCapacity, long maxHoldNanos) {
+        this.maxHoldNanos = maxHoldNanos;
+        for (int sensor = 0; sensor < rings.length; sensor++) {
+            rings[sensor] = new Ring(Math.max(1, ringCapacity), SENSOR_AXES[sensor]);
+        }
+    }
+
+    /**
+     * Adds a sample from one of the sensors.
+     *
+     * @param sensor         One of the {@code SENSOR_} constants
+     * @param timestampNanos The time of the sample, on the elapsed realtime clock
+     * @param values         The sample values; only as many as the sensor has axes are used
+     */
+    void add(int sensor, long timestampNanos, float[] values) {
+        Ring ring = rings[sensor];
+        if (values.length >= ring.axes) {
+            ring.add(timestampNanos, values);
+        }
+    }
+
+    /**
+     * Appends a row to the batch from the samples added since the previous row.
+     *
+     * @param timeNanos The time of the row, on the elapsed realtime clock
+     * @param batch     The batch, which must not be full
+     */
+    void emitRow(long timeNanos, MotionBatch batch) {
+        int row = batch.count;
+        int rowFlags = 0;
+        if (rings[SENSOR_ACCEL].drain(timeNanos, maxHoldNanos, batch.accel, row * 3)) {
+            rowFlags |= MotionBatch.FLAG_HAS_ACCEL;
+        }
+        if (rings[SENSOR_GYRO].drain(timeNanos, maxHoldNanos, batch.gyro, row * 3)) {
+            rowFlags |= MotionBatch.FLAG_HAS_GYRO;
+        }
+        if (rings[SENSOR_MAG].drain(timeNanos, maxHoldNanos, batch.mag, row * 3)) {
+            rowFlags |= MotionBatch.FLAG_HAS_MAG;
+        }
+        if (rings[SENSOR_PRESSURE].drain(timeNanos, maxHoldNanos, batch.pressureHpa, row)) {
+            rowFlags |= MotionBatch.FLAG_HAS_PRESSURE;
+        }
+
+        batch.timeNanos[row] = timeNanos;
+        batch.flags[row] = rowFlags;
+        batch.count = row + 1;
+    }
+
+    /**
+     * Discards all samples, including the latest ones that would otherwise be repeated.
+     */
+    void reset() {
+        for (Ring ring : rings) {
+            ring.reset();
+        }
+    }
+
+    /**
+     * The samples of a single sensor since the previous row, stored interleaved by axis.
+     */
+    private static class Ring {
+        private final int axes;
+        private final int capacity;
+        private final float[] values;
+        private final float[] latest;
+        private int next;
+        private int size;
+        private long latestTimestampNanos;
+        private boolean hasLatest;
+
+        Ring(int capacity, int axes) {
+            this.capacity = capacity;
+            this.axes = axes;
+            values = new float[capacity * axes];
+            latest = new float[axes];
+        }
+
+        void add(long timestampNanos, float[] sample) {
+            System.arraycopy(sample, 0, values, next * axes, axes);
+            System.arraycopy(sample, 0, latest, 0, axes);
+            next = (next + 1) % capacity;
+            if (size < capacity) size++;
+            latestTimestampNanos = timestampNanos;
+            hasLatest = true;
+        }
+
+        /**
+         * Writes the mean of the buffered samples, or the held latest sample if there are none,
+         * and empties the ring.
+         *
+         * @return False if the sensor has no sample recent enough, in which case zeros are written.
+         */
+        boolean drain(long timeNanos, long maxHoldNanos, float[] out, int offset) {
+            if (size > 0) {
+                for (int axis = 0; axis < axes; axis++) {
+                    double sum = 0;
+                    for (int i = 0; i < size; i++) {
+                        // The buffered samples are the most recent ones, so they end just before next
+                        int slot = (next - 1 - i + capacity) % capacity;
+                        sum += values[slot * axes + axis];
+                    }
+                    out[offset + axis] = (float) (sum / size);
+                }
+                size = 0;
+                return true;
+            }
+
+            if (hasLatest && (timeNanos - latestTimestampNanos <= maxHoldNanos)) {
+                System.arraycopy(latest, 0, out, offset, axes);
+                return true;
+            }
+
+            for (int axis = 0; axis < axes; axis++) {
+                out[offset + axis] = 0f;
+            }
+            return false;
+        }
+
+        void reset() {
+            size = 0;
+            next = 0;
+            hasLatest = false;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a recording back as if it were live data, for the
+ * {@link GpsMonkeyService.InputSourceType#LOCAL_FILE} input source. The events of a GeoPackage
+ * recording (see {@link GeoPackageReplayReader}) or a GNSS Logger text file (see
+ * {@link GnssLogReplayReader}) are read on a dedicated thread and handed to the listener in the
+ * order they were recorded.
+ * <p>
+ * The events are paced by the elapsed realtime they were recorded at, scaled by the speed: at 1x
+ * the gaps between events are the same as when they were recorded, at Nx they are N times shorter,
+ * and at {@link #SPEED_MAX} events are delivered as soon as the listener can take them. A
+ * recording is read a cursor or a line at a time, so multi-hour files replay in constant memory.
+ */
+class ReplaySource implements Runnable {
+    private static final String TAG = "GPSMonkey.Replay";
+
+    /**
+     * Delivers the events as fast as the listener can take them.
+     */
+    static final int SPEED_MAX = 0;
+
+    private static final long BACKPRESSURE_WAIT_MS = 2L;
+    private static final long JOIN_TIMEOUT_MS = 1000L;
+
+    /**
+     * Receives the replayed events, on the replay thread.
+     */
+    interface Listener {
+        /**
+         * @return An idle epoch record for a reader to fill. It is handed back through
+         * {@link #onReplayedEpoch(GnssEpochRecord)}.
+         */
+        GnssEpochRecord acquireEpoch();
+
+        /**
+         * Takes back an epoch from {@link #acquireEpoch()} that is not going to be delivered.
+         */
+        void releaseEpoch(GnssEpochRecord epoch);
+
+        void onReplayedEpoch(GnssEpochRecord epoch);
+
+        void onReplayedStatus(GnssStatusRecord status);
+
+        void onReplayedLocation(Location location);
+
+        /**
+         * @return False if events are arriving faster than they can be handled, in which case a
+         * replay at {@link #SPEED_MAX} waits before delivering the next one.
+         */
+        boolean isReadyForMore();
+
+        /**
+         * Called once the replay has stopped.
+         *
+         * @param complete True if the whole recording was replayed, or false if the replay was
+         *                 stopped or failed part way through
+         */
+        void onReplayFinished(boolean complete);
+    }
+
+    /**
+     * Reads the events of a recording in the order they were recorded.
+     */
+    interface Reader extends Closeable {
+        /**
+         * Reads the next event.
+         *
+         * @param listener Provides the records to read epochs into
+         * @return False if there are no more events.
+         */
+        boolean next(Listener listener) throws IOException;
+
+        /**
+         * @return The elapsed realtime the event read by {@link #next(Listener)} was recorded at,
+         * or a negative value if it is not known, in which case the event is delivered right away.
+         */
+        long getElapsedRealtimeNanos();
+
+        /**
+         * Hands the event read by {@link #next(Listener)} to the listener.
+         */
+        void deliver(Listener listener);
+
+        /**
+         * Drops the event read by {@link #next(Listener)} if it has not been delivered, returning
+         * its epoch record to the listener.
+         */
+        void discard(Listener listener);
+    }
+
+    private final File file;
+    private final int speed;
+    private final Listener listener;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param file     The recording to replay, either a GeoPackage (.gpkg) or a GNSS Logger text file
+     * @param speed    How many times faster than recorded to replay, or {@link #SPEED_MAX}
+     * @param listener Receives the events
+     */
+    ReplaySource(File file, int speed, Listener listener) {
+        this.file = file;
+        this.speed = Math.max(SPEED_MAX, speed);
+        this.listener = listener;
+    }
+
+    /**
+     * Starts replaying on a new thread.
+     */
+    synchronized void start() {
+        if (thread != null) return;
+
+        running = true;
+        thread = new Thread(this, "ReplaySource");
+        thread.start();
+    }
+
+    /**
+     * Stops replaying and waits for the replay thread to finish, so no more events are delivered
+     * once this returns.
+     */
+    synchronized void stop() {
+        if (thread == null) return;
+
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Opens a reader for the recording, based on its file name.
+     *
+     * @param file The recording
+     * @return The reader
+     * @throws IOException if the file can not be opened
+     */
+    static Reader openReader(File file) throws IOException {
+        if (file.getName().endsWith(".gpkg")) {
+            try {
+                return new GeoPackageReplayReader(GeoPackageReader.open(file));
+            } catch (RuntimeException e) {
+                throw new IOException("Unable to open " + file, e);
+            }
+        }
+        return new GnssLogReplayReader(file);
+    }
+
+    @Override
+    public void run() {
+        boolean complete = false;
+        long start = SystemClock.elapsedRealtime();
+        long delivered = 0;
+        try (Reader reader = openReader(file)) {
+            Log.i(TAG, "Replaying " + file + ((speed == SPEED_MAX) ? " as fast as possible" : " at " + speed + "x"));
+
+            long firstEventNanos = Long.MIN_VALUE;
+            long startNanos = 0L;
+            while (running) {
+                try {
+                    if (!reader.next(listener)) {
+                        complete = true;
+                        break;
+                    }
+
+                    long eventNanos = reader.getElapsedRealtimeNanos();
+                    if (speed == SPEED_MAX) {
+                        while (running && !listener.isReadyForMore()) {
+                            Thread.sleep(BACKPRESSURE_WAIT_MS);
+                        }
+                    } else if (eventNanos < 0) {
+                        // Not timed
+                    } else if (firstEventNanos == Long.MIN_VALUE) {
+                        firstEventNanos = eventNanos;
+                        startNanos = SystemClock.elapsedRealtimeNanos();
+                    } else {
+                        // Events recorded out of order, such as across a reboot, are delivered right away
+                        long dueNanos = startNanos + (eventNanos - firstEventNanos) / speed;
+                        long waitNanos = dueNanos - SystemClock.elapsedRealtimeNanos();
+                        if (waitNanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(waitNanos);
+                        }
+                    }
+
+                    if (running) {
+                        reader.deliver(listener);
+                        delivered++;
+                    }
+                } finally {
+                    // An event read just before the replay was stopped still holds a pooled epoch
+                    reader.discard(listener);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error replaying " + file, e);
+        }
+
+        Log.i(TAG, "Replayed " + delivered + " events from " + file + (complete ? "" : " (stopped)")
+                + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        listener.onReplayFinished(complete);
+    }
+}
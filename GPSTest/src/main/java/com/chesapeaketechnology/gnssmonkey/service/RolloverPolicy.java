@@ -0,0 +1,101 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import java.util.Calendar;
+
+/**
+ * Decides when the {@link GeoPackageRecorder} should move on to a new GeoPackage file. A file is
+ * rolled over when it reaches a maximum size, when it has been open for a maximum duration, or
+ * when the wall clock crosses a boundary (the top of the hour or midnight), whichever comes first.
+ * <p>
+ * The policy also reports when a rollover is getting close, so the next file can be opened in the
+ * background ahead of time and the switch does not leave a gap in the recording.
+ */
+public class RolloverPolicy {
+    /**
+     * Wall-clock boundaries at which a new file is started.
+     */
+    public enum Boundary {
+        NONE,
+        HOURLY,
+        DAILY
+    }
+
+    /**
+     * Fraction of the size or duration limit at which the next file starts being prepared.
+     */
+    private static final double PREPARE_FRACTION = 0.9;
+
+    /**
+     * How long before a wall-clock boundary the next file starts being prepared.
+     */
+    private static final long PREPARE_LEAD_MS = 30_000L;
+
+    private final long maxBytes;
+    private final long maxDurationMs;
+    private final Boundary boundary;
+
+    /**
+     * @param maxBytes      The maximum file size in bytes, or zero for no size limit
+     * @param maxDurationMs The maximum time a file is kept open in milliseconds, or zero for no limit
+     * @param boundary      The wall-clock boundary at which files are rolled over
+     */
+    public RolloverPolicy(long maxBytes, long maxDurationMs, Boundary boundary) {
+        this.maxBytes = Math.max(0L, maxBytes);
+        this.maxDurationMs = Math.max(0L, maxDurationMs);
+        this.boundary = (boundary != null) ? boundary : Boundary.NONE;
+    }
+
+    /**
+     * @return True if any limit is configured.
+     */
+    public boolean isEnabled() {
+        return (maxBytes > 0L) || (maxDurationMs > 0L) || (boundary != Boundary.NONE);
+    }
+
+    /**
+     * @param fileBytes  The current size of the file
+     * @param openedAtMs The wall-clock time the file was opened
+     * @param nowMs      The current wall-clock time
+     * @return True if the file should be rolled over now.
+     */
+    public boolean isRolloverDue(long fileBytes, long openedAtMs, long nowMs) {
+        if ((maxBytes > 0L) && (fileBytes >= maxBytes)) return true;
+        if ((maxDurationMs > 0L) && (nowMs - openedAtMs >= maxDurationMs)) return true;
+        return (boundary != Boundary.NONE) && (nowMs >= getNextBoundaryMs(openedAtMs));
+    }
+
+    /**
+     * @param fileBytes  The current size of the file
+     * @param openedAtMs The wall-clock time the file was opened
+     * @param nowMs      The current wall-clock time
+     * @return True if a rollover is close enough that the next file should be prepared.
+     */
+    public boolean isPrepareDue(long fileBytes, long openedAtMs, long nowMs) {
+        if ((maxBytes > 0L) && (fileBytes >= maxBytes * PREPARE_FRACTION)) return true;
+        if ((maxDurationMs > 0L) && (nowMs - openedAtMs >= maxDurationMs * PREPARE_FRACTION)) return true;
+        return (boundary != Boundary.NONE) && (nowMs >= getNextBoundaryMs(openedAtMs) - PREPARE_LEAD_MS);
+    }
+
+    /**
+     * @param fromMs A wall-clock time
+     * @return The first wall-clock boundary after the provided time, in local time, or
+     * {@link Long#MAX_VALUE} if no boundary is configured.
+     */
+    long getNextBoundaryMs(long fromMs) {
+        if (boundary == Boundary.NONE) return Long.MAX_VALUE;
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(fromMs);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        if (boundary == Boundary.DAILY) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        } else {
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+        }
+
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,187 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import java.util.Arrays;
+
+/**
+ * Per-satellite state kept by {@link GeoPackageDatabase} between callbacks: the latest GNSS status
+ * for each satellite, which is written alongside each of its measurements.
+ * <p>
+ * Satellites are keyed by {@link #key(int, int)} in an open-addressed table with linear probing, and
+ * the state is stored in parallel primitive arrays that are updated in place, so neither a status
+ * update nor a lookup from the measurement path allocates. The table is not thread safe.
+ */
+class SatelliteStateTable {
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 128;
+
+    private int[] keys;
+    private boolean[] hasStatus;
+    private boolean[] usedInFix;
+    private boolean[] hasAlmanac;
+    private boolean[] hasEphemeris;
+    private boolean[] hasCarrierFrequency;
+    private float[] carrierFrequencyHz;
+    private float[] elevationDegrees;
+    private float[] azimuthDegrees;
+    private int size;
+
+    SatelliteStateTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param constellationType The constellation type, as defined by {@link android.location.GnssStatus}
+     * @param svid              The satellite ID
+     * @return The key for the satellite.
+     */
+    static int key(int constellationType, int svid) {
+        return (constellationType << 8) | (svid & 0xFF);
+    }
+
+    /**
+     * @param key The satellite key
+     * @return The slot holding the satellite's state, or -1 if the table has no state for it.
+     */
+    int indexOf(int key) {
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return slot;
+            if (keys[slot] == EMPTY) return -1;
+        }
+    }
+
+    /**
+     * Stores the latest GNSS status of a satellite.
+     */
+    void putStatus(int key, boolean usedInFix, boolean hasAlmanac, boolean hasEphemeris,
+                   boolean hasCarrierFrequency, float carrierFrequencyHz,
+                   float elevationDegrees, float azimuthDegrees) {
+        int slot = slotFor(key);
+        this.hasStatus[slot] = true;
+        this.usedInFix[slot] = usedInFix;
+        this.hasAlmanac[slot] = hasAlmanac;
+        this.hasEphemeris[slot] = hasEphemeris;
+        this.hasCarrierFrequency[slot] = hasCarrierFrequency;
+        this.carrierFrequencyHz[slot] = carrierFrequencyHz;
+        this.elevationDegrees[slot] = elevationDegrees;
+        this.azimuthDegrees[slot] = azimuthDegrees;
+    }
+
+    boolean hasStatus(int slot) {
+        return (slot >= 0) && hasStatus[slot];
+    }
+
+    boolean isUsedInFix(int slot) {
+        return hasStatus(slot) && usedInFix[slot];
+    }
+
+    boolean hasAlmanac(int slot) {
+        return hasStatus(slot) && hasAlmanac[slot];
+    }
+
+    boolean hasEphemeris(int slot) {
+        return hasStatus(slot) && hasEphemeris[slot];
+    }
+
+    boolean hasCarrierFrequency(int slot) {
+        return hasStatus(slot) && hasCarrierFrequency[slot];
+    }
+
+    float getCarrierFrequencyHz(int slot) {
+        return hasStatus(slot) ? carrierFrequencyHz[slot] : 0f;
+    }
+
+    float getElevationDegrees(int slot) {
+        return hasStatus(slot) ? elevationDegrees[slot] : 0f;
+    }
+
+    float getAzimuthDegrees(int slot) {
+        return hasStatus(slot) ? azimuthDegrees[slot] : 0f;
+    }
+
+    /**
+     * @return The number of satellites in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The slot for the key, adding the key to the table if it is not already there.
+     */
+    private int slotFor(int key) {
+        int slot = indexOf(key);
+        if (slot >= 0) return slot;
+
+        // Keep the table at most half full so probe sequences stay short
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+
+        int mask = keys.length - 1;
+        slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        boolean[] oldHasStatus = hasStatus;
+        boolean[] oldUsedInFix = usedInFix;
+        boolean[] oldHasAlmanac = hasAlmanac;
+        boolean[] oldHasEphemeris = hasEphemeris;
+        boolean[] oldHasCarrierFrequency = hasCarrierFrequency;
+        float[] oldCarrierFrequencyHz = carrierFrequencyHz;
+        float[] oldElevationDegrees = elevationDegrees;
+        float[] oldAzimuthDegrees = azimuthDegrees;
+
+        allocate(oldKeys.length * 2);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key == EMPTY) continue;
+
+            int slot = mix(key) & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            hasStatus[slot] = oldHasStatus[i];
+            usedInFix[slot] = oldUsedInFix[i];
+            hasAlmanac[slot] = oldHasAlmanac[i];
+            hasEphemeris[slot] = oldHasEphemeris[i];
+            hasCarrierFrequency[slot] = oldHasCarrierFrequency[i];
+            carrierFrequencyHz[slot] = oldCarrierFrequencyHz[i];
+            elevationDegrees[slot] = oldElevationDegrees[i];
+            azimuthDegrees[slot] = oldAzimuthDegrees[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        hasStatus = new boolean[capacity];
+        usedInFix = new boolean[capacity];
+        hasAlmanac = new boolean[capacity];
+        hasEphemeris = new boolean[capacity];
+        hasCarrierFrequency = new boolean[capacity];
+        carrierFrequencyHz = new float[capacity];
+        elevationDegrees = new float[capacity];
+        azimuthDegrees = new float[capacity];
+    }
+
+    /**
+     * Spreads the key bits so that the svid and constellation both affect the starting slot.
+     */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
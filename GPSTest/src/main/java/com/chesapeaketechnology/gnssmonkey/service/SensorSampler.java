@@ -0,0 +1,208 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Samples the accelerometer, gyroscope, magnetometer and barometer at their native rates and
+ * produces rows for the motion table at a much lower output rate (see {@link MotionDecimator}).
+ * Sensor events are handled on a dedicated thread, so the high-rate callbacks never reach the main
+ * thread or the recorder. Rows are gathered into pooled {@link MotionBatch}es of about a second
+ * each, which are handed to the listener on the thread that created the sampler; that keeps the
+ * GNSS callback thread the only producer for the recorder's event queue.
+ */
+class SensorSampler implements SensorEventListener {
+    private static final String TAG = "GPSMonkey.SensorSmplr";
+
+    /**
+     * Default number of motion rows produced per second.
+     */
+    static final int DEFAULT_OUTPUT_RATE_HZ = 10;
+
+    private static final int MAX_OUTPUT_RATE_HZ = 200;
+    private static final int RING_CAPACITY = 256;
+    private static final long MAX_HOLD_NANOS = 1_000_000_000L;
+    private static final int BATCH_POOL_SIZE = 8;
+    private static final long JOIN_TIMEOUT_MS = 1000L;
+
+    private static final int[] SENSOR_TYPES = {
+            Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_PRESSURE};
+
+    /**
+     * Receives each full batch of motion rows. The batch must be released once it has been
+     * written.
+     */
+    interface Listener {
+        void onMotionBatch(MotionBatch batch);
+    }
+
+    private final SensorManager sensorManager;
+    private final Listener listener;
+    private final Handler deliveryHandler;
+    private final long outputIntervalMs;
+    private final int rowsPerBatch;
+    private final MotionDecimator decimator = new MotionDecimator(RING_CAPACITY, MAX_HOLD_NANOS);
+    private final ArrayBlockingQueue<MotionBatch> pool = new ArrayBlockingQueue<>(BATCH_POOL_SIZE);
+
+    private HandlerThread thread;
+    private Handler handler;
+
+    // Only accessed on the sampler thread while it is running
+    private MotionBatch batch;
+    private long nextRowUptimeMs;
+
+    /**
+     * Adds a row on every tick of the output rate. A single instance is reused so the ticks do not
+     * allocate.
+     */
+    private final Runnable rowTask = new Runnable() {
+        @Override
+        public void run() {
+            addRow();
+            nextRowUptimeMs += outputIntervalMs;
+            long now = SystemClock.uptimeMillis();
+            if (nextRowUptimeMs < now) {
+                // The thread fell behind; skip the missed rows rather than emitting them in a burst
+                nextRowUptimeMs = now + outputIntervalMs;
+            }
+            handler.postAtTime(this, nextRowUptimeMs);
+        }
+    };
+
+    /**
+     * Must be created on a thread with a looper, which is where batches are delivered.
+     *
+     * @param sensorManager The sensor manager
+     * @param outputRateHz  The number of motion rows to produce per second
+     * @param listener      Receives the batches of rows
+     */
+    SensorSampler(SensorManager sensorManager, int outputRateHz, Listener listener) {
+        this.sensorManager = sensorManager;
+        this.listener = listener;
+        deliveryHandler = new Handler(Looper.myLooper());
+
+        int rateHz = Math.max(1, Math.min(outputRateHz, MAX_OUTPUT_RATE_HZ));
+        outputIntervalMs = 1000L / rateHz;
+        rowsPerBatch = rateHz;
+    }
+
+    /**
+     * Registers for the motion sensors at their fastest rate and starts producing rows.
+     *
+     * @return False if the device has none of the sensors, in which case nothing is started.
+     */
+    boolean start() {
+        if (thread != null) return true;
+
+        thread = new HandlerThread("SensorSampler");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        int registered = 0;
+        for (int type : SENSOR_TYPES) {
+            Sensor sensor = sensorManager.getDefaultSensor(type);
+            if ((sensor != null) && sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_FASTEST, handler)) {
+                registered++;
+            } else {
+                Log.i(TAG, "Motion sensor type " + type + " is not available");
+            }
+        }
+
+        if (registered == 0) {
+            thread.quit();
+            thread = null;
+            handler = null;
+            return false;
+        }
+
+        handler.post(() -> {
+            decimator.reset();
+            nextRowUptimeMs = SystemClock.uptimeMillis() + outputIntervalMs;
+            handler.postAtTime(rowTask, nextRowUptimeMs);
+        });
+        return true;
+    }
+
+    /**
+     * Unregisters from the sensors and delivers the rows that have not filled a batch yet. Must be
+     * called on the thread that created the sampler, so the final batch is delivered before this
+     * returns and can still be written before the recording is closed.
+     */
+    void stop() {
+        if (thread == null) return;
+
+        sensorManager.unregisterListener(this);
+        handler.removeCallbacks(rowTask);
+        thread.quitSafely();
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean stopped = !thread.isAlive();
+        thread = null;
+        handler = null;
+
+        if (!stopped) {
+            // The sampler thread may still be adding to the batch, so it can't be read here
+            Log.w(TAG, "Sampler thread did not stop in time; dropping its unfinished batch");
+            return;
+        }
+        MotionBatch remaining = batch;
+        batch = null;
+        if ((remaining != null) && (remaining.count > 0)) {
+            listener.onMotionBatch(remaining);
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_ACCELEROMETER:
+                decimator.add(MotionDecimator.SENSOR_ACCEL, event.timestamp, event.values);
+                break;
+            case Sensor.TYPE_GYROSCOPE:
+                decimator.add(MotionDecimator.SENSOR_GYRO, event.timestamp, event.values);
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                decimator.add(MotionDecimator.SENSOR_MAG, event.timestamp, event.values);
+                break;
+            case Sensor.TYPE_PRESSURE:
+                decimator.add(MotionDecimator.SENSOR_PRESSURE, event.timestamp, event.values);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Adds a row to the current batch, and hands the batch over once it is full. Runs on the
+     * sampler thread.
+     */
+    private void addRow() {
+        if (batch == null) {
+            batch = pool.poll();
+            if (batch == null) batch = new MotionBatch(rowsPerBatch, pool);
+        }
+
+        decimator.emitRow(SystemClock.elapsedRealtimeNanos(), batch);
+        if (batch.isFull()) {
+            final MotionBatch full = batch;
+            batch = null;
+            deliveryHandler.post(() -> listener.onMotionBatch(full));
+        }
+    }
+}
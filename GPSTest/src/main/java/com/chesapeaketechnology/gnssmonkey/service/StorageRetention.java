@@ -0,0 +1,287 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the GPSMonkey save directory within a storage quota by deleting the oldest completed
+ * recording sessions. A session is a GeoPackage along with its WAL, shared memory, journal and
+ * capture log files. Sessions are deleted, oldest first, while the directory holds more than the
+ * maximum total bytes, while the device has less than the minimum free space, and whenever they
+ * are older than the maximum age.
+ * <p>
+ * The directory is listed once, when the index is built, and the index is then kept up to date as
+ * the recorder closes sessions, so pruning never has to scan the directory again. Sessions that the
+ * recorder has open, or that still have a capture log waiting to be recovered, are never deleted.
+ * <p>
+ * This class is not thread safe. The {@link GeoPackageRecorder} only uses it from its file
+ * executor, so pruning happens in the background along with the other file operations, and never
+ * while a file it would delete is still being closed.
+ */
+class StorageRetention {
+    private static final String TAG = "GPSMonkey.Retention";
+    private static final String GPKG_FILE_SUFFIX = ".gpkg";
+    private static final String JOURNAL_FILE_SUFFIX = "-journal";
+
+    /**
+     * The suffixes that are added to the file path of a GeoPackage for the files that belong to it.
+     */
+    private static final String[] COMPANION_FILE_SUFFIXES = {"-wal", "-shm", JOURNAL_FILE_SUFFIX,
+            CaptureLog.FILE_SUFFIX, CaptureLog.RECOVERY_FILE_SUFFIX};
+
+    /**
+     * A recording session in the index.
+     */
+    private static class Session {
+        final String filePath;
+        long bytes;
+        long lastModifiedMs;
+        boolean hasPendingLog;
+
+        Session(String filePath) {
+            this.filePath = filePath;
+        }
+    }
+
+    private static final Comparator<Session> OLDEST_FIRST = (a, b) -> {
+        int compare = Long.compare(a.lastModifiedMs, b.lastModifiedMs);
+        return (compare != 0) ? compare : a.filePath.compareTo(b.filePath);
+    };
+
+    private final File directory;
+    private final long maxTotalBytes;
+    private final long maxAgeMs;
+    private final long minFreeBytes;
+    private final Set<String> activeFilePaths;
+
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final TreeSet<Session> sessionsByAge = new TreeSet<>(OLDEST_FIRST);
+    private long indexedBytes;
+    private boolean indexed;
+
+    /**
+     * @param directory       The save directory
+     * @param maxTotalBytes   The most the sessions in the directory may take up, or zero for no limit
+     * @param maxAgeMs        How long sessions are kept after they were last written, or zero for no limit
+     * @param minFreeBytes    The free space to leave on the device, or zero for no limit
+     * @param activeFilePaths The file paths of the GeoPackages the recorder has open, which are left alone
+     */
+    StorageRetention(File directory, long maxTotalBytes, long maxAgeMs, long minFreeBytes, Set<String> activeFilePaths) {
+        this.directory = directory;
+        this.maxTotalBytes = Math.max(0L, maxTotalBytes);
+        this.maxAgeMs = Math.max(0L, maxAgeMs);
+        this.minFreeBytes = Math.max(0L, minFreeBytes);
+        this.activeFilePaths = activeFilePaths;
+    }
+
+    /**
+     * @return True if any limit is configured.
+     */
+    boolean isEnabled() {
+        return (maxTotalBytes > 0L) || (maxAgeMs > 0L) || (minFreeBytes > 0L);
+    }
+
+    /**
+     * Builds the index from a listing of the save directory. Journal files left behind by sessions
+     * that are no longer open are deleted along the way. WAL files are left alone, since after a
+     * crash they hold committed data that SQLite recovers the next time the file is opened.
+     *
+     * @param files The files in the save directory, or null if it could not be listed
+     */
+    void buildIndex(File[] files) {
+        sessions.clear();
+        sessionsByAge.clear();
+        indexedBytes = 0L;
+        indexed = true;
+        if (files == null) return;
+
+        for (File file : files) {
+            String path = file.getPath();
+            String gpkgFilePath = getGpkgFilePath(path);
+            if ((gpkgFilePath == null) || activeFilePaths.contains(gpkgFilePath)) continue;
+
+            if (path.endsWith(JOURNAL_FILE_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+
+            Session session = sessions.get(gpkgFilePath);
+            if (session == null) {
+                session = new Session(gpkgFilePath);
+                sessions.put(gpkgFilePath, session);
+            }
+            session.bytes += file.length();
+            if (path.equals(gpkgFilePath)) {
+                session.lastModifiedMs = file.lastModified();
+            } else if (path.endsWith(CaptureLog.FILE_SUFFIX) || path.endsWith(CaptureLog.RECOVERY_FILE_SUFFIX)) {
+                session.hasPendingLog = true;
+            }
+        }
+
+        for (Session session : sessions.values()) {
+            sessionsByAge.add(session);
+            indexedBytes += session.bytes;
+        }
+
+        Log.i(TAG, "Indexed " + sessions.size() + " sessions taking " + indexedBytes + " bytes in " + directory);
+    }
+
+    /**
+     * Updates the index for a session that the recorder has finished writing, or has just deleted.
+     *
+     * @param gpkgFilePath The file path of the session's GeoPackage
+     */
+    void onSessionClosed(String gpkgFilePath) {
+        if (!indexed || (gpkgFilePath == null)) return;
+
+        Session session = sessions.remove(gpkgFilePath);
+        if (session != null) {
+            sessionsByAge.remove(session);
+            indexedBytes -= session.bytes;
+        }
+
+        File gpkgFile = new File(gpkgFilePath);
+        if (!gpkgFile.isFile()) return;
+
+        session = new Session(gpkgFilePath);
+        session.bytes = gpkgFile.length();
+        session.lastModifiedMs = gpkgFile.lastModified();
+        for (String suffix : COMPANION_FILE_SUFFIXES) {
+            File companion = new File(gpkgFilePath + suffix);
+            if (companion.exists()) {
+                session.bytes += companion.length();
+                if (suffix.equals(CaptureLog.FILE_SUFFIX) || suffix.equals(CaptureLog.RECOVERY_FILE_SUFFIX)) {
+                    session.hasPendingLog = true;
+                }
+            }
+        }
+
+        sessions.put(gpkgFilePath, session);
+        sessionsByAge.add(session);
+        indexedBytes += session.bytes;
+    }
+
+    /**
+     * Deletes the oldest completed sessions until the directory is within its limits, or there are
+     * no more sessions that can be deleted.
+     *
+     * @return The number of sessions deleted.
+     */
+    int prune() {
+        if (!indexed || !isEnabled()) return 0;
+
+        long nowMs = System.currentTimeMillis();
+        long totalBytes = indexedBytes + getActiveBytes();
+        long freeBytes = (minFreeBytes > 0L) ? getUsableSpace() : 0L;
+
+        int deleted = 0;
+        Iterator<Session> iterator = sessionsByAge.iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            boolean tooOld = (maxAgeMs > 0L) && (nowMs - session.lastModifiedMs > maxAgeMs);
+            boolean overQuota = (maxTotalBytes > 0L) && (totalBytes > maxTotalBytes);
+            boolean lowOnSpace = (minFreeBytes > 0L) && (freeBytes < minFreeBytes);
+            if (!tooOld && !overQuota && !lowOnSpace) break;
+
+            // Sessions that are still being written or recovered are skipped, not waited on
+            if (session.hasPendingLog || activeFilePaths.contains(session.filePath)) continue;
+
+            long bytes = deleteSession(session.filePath);
+            iterator.remove();
+            sessions.remove(session.filePath);
+            indexedBytes -= session.bytes;
+            totalBytes -= session.bytes;
+            freeBytes += bytes;
+            deleted++;
+            Log.i(TAG, "Deleted " + session.filePath + " (" + bytes + " bytes)"
+                    + (tooOld ? "; older than the maximum age" : overQuota ? "; over the storage quota" : "; low on free space"));
+        }
+
+        if ((maxTotalBytes > 0L) && (totalBytes > maxTotalBytes)) {
+            Log.w(TAG, "Recordings take " + totalBytes + " bytes, which is over the storage quota, but none can be deleted");
+        } else if ((minFreeBytes > 0L) && (freeBytes < minFreeBytes)) {
+            Log.w(TAG, "Only " + freeBytes + " bytes are free, but no more recordings can be deleted");
+        }
+
+        return deleted;
+    }
+
+    /**
+     * @return The number of bytes taken up by the sessions in the index.
+     */
+    long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    /**
+     * @return The number of sessions in the index.
+     */
+    int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The free space available to the app on the device that holds the save directory.
+     */
+    long getUsableSpace() {
+        return directory.getUsableSpace();
+    }
+
+    /**
+     * @return The number of bytes taken up so far by the sessions the recorder has open.
+     */
+    private long getActiveBytes() {
+        long bytes = 0L;
+        for (String filePath : activeFilePaths) {
+            bytes += new File(filePath).length();
+            for (String suffix : COMPANION_FILE_SUFFIXES) {
+                bytes += new File(filePath + suffix).length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Deletes a session's GeoPackage and the files that belong to it.
+     *
+     * @return The number of bytes freed.
+     */
+    private static long deleteSession(String gpkgFilePath) {
+        long bytes = 0L;
+        File gpkgFile = new File(gpkgFilePath);
+        long length = gpkgFile.length();
+        if (gpkgFile.delete()) bytes += length;
+
+        for (String suffix : COMPANION_FILE_SUFFIXES) {
+            File companion = new File(gpkgFilePath + suffix);
+            length = companion.length();
+            if (companion.delete()) bytes += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param path The path of a file in the save directory
+     * @return The file path of the GeoPackage that the file belongs to, or null if it is not part of
+     * a session.
+     */
+    private static String getGpkgFilePath(String path) {
+        if (path.endsWith(GPKG_FILE_SUFFIX)) return path;
+
+        for (String suffix : COMPANION_FILE_SUFFIXES) {
+            if (path.endsWith(suffix)) {
+                String gpkgFilePath = path.substring(0, path.length() - suffix.length());
+                return gpkgFilePath.endsWith(GPKG_FILE_SUFFIX) ? gpkgFilePath : null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Groups the inserts for several GNSS epochs into a single SQLite transaction. Without this, every
+ * row is written in its own autocommit transaction, which costs one fsync per row.
+ * <p>
+ * A window is committed once it holds the configured number of epochs or once the configured time
+ * has passed since the window was opened, whichever comes first. Android binds SQLite transactions
+ * to the thread that began them, so the batcher must only be used by one thread at a time, and a
+ * window must be committed on the thread that opened it. While recording, that is the
+ * {@link GeoPackageRecorder} thread. Once the recorder has committed its last window and handed
+ * the database off to be materialized, recovered or closed, the recorder's file executor uses it
+ * instead.
+ */
+class TransactionBatcher {
+    private static final String TAG = "GPSMonkey.TxBatcher";
+
+    /**
+     * Notified right before a window is committed, so that state kept in memory during the window
+     * can be written as part of the same transaction.
+     */
+    interface CheckpointListener {
+        void onCheckpoint();
+    }
+
+    /**
+     * Notified right after a window has been committed, so that anything kept only until its rows
+     * are durable can be released.
+     */
+    interface CommitListener {
+        void onCommitted();
+    }
+
+    private final int maxEpochs;
+    private final long maxWindowMs;
+    private CheckpointListener checkpointListener;
+    private CommitListener commitListener;
+
+    private SQLiteDatabase db;
+    private int epochsInWindow;
+    private long windowStartMs;
+
+    /**
+     * @param maxEpochs   The number of epochs to gather before committing; values less than one
+     *                    commit every epoch
+     * @param maxWindowMs The maximum time to keep a window open, in milliseconds
+     */
+    TransactionBatcher(int maxEpochs, long maxWindowMs) {
+        this.maxEpochs = Math.max(1, maxEpochs);
+        this.maxWindowMs = Math.max(0L, maxWindowMs);
+    }
+
+    /**
+     * @param listener Notified right before each window is committed, or null
+     */
+    void setCheckpointListener(CheckpointListener listener) {
+        checkpointListener = listener;
+    }
+
+    /**
+     * @param listener Notified right after each window is committed, or null
+     */
+    void setCommitListener(CommitListener listener) {
+        commitListener = listener;
+    }
+
+    /**
+     * Sets the database that subsequent windows are opened on.
+     *
+     * @param db The database, or null to detach
+     */
+    void attach(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Opens a new window if one is not already open. Writes performed after this call are part of
+     * the current window's transaction.
+     */
+    void begin() {
+        if ((db == null) || db.inTransaction()) return;
+
+        db.beginTransaction();
+        epochsInWindow = 0;
+        windowStartMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records that a complete epoch has been written to the current window, and commits the window
+     * if it is full.
+     */
+    void onEpochWritten() {
+        epochsInWindow++;
+        if ((epochsInWindow >= maxEpochs) || isWindowExpired()) {
+            commit();
+        }
+    }
+
+    /**
+     * @return True if a window is open and has been open for longer than the maximum window time.
+     */
+    boolean isWindowExpired() {
+        return (db != null) && db.inTransaction()
+                && (SystemClock.elapsedRealtime() - windowStartMs >= maxWindowMs);
+    }
+
+    /**
+     * @return The maximum time to keep a window open, in milliseconds.
+     */
+    long getMaxWindowMs() {
+        return maxWindowMs;
+    }
+
+    /**
+     * Commits the current window, if one is open.
+     */
+    void commit() {
+        if ((db == null) || !db.inTransaction()) return;
+
+        boolean committed = false;
+        try {
+            if (checkpointListener != null) {
+                try {
+                    checkpointListener.onCheckpoint();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error writing GeoPackage checkpoint", e);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            try {
+                db.endTransaction();
+                committed = true;
+            } catch (Exception e) {
+                Log.e(TAG, "Error committing GeoPackage transaction", e);
+            }
+            epochsInWindow = 0;
+        }
+
+        if (committed && (commitListener != null)) {
+            commitListener.onCommitted();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.gpstest;
+
+import com.android.gpstest.io.AsyncLogWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class AsyncLogWriterTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("gnss_log", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Test that everything written, including records larger than a chunk, is in the file in order
+     * once the writer is closed
+     */
+    @Test
+    public void testWriteAndClose() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        AsyncLogWriter writer = new AsyncLogWriter(new FileOutputStream(mFile).getChannel());
+        for (int i = 0; i < 20_000; i++) {
+            byte[] record = ("Raw," + i + ",1234567890,0.25,41.5\n").getBytes(StandardCharsets.UTF_8);
+            writer.write(record, 0, record.length);
+            expected.write(record, 0, record.length);
+        }
+        byte[] large = new byte[100_000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        writer.write(large, 0, large.length);
+        expected.write(large, 0, large.length);
+        writer.write('\n');
+        expected.write('\n');
+        writer.close();
+
+        assertEquals(0L, writer.getDroppedBytes());
+        assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+                new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.UTF_8));
+
+        try {
+            writer.write('x');
+            fail("Writing after close should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that flushed bytes reach the file within the flush interval, without closing the writer
+     */
+    @Test
+    public void testTimedFlush() throws IOException, InterruptedException {
+        AsyncLogWriter writer = new AsyncLogWriter(new FileOutputStream(mFile).getChannel(), 50);
+        byte[] record = "Fix,gps,38.9,-76.5\n".getBytes(StandardCharsets.UTF_8);
+        writer.write(record, 0, record.length);
+        writer.flush();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mFile.length() < record.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(record.length, mFile.length());
+        writer.close();
+        assertEquals(record.length, mFile.length());
+    }
+
+    /**
+     * Test that written bytes reach the file once the flush interval has passed, even without a
+     * later write or flush to hand over the partly filled chunk
+     */
+    @Test
+    public void testStaleChunk() throws IOException, InterruptedException {
+        AsyncLogWriter writer = new AsyncLogWriter(new FileOutputStream(mFile).getChannel(), 50);
+        byte[] record = "Fix,gps,38.9,-76.5\n".getBytes(StandardCharsets.UTF_8);
+        writer.write(record, 0, record.length);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mFile.length() < record.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(record.length, mFile.length());
+
+        writer.write(record, 0, record.length);
+        writer.close();
+        assertEquals(2 * record.length, mFile.length());
+    }
+
+    /**
+     * Test that a write that does not fit in the chunks that are left is dropped whole, without
+     * leaving part of it in the file
+     */
+    @Test
+    public void testDropWholeWrite() throws IOException {
+        AsyncLogWriter writer = new AsyncLogWriter(new FileOutputStream(mFile).getChannel());
+        byte[] tooLarge = new byte[5 * 1024 * 1024];
+        writer.write(tooLarge, 0, tooLarge.length);
+        byte[] record = "Fix,gps,38.9,-76.5\n".getBytes(StandardCharsets.UTF_8);
+        writer.write(record, 0, record.length);
+        writer.close();
+
+        assertEquals(1L, writer.getDroppedWrites());
+        assertEquals(tooLarge.length, writer.getDroppedBytes());
+        assertEquals(record.length, mFile.length());
+    }
+
+    /**
+     * Test that a compressed file can be read up to the last sync flush while it is still open, and
+     * completely once it is closed
+     */
+    @Test
+    public void testCompressed() throws IOException, InterruptedException {
+        AsyncLogWriter writer = new AsyncLogWriter(new FileOutputStream(mFile).getChannel(), 50, true);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String record = "NMEA,$GPGSV,3,1,11,10,63,137,17*70," + (1561000000000L + i) + "\n";
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            writer.write(bytes, 0, bytes.length);
+            expected.append(record);
+        }
+        writer.flush();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (readCompressed().length() < expected.length() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected.toString(), readCompressed());
+
+        writer.write('\n');
+        expected.append('\n');
+        writer.close();
+        assertEquals(expected.toString(), readCompressed());
+        assertTrue(mFile.length() < expected.length() / 5);
+    }
+
+    /**
+     * Reads as much of the compressed file as can be decompressed, which is everything up to the
+     * last sync flush if the stream has not been finished
+     */
+    private String readCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (mFile.length() == 0) {
+            return "";
+        }
+        try (InputStream in = new GZIPInputStream(new FileInputStream(mFile))) {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } catch (EOFException e) {
+            // The stream has not been finished yet
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.gpstest;
+
+import com.android.gpstest.io.CompactRawLogConverter;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class CompactRawLogConverterTest {
+
+    private static final String COMPACT_HEADER = "# \n"
+            + "# Header Description:\n"
+            + "# \n"
+            + "# Compact raw GNSS measurements format, version 1:\n"
+            + "#   Clock,ClockId,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
+            + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
+            + "HardwareClockDiscontinuityCount\n"
+            + "#   Meas,ClockId,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+            + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+            + "PseudorangeRateUncertaintyMetersPerSecond,"
+            + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+            + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
+            + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
+            + "ConstellationType,AgcDb,CarrierFrequencyHz\n"
+            + "# \n";
+
+    private static final String RAW_HEADER = "# \n"
+            + "# Header Description:\n"
+            + "# \n"
+            + "# Raw GNSS measurements format:\n"
+            + "#   Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
+            + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
+            + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+            + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+            + "PseudorangeRateUncertaintyMetersPerSecond,"
+            + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+            + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
+            + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
+            + "ConstellationType,AgcDb,CarrierFrequencyHz\n"
+            + "# \n";
+
+    private static final String CLOCK_0 = "5000,123456789,18,,-1234567890123456789,0.25,12.5,-0.5,3.5,2";
+    private static final String CLOCK_1 = "6000,1123456789,,,-1234567890123456789,0.5,,,,2";
+    private static final String MEASUREMENT_A = "24,0.0,16431,345600012345678,20,38.25,-512.5,0.05,16,1.5,0.001,"
+            + "1.57542003E9,,,,0,,1,,1.57542003E9";
+    private static final String MEASUREMENT_B = "7,0.0,16431,345600012345679,20,41.0,100.5,0.1,0,0.0,0.0,,,,,0,,3,,";
+
+    /**
+     * Test that the header and the clock and measurement records of a compact raw log are expanded
+     * into the GNSSLogger layout, and that the other records are copied as they are
+     */
+    @Test
+    public void testConvert() throws IOException {
+        String compact = COMPACT_HEADER
+                + "Fix,gps,38.900000,-76.500000,12.000000,0.500000,4.000000,1561000000000\n"
+                + "Clock,0," + CLOCK_0 + "\n"
+                + "Meas,0," + MEASUREMENT_A + "\n"
+                + "Meas,0," + MEASUREMENT_B + "\n"
+                + "NMEA,$GPGGA,1561000000500\n"
+                + "Clock,1," + CLOCK_1 + "\n"
+                + "Meas,1," + MEASUREMENT_A + "\n";
+        String expected = RAW_HEADER
+                + "Fix,gps,38.900000,-76.500000,12.000000,0.500000,4.000000,1561000000000\n"
+                + "Raw," + CLOCK_0 + "," + MEASUREMENT_A + "\n"
+                + "Raw," + CLOCK_0 + "," + MEASUREMENT_B + "\n"
+                + "NMEA,$GPGGA,1561000000500\n"
+                + "Raw," + CLOCK_1 + "," + MEASUREMENT_A + "\n";
+
+        assertEquals(expected, convert(compact));
+
+        // A log that is already in the GNSSLogger layout is left as it is
+        assertEquals(expected, convert(expected));
+    }
+
+    /**
+     * Test that logs from a newer version of the format, and measurements without their clock, are
+     * rejected
+     */
+    @Test
+    public void testInvalid() {
+        assertInvalid("# Compact raw GNSS measurements format, version 2:\n");
+        assertInvalid("Meas,0," + MEASUREMENT_A + "\n");
+        assertInvalid("Clock,0," + CLOCK_0 + "\nMeas,1," + MEASUREMENT_A + "\n");
+        assertInvalid("Clock,10," + CLOCK_0 + "\nMeas,1," + MEASUREMENT_A + "\n");
+    }
+
+    private static void assertInvalid(String compact) {
+        try {
+            convert(compact);
+            fail("Conversion should fail: " + compact);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static String convert(String compact) throws IOException {
+        StringWriter out = new StringWriter();
+        try (BufferedWriter writer = new BufferedWriter(out)) {
+            CompactRawLogConverter.convert(new BufferedReader(new StringReader(compact)), writer);
+        }
+        return out.toString().replace(System.lineSeparator(), "\n");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.gpstest;
+
+import com.android.gpstest.io.LogFileIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class LogFileIndexTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("gnss_log", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * Test that the oldest files are pruned down to the maximum count, that the open file is kept,
+     * and that files without data are deleted when the directory is indexed
+     */
+    @Test
+    public void testPrune() throws IOException {
+        File oldest = createFile("gnss_log_2019_09_11_13_09_50.txt", 2000);
+        File empty = createFile("gnss_log_2019_09_11_14_00_00.txt", 10);
+        File older = createFile("gnss_log_2019_09_11_15_00_00.txt.gz", 600);
+        File emptyCompressed = createFile("gnss_log_2019_09_11_15_30_00.txt.gz", 20);
+        File newer = createFile("gnss_log_2019_09_12_08_00_00.txt", 2000);
+        File open = createFile("gnss_log_2019_09_12_09_00_00.txt", 0);
+
+        LogFileIndex index = new LogFileIndex(mDirectory, 2);
+        index.onFileStarted(open);
+        assertEquals(4, index.getFileCount());
+        assertFalse(empty.exists());
+        assertFalse(emptyCompressed.exists());
+        assertTrue(open.exists());
+
+        assertEquals(2, index.prune());
+        assertFalse(oldest.exists());
+        assertFalse(older.exists());
+        assertTrue(newer.exists());
+        assertTrue(open.exists());
+
+        // A rotation starts the next file, then closes and indexes the previous one
+        File next = createFile("gnss_log_2019_09_12_09_00_00_1.txt", 0);
+        index.onFileStarted(next);
+        writeBytes(open, 5000);
+        index.onFileClosed(open);
+        assertEquals(3, index.getFileCount());
+        assertEquals(1, index.prune());
+        assertFalse(newer.exists());
+        assertTrue(open.exists());
+        assertTrue(next.exists());
+
+        // A file that was closed before it held any data is deleted
+        index.onFileClosed(next);
+        assertFalse(next.exists());
+        assertEquals(1, index.getFileCount());
+    }
+
+    private File createFile(String name, int bytes) throws IOException {
+        File file = new File(mDirectory, name);
+        writeBytes(file, bytes);
+        return file;
+    }
+
+    private static void writeBytes(File file, int bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[bytes]);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017-2019 The Android Open Source Project, Sean J. Barbeau
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.gpstest;
+
+import com.android.gpstest.io.LogRecordFormatter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class LogRecordFormatterTest {
+
+    private static final double[] DOUBLES = {0.0, -0.0, 1.0, -1.0, 0.1, 0.5, 38.9, -76.48912345678901,
+            12.345678949999999, 0.0000005, 0.0000004999, 0.00000049999999999, 1.0E-5, 2.5E-7, 999999.9999995,
+            9.9999995, 123456789.123, 1.0E7, 1.2345678E7, 1.0E23, 4.35E-320, Double.MIN_VALUE, Double.MAX_VALUE,
+            (double) 4.1f, (double) 0.3f, 1575420030.0, 3.4028234663852886E38, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+    /**
+     * Test that integers are formatted as String.valueOf() formats them
+     */
+    @Test
+    public void testIntegers() {
+        LogRecordFormatter formatter = new LogRecordFormatter();
+        long[] values = {0L, 1L, -1L, 9L, 10L, -10L, 16431L, 345600012345678L, Integer.MAX_VALUE,
+                Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            assertEquals(String.valueOf(value), format(formatter.reset().append(value)));
+        }
+        assertEquals("-128", format(formatter.reset().append((byte) -128)));
+        assertEquals("2147483647", format(formatter.reset().append(Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Test that doubles and floats are formatted as String.valueOf() formats them
+     */
+    @Test
+    public void testFloatingPoint() {
+        LogRecordFormatter formatter = new LogRecordFormatter();
+        for (double value : DOUBLES) {
+            assertEquals(String.valueOf(value), format(formatter.reset().append(value)));
+            assertEquals(String.valueOf((float) value), format(formatter.reset().append((float) value)));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            assertEquals(String.valueOf(value), format(formatter.reset().append(value)));
+            float floatValue = Float.intBitsToFloat(random.nextInt());
+            assertEquals(String.valueOf(floatValue), format(formatter.reset().append(floatValue)));
+        }
+    }
+
+    /**
+     * Test that fixed decimal places are formatted as the %f conversion of String.format() formats
+     * them, including values that round up into a new digit and values that round to zero
+     */
+    @Test
+    public void testFixed() {
+        LogRecordFormatter formatter = new LogRecordFormatter();
+        for (double value : DOUBLES) {
+            assertEquals(String.format(Locale.US, "%f", value), format(formatter.reset().appendFixed(value, 6)));
+            assertEquals(String.format(Locale.US, "%.1f", value), format(formatter.reset().appendFixed(value, 1)));
+            assertEquals(String.format(Locale.US, "%.0f", value), format(formatter.reset().appendFixed(value, 0)));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // Coordinates, altitudes, speeds and accuracies, and the occasional value of any size
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble() * 360.0 - 180.0;
+                    break;
+                case 1:
+                    value = (float) (random.nextDouble() * 100.0);
+                    break;
+                case 2:
+                    value = Math.round(random.nextDouble() * 1.0E9) / 1.0E7;
+                    break;
+                default:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+            }
+            assertEquals(String.format(Locale.US, "%f", value), format(formatter.reset().appendFixed(value, 6)));
+        }
+    }
+
+    /**
+     * Test that a Raw record matches the text of the String.format() calls it replaces, and that
+     * non-ASCII text is encoded as UTF-8
+     */
+    @Test
+    public void testRecord() throws IOException {
+        LogRecordFormatter formatter = new LogRecordFormatter();
+        String expected = String.format("Raw,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+                123456L, 4567891234L, "", 12.5, -1234567890123456789L, 0.25, "", -0.5, "", 2 + ",")
+                + String.format("%s,%s,%s,%s,%s,%s,%s,%s", 24, 0.0, 16431, 345600012345678L, 20L, 38.3,
+                -512.5123456789, 0.05f)
+                + System.lineSeparator();
+
+        formatter.reset().append("Raw").append(',').append(123456L).append(',').append(4567891234L).append(',')
+                .append(',').append(12.5).append(',').append(-1234567890123456789L).append(',').append(0.25)
+                .append(',').append(',').append(-0.5).append(',').append(',').append(2).append(',')
+                .append(24).append(',').append(0.0).append(',').append(16431).append(',').append(345600012345678L)
+                .append(',').append(20L).append(',').append(38.3).append(',').append(-512.5123456789).append(',')
+                .append(0.05f).newLine();
+        assertEquals(expected, format(formatter));
+
+        String model = "Pixel \u00e9\u4e2d\ud83d\ude00";
+        formatter.reset().append(model);
+        assertEquals(model, format(formatter));
+
+        // The buffer grows as needed
+        StringBuilder longLine = new StringBuilder();
+        formatter.reset();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append(i).append(',');
+            formatter.append(i).append(',');
+        }
+        assertEquals(longLine.toString(), format(formatter));
+    }
+
+    private static String format(LogRecordFormatter formatter) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            formatter.writeTo(out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
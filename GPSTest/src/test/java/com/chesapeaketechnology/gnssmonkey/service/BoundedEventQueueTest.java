@@ -0,0 +1,115 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class BoundedEventQueueTest {
+
+    /**
+     * Test that events come out in the order they went in
+     */
+    @Test
+    public void testFifoOrder() {
+        BoundedEventQueue<Integer> queue = new BoundedEventQueue<>(4, BoundedEventQueue.OverflowPolicy.DROP_OLDEST, 0, null);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(i));
+        }
+
+        assertEquals(3, queue.size());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertNull(queue.poll());
+        assertEquals(3, queue.getEnqueuedCount());
+        assertEquals(3, queue.getHighWaterMark());
+    }
+
+    /**
+     * Test that the oldest event is dropped, and reported, when the queue is full
+     */
+    @Test
+    public void testDropOldest() {
+        final List<Integer> dropped = new ArrayList<>();
+        BoundedEventQueue<Integer> queue = new BoundedEventQueue<>(4, BoundedEventQueue.OverflowPolicy.DROP_OLDEST, 0, dropped::add);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.offer(i));
+        }
+
+        assertEquals(4, queue.capacity());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(0), dropped.get(0));
+        assertEquals(Integer.valueOf(1), dropped.get(1));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(4, queue.getHighWaterMark());
+    }
+
+    /**
+     * Test that a full queue using the block policy gives up on the new event after the block time
+     */
+    @Test
+    public void testBlockTimesOut() {
+        BoundedEventQueue<Integer> queue = new BoundedEventQueue<>(2, BoundedEventQueue.OverflowPolicy.BLOCK, 5, null);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(1), queue.poll());
+    }
+
+    /**
+     * Test that status events are coalesced and delivered after the events queued before them
+     */
+    @Test
+    public void testCoalesceStatus() {
+        BoundedEventQueue<String> queue = new BoundedEventQueue<>(2, BoundedEventQueue.OverflowPolicy.COALESCE_STATUS, 0, null);
+        assertTrue(queue.offer("measurement 1"));
+        assertTrue(queue.offerCoalescing("status 1"));
+        assertTrue(queue.offerCoalescing("status 2"));
+        assertTrue(queue.offer("measurement 2"));
+
+        // The ring is full, so new non-status events are dropped
+        assertFalse(queue.offer("measurement 3"));
+        assertEquals(2, queue.getDroppedCount());
+
+        assertEquals("measurement 1", queue.poll());
+        assertEquals("status 2", queue.poll());
+        assertEquals("measurement 2", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * Test that nothing is lost or duplicated when a producer and consumer run concurrently
+     */
+    @Test
+    public void testConcurrentProducerConsumer() throws InterruptedException {
+        final int count = 100000;
+        final BoundedEventQueue<Integer> queue = new BoundedEventQueue<>(64, BoundedEventQueue.OverflowPolicy.BLOCK, 10000, null);
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer(i);
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        while (expected < count) {
+            Integer value = queue.poll();
+            if (value != null) {
+                assertEquals(expected, value.intValue());
+                expected++;
+            }
+        }
+        producer.join();
+
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.getHighWaterMark() <= 64);
+    }
+}
@@ -0,0 +1,242 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class CaptureLogTest {
+
+    /**
+     * Test that epochs and statuses are read back as they were appended, including after the log
+     * has grown past its initial size
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = File.createTempFile("capture", CaptureLog.FILE_SUFFIX);
+        try {
+            try (CaptureLog log = CaptureLog.create(file, 256)) {
+                for (int i = 0; i < 100; i++) {
+                    log.appendEpoch(createEpoch(i));
+                    if ((i % 10) == 0) {
+                        log.appendStatus(createStatus(i));
+                    }
+                }
+                log.appendMotion(createMotion());
+            }
+
+            RecordingVisitor visitor = new RecordingVisitor();
+            assertEquals(111, CaptureLog.read(file, visitor));
+            assertEquals(100, visitor.epochTimes.size());
+            assertEquals(10, visitor.statusCounts.size());
+
+            GnssEpochRecord expected = createEpoch(99);
+            GnssEpochRecord last = visitor.lastEpoch;
+            assertEquals(99L * 1_000_000_000L, (long) visitor.epochTimes.get(99));
+            assertEquals(expected.count, last.count);
+            assertEquals(expected.fullBiasNanos, last.fullBiasNanos);
+            assertTrue(last.hasFullBiasNanos);
+            assertFalse(last.hasLeapSecond);
+            for (int m = 0; m < expected.count; m++) {
+                assertEquals(expected.svid[m], last.svid[m]);
+                assertEquals(expected.cn0DbHz[m], last.cn0DbHz[m]);
+                assertEquals(expected.receivedSvTimeNanos[m], last.receivedSvTimeNanos[m]);
+                assertEquals(expected.carrierFrequencyHz[m], last.carrierFrequencyHz[m]);
+                assertEquals(expected.hasCarrierFrequency(m), last.hasCarrierFrequency(m));
+            }
+            assertEquals(3, (int) visitor.statusCounts.get(9));
+            assertEquals(45f, visitor.lastStatus.elevationDegrees[1]);
+            assertTrue(visitor.lastStatus.hasFlag(1, GnssStatusRecord.FLAG_USED_IN_FIX));
+
+            MotionBatch motion = visitor.lastMotion;
+            assertEquals(2, motion.count);
+            assertEquals(5_000_000L, motion.timeNanos[1]);
+            assertEquals(-9.81f, motion.accel[5]);
+            assertEquals(0.25f, motion.gyro[3]);
+            assertEquals(1013.25f, motion.pressureHpa[1]);
+            assertTrue(motion.hasFlag(1, MotionBatch.FLAG_HAS_PRESSURE));
+            assertFalse(motion.hasFlag(0, MotionBatch.FLAG_HAS_PRESSURE));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that a record which was only partly written is ignored along with everything after it
+     */
+    @Test
+    public void testTornRecord() throws IOException {
+        File file = File.createTempFile("capture", CaptureLog.FILE_SUFFIX);
+        try {
+            try (CaptureLog log = CaptureLog.create(file, 1024)) {
+                for (int i = 0; i < 5; i++) {
+                    log.appendEpoch(createEpoch(i));
+                }
+            }
+
+            // Damage a byte in the payload of the last record
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.seek(out.length() - 10);
+                out.write(0x5A);
+            }
+
+            RecordingVisitor visitor = new RecordingVisitor();
+            assertEquals(4, CaptureLog.read(file, visitor));
+            assertEquals(3L * 1_000_000_000L, (long) visitor.epochTimes.get(3));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that a rewound log only reads back the records appended since the rewind, even where
+     * longer records from before the rewind have not been overwritten, and that it records the
+     * position it was rewound to
+     */
+    @Test
+    public void testRewind() throws IOException {
+        File file = File.createTempFile("capture", CaptureLog.RECOVERY_FILE_SUFFIX);
+        try {
+            try (CaptureLog log = CaptureLog.create(file, 1024)) {
+                for (int i = 0; i < 10; i++) {
+                    log.appendEpoch(createEpoch(i));
+                }
+                log.rewind(10);
+                assertEquals(0, CaptureLog.read(file, new RecordingVisitor()));
+
+                log.appendStatus(createStatus(1));
+                log.appendEpoch(createEpoch(20));
+                log.force();
+
+                RecordingVisitor visitor = new RecordingVisitor();
+                assertEquals(2, CaptureLog.read(file, visitor));
+                assertEquals(20L * 1_000_000_000L, (long) visitor.epochTimes.get(0));
+                assertEquals(1, visitor.statusCounts.size());
+
+                try (CaptureLog.Reader reader = new CaptureLog.Reader(file)) {
+                    assertEquals(10L, reader.getStartPosition());
+                }
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that the reader can skip records without decoding them and stop part way through
+     */
+    @Test
+    public void testReaderSkip() throws IOException {
+        File file = File.createTempFile("capture", CaptureLog.FILE_SUFFIX);
+        try {
+            try (CaptureLog log = CaptureLog.create(file, 1024)) {
+                for (int i = 0; i < 6; i++) {
+                    log.appendEpoch(createEpoch(i));
+                }
+            }
+
+            RecordingVisitor visitor = new RecordingVisitor();
+            try (CaptureLog.Reader reader = new CaptureLog.Reader(file)) {
+                assertTrue(reader.next(null));
+                assertTrue(reader.next(null));
+                assertTrue(reader.next(visitor));
+                assertTrue(reader.next(visitor));
+            }
+            assertEquals(2, visitor.epochTimes.size());
+            assertEquals(2L * 1_000_000_000L, (long) visitor.epochTimes.get(0));
+            assertEquals("GNSS-MONKEY.gpkg", CaptureLog.getGpkgFilePath(new File("GNSS-MONKEY.gpkg.caplog")));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static GnssEpochRecord createEpoch(int index) {
+        GnssEpochRecord epoch = new GnssEpochRecord();
+        epoch.captureTimeMillis = 1_600_000_000_000L + index * 1000L;
+        epoch.elapsedRealtimeNanos = index * 1_000_000_000L;
+        epoch.timeNanos = index * 1_000_000_000L + 17L;
+        epoch.hasFullBiasNanos = true;
+        epoch.fullBiasNanos = -1_234_567_890_123L - index;
+        epoch.count = 3 + (index % 4);
+        for (int m = 0; m < epoch.count; m++) {
+            epoch.svid[m] = m + 1;
+            epoch.constellationType[m] = 1;
+            epoch.cn0DbHz[m] = 30.5 + m;
+            epoch.receivedSvTimeNanos[m] = index * 1_000_000L + m;
+            if ((m % 2) == 0) {
+                epoch.flags[m] = GnssEpochRecord.FLAG_HAS_CARRIER_FREQUENCY;
+                epoch.carrierFrequencyHz[m] = 1575.42e6f;
+            }
+        }
+        return epoch;
+    }
+
+    private static GnssStatusRecord createStatus(int index) {
+        GnssStatusRecord status = new GnssStatusRecord();
+        status.count = 3;
+        for (int i = 0; i < status.count; i++) {
+            status.svid[i] = index + i;
+            status.constellationType[i] = 3;
+            status.flags[i] = (i == 1) ? GnssStatusRecord.FLAG_USED_IN_FIX : 0;
+            status.elevationDegrees[i] = 45f * i;
+            status.azimuthDegrees[i] = 90f * i;
+        }
+        return status;
+    }
+
+    private static MotionBatch createMotion() {
+        MotionBatch batch = new MotionBatch(2, null);
+        for (int row = 0; row < 2; row++) {
+            batch.timeNanos[row] = row * 5_000_000L;
+            batch.flags[row] = MotionBatch.FLAG_HAS_ACCEL | MotionBatch.FLAG_HAS_GYRO
+                    | ((row == 1) ? MotionBatch.FLAG_HAS_PRESSURE : 0);
+            batch.accel[row * 3 + 2] = -9.81f;
+            batch.gyro[row * 3] = 0.25f;
+            batch.pressureHpa[row] = (row == 1) ? 1013.25f : 0f;
+        }
+        batch.count = 2;
+        return batch;
+    }
+
+    private static class RecordingVisitor implements CaptureLog.Visitor {
+        private final List<Long> epochTimes = new ArrayList<>();
+        private final List<Integer> statusCounts = new ArrayList<>();
+        private GnssEpochRecord lastEpoch;
+        private GnssStatusRecord lastStatus;
+        private MotionBatch lastMotion;
+
+        @Override
+        public void onEpoch(GnssEpochRecord epoch) {
+            epochTimes.add(epoch.elapsedRealtimeNanos);
+            lastEpoch = epoch;
+        }
+
+        @Override
+        public void onLocation(Location location) {
+        }
+
+        @Override
+        public void onStatus(GnssStatusRecord status) {
+            statusCounts.add(status.count);
+            lastStatus = status;
+        }
+
+        @Override
+        public void onMotion(MotionBatch batch) {
+            lastMotion = batch;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ColumnCodecTest {
+
+    /**
+     * Test that integer and long columns decode back to the original values, with and without
+     * delta encoding, and that sorted SVIDs take a byte each
+     */
+    @Test
+    public void testIntegerRoundTrip() {
+        ColumnCodec codec = new ColumnCodec();
+        int[] svids = {2, 5, 6, 12, 13, 19, 24, 25, 29, 32};
+        byte[] encoded = codec.encodeInts(svids, svids.length, true);
+        assertEquals(1 + svids.length, encoded.length);
+
+        int[] decoded = new int[svids.length];
+        assertEquals(svids.length, ColumnCodec.decodeInts(encoded, decoded));
+        for (int i = 0; i < svids.length; i++) {
+            assertEquals(svids[i], decoded[i]);
+        }
+
+        int[] flags = {0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 16399};
+        int[] decodedFlags = new int[flags.length];
+        assertEquals(flags.length, ColumnCodec.decodeInts(codec.encodeInts(flags, flags.length, false), decodedFlags));
+        assertEquals(Integer.MIN_VALUE, decodedFlags[3]);
+        assertEquals(16399, decodedFlags[4]);
+        assertEquals(flags.length, ColumnCodec.decodeInts(codec.encodeInts(flags, flags.length, true), decodedFlags));
+        assertEquals(Integer.MAX_VALUE, decodedFlags[2]);
+        assertEquals(Integer.MIN_VALUE, decodedFlags[3]);
+
+        long[] svTimes = {345_600_012_345_678L, 345_600_070_001_234L, Long.MIN_VALUE, Long.MAX_VALUE, 0L};
+        long[] decodedTimes = new long[svTimes.length];
+        assertEquals(svTimes.length, ColumnCodec.decodeLongs(codec.encodeLongs(svTimes, svTimes.length, true), decodedTimes));
+        for (int i = 0; i < svTimes.length; i++) {
+            assertEquals(svTimes[i], decodedTimes[i]);
+        }
+    }
+
+    /**
+     * Test that floating point columns decode back to exactly the original values, and that
+     * values widened from floats are stored in fewer than eight bytes each
+     */
+    @Test
+    public void testFloatingPointRoundTrip() {
+        ColumnCodec codec = new ColumnCodec();
+        double[] cn0 = new double[40];
+        for (int i = 0; i < cn0.length; i++) {
+            cn0[i] = (float) (25.0 + i * 0.37);
+        }
+        cn0[7] = cn0[6];
+        cn0[8] = Double.NaN;
+        cn0[9] = -0.0;
+
+        byte[] encoded = codec.encodeDoubles(cn0, cn0.length);
+        assertTrue(encoded.length < cn0.length * 8);
+
+        double[] decoded = new double[cn0.length];
+        assertEquals(cn0.length, ColumnCodec.decodeDoubles(encoded, decoded));
+        for (int i = 0; i < cn0.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(cn0[i]), Double.doubleToRawLongBits(decoded[i]));
+        }
+
+        float[] elevations = {12.5f, 12.5f, 45f, -3.25f, Float.MAX_VALUE, 0f};
+        float[] decodedElevations = new float[elevations.length];
+        assertEquals(elevations.length, ColumnCodec.decodeFloats(codec.encodeFloats(elevations, elevations.length),
+                decodedElevations));
+        for (int i = 0; i < elevations.length; i++) {
+            assertEquals(elevations[i], decodedElevations[i]);
+        }
+
+        // An epoch without measurements still has a format byte
+        assertEquals(0, ColumnCodec.decodeDoubles(codec.encodeDoubles(cn0, 0), decoded));
+    }
+
+    /**
+     * Test that a column is not decoded as the wrong type
+     */
+    @Test
+    public void testWrongFormat() {
+        ColumnCodec codec = new ColumnCodec();
+        byte[] encoded = codec.encodeDoubles(new double[]{1.0}, 1);
+        try {
+            ColumnCodec.decodeInts(encoded, new int[1]);
+            fail("Decoded a double column as integers");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+
+        try {
+            ColumnCodec.decodeLongs(new byte[]{2, (byte) 0x80}, new long[1]);
+            fail("Decoded a truncated column");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class DataDumpCodecTest {
+
+    /**
+     * Test that compressed text decodes back to the original text
+     */
+    @Test
+    public void testRoundTrip() {
+        DataDumpCodec codec = new DataDumpCodec();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("GnssMeasurement: Svid=").append(i).append(" Cn0DbHz=").append(30.0 + i / 10.0).append('\n');
+        }
+
+        byte[] encoded = codec.encode(text.toString());
+        assertTrue(encoded.length < text.length());
+        assertEquals(text.toString(), DataDumpCodec.decode(encoded));
+
+        // The codec is reused between rows
+        assertEquals("GnssClock: TimeNanos=1", DataDumpCodec.decode(codec.encode("GnssClock: TimeNanos=1")));
+        assertEquals("", DataDumpCodec.decode(codec.encode("")));
+        codec.close();
+    }
+
+    /**
+     * Test decoding values stored with the text and no data dump encodings
+     */
+    @Test
+    public void testDecodeTextAndEmpty() {
+        assertEquals("Location[gps 38.9,-76.8]", DataDumpCodec.decode("Location[gps 38.9,-76.8]"));
+        assertEquals("", DataDumpCodec.decode(null));
+        assertEquals("", DataDumpCodec.decode(new byte[0]));
+    }
+
+    /**
+     * Test that an unknown format is rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormat() {
+        DataDumpCodec.decode(new byte[]{42, 0});
+    }
+}
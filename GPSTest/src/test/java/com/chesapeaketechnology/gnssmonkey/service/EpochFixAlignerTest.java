@@ -0,0 +1,89 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+public class EpochFixAlignerTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    private final List<long[]> matches = new ArrayList<>();
+    private EpochFixAligner aligner;
+
+    @Before
+    public void setUp() {
+        matches.clear();
+        aligner = new EpochFixAligner(4, SECOND / 2, (pointId, first, last) -> matches.add(new long[]{pointId, first, last}));
+    }
+
+    /**
+     * Test that an epoch waits for the next fix and is matched to whichever fix is nearer
+     */
+    @Test
+    public void testNearestFix() {
+        aligner.addFix(10 * SECOND, 1L);
+        aligner.addEpoch(10 * SECOND + SECOND / 10, 100L, 120L);
+        aligner.addEpoch(10 * SECOND + 8 * SECOND / 10, 121L, 140L);
+        assertEquals(0, matches.size());
+        assertEquals(2, aligner.getPendingEpochCount());
+
+        aligner.addFix(11 * SECOND, 2L);
+        assertEquals(2, matches.size());
+        assertMatch(matches.get(0), 1L, 100L, 120L);
+        assertMatch(matches.get(1), 2L, 121L, 140L);
+        assertEquals(0, aligner.getPendingEpochCount());
+    }
+
+    /**
+     * Test that an epoch arriving after a later fix is matched immediately
+     */
+    @Test
+    public void testLateEpoch() {
+        aligner.addFix(10 * SECOND, 1L);
+        aligner.addFix(11 * SECOND, 2L);
+        aligner.addEpoch(10 * SECOND + 3 * SECOND / 10, 100L, 110L);
+        assertEquals(1, matches.size());
+        assertMatch(matches.get(0), 1L, 100L, 110L);
+    }
+
+    /**
+     * Test that epochs without a fix within the tolerance are not matched
+     */
+    @Test
+    public void testTolerance() {
+        aligner.addFix(10 * SECOND, 1L);
+        aligner.addEpoch(12 * SECOND, 100L, 110L);
+        aligner.addFix(14 * SECOND, 2L);
+        assertEquals(0, matches.size());
+
+        // Flushing matches the remaining epochs against the fixes already seen
+        aligner.addEpoch(14 * SECOND + SECOND / 4, 111L, 120L);
+        aligner.flush();
+        assertEquals(1, matches.size());
+        assertMatch(matches.get(0), 2L, 111L, 120L);
+    }
+
+    /**
+     * Test that the oldest epoch is resolved when the buffer is full
+     */
+    @Test
+    public void testOverflow() {
+        aligner.addFix(10 * SECOND, 1L);
+        for (int i = 0; i < 5; i++) {
+            aligner.addEpoch(10 * SECOND + (i + 1) * SECOND / 10, i * 10L, i * 10L + 9L);
+        }
+        assertEquals(1, matches.size());
+        assertMatch(matches.get(0), 1L, 0L, 9L);
+        assertEquals(4, aligner.getPendingEpochCount());
+    }
+
+    private static void assertMatch(long[] match, long pointId, long first, long last) {
+        assertEquals(pointId, match[0]);
+        assertEquals(first, match[1]);
+        assertEquals(last, match[2]);
+    }
+}
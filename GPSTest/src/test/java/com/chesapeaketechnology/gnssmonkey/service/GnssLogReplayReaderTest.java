@@ -0,0 +1,236 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+public class GnssLogReplayReaderTest {
+    private static final String HEADER = "# Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
+            + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
+            + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+            + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+            + "PseudorangeRateUncertaintyMetersPerSecond,AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+            + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,CarrierPhase,"
+            + "CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,ConstellationType,AgcDb\n";
+
+    /**
+     * Test that consecutive Raw lines with the same TimeNanos are read as one epoch, and that fixes
+     * are read between them in file order
+     */
+    @Test
+    public void testEpochGrouping() throws IOException {
+        String log = HEADER
+                + "Fix,gps,38.9,-76.5,12.0,0.5,4.0,1561000000000\n"
+                + raw(5000, 1000, 5, 41.5, 1) + raw(5000, 1000, 12, 35.25, 1) + raw(5000, 1000, 3, 30.0, 3)
+                + "Fix,network,38.9,-76.5,12.0,0.0,30.0,1561000000500\n"
+                + "Fix,gps,38.9,-76.5,12.5,0.5,4.0,1561000001000\n"
+                + raw(6000, 2000, 5, 41.0, 1);
+
+        RecordingListener listener = new RecordingListener();
+        try (GnssLogReplayReader reader = new GnssLogReplayReader(new BufferedReader(new StringReader(log)))) {
+            // A fix before the first epoch is not timed
+            assertTrue(reader.next(listener));
+            assertTrue(reader.getElapsedRealtimeNanos() < 0);
+            reader.deliver(listener);
+
+            assertTrue(reader.next(listener));
+            assertEquals(5_000_000_000L, reader.getElapsedRealtimeNanos());
+            reader.deliver(listener);
+
+            // The network fix is skipped
+            assertTrue(reader.next(listener));
+            assertEquals(5_000_000_000L, reader.getElapsedRealtimeNanos());
+            GnssLogReplayReader.Fix fix = reader.getFix();
+            assertNotNull(fix);
+            assertEquals("gps", fix.provider);
+            assertEquals(38.9, fix.latitude);
+            assertEquals(-76.5, fix.longitude);
+            assertEquals(12.5, fix.altitude);
+            assertEquals(0.5f, fix.speed);
+            assertEquals(4.0f, fix.accuracy);
+            assertEquals(1561000001000L, fix.timeMillis);
+            assertEquals(5_000_000_000L, fix.elapsedRealtimeNanos);
+            reader.deliver(listener);
+
+            assertTrue(reader.next(listener));
+            assertEquals(6_000_000_000L, reader.getElapsedRealtimeNanos());
+            reader.deliver(listener);
+
+            assertFalse(reader.next(listener));
+        }
+
+        assertEquals(2, listener.locations.size());
+        assertEquals(2, listener.epochs.size());
+
+        GnssEpochRecord first = listener.epochs.get(0);
+        assertEquals(3, first.count);
+        assertEquals(1000L, first.timeNanos);
+        assertEquals(12, first.svid[1]);
+        assertEquals(35.25, first.cn0DbHz[1]);
+        assertEquals(3, first.constellationType[2]);
+        assertEquals(1, listener.epochs.get(1).count);
+    }
+
+    /**
+     * Test that the clock and measurement fields are read, and that empty optional fields clear
+     * their flags
+     */
+    @Test
+    public void testFieldParsing() throws IOException {
+        String log = "Raw,7000,123456789,18,,-1234567890123456789,0.25,12.5,-0.5,3.5,2,24,0.0,16431,"
+                + "345600012345678,20,38.25,-512.5,0.05,16,1.5,0.001,1575420030,,,,0,,1,,\n"
+                + "Raw,7000,123456789,18,,-1234567890123456789,0.25,12.5,-0.5,3.5,2,7,0.0,16431,"
+                + "345600012345679,20,bad,-512.5,0.05,16,1.5,0.001,,,,,0,,1,,\n";
+
+        RecordingListener listener = new RecordingListener();
+        try (GnssLogReplayReader reader = new GnssLogReplayReader(new BufferedReader(new StringReader(log)))) {
+            assertTrue(reader.next(listener));
+            reader.deliver(listener);
+            assertFalse(reader.next(listener));
+        }
+
+        GnssEpochRecord epoch = listener.epochs.get(0);
+        assertNotNull(epoch);
+        assertTrue(epoch.hasLeapSecond);
+        assertEquals(18, epoch.leapSecond);
+        assertFalse(epoch.hasTimeUncertaintyNanos);
+        assertTrue(epoch.hasFullBiasNanos);
+        assertEquals(-1234567890123456789L, epoch.fullBiasNanos);
+        assertEquals(0.25, epoch.biasNanos);
+        assertEquals(-0.5, epoch.driftNanosPerSecond);
+        assertEquals(2, epoch.hardwareClockDiscontinuityCount);
+
+        // The measurement with an unparseable C/N0 is skipped
+        assertEquals(1, epoch.count);
+        assertEquals(24, epoch.svid[0]);
+        assertEquals(345600012345678L, epoch.receivedSvTimeNanos[0]);
+        assertEquals(1575420030f, epoch.carrierFrequencyHz[0]);
+        assertEquals(GnssEpochRecord.FLAG_HAS_CARRIER_FREQUENCY, epoch.flags[0]);
+    }
+
+    /**
+     * Test that the clock and measurement lines of a compact raw log are read as the Raw lines they
+     * stand for
+     */
+    @Test
+    public void testCompactRawFormat() throws IOException {
+        String log = "# Compact raw GNSS measurements format, version 1:\n"
+                + "Clock,0,5000,1000,,,0,,,,,0\n"
+                + "Meas,0,5,0.0,16431,345600000000000,20,41.5,100.5,0.1,0,0.0,0.0,,,,,0,,1,,\n"
+                + "Meas,0,12,0.0,16431,345600000000000,20,35.25,100.5,0.1,0,0.0,0.0,,,,,0,,1,,\n"
+                + "Clock,1,6000,2000,,,0,,,,,0\n"
+                + "Meas,1,5,0.0,16431,345600000000000,20,41.0,100.5,0.1,0,0.0,0.0,,,,,0,,1,,\n";
+
+        RecordingListener listener = new RecordingListener();
+        try (GnssLogReplayReader reader = new GnssLogReplayReader(new BufferedReader(new StringReader(log)))) {
+            while (reader.next(listener)) {
+                reader.deliver(listener);
+            }
+        }
+
+        assertEquals(2, listener.epochs.size());
+        assertEquals(2, listener.epochs.get(0).count);
+        assertEquals(12, listener.epochs.get(0).svid[1]);
+        assertEquals(35.25, listener.epochs.get(0).cn0DbHz[1]);
+        assertEquals(6_000_000_000L, listener.epochs.get(1).elapsedRealtimeNanos);
+        assertEquals(1, listener.epochs.get(1).count);
+    }
+
+    /**
+     * Test that malformed lines are skipped without ending the replay, and that the epoch record of
+     * an epoch with an unreadable clock is handed back
+     */
+    @Test
+    public void testMalformedLines() throws IOException {
+        String log = HEADER
+                + "Raw,bad,1000,,,0,,,,,0,5,0.0,16431,345600000000000,20,41.5,100.5,0.1,0,0.0,0.0,,,,,0,,1\n"
+                + "Meas,7,5,0.0,16431,345600000000000,20,41.5,100.5,0.1,0,0.0,0.0,,,,,0,,1,,\n"
+                + raw(6000, 2000, 5, 41.0, 1);
+
+        RecordingListener listener = new RecordingListener();
+        try (GnssLogReplayReader reader = new GnssLogReplayReader(new BufferedReader(new StringReader(log)))) {
+            assertTrue(reader.next(listener));
+            assertEquals(6_000_000_000L, reader.getElapsedRealtimeNanos());
+            reader.deliver(listener);
+            assertFalse(reader.next(listener));
+        }
+
+        assertEquals(1, listener.epochs.size());
+        assertEquals(1, listener.released.size());
+        assertEquals(2, listener.acquired);
+    }
+
+    /**
+     * Test that an epoch that is read but not delivered is handed back when it is discarded
+     */
+    @Test
+    public void testDiscard() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        try (GnssLogReplayReader reader = new GnssLogReplayReader(new BufferedReader(new StringReader(raw(5000, 1000, 5, 41.5, 1))))) {
+            assertTrue(reader.next(listener));
+            reader.discard(listener);
+            // Discarding after the event is gone does nothing
+            reader.discard(listener);
+        }
+
+        assertEquals(0, listener.epochs.size());
+        assertEquals(1, listener.released.size());
+    }
+
+    private static String raw(long elapsedMillis, long timeNanos, int svid, double cn0, int constellation) {
+        return "Raw," + elapsedMillis + "," + timeNanos + ",,,0,,,,,0," + svid + ",0.0,16431,345600000000000,20,"
+                + cn0 + ",100.5,0.1,0,0.0,0.0,,,,,0,," + constellation + "\n";
+    }
+
+    private static class RecordingListener implements ReplaySource.Listener {
+        final List<GnssEpochRecord> epochs = new ArrayList<>();
+        final List<Location> locations = new ArrayList<>();
+        final List<GnssEpochRecord> released = new ArrayList<>();
+        int acquired;
+
+        @Override
+        public GnssEpochRecord acquireEpoch() {
+            acquired++;
+            return new GnssEpochRecord();
+        }
+
+        @Override
+        public void releaseEpoch(GnssEpochRecord epoch) {
+            released.add(epoch);
+        }
+
+        @Override
+        public void onReplayedEpoch(GnssEpochRecord epoch) {
+            epochs.add(epoch);
+        }
+
+        @Override
+        public void onReplayedStatus(GnssStatusRecord status) {
+        }
+
+        @Override
+        public void onReplayedLocation(Location location) {
+            locations.add(location);
+        }
+
+        @Override
+        public boolean isReadyForMore() {
+            return true;
+        }
+
+        @Override
+        public void onReplayFinished(boolean complete) {
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class MotionDecimatorTest {
+    private static final long MS = 1_000_000L;
+
+    /**
+     * Test that a row holds the mean of the samples each sensor delivered since the previous row
+     */
+    @Test
+    public void testMeanSinceLastRow() {
+        MotionDecimator decimator = new MotionDecimator(16, 1000 * MS);
+        MotionBatch batch = new MotionBatch(4, null);
+
+        decimator.add(MotionDecimator.SENSOR_ACCEL, 10 * MS, new float[]{1f, 2f, 3f});
+        decimator.add(MotionDecimator.SENSOR_ACCEL, 20 * MS, new float[]{3f, 4f, 5f});
+        decimator.add(MotionDecimator.SENSOR_GYRO, 15 * MS, new float[]{0.5f, 0f, -0.5f});
+        decimator.emitRow(100 * MS, batch);
+
+        decimator.add(MotionDecimator.SENSOR_ACCEL, 110 * MS, new float[]{9f, 9f, 9f});
+        decimator.emitRow(200 * MS, batch);
+
+        assertEquals(2, batch.count);
+        assertEquals(100 * MS, batch.timeNanos[0]);
+        assertEquals(2f, batch.accel[0]);
+        assertEquals(3f, batch.accel[1]);
+        assertEquals(4f, batch.accel[2]);
+        assertEquals(-0.5f, batch.gyro[2]);
+        assertTrue(batch.hasFlag(0, MotionBatch.FLAG_HAS_ACCEL));
+        assertTrue(batch.hasFlag(0, MotionBatch.FLAG_HAS_GYRO));
+        assertFalse(batch.hasFlag(0, MotionBatch.FLAG_HAS_MAG));
+        assertFalse(batch.hasFlag(0, MotionBatch.FLAG_HAS_PRESSURE));
+
+        // Only the sample since the first row is averaged into the second
+        assertEquals(9f, batch.accel[3]);
+        assertEquals(9f, batch.accel[5]);
+    }
+
+    /**
+     * Test that a sensor slower than the output rate repeats its latest sample until the hold
+     * limit has passed
+     */
+    @Test
+    public void testHoldLatest() {
+        MotionDecimator decimator = new MotionDecimator(16, 250 * MS);
+        MotionBatch batch = new MotionBatch(4, null);
+
+        decimator.add(MotionDecimator.SENSOR_PRESSURE, 0, new float[]{1013.25f});
+        decimator.emitRow(100 * MS, batch);
+        decimator.emitRow(200 * MS, batch);
+        decimator.emitRow(300 * MS, batch);
+
+        assertEquals(1013.25f, batch.pressureHpa[0]);
+        assertTrue(batch.hasFlag(1, MotionBatch.FLAG_HAS_PRESSURE));
+        assertEquals(1013.25f, batch.pressureHpa[1]);
+        assertFalse(batch.hasFlag(2, MotionBatch.FLAG_HAS_PRESSURE));
+        assertEquals(0f, batch.pressureHpa[2]);
+        assertFalse(batch.isFull());
+    }
+
+    /**
+     * Test that only the most recent samples are averaged when a sensor delivers more than its
+     * ring holds between two rows
+     */
+    @Test
+    public void testRingOverflow() {
+        MotionDecimator decimator = new MotionDecimator(4, 1000 * MS);
+        MotionBatch batch = new MotionBatch(1, null);
+
+        for (int i = 0; i < 10; i++) {
+            decimator.add(MotionDecimator.SENSOR_MAG, i * MS, new float[]{i, -i, 2 * i});
+        }
+        decimator.emitRow(10 * MS, batch);
+
+        // Samples 6 through 9
+        assertEquals(7.5f, batch.mag[0]);
+        assertEquals(-7.5f, batch.mag[1]);
+        assertEquals(15f, batch.mag[2]);
+        assertTrue(batch.isFull());
+    }
+}
@@ -0,0 +1,66 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class RolloverPolicyTest {
+
+    /**
+     * Test that the size and duration limits trigger preparation before the rollover itself
+     */
+    @Test
+    public void testSizeAndDurationLimits() {
+        RolloverPolicy policy = new RolloverPolicy(1000L, 60_000L, RolloverPolicy.Boundary.NONE);
+        assertTrue(policy.isEnabled());
+
+        assertFalse(policy.isPrepareDue(100L, 0L, 1000L));
+        assertTrue(policy.isPrepareDue(950L, 0L, 1000L));
+        assertFalse(policy.isRolloverDue(950L, 0L, 1000L));
+        assertTrue(policy.isRolloverDue(1000L, 0L, 1000L));
+
+        assertTrue(policy.isPrepareDue(0L, 0L, 55_000L));
+        assertFalse(policy.isRolloverDue(0L, 0L, 55_000L));
+        assertTrue(policy.isRolloverDue(0L, 0L, 60_000L));
+    }
+
+    /**
+     * Test that a policy without limits never rolls over
+     */
+    @Test
+    public void testDisabled() {
+        RolloverPolicy policy = new RolloverPolicy(0L, 0L, RolloverPolicy.Boundary.NONE);
+        assertFalse(policy.isEnabled());
+        assertFalse(policy.isPrepareDue(Long.MAX_VALUE, 0L, Long.MAX_VALUE / 2));
+        assertFalse(policy.isRolloverDue(Long.MAX_VALUE, 0L, Long.MAX_VALUE / 2));
+    }
+
+    /**
+     * Test that wall-clock boundaries fall at the start of the next hour or day
+     */
+    @Test
+    public void testBoundaries() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2020, Calendar.MARCH, 10, 23, 59, 45);
+        long openedAt = calendar.getTimeInMillis();
+
+        calendar.clear();
+        calendar.set(2020, Calendar.MARCH, 11, 0, 0, 0);
+        long midnight = calendar.getTimeInMillis();
+
+        RolloverPolicy hourly = new RolloverPolicy(0L, 0L, RolloverPolicy.Boundary.HOURLY);
+        RolloverPolicy daily = new RolloverPolicy(0L, 0L, RolloverPolicy.Boundary.DAILY);
+        assertEquals(midnight, hourly.getNextBoundaryMs(openedAt));
+        assertEquals(midnight, daily.getNextBoundaryMs(openedAt));
+        assertEquals(midnight + 3_600_000L, hourly.getNextBoundaryMs(midnight));
+
+        assertTrue(daily.isPrepareDue(0L, openedAt, openedAt));
+        assertFalse(daily.isRolloverDue(0L, openedAt, midnight - 1));
+        assertTrue(daily.isRolloverDue(0L, openedAt, midnight));
+    }
+}
@@ -0,0 +1,57 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class SatelliteStateTableTest {
+
+    /**
+     * Test that status is stored per satellite and updated in place, including across growth
+     */
+    @Test
+    public void testStatus() {
+        SatelliteStateTable table = new SatelliteStateTable();
+        assertEquals(-1, table.indexOf(SatelliteStateTable.key(1, 5)));
+        assertFalse(table.isUsedInFix(-1));
+
+        for (int constellation = 0; constellation < 8; constellation++) {
+            for (int svid = 0; svid < 64; svid++) {
+                table.putStatus(SatelliteStateTable.key(constellation, svid), (svid % 2) == 0, true, false,
+                        false, 0f, svid, constellation);
+            }
+        }
+        assertEquals(8 * 64, table.size());
+
+        int slot = table.indexOf(SatelliteStateTable.key(3, 10));
+        assertTrue(table.isUsedInFix(slot));
+        assertEquals(10f, table.getElevationDegrees(slot));
+        assertEquals(3f, table.getAzimuthDegrees(slot));
+        assertFalse(table.isUsedInFix(table.indexOf(SatelliteStateTable.key(3, 11))));
+
+        table.putStatus(SatelliteStateTable.key(3, 10), false, true, true, true, 1575.42e6f, 45f, 90f);
+        slot = table.indexOf(SatelliteStateTable.key(3, 10));
+        assertFalse(table.isUsedInFix(slot));
+        assertTrue(table.hasCarrierFrequency(slot));
+        assertEquals(45f, table.getElevationDegrees(slot));
+        assertEquals(8 * 64, table.size());
+    }
+
+    /**
+     * Test that satellites without a status report no status
+     */
+    @Test
+    public void testMissingStatus() {
+        SatelliteStateTable table = new SatelliteStateTable();
+        table.putStatus(SatelliteStateTable.key(1, 7), true, true, true, false, 0f, 30f, 120f);
+
+        int slot = table.indexOf(SatelliteStateTable.key(3, 7));
+        assertEquals(-1, slot);
+        assertFalse(table.hasStatus(slot));
+        assertFalse(table.isUsedInFix(slot));
+        assertEquals(0f, table.getElevationDegrees(slot));
+        assertTrue(table.isUsedInFix(table.indexOf(SatelliteStateTable.key(1, 7))));
+    }
+}
@@ -0,0 +1,148 @@
+package com.chesapeaketechnology.gnssmonkey.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class StorageRetentionTest {
+    private static final long HOUR_MS = 60L * 60L * 1000L;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("retention", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    /**
+     * Test that the oldest sessions are deleted along with their WAL files until the directory is
+     * under the maximum total bytes, and that stale journals are deleted when the index is built
+     */
+    @Test
+    public void testMaxTotalBytes() throws IOException {
+        long now = System.currentTimeMillis();
+        File oldest = createSession("a", 1000, now - 3 * HOUR_MS);
+        File oldestWal = createFile(oldest.getPath() + "-wal", 500, now - 3 * HOUR_MS);
+        File middle = createSession("b", 1000, now - 2 * HOUR_MS);
+        File newest = createSession("c", 1000, now - HOUR_MS);
+        File journal = createFile(newest.getPath() + "-journal", 100, now);
+        createFile(new File(directory, "notes.txt").getPath(), 5000, now);
+
+        StorageRetention retention = new StorageRetention(directory, 1500, 0, 0, Collections.emptySet());
+        retention.buildIndex(directory.listFiles());
+        assertFalse(journal.exists());
+        assertEquals(3, retention.getSessionCount());
+        assertEquals(3500L, retention.getIndexedBytes());
+
+        assertEquals(2, retention.prune());
+        assertFalse(oldest.exists());
+        assertFalse(oldestWal.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+        assertTrue(new File(directory, "notes.txt").exists());
+        assertEquals(1000L, retention.getIndexedBytes());
+
+        // A closed session is added to the index without listing the directory
+        File next = createSession("d", 1500, now);
+        retention.onSessionClosed(next.getPath());
+        assertEquals(2500L, retention.getIndexedBytes());
+        assertEquals(1, retention.prune());
+        assertFalse(newest.exists());
+        assertTrue(next.exists());
+    }
+
+    /**
+     * Test that sessions older than the maximum age are deleted, except ones that are open or still
+     * have a capture log to recover
+     */
+    @Test
+    public void testMaxAge() throws IOException {
+        long now = System.currentTimeMillis();
+        File expired = createSession("a", 100, now - 50 * HOUR_MS);
+        File recovering = createSession("b", 100, now - 49 * HOUR_MS);
+        createFile(recovering.getPath() + CaptureLog.FILE_SUFFIX, 100, now - 49 * HOUR_MS);
+        File open = createSession("c", 100, now - 48 * HOUR_MS);
+        File recent = createSession("d", 100, now - HOUR_MS);
+
+        Set<String> activeFilePaths = new HashSet<>();
+        activeFilePaths.add(open.getPath());
+        StorageRetention retention = new StorageRetention(directory, 0, 24 * HOUR_MS, 0, activeFilePaths);
+        retention.buildIndex(directory.listFiles());
+        assertEquals(3, retention.getSessionCount());
+
+        assertEquals(1, retention.prune());
+        assertFalse(expired.exists());
+        assertTrue(recovering.exists());
+        assertTrue(open.exists());
+        assertTrue(recent.exists());
+
+        // Once the log has been recovered the session can be deleted
+        assertTrue(new File(recovering.getPath() + CaptureLog.FILE_SUFFIX).delete());
+        retention.onSessionClosed(recovering.getPath());
+        assertEquals(1, retention.prune());
+        assertFalse(recovering.exists());
+    }
+
+    /**
+     * Test that sessions are deleted, oldest first, until the minimum free space is available
+     */
+    @Test
+    public void testMinFreeSpace() throws IOException {
+        long now = System.currentTimeMillis();
+        File oldest = createSession("a", 4000, now - 3 * HOUR_MS);
+        File middle = createSession("b", 4000, now - 2 * HOUR_MS);
+        File newest = createSession("c", 4000, now - HOUR_MS);
+
+        StorageRetention retention = new StorageRetention(directory, 0, 0, 10_000, Collections.emptySet()) {
+            @Override
+            long getUsableSpace() {
+                return 3000L;
+            }
+        };
+        retention.buildIndex(directory.listFiles());
+
+        assertEquals(2, retention.prune());
+        assertFalse(oldest.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+    }
+
+    private File createSession(String name, int bytes, long lastModifiedMs) throws IOException {
+        return createFile(new File(directory, "GNSS-MONKEY-" + name + ".gpkg").getPath(), bytes, lastModifiedMs);
+    }
+
+    private static File createFile(String path, int bytes, long lastModifiedMs) throws IOException {
+        File file = new File(path);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[bytes]);
+        }
+        assertTrue(file.setLastModified(lastModifiedMs));
+        return file;
+    }
+}